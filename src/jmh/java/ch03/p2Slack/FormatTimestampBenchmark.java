@@ -0,0 +1,33 @@
+package ch03.p2Slack;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Formatting of a Slack message "ts" (seconds.microseconds since the epoch), done once per
+ * message read from a channel. Run with {@code gradle jmh -PjmhArgs=FormatTimestamp}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FormatTimestampBenchmark {
+    // Not a constant, so the parse cannot be folded away
+    public String ts = "1764366657.123456";
+
+    @Benchmark
+    public String formatTimestamp() {
+        return ChannelReaderSlackBot.formatTimestamp(ts);
+    }
+}
@@ -0,0 +1,43 @@
+package ch04;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Line wrapping of one Whisper transcript before it is appended to the combined file.
+ * Run with {@code gradle jmh -PjmhArgs=WrapText}. The text is about what Whisper returns
+ * for one 10-minute segment: a few paragraphs, 8 KB.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WrapTextBenchmark {
+    private static final int MAX_LINE = 100;
+
+    private String transcript;
+
+    @Setup
+    public void setup() {
+        String sentence = "So the next thing we need to look at is how the client reuses its connections between calls. ";
+        transcript = (sentence.repeat(30) + "\n").repeat(3);
+    }
+
+    @Benchmark
+    public List<String> wrapText() {
+        return HFRouterWhisperClient.wrapText(transcript, MAX_LINE);
+    }
+}
@@ -0,0 +1,83 @@
+package ch05;
+
+import common.moderation.TermMatcher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The banned-term check ContentModeratorBotDumb runs on every guild message.
+ * Run with {@code gradle jmh -PjmhArgs=BannedTerms}.
+ * - "matcher" is the compiled {@link TermMatcher} the bot uses
+ * - "contains" is the original check, lower-casing the message and calling contains() once per term
+ * - "ch05" is the bot's own list, "ch06" the 30-odd terms of the Ollama bot's prefilter
+ * Neither message contains a term, so every term is tried; that is the common case.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BannedTermsBenchmark {
+
+    @Param({"ch05", "ch06"})
+    public String list;
+
+    @Param({"short", "long"})
+    public String input;
+
+    private String text;
+    private TermMatcher matcher;
+    private String[] terms;
+
+    @Setup
+    public void setup() throws IOException {
+        String resource = list.equals("ch05") ? "/ch05/banned_terms.txt" : "/ch06/ollama/banned_terms.txt";
+        matcher = TermMatcher.load(resource);
+        List<String> plain = new ArrayList<>();
+        try (InputStream in = BannedTermsBenchmark.class.getResourceAsStream(resource)) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.strip();
+                if (!line.isEmpty() && !line.startsWith("#")) plain.add(line.replace("*", "").toLowerCase(Locale.ROOT));
+            }
+        }
+        terms = plain.toArray(new String[0]);
+        String message = "Hi! Does anyone know why the app logs me out every time I switch to another tab? ";
+        text = input.equals("short") ? message : message.repeat(20);
+    }
+
+    @Benchmark
+    public boolean matcher() {
+        return matcher.matches(text);
+    }
+
+    @Benchmark
+    public boolean contains() {
+        String lower = text.toLowerCase(Locale.ROOT);
+        for (String term : terms) {
+            if (lower.contains(term)) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,101 @@
+package ch06;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import common.llm.ChatCodec;
+import common.llm.EncodedChat;
+import common.llm.LlmClient;
+import okio.BufferedSink;
+import okio.Okio;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serializing the chapter 6 {@link Chat} request (system message, FAQ, question and the
+ * sampling options) per Discord question. Run with {@code gradle jmh -PjmhArgs=ChatSerialization}.
+ * - "newMapper" is how the chapter code first did it, with an ObjectMapper per request
+ * - "sharedMapper" reuses {@link LlmClient#MAPPER}
+ * - "codec" is the pre-encoded {@link ChatCodec} template the bots now send
+ * The Ollama bot's request without sampling options is in ChatCodecBenchmark.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChatSerializationBenchmark {
+    private static final String MODEL = "gpt-4";
+    private static final String SYSTEM_MESSAGE = "You are a virtual assistant that provides support for the Crooks Bank banking app. ";
+    private static final String QUESTION = "How do I reset my password if I no longer have access to my e-mail?";
+
+    private String faq;
+    private ChatCodec codec;
+    private BufferedSink sink;
+
+    @Setup
+    public void setup() throws IOException {
+        try (InputStream in = ChatSerializationBenchmark.class.getResourceAsStream("/ch06/ollama/FAQ.txt")) {
+            faq = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        codec = ChatCodec.builder()
+                .model(MODEL)
+                .maxTokens(256)
+                .option("temperature", 1.0f)
+                .option("top_p", 1.0f)
+                .option("frequency_penalty", 0)
+                .option("presence_penalty", 0)
+                .message("system", SYSTEM_MESSAGE)
+                .message("user", faq)
+                .build();
+        sink = Okio.buffer(Okio.blackhole());
+    }
+
+    @Benchmark
+    public byte[] newMapper() throws IOException {
+        return new ObjectMapper().writeValueAsBytes(chat());
+    }
+
+    @Benchmark
+    public byte[] sharedMapper() throws IOException {
+        return LlmClient.MAPPER.writeValueAsBytes(chat());
+    }
+
+    // Written straight into the (here discarding) HTTP sink; no byte[] of the body is made
+    @Benchmark
+    public BufferedSink codec() throws IOException {
+        EncodedChat chat = codec.encode(false, ChatCodec.Message.user(QUESTION));
+        chat.writeTo(sink.outputStream());
+        return sink.emit();
+    }
+
+    private Chat chat() {
+        List<Message> messages = new ArrayList<>();
+        messages.add(new Message("system", SYSTEM_MESSAGE));
+        messages.add(new Message("user", faq));
+        messages.add(new Message("user", QUESTION));
+        return Chat.builder()
+                .model(MODEL)
+                .messages(messages)
+                .temperature(1.0f)
+                .maxTokens(256)
+                .topP(1.0f)
+                .frequencyPenalty(0)
+                .presencePenalty(0)
+                .build();
+    }
+}
@@ -0,0 +1,76 @@
+package ch06.chatgpt;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import common.llm.ChatCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading the answer out of an OpenAI chat completion response.
+ * Run with {@code gradle jmh -PjmhArgs=ExtractAnswer}.
+ * - "extractAnswerFromJSON" is the client's String method (JSON tree, shared mapper)
+ * - "newMapper" is the same with an ObjectMapper per response, as the chapter code first did
+ * - "streaming" is {@link ChatCodec#readContent}, which the client uses on the response bytes
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExtractAnswerBenchmark {
+    private ChatGPTClientForQAandModeration client;
+    private String response;
+    private byte[] responseBytes;
+
+    @Setup
+    public void setup() throws IOException {
+        client = new ChatGPTClientForQAandModeration("You are a helpful assistant", "FAQ");
+        ObjectMapper mapper = new ObjectMapper();
+        String answer = "To reset your password, open the app, tap \"Forgot password\" and follow the steps. ".repeat(6);
+        ObjectNode message = mapper.createObjectNode().put("role", "assistant").put("content", answer);
+        ObjectNode choice = mapper.createObjectNode().put("index", 0).put("finish_reason", "stop");
+        choice.set("message", message);
+        ObjectNode root = mapper.createObjectNode()
+                .put("id", "chatcmpl-123")
+                .put("object", "chat.completion")
+                .put("created", 1_700_000_000L)
+                .put("model", "gpt-4");
+        root.set("choices", mapper.createArrayNode().add(choice));
+        root.set("usage", mapper.createObjectNode()
+                .put("prompt_tokens", 1200)
+                .put("completion_tokens", 110)
+                .put("total_tokens", 1310));
+        response = mapper.writeValueAsString(root);
+        responseBytes = response.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public String extractAnswerFromJSON() {
+        return client.extractAnswerFromJSON(response);
+    }
+
+    @Benchmark
+    public String newMapper() throws IOException {
+        return new ObjectMapper().readTree(response).at("/choices/0/message/content").asText();
+    }
+
+    @Benchmark
+    public String streaming() throws IOException {
+        return ChatCodec.readContent(new ByteArrayInputStream(responseBytes));
+    }
+}
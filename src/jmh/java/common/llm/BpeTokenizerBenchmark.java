@@ -0,0 +1,80 @@
+package common.llm;
+
+import com.knuddels.jtokkit.Encodings;
+import com.knuddels.jtokkit.api.Encoding;
+import com.knuddels.jtokkit.api.EncodingType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BpeTokenizer against jtokkit on the same cl100k_base vocabulary (read from the jtokkit jar).
+ * Run with {@code gradle jmh -PjmhArgs=BpeTokenizer}. Each operation handles the whole text,
+ * so tokens per second = tokens / score; setup prints the token count.
+ * - "faq" is the tech-support FAQ (English prose)
+ * - "message" is a typical Discord question
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BpeTokenizerBenchmark {
+
+    @Param({"faq", "message"})
+    public String input;
+
+    private String text;
+    private BpeTokenizer tokenizer;
+    private Encoding reference;
+
+    @Setup
+    public void setup() throws IOException {
+        if (input.equals("faq")) {
+            try (InputStream in = BpeTokenizerBenchmark.class.getResourceAsStream("/ch06/ollama/FAQ.txt")) {
+                text = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            }
+        } else {
+            text = "Hi! I've tried to reset my password 3 times since 10:45, but the e-mail never arrives :( What now?";
+        }
+        try (InputStream in = Encoding.class.getResourceAsStream("/com/knuddels/jtokkit/cl100k_base.tiktoken")) {
+            tokenizer = BpeTokenizer.fromTiktoken("cl100k_base", in, BpeTokenizer.CL100K_PATTERN);
+        }
+        reference = Encodings.newDefaultEncodingRegistry().getEncoding(EncodingType.CL100K_BASE);
+        System.out.println(input + ": " + tokenizer.count(text) + " tokens");
+    }
+
+    @Benchmark
+    public int countBpe() {
+        return tokenizer.count(text);
+    }
+
+    @Benchmark
+    public int countJtokkit() {
+        return reference.countTokens(text);
+    }
+
+    @Benchmark
+    public int[] encodeBpe() {
+        return tokenizer.encode(text);
+    }
+
+    @Benchmark
+    public Object encodeJtokkit() {
+        return reference.encode(text);
+    }
+}
@@ -0,0 +1,115 @@
+package common.llm;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import okio.BufferedSink;
+import okio.Okio;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-request cost of building a chat completion body and reading the answer back.
+ * Run with {@code gradle jmh -PjmhArgs=ChatCodec}; the gc profiler's
+ * "gc.alloc.rate.norm" column is the number of bytes allocated per request.
+ * The "pojo" benchmarks are the previous ObjectMapper/JsonNode path.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChatCodecBenchmark {
+    private static final String MODEL = "llama3.2:1b";
+    private static final String SYSTEM_MESSAGE = """
+            You are a virtual Santa Claus who grants wishes. You are a magical team of fairy-tale characters \
+            who together act as the Wish-Granting Helpers. You respond to children's (and adults') wishes in a \
+            warm, kind, and enchanting way. You always respond in a playful, fairy-tale style, staying in character.
+            """;
+    private static final String QUESTION = "How do I reset my password if I no longer have access to my e-mail?";
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private String faq;
+    private ChatCodec codec;
+    private byte[] response;
+    // Bytes go to a discarding sink, as they would go to the socket
+    private BufferedSink sink;
+
+    @Setup
+    public void setup() throws IOException {
+        try (InputStream in = ChatCodecBenchmark.class.getResourceAsStream("/ch06/ollama/FAQ.txt")) {
+            faq = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        codec = ChatCodec.builder()
+                .model(MODEL)
+                .maxTokens(128)
+                .message("system", SYSTEM_MESSAGE)
+                .message("system", "FAQ:\n" + faq)
+                .build();
+
+        String answer = "Alice smiles curiously: \"Oh, what an interesting wish!\" ".repeat(8);
+        response = mapper.writeValueAsBytes(mapper.createObjectNode()
+                .put("id", "chatcmpl-123")
+                .put("object", "chat.completion")
+                .put("created", 1_700_000_000L)
+                .put("model", MODEL)
+                .<com.fasterxml.jackson.databind.node.ObjectNode>set("choices", mapper.createArrayNode()
+                        .add(mapper.createObjectNode()
+                                .put("index", 0)
+                                .put("finish_reason", "stop")
+                                .set("message", mapper.createObjectNode()
+                                        .put("role", "assistant")
+                                        .put("content", answer))))
+                .set("usage", mapper.createObjectNode()
+                        .put("prompt_tokens", 900)
+                        .put("completion_tokens", 128)
+                        .put("total_tokens", 1028)));
+        sink = Okio.buffer(Okio.blackhole());
+    }
+
+    @Benchmark
+    public BufferedSink encodePojo() throws IOException {
+        List<Message> messages = new ArrayList<>();
+        messages.add(new Message("system", SYSTEM_MESSAGE));
+        messages.add(new Message("system", "FAQ:\n" + faq));
+        messages.add(new Message("user", QUESTION));
+        byte[] body = mapper.writeValueAsBytes(new ChatRequest(MODEL, messages, 128, false));
+        return sink.write(body).emit();
+    }
+
+    @Benchmark
+    public BufferedSink encodeTemplate() throws IOException {
+        codec.encode(false, ChatCodec.Message.user(QUESTION)).requestBody().writeTo(sink);
+        return sink.emit();
+    }
+
+    @Benchmark
+    public String decodePojo() throws IOException {
+        String body = new String(response, StandardCharsets.UTF_8);
+        return mapper.readTree(body).at("/choices/0/message/content").asText();
+    }
+
+    @Benchmark
+    public String decodeStreaming() throws IOException {
+        return ChatCodec.readContent(new ByteArrayInputStream(response));
+    }
+
+    public record Message(String role, String content) {}
+
+    public record ChatRequest(String model, List<Message> messages, int max_tokens, boolean stream) {}
+}
@@ -1,14 +1,12 @@
 package ch02;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import common.llm.LlmClient;
+import common.llm.LlmClientConfig;
+import common.llm.LlmHttpException;
+import common.llm.RateLimiterRegistry;
 
-import java.io.*;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -40,50 +38,29 @@ public class ChatClient {
 
         String jsonInput;
         try {
-            jsonInput = new ObjectMapper().writeValueAsString(requestBody);
+            jsonInput = LlmClient.MAPPER.writeValueAsString(requestBody);
             System.out.println("Sending request:\n" + jsonInput + "\n");
         } catch (JsonProcessingException e) {
             e.printStackTrace();
             return;
         }
 
-        try {
-            URL url = new URL(ENDPOINT);
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            conn.setRequestMethod("POST");
-            conn.setRequestProperty("Authorization", "Bearer " + hfToken);
-            conn.setRequestProperty("Content-Type", "application/json");
-            conn.setDoOutput(true);
-
-            // Send JSON payload
-            try (OutputStream os = conn.getOutputStream()) {
-                byte[] input = jsonInput.getBytes(StandardCharsets.UTF_8);
-                os.write(input, 0, input.length);
-            }
-
-            int responseCode = conn.getResponseCode();
-            StringBuilder response = new StringBuilder();
-
-            try (BufferedReader br = new BufferedReader(new InputStreamReader(
-                    responseCode == 200 ? conn.getInputStream() : conn.getErrorStream(), StandardCharsets.UTF_8))) {
-                String line;
-                while ((line = br.readLine()) != null) {
-                    response.append(line.trim());
-                }
-            }
+        // Shared pooled client with connect/read timeouts instead of a bare HttpURLConnection.
+        // Requests share the account's hourly quota; 429 and "model loading" 503 answers are retried
+        LlmClient client = LlmClient.forEndpoint(ENDPOINT, LlmClientConfig.builder()
+                .bearerToken(hfToken)
+                .rateLimits(RateLimiterRegistry.shared(), RateLimiterRegistry.HUGGING_FACE)
+                .build());
 
+        try {
+            // Parse OpenAI-style: {"choices": [{"message": {"content": "..."}}]}
+            String answer = client.chat(requestBody);
             System.out.println("Response from " + MODEL + ":\n");
-
-            if (responseCode == 200) {
-                // Parse OpenAI-style: {"choices": [{"message": {"content": "..."}}]}
-                JsonNode jsonResponse = new ObjectMapper().readTree(response.toString());
-                String answer = jsonResponse.get("choices").get(0).get("message").get("content").asText();
-                System.out.println(answer);
-            } else {
-                System.out.println("HTTP Error: " + responseCode);
-                System.out.println(response);
-            }
-
+            System.out.println(answer);
+        } catch (LlmHttpException e) {
+            System.out.println("Response from " + MODEL + ":\n");
+            System.out.println("HTTP Error: " + e.code());
+            System.out.println(e.body());
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -1,5 +1,11 @@
 package ch03;
 
+import common.jfr.MessageSendEvent;
+import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.api.objects.message.Message;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+import org.telegram.telegrambots.meta.generics.TelegramClient;
+
 public class Utils {
     public static String getRequiredEnv(String name) {
         String value = System.getenv(name);
@@ -11,4 +17,19 @@ public class Utils {
         }
         return value.trim();
     }
+
+    /**
+     * Sends a Telegram message, recorded as a JFR {@link MessageSendEvent} when a recording runs.
+     */
+    public static Message sendTelegram(TelegramClient client, SendMessage message) throws TelegramApiException {
+        MessageSendEvent event = MessageSendEvent.begin("telegram", "send", message.getChatId(), message.getText().length());
+        boolean succeeded = false;
+        try {
+            Message sent = client.execute(message);
+            succeeded = true;
+            return sent;
+        } finally {
+            event.end(succeeded);
+        }
+    }
 }
@@ -2,17 +2,12 @@ package ch03.p1ChatClient;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import common.llm.LlmClient;
+import common.llm.LlmClientConfig;
+import common.llm.LlmHttpException;
+import common.llm.RateLimiterRegistry;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URI;
-import java.net.URL;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
@@ -49,51 +44,29 @@ public class ChatClient {
 
         String jsonInput;
         try {
-            jsonInput = new ObjectMapper().writeValueAsString(requestBody);
+            jsonInput = LlmClient.MAPPER.writeValueAsString(requestBody);
             System.out.println("Sending request:\n" + jsonInput + "\n");
         } catch (JsonProcessingException e) {
             System.err.println("Failed to serialize request to JSON: " + e.getMessage());
             return;
         }
 
-        try {
-            URI uri = URI.create(ENDPOINT);
-            URL url = uri.toURL();
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            conn.setRequestMethod("POST");
-            conn.setRequestProperty("Authorization", "Bearer " + hfToken);
-            conn.setRequestProperty("Content-Type", "application/json");
-            conn.setDoOutput(true);
-
-            // Send JSON payload
-            try (OutputStream os = conn.getOutputStream()) {
-                byte[] input = jsonInput.getBytes(StandardCharsets.UTF_8);
-                os.write(input, 0, input.length);
-            }
-
-            int responseCode = conn.getResponseCode();
-            StringBuilder response = new StringBuilder();
-
-            try (BufferedReader br = new BufferedReader(new InputStreamReader(
-                    responseCode == 200 ? conn.getInputStream() : conn.getErrorStream(), StandardCharsets.UTF_8))) {
-                String line;
-                while ((line = br.readLine()) != null) {
-                    response.append(line.trim());
-                }
-            }
+        // Shared pooled client with connect/read timeouts instead of a bare HttpURLConnection.
+        // Requests share the account's hourly quota; 429 and "model loading" 503 answers are retried
+        LlmClient client = LlmClient.forEndpoint(ENDPOINT, LlmClientConfig.builder()
+                .bearerToken(hfToken)
+                .rateLimits(RateLimiterRegistry.shared(), RateLimiterRegistry.HUGGING_FACE)
+                .build());
 
+        try {
+            // Parse OpenAI-style: {"choices": [{"message": {"content": "..."}}]}
+            String answer = client.chat(requestBody);
             System.out.println("Response from " + MODEL + ":\n");
-
-            if (responseCode == 200) {
-                // Parse OpenAI-style: {"choices": [{"message": {"content": "..."}}]}
-                JsonNode jsonResponse = new ObjectMapper().readTree(response.toString());
-                String answer = jsonResponse.get("choices").get(0).get("message").get("content").asText();
-                System.out.println(answer);
-            } else {
-                System.out.println("HTTP Error: " + responseCode);
-                System.out.println(response);
-            }
-
+            System.out.println(answer);
+        } catch (LlmHttpException e) {
+            System.out.println("Response from " + MODEL + ":\n");
+            System.out.println("HTTP Error: " + e.code());
+            System.out.println(e.body());
         } catch (Exception e) {
             System.err.println("Unexpected error: " + e.getMessage());
         }
@@ -8,6 +8,9 @@ import com.slack.api.methods.request.users.UsersInfoRequest;
 import com.slack.api.methods.response.users.UsersInfoResponse;
 import com.slack.api.model.Message;
 import com.slack.api.model.User;
+import common.jfr.MessageSendEvent;
+import common.metrics.CallTimer;
+import common.metrics.Metrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -21,14 +24,19 @@ public class ChannelReaderSlackBot {
 
 	private static final Logger log = LoggerFactory.getLogger(ChannelReaderSlackBot.class);
 
-	// Secrets are now loaded from environment variables – safe for GitHub!
-	private static final String SLACK_BOT_TOKEN = getRequiredEnv("SLACK_BOT_TOKEN");
-	private static final String SLACK_CHANNEL_ID = getRequiredEnv("SLACK_CHANNEL_ID");
+	// Latency of the Slack Web API calls, logged at the end
+	private static final CallTimer HISTORY_FETCH = Metrics.global().outboundCall("slack_history");
+	private static final CallTimer USER_LOOKUP = Metrics.global().outboundCall("slack_users_info");
 
 
 	public static void main(String[] args) {
+    	// Secrets are now loaded from environment variables – safe for GitHub!
+    	// Read here rather than in static fields, so formatTimestamp works without them
+    	String botToken = getRequiredEnv("SLACK_BOT_TOKEN");
+    	String channelId = getRequiredEnv("SLACK_CHANNEL_ID");
+
     	Slack slack = Slack.getInstance();
-    	MethodsClient methods = slack.methods(SLACK_BOT_TOKEN);
+    	MethodsClient methods = slack.methods(botToken);
 
     	LocalDateTime startTimeUTC = LocalDateTime.of(2025, Month.NOVEMBER, 27, 10, 0);
     	LocalDateTime endTimeUTC = LocalDateTime.of(2025, Month.DECEMBER, 28, 15, 0);
@@ -37,13 +45,17 @@ public class ChannelReaderSlackBot {
     	long endTime = endTimeUTC.atZone(ZoneOffset.UTC).toEpochSecond();
 
     	ConversationsHistoryRequest request = ConversationsHistoryRequest.builder()
-        	.channel(SLACK_CHANNEL_ID)
+        	.channel(channelId)
         	.oldest(String.valueOf(startTime))
         	.latest(String.valueOf(endTime))
         	.build();
 
     	try {
+        	long started = System.nanoTime();
+        	MessageSendEvent event = MessageSendEvent.begin("slack", "history", channelId, 0);
         	ConversationsHistoryResponse response = methods.conversationsHistory(request);
+        	HISTORY_FETCH.ok().recordSince(started);
+        	event.end(response != null && response.isOk());
         	if (response != null && response.isOk()) {
             	List<Message> messages = response.getMessages();
             	Collections.reverse(messages);
@@ -55,7 +67,9 @@ public class ChannelReaderSlackBot {
                     	.user(userId)
                     	.build();
 
+                	started = System.nanoTime();
                 	UsersInfoResponse userInfoResponse = methods.usersInfo(userInfoRequest);
+                	USER_LOOKUP.ok().recordSince(started);
                 	if (userInfoResponse != null && userInfoResponse.isOk()) {
                     	User user = userInfoResponse.getUser();
                     	System.out.println("User: " + user.getName());
@@ -75,9 +89,11 @@ public class ChannelReaderSlackBot {
 		} catch (Exception e) {
 			System.err.println("Unexpected error: " + e.getMessage());
 		}
+		log.info("conversations.history: {}", HISTORY_FETCH.ok());
+		log.info("users.info: {}", USER_LOOKUP.ok());
 	}
 
-	private static String formatTimestamp(String ts) {
+	static String formatTimestamp(String ts) {
     	double timestamp = Double.parseDouble(ts);
     	Instant instant = Instant.ofEpochSecond((long) timestamp);
     	LocalDateTime dateTime = LocalDateTime.ofInstant(instant, ZoneOffset.UTC);
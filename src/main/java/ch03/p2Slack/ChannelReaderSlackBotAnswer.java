@@ -4,6 +4,7 @@ import com.slack.api.Slack;
 import com.slack.api.methods.MethodsClient;
 import com.slack.api.methods.request.chat.ChatPostMessageRequest;
 import com.slack.api.methods.response.chat.ChatPostMessageResponse;
+import common.jfr.MessageSendEvent;
 
 public class ChannelReaderSlackBotAnswer {
 
@@ -21,7 +22,9 @@ public class ChannelReaderSlackBotAnswer {
 				.build();
 
 		try {
+			MessageSendEvent event = MessageSendEvent.begin("slack", "send", SLACK_CHANNEL_ID, request.getText().length());
 			ChatPostMessageResponse response = client.chatPostMessage(request);
+			event.end(response.isOk());
 
 			if (response.isOk()) {
 				System.out.println("Message successfully sent to the channel!");
@@ -34,7 +34,7 @@ public class TelegramBotSpeakWithUser implements LongPollingSingleThreadUpdateCo
 					.build();
 
 			try {
-				client.execute(msg);
+				Utils.sendTelegram(client, msg);
 				log.info("Replied to {}", chatId);
 			} catch (TelegramApiException e) {
 				log.error("Failed to send message to {}: {}", chatId, e.getMessage());
@@ -75,7 +75,7 @@ public class TelegramChannelBotAddMessageToPrivateChannelById implements LongPol
 					.text("You wrote: " + userText)
 					.build();
 			try {
-				client.execute(reply);
+				Utils.sendTelegram(client, reply);
 				log.info("Replied to {}", userChatId);
 			} catch (TelegramApiException e) {
 				log.error("Failed to send message to {}: {}", userChatId, e.getMessage());
@@ -89,7 +89,7 @@ public class TelegramChannelBotAddMessageToPrivateChannelById implements LongPol
 					.text("Message from User: " + userText)
 					.build();
 			try {
-				client.execute(channelMsg);
+				Utils.sendTelegram(client, channelMsg);
 			} catch (Exception e) {
 				log.error("Unexpected error while sending message into private channel", e);
 			}
@@ -37,7 +37,7 @@ public class TelegramChannelBotSentMessegeToPrivateChannel implements LongPollin
 				.text(text)
 				.build();
 		try {
-			client.execute(msg);
+			Utils.sendTelegram(client, msg);
 			log.info("Message successfully sent to channel {} → {}", CHANNEL_ID, text);
 		} catch (TelegramApiException e) {
 			log.error("Failed to send message to channel {}: {} ",
@@ -62,7 +62,7 @@ public class TelegramChannelBotSentMessegeToPrivateChannel implements LongPollin
 					.text("User wrote: " + userText)
 					.build();
 			try {
-				client.execute(reply);
+				Utils.sendTelegram(client, reply);
 			} catch (Exception e) {
 				log.error("Unexpected error while replying to user {}", userChatId, e);
 			}
@@ -73,7 +73,7 @@ public class TelegramChannelBotSentMessegeToPrivateChannel implements LongPollin
 					.text("Message from User: " + userText)
 					.build();
 			try {
-				client.execute(channelMsg);
+				Utils.sendTelegram(client, channelMsg);
 			} catch (Exception e) {
 				log.error("Unexpected error while forwarding to channel {}", CHANNEL_ID, e);
 			}
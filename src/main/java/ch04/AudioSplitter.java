@@ -2,55 +2,340 @@ package ch04;
 
 import org.bytedeco.javacv.FFmpegFrameGrabber;
 import org.bytedeco.javacv.FFmpegFrameRecorder;
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.FrameGrabber;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Iterator;
 
+/**
+ * Splits an episode into MP3 segments for Whisper, cutting in the pauses between sentences
+ * rather than every N seconds, so no word is cut in half.
+ * - A segment closes at the first pause of {@link #SENTENCE_PAUSE_SECONDS} once it is past its
+ *   minimum length, or at any pause of {@link #WORD_PAUSE_SECONDS} once past its target, and
+ *   mid-speech only when it reaches its maximum
+ * - Silence before the first word and after the last one is dropped, and pauses longer than
+ *   {@link #MAX_PAUSE_SECONDS} are shortened, so Whisper is not paid to listen to nothing
+ * - The maximum is capped so that no segment gets near the {@link #MAX_UPLOAD_BYTES} upload limit
+ */
 public class AudioSplitter {
 	private static final Logger log = LoggerFactory.getLogger(AudioSplitter.class);
+
+	private static final int BITRATE = 192000;
+	// Request size limit of the Whisper endpoints
+	static final int MAX_UPLOAD_BYTES = 25 * 1024 * 1024;
+	// Counted after the detector's hangover, so the gaps heard are 0.2 s longer
+	static final double SENTENCE_PAUSE_SECONDS = 0.4;
+	static final double WORD_PAUSE_SECONDS = 0.1;
+	static final double MAX_PAUSE_SECONDS = 1.0;
+	// Silence kept around speech, so the first and last words are not clipped
+	private static final double PADDING_SECONDS = 0.2;
+
+	/**
+	 * Receives each segment as soon as it is encoded. The buffer belongs to the consumer,
+	 * which releases it once done with it.
+	 */
+	interface SegmentConsumer {
+		void accept(int segmentNumber, SegmentBuffer audio) throws IOException, InterruptedException;
+	}
+
+	/**
+	 * Segment lengths in seconds of audio sent, after silence is removed.
+	 */
+	record Segmentation(double targetSeconds, double minSeconds, double maxSeconds) {
+		Segmentation {
+			if (minSeconds <= 0 || minSeconds > targetSeconds || targetSeconds > maxSeconds) {
+				throw new IllegalArgumentException("Need 0 < min <= target <= max, got " + minSeconds + ", "
+						+ targetSeconds + ", " + maxSeconds);
+			}
+		}
+
+		/**
+		 * Cuts between 3/4 and 3/2 of {@code targetSeconds}, the maximum capped by the upload limit.
+		 */
+		static Segmentation around(double targetSeconds) {
+			double target = Math.min(targetSeconds, maxUploadSeconds());
+			return new Segmentation(target, target * 3 / 4, Math.min(target * 3 / 2, maxUploadSeconds()));
+		}
+
+		/**
+		 * Like {@link #around(double)}, with segments long enough to transcribe
+		 * {@code audioSecondsPerMinute} within {@code requestsPerMinute}: under a request quota the
+		 * audio per request is what sets the throughput.
+		 */
+		static Segmentation forThroughput(double targetSeconds, double audioSecondsPerMinute, double requestsPerMinute) {
+			if (audioSecondsPerMinute <= 0 || requestsPerMinute <= 0) return around(targetSeconds);
+			return around(Math.max(targetSeconds, audioSecondsPerMinute / requestsPerMinute));
+		}
+	}
+
+	/**
+	 * What a split produced, against what a fixed split of the whole input would have sent.
+	 */
+	record Result(int segments, double inputSeconds, double audioSeconds, long bytes) {
+		@Override
+		public String toString() {
+			return String.format("%d segments, %.0f s of %.0f s input audio (%.0f%% silence dropped), %d KB",
+					segments, audioSeconds, inputSeconds,
+					inputSeconds == 0 ? 0.0 : 100 * (1 - audioSeconds / inputSeconds), bytes / 1024);
+		}
+	}
+
 	public static void main(String[] args) {
 		// Download the audio in the folder with inputFilePath: https://www.thisamericanlife.org/811/the-one-place-i-cant-go
     	String inputFilePath = "src/main/resources/ch04/source_TheOnePlaceICantGo/811.mp3";
     	String outputDirectory = "src/main/resources/ch04/target_TheOnePlaceICantGo/";
     	int segmentDurationInSeconds = 60;
 
-    	try (FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(inputFilePath)) {
-        	grabber.start();
+		Segmentation segmentation = Segmentation.around(segmentDurationInSeconds);
+		// Segments go straight to disk, so one buffer is enough.
+		// TranscriptionPipeline uploads them from memory instead
+		SegmentBuffer.Pool pool = new SegmentBuffer.Pool(1, segmentCapacity(segmentation));
+		try {
+			Result result = split(inputFilePath, segmentation, pool, (segmentNumber, audio) -> {
+				try {
+					audio.writeTo(Path.of(outputDirectory + segmentFileName(segmentNumber)));
+				} finally {
+					audio.release();
+				}
+			});
+			log.info("Split {}: {}", inputFilePath, result);
+		} catch (IOException e) {
+			log.error("Failed to process audio file: {}. Splitting aborted.", inputFilePath, e);
+		} catch (InterruptedException e) {
+			log.error("Splitting interrupted: {}", inputFilePath);
+			Thread.currentThread().interrupt();
+		}
+	}
 
-        	long totalDurationInSeconds = grabber.getLengthInTime() / 1000000; // Convert microseconds to seconds
-        	double frameRate = grabber.getFrameRate();
+	static String segmentFileName(int segmentNumber) {
+		return "segment_" + String.format("%05d", segmentNumber) + ".mp3";
+	}
 
-        	long segmentStartTime = 0;
-        	long segmentEndTime;
-        	int segmentNumber = 1;
+	// Bytes of a segment of the target length at BITRATE, with some room for the header.
+	// Longer segments grow their buffer
+	static int segmentCapacity(Segmentation segmentation) {
+		return (int) (BITRATE / 8 * segmentation.targetSeconds() * 1.1);
+	}
 
-        	while (segmentStartTime < totalDurationInSeconds) {
-            	String outputFilePath = outputDirectory + "segment_" + String.format("%05d", segmentNumber) + ".mp3";
+	// Longest segment that stays under MAX_UPLOAD_BYTES, with 5% left for headers and the multipart body
+	static double maxUploadSeconds() {
+		return MAX_UPLOAD_BYTES * 0.95 / (BITRATE / 8);
+	}
 
-            	try (FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(outputFilePath, 0)) {
-                	recorder.setAudioChannels(2);
-                	recorder.setAudioCodecName("libmp3lame"); // Set the audio codec to MP3
-                	recorder.setAudioBitrate(192000); // Adjust bitrate as needed
-                	recorder.setSampleRate(44100); // Adjust sample rate as needed
-                	recorder.setFrameRate(frameRate);
-                	recorder.setFormat("mp3"); // Set the output format to MP3
-                	recorder.start();
+	/**
+	 * Encodes the speech of the input into MP3 segments, in memory, and hands them to
+	 * {@code consumer} one by one, numbered from 1. Reads the input once, front to back, and waits
+	 * for a free buffer of {@code pool} before each segment.
+	 */
+	static Result split(String inputFilePath, Segmentation segmentation, SegmentBuffer.Pool pool,
+						SegmentConsumer consumer) throws IOException, InterruptedException {
+		try (FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(inputFilePath)) {
+			// 16-bit samples whatever the source codec decodes to, for the detector and the recorder
+			grabber.setSampleMode(FrameGrabber.SampleMode.SHORT);
+			grabber.start();
 
-                	segmentEndTime = Math.min(segmentStartTime + segmentDurationInSeconds, totalDurationInSeconds);
+			SilenceDetector detector = new SilenceDetector();
+			Pause pause = new Pause();
+			Output output = new Output(pool, consumer, grabber.getFrameRate());
+			double inputSeconds = 0;
 
-                	grabber.setTimestamp(segmentStartTime * 1000000); // Set the grabber's timestamp to the start time in microseconds
+			try {
+				Frame samples;
+				while ((samples = grabber.grabSamples()) != null) {
+					double seconds = SilenceDetector.seconds(samples);
+					if (seconds == 0) continue;
+					inputSeconds += seconds;
 
-                	while (grabber.getTimestamp() / 1000000 < segmentEndTime) {
-                    	recorder.record(grabber.grabSamples());
-                	}
-            	}
+					if (!detector.isSpeech(samples)) {
+						pause.add(samples, seconds);
+						if (output.isOpen() && pause.seconds() >= pauseToCut(output.seconds, segmentation)) {
+							// Cut here: the segment ends with a little of the pause, the next starts after it
+							output.seconds += pause.recordHead(output.recorder);
+							output.close(String.format("in a %.2f s pause", pause.seconds()));
+						}
+						continue;
+					}
 
-            	segmentStartTime = segmentEndTime;
-            	segmentNumber++;
-        	}
-		} catch (IOException e) {
-			log.error("Failed to process audio file: {}. Splitting aborted.", inputFilePath, e);
+					if (!output.isOpen()) {
+						output.open();
+						output.seconds += pause.recordTail(output.recorder);
+					} else {
+						output.seconds += pause.recordAll(output.recorder);
+					}
+					pause.clear();
+					output.recorder.record(samples);
+					output.seconds += seconds;
+
+					if (output.seconds >= segmentation.maxSeconds()) {
+						// No pause long enough: cut mid-speech rather than go over the limit
+						output.close("at the maximum");
+					}
+				}
+
+				if (output.isOpen()) {
+					output.seconds += pause.recordHead(output.recorder);
+					output.close("at the end");
+				}
+			} finally {
+				output.discard();
+			}
+			log.debug("Background level at the end: {} dBFS", String.format("%.0f", detector.floorDb()));
+			return new Result(output.segmentNumber, inputSeconds, output.audioSeconds, output.bytes);
+		}
+	}
+
+	// The shortest pause to cut at: none below the minimum, a sentence break up to the target,
+	// then the gap between two words
+	private static double pauseToCut(double segmentSeconds, Segmentation segmentation) {
+		if (segmentSeconds < segmentation.minSeconds()) return Double.POSITIVE_INFINITY;
+		return segmentSeconds < segmentation.targetSeconds() ? SENTENCE_PAUSE_SECONDS : WORD_PAUSE_SECONDS;
+	}
+
+	/**
+	 * The segment being encoded, and the totals of those handed over.
+	 */
+	private static final class Output {
+		private final SegmentBuffer.Pool pool;
+		private final SegmentConsumer consumer;
+		private final double frameRate;
+		FFmpegFrameRecorder recorder;
+		SegmentBuffer audio;
+		int segmentNumber;
+		// Of the open segment
+		double seconds;
+		double audioSeconds;
+		long bytes;
+
+		Output(SegmentBuffer.Pool pool, SegmentConsumer consumer, double frameRate) {
+			this.pool = pool;
+			this.consumer = consumer;
+			this.frameRate = frameRate;
+		}
+
+		boolean isOpen() {
+			return recorder != null;
+		}
+
+		void open() throws IOException, InterruptedException {
+			audio = pool.acquire();
+			recorder = new FFmpegFrameRecorder(audio, 2);
+			recorder.setAudioChannels(2);
+			recorder.setAudioCodecName("libmp3lame"); // Set the audio codec to MP3
+			recorder.setAudioBitrate(BITRATE); // Adjust bitrate as needed
+			recorder.setSampleRate(44100); // Adjust sample rate as needed
+			recorder.setFrameRate(frameRate);
+			recorder.setFormat("mp3"); // Set the output format to MP3
+			recorder.start();
+			segmentNumber++;
+			seconds = 0;
+		}
+
+		// Finishes the segment and hands it to the consumer
+		void close(String cut) throws IOException, InterruptedException {
+			recorder.close();
+			recorder = null;
+			SegmentBuffer segment = audio;
+			audio = null;
+			bytes += segment.size();
+			audioSeconds += seconds;
+			log.debug("Segment {}: {} s, {} KB, cut {}", segmentNumber, String.format("%.1f", seconds),
+					segment.size() / 1024, cut);
+			consumer.accept(segmentNumber, segment);
+		}
+
+		// After a failure: drops the unfinished segment
+		void discard() throws IOException {
+			if (recorder != null) recorder.close();
+			if (audio != null) audio.release();
+			recorder = null;
+			audio = null;
+		}
+	}
+
+	/**
+	 * The silent frames since the last speech. Only what can end up in a segment is kept: the
+	 * first {@link #PADDING_SECONDS} to close the segment before it, and the last ones to open
+	 * the next. The middle of a long pause is dropped as it goes by, so memory stays small
+	 * however long the silence.
+	 */
+	private static final class Pause {
+		private final ArrayDeque<Frame> head = new ArrayDeque<>();
+		private final ArrayDeque<Frame> tail = new ArrayDeque<>();
+		private boolean headFull;
+		private double headSeconds;
+		private double tailSeconds;
+		private double seconds;
+
+		// The grabber reuses its frames, so the kept ones are copies
+		void add(Frame samples, double frameSeconds) {
+			seconds += frameSeconds;
+			if (!headFull) {
+				head.addLast(samples.clone());
+				headSeconds += frameSeconds;
+				headFull = headSeconds >= PADDING_SECONDS;
+				return;
+			}
+			tail.addLast(samples.clone());
+			tailSeconds += frameSeconds;
+			// Enough for the longest pause that is recorded whole
+			while (tailSeconds - SilenceDetector.seconds(tail.peekFirst()) >= MAX_PAUSE_SECONDS - PADDING_SECONDS) {
+				tailSeconds -= SilenceDetector.seconds(tail.removeFirst());
+			}
+		}
+
+		double seconds() {
+			return seconds;
+		}
+
+		// Ends a segment; returns the seconds recorded. Later frames of the pause go to the tail
+		double recordHead(FFmpegFrameRecorder recorder) throws FFmpegFrameRecorder.Exception {
+			for (Frame frame : head) recorder.record(frame);
+			double recorded = headSeconds;
+			head.clear();
+			headSeconds = 0;
+			headFull = true;
+			return recorded;
+		}
+
+		// Starts a segment with the last PADDING_SECONDS of the pause; returns the seconds recorded
+		double recordTail(FFmpegFrameRecorder recorder) throws FFmpegFrameRecorder.Exception {
+			ArrayDeque<Frame> lead = new ArrayDeque<>();
+			double recorded = 0;
+			// Newest first: the tail, then the head when the pause is short
+			Iterator<Frame> tailFirst = tail.descendingIterator();
+			Iterator<Frame> headNext = head.descendingIterator();
+			while (recorded < PADDING_SECONDS && (tailFirst.hasNext() || headNext.hasNext())) {
+				Frame frame = tailFirst.hasNext() ? tailFirst.next() : headNext.next();
+				lead.addFirst(frame);
+				recorded += SilenceDetector.seconds(frame);
+			}
+			for (Frame frame : lead) recorder.record(frame);
+			return recorded;
+		}
+
+		// A pause inside a segment: recorded whole up to MAX_PAUSE_SECONDS, otherwise
+		// shortened to its first and last PADDING_SECONDS
+		double recordAll(FFmpegFrameRecorder recorder) throws FFmpegFrameRecorder.Exception {
+			if (seconds <= MAX_PAUSE_SECONDS) {
+				for (Frame frame : head) recorder.record(frame);
+				for (Frame frame : tail) recorder.record(frame);
+				return headSeconds + tailSeconds;
+			}
+			return recordHead(recorder) + recordTail(recorder);
+		}
+
+		void clear() {
+			head.clear();
+			tail.clear();
+			headFull = false;
+			headSeconds = 0;
+			tailSeconds = 0;
+			seconds = 0;
 		}
 	}
 }
@@ -3,15 +3,27 @@ package ch04;
 import ch03.Utils;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import common.concurrent.RateLimiter;
+import common.concurrent.ReorderBuffer;
+import common.jfr.SloRecorder;
+import common.jfr.WhisperUploadEvent;
+import common.llm.RateLimiterRegistry;
+import common.metrics.CallTimer;
+import common.metrics.Counter;
+import common.metrics.Metrics;
+import common.metrics.MetricsServer;
 import okhttp3.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.nio.file.*;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Stream;
 
@@ -22,10 +34,22 @@ import java.util.stream.Stream;
  * Features:
  * - Supports MP3 audio files up to 25MB
  * - Uses raw audio bytes with Content-Type: audio/mpeg
- * - Implements rate limiting for free tier (45-second delays)
+ * - Paces requests through the shared {@link RateLimiterRegistry}: the account's hourly quota
+ *   and 4 Whisper requests per minute; 429 and 503 answers are retried after Retry-After
+ *   or a jittered backoff, other 5xx answers and network errors after the backoff
+ * - Uploads up to "max_concurrent" segments at once; the combined transcript is still
+ *   written in segment order, each segment as soon as all earlier ones are done
+ * Config ("upload" is optional; the defaults are the free tier, one upload at a time):
+ * - "audio_dir", "output_dir": segments to transcribe and where transcripts go
+ * - "upload": {"max_concurrent": 4, "requests_per_minute": 4, "burst": 1,
+ *   "requests_per_hour": 1000, "max_retries": 3}
  * Prerequisites:
  * - Set HF_TOKEN environment variable with Hugging Face API token
  * - MP3 files should be placed in src/main/resources/ch04/target_TheOnePlaceICantGo/
+ * Search:
+ * - Run ch04.index.TranscriptIndexer with the same config to index the transcripts,
+ *   then ch04.index.TranscriptSearcher to query them
+ * - output_dir is emptied on every run, so use one per episode to keep all of them in the index
  * Rate Limits:
  * - Free tier: ~1 request per minute
  * - Paid tiers: Check Hugging Face pricing
@@ -41,12 +65,24 @@ import java.util.stream.Stream;
 public class HFRouterWhisperClient {
     private static final Logger log = LoggerFactory.getLogger(HFRouterWhisperClient.class);
 
-    // Hugging Face API token from environment variable
-    private final static String HF_TOKEN = Utils.getRequiredEnv("HF_TOKEN");
+    // Hugging Face API token from environment variable, read in main() so the text helpers
+    // can be used (and benchmarked) without it
+    private static String hfToken;
 
     // Hugging Face Inference API endpoint for Whisper model
-    private final static String ENDPOINT =
-            "https://router.huggingface.co/hf-inference/models/openai/whisper-large-v3";
+    private final static String MODEL = "openai/whisper-large-v3";
+    private final static String ENDPOINT = "https://router.huggingface.co/hf-inference/models/" + MODEL;
+
+    // Free tier: one transcription every 15 seconds, on top of the account's hourly quota.
+    // The "upload" section of the config overrides both
+    private static final RateLimiterRegistry RATE_LIMITS = RateLimiterRegistry.shared()
+            .limit(RateLimiterRegistry.HUGGING_FACE, MODEL, RateLimiter.Quota.perMinute(4).withBurst(1));
+    private static int maxRetries = 3;
+
+    // Every request, retries included; with METRICS_PORT set they are also served for Prometheus
+    private static final CallTimer UPLOADS = Metrics.global().outboundCall("whisper_upload");
+    private static final Counter UPLOADED_BYTES = Metrics.global().counter("whisper_upload_bytes_total",
+            "Audio bytes sent to the Whisper API");
 
     // HTTP client with appropriate timeouts for audio processing
     private static final OkHttpClient client = new OkHttpClient.Builder()
@@ -65,6 +101,7 @@ public class HFRouterWhisperClient {
      * @throws Exception If any file or network error occurs
      */
     public static void main(String[] args) throws Exception {
+        initialize();
 
         if (args.length == 0) {
             log.error("No config file path passed as argument!");
@@ -79,7 +116,7 @@ public class HFRouterWhisperClient {
         JsonNode config = mapper.readTree(configPath.toFile());
 
         // Validate API token
-        if (HF_TOKEN == null || HF_TOKEN.trim().isEmpty()) {
+        if (hfToken == null || hfToken.trim().isEmpty()) {
             log.error("HF_TOKEN environment variable not set!");
             log.error("Set it with: export HF_TOKEN=your_token_here");
             return;
@@ -88,29 +125,7 @@ public class HFRouterWhisperClient {
         String mp3FolderPath = config.get("audio_dir").asText();
         String outputFolderPath = config.get("output_dir").asText();
 
-        // Ensure output folder exists: remove old, create new
-        Path outputDir = Paths.get(outputFolderPath);
-
-        if (Files.exists(outputDir)) {
-            log.warn("Output directory exists → deleting: {}", outputDir.toAbsolutePath());
-
-            // Recursively delete directory
-            try (Stream<Path> paths = Files.walk(outputDir)) {
-                paths
-                        .sorted(Comparator.reverseOrder()) // delete children first
-                        .forEach(p -> {
-                            try {
-                                Files.delete(p);
-                            } catch (IOException e) {
-                                log.error("Failed to delete {}", p, e);
-                            }
-                        });
-            }
-        }
-
-        Files.createDirectories(outputDir);
-
-        log.info("Created clean output folder: {}", outputDir.toAbsolutePath());
+        prepareOutputDir(Paths.get(outputFolderPath));
 
         log.info("Using endpoint: {}", ENDPOINT);
 
@@ -132,77 +147,172 @@ public class HFRouterWhisperClient {
 
         log.info("Found {} MP3 files for transcription", mp3Files.size());
 
+        int concurrency = configureUploads(config.path("upload"));
+        ReorderBuffer<String> combined = combinedTranscript(outputFolderPath, concurrency);
+        ExecutorService uploads = Executors.newFixedThreadPool(concurrency, HFRouterWhisperClient::uploadThread);
+
+        for (int i = 0; i < mp3Files.size(); i++) {
+            Path mp3 = mp3Files.get(i);
+            int index = i;
+            combined.awaitSlot(index);
+            uploads.execute(() -> {
+                String text = null;
+                try {
+                    text = transcribeSegment(mp3, outputFolderPath);
+                } catch (IOException | RuntimeException e) {
+                    log.error("Transcription failed for {}", mp3.getFileName(), e);
+                } finally {
+                    combined.complete(index, text);
+                }
+            });
+        }
+        uploads.shutdown();
+        while (!uploads.awaitTermination(1, TimeUnit.MINUTES)) {
+            log.info("Waiting for uploads: {} of {} segments in the combined transcript, {} waiting for an earlier one",
+                    combined.delivered(), mp3Files.size(), combined.waiting());
+        }
+
+        log.info("All transcriptions completed successfully!");
+        log.info("Whisper requests: {}, {} KB sent", UPLOADS.ok(), UPLOADED_BYTES.value() / 1024);
+    }
+
+    /**
+     * Resets combined_transcription.txt and returns the buffer that appends transcripts to it in
+     * segment order. Segments finish in any order; a few beyond the uploads in flight may wait
+     * for a slow one before uploads pause.
+     */
+    static ReorderBuffer<String> combinedTranscript(String outputFolderPath, int concurrency) throws IOException {
         // Where to save combined result
         String combinedOutputPath = outputFolderPath + "combined_transcription.txt";
         int maxLineLength = 120; // symbol limit
 
         // Create/reset combined file
         Files.writeString(Path.of(combinedOutputPath), "");
-        long lastRequestTime = System.currentTimeMillis();
 
-        for (Path mp3 : mp3Files) {
+        return new ReorderBuffer<>(concurrency * 2, text -> {
+            if (text == null) return;
+            try {
+                appendWrappedText(combinedOutputPath, text, maxLineLength);
+            } catch (IOException e) {
+                log.error("Failed to append to {}", combinedOutputPath, e);
+            }
+        });
+    }
 
-            String txtOut = outputFolderPath + mp3.getFileName().toString().replace(".mp3", ".txt");
+    static Thread uploadThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "whisper-upload");
+        thread.setDaemon(true);
+        return thread;
+    }
 
-            // Skip if transcription already exists
-            if (Files.exists(Path.of(txtOut))) {
-                log.info("Skipping (already transcribed): {}", txtOut);
-                continue;
-            }
+    // Reads HF_TOKEN and starts metrics and the flight recorder; TranscriptionPipeline shares them
+    static void initialize() {
+        hfToken = Utils.getRequiredEnv("HF_TOKEN");
+        MetricsServer.fromEnv(-1);
+        // With JFR_DUMP_DIR set, a flight recording is dumped when over 10% of a minute's uploads take 2 minutes
+        SloRecorder.builder()
+                .checkInterval(Duration.ofMinutes(1))
+                .minSamples(3)
+                .slo("whisper_upload", 0.9, Duration.ofMinutes(2), UPLOADS.ok(), UPLOADS.error())
+                .startFromEnv();
+    }
 
-            log.info("Transcribing: {}", mp3.getFileName());
-            String text = transcribe(mp3);
-
-            long now = System.currentTimeMillis();
-            long elapsed = now - lastRequestTime;
-            long delay = 15000;
-            long waitTime = delay-elapsed;
-            if (waitTime>0) {
-                log.info("Waiting {} ms before next request...", waitTime);
-                // Rate limiting for free Hugging Face tier
-                log.info("Waiting {} seconds before next request...", waitTime/1000);
-                Thread.sleep(waitTime);
-            }
+    // Ensure output folder exists: remove old, create new
+    static void prepareOutputDir(Path outputDir) throws IOException {
+        if (Files.exists(outputDir)) {
+            log.warn("Output directory exists → deleting: {}", outputDir.toAbsolutePath());
 
-            // Save transcription if successful
-            if (text != null && !text.trim().isEmpty()) {
+            // Recursively delete directory
+            try (Stream<Path> paths = Files.walk(outputDir)) {
+                paths
+                        .sorted(Comparator.reverseOrder()) // delete children first
+                        .forEach(p -> {
+                            try {
+                                Files.delete(p);
+                            } catch (IOException e) {
+                                log.error("Failed to delete {}", p, e);
+                            }
+                        });
+            }
+        }
 
-                Files.writeString(Path.of(txtOut), text.trim());
-                log.info("Transcription saved → {}", txtOut);
+        Files.createDirectories(outputDir);
 
-                // Preview in console
-                int previewTextLength = 150;
-                String preview = text.length() > previewTextLength ? text.substring(0, previewTextLength) + "..." : text;
-                log.info("Text preview: {}", preview);
+        log.info("Created clean output folder: {}", outputDir.toAbsolutePath());
+    }
 
-                // Append to combined output
-                appendWrappedText(combinedOutputPath, text, maxLineLength);
+    // Applies the "upload" section of the config and returns how many segments to upload at once
+    static int configureUploads(JsonNode upload) {
+        int concurrency = Math.max(1, upload.path("max_concurrent").asInt(1));
+        if (upload.has("requests_per_minute")) {
+            int perMinute = upload.get("requests_per_minute").asInt();
+            RATE_LIMITS.limit(RateLimiterRegistry.HUGGING_FACE, MODEL,
+                    RateLimiter.Quota.perMinute(perMinute).withBurst(Math.max(1, upload.path("burst").asInt(1))));
+        }
+        if (upload.has("requests_per_hour")) {
+            RATE_LIMITS.limit(RateLimiterRegistry.HUGGING_FACE,
+                    RateLimiter.Quota.perHour(upload.get("requests_per_hour").asInt()));
+        }
+        maxRetries = Math.max(0, upload.path("max_retries").asInt(maxRetries));
+        log.info("Uploading up to {} segments at once, quota {} per model and {} per account, {} retries",
+                concurrency, RATE_LIMITS.limiter(RateLimiterRegistry.HUGGING_FACE, MODEL).quota(),
+                RATE_LIMITS.limiter(RateLimiterRegistry.HUGGING_FACE).quota(), maxRetries);
+        return concurrency;
+    }
 
-            } else {
-                log.warn("Empty transcription for: {}", mp3.getFileName());
-            }
+    /**
+     * Transcribes one segment into its own .txt file. Returns the text for the combined
+     * transcript, or null if the segment was skipped or failed.
+     */
+    private static String transcribeSegment(Path mp3, String outputFolderPath) throws IOException {
+        String txtOut = outputFolderPath + mp3.getFileName().toString().replace(".mp3", ".txt");
 
-            lastRequestTime = System.currentTimeMillis();
+        // Skip if transcription already exists
+        if (Files.exists(Path.of(txtOut))) {
+            log.info("Skipping (already transcribed): {}", txtOut);
+            return null;
         }
 
-        log.info("All transcriptions completed successfully!");
+        byte[] audioBytes = Files.readAllBytes(mp3);
+        return transcribeSegment(mp3.getFileName().toString(), audioBytes, audioBytes.length, txtOut);
+    }
+
+    /**
+     * Transcribes the first {@code length} bytes of {@code audioBytes} into {@code txtOut}.
+     * Returns the text, or null if it failed or came back empty.
+     */
+    static String transcribeSegment(String fileName, byte[] audioBytes, int length, String txtOut) throws IOException {
+        log.info("Transcribing: {}", fileName);
+        String text = transcribe(fileName, audioBytes, length);
+
+        // Save transcription if successful
+        if (text == null || text.trim().isEmpty()) {
+            log.warn("Empty transcription for: {}", fileName);
+            return null;
+        }
+        Files.writeString(Path.of(txtOut), text.trim());
+        log.info("Transcription saved → {}", txtOut);
+
+        // Preview in console
+        int previewTextLength = 150;
+        String preview = text.length() > previewTextLength ? text.substring(0, previewTextLength) + "..." : text;
+        log.info("Text preview: {}", preview);
+        return text;
     }
 
     /**
-     * Transcribes an MP3 file using Hugging Face Whisper API
+     * Transcribes MP3 audio using Hugging Face Whisper API
      * Sends raw audio bytes with Content-Type: audio/mpeg to the API
      * and parses the JSON response to extract the transcription text.
      *
-     * @param mp3 Path to the MP3 file
+     * @param fileName Name of the segment, for logs and events
+     * @param audioBytes MP3 audio; only the first {@code length} bytes are sent
      * @return Transcription text, or null if failed
      */
-    private static String transcribe(Path mp3) {
+    private static String transcribe(String fileName, byte[] audioBytes, int length) {
         try {
-            byte[] audioBytes = Files.readAllBytes(mp3);
-            String fileName = mp3.getFileName().toString();
-
             // Calculate file size in KB
-            long fileSizeKB = Files.size(mp3) / 1024;
+            long fileSizeKB = length / 1024;
             log.info("File {}: {} KB", fileName, fileSizeKB);
 
             // Whisper API has 25MB limit
@@ -214,71 +324,121 @@ public class HFRouterWhisperClient {
             // Create request with raw audio bytes
             RequestBody body = RequestBody.create(
                     audioBytes,
-                    MediaType.parse("audio/mpeg")
+                    MediaType.parse("audio/mpeg"),
+                    0,
+                    length
             );
 
             // Build HTTP request with authentication
             Request request = new Request.Builder()
                     .url(ENDPOINT)
-                    .addHeader("Authorization", "Bearer " + HF_TOKEN)
+                    .addHeader("Authorization", "Bearer " + hfToken)
                     .addHeader("Content-Type", "audio/mpeg")
                     .post(body)
                     .build();
 
-            log.info("Sending {} ({} KB) to Whisper API...", fileName, fileSizeKB);
-
-            // Execute API call
-            try (Response response = client.newCall(request).execute()) {
-                String responseStr = response.body().string();
-
-                // Check for API errors
-                if (!response.isSuccessful()) {
-                    log.error("HF API error {} for {}: {}",
-                            response.code(), fileName,
-                            responseStr.length() > 200 ?
-                                    responseStr.substring(0, 200) + "..." : responseStr);
-                    return null;
-                }
-
-                // Parse JSON  response
-                JsonNode jsonNode = mapper.readTree(responseStr);
-
-                // Handle different response formats
-                // Format 1: {"text": "transcription"}
-                if (jsonNode.has("text")) {
-                    return jsonNode.get("text").asText();
-                }
+            for (int attempt = 0; ; attempt++) {
+                // Waits for a permit of the account and of the model; no-op when one is free
+                RATE_LIMITS.acquire(RateLimiterRegistry.HUGGING_FACE, MODEL).join();
+                log.info("Sending {} ({} KB) to Whisper API...", fileName, fileSizeKB);
+
+                // Execute API call
+                long started = System.nanoTime();
+                boolean timed = false;
+                WhisperUploadEvent event = new WhisperUploadEvent();
+                event.segment = fileName;
+                event.audioBytes = length;
+                event.attempt = attempt;
+                event.begin();
+                String transcript = null;
+                try (Response response = client.newCall(request).execute()) {
+                    event.status = response.code();
+                    RATE_LIMITS.observe(RateLimiterRegistry.HUGGING_FACE, response::header);
+                    String responseStr = response.body().string();
+                    // Upload plus transcription: the answer only comes once the whole file is done
+                    UPLOADS.record(started, response.isSuccessful() ? null : new IOException("HTTP " + response.code()));
+                    timed = true;
+                    UPLOADED_BYTES.add(length);
+
+                    // Quota exceeded, model loading or a server error: wait as told (or back off)
+                    // and send again
+                    boolean retryable = RateLimiterRegistry.isRetryable(response.code()) || response.code() >= 500;
+                    if (retryable && attempt < maxRetries) {
+                        Duration delay = RATE_LIMITS.backoff(RateLimiterRegistry.HUGGING_FACE, MODEL, response.code(),
+                                RateLimiterRegistry.parseRetryAfter(response.header("Retry-After")), attempt);
+                        log.warn("HF API {} for {}, retry {} of {} in {} ms",
+                                response.code(), fileName, attempt + 1, maxRetries, delay.toMillis());
+                        continue;
+                    }
 
-                // Format 2: {"generated_text": "transcription"}
-                if (jsonNode.has("generated_text")) {
-                    return jsonNode.get("generated_text").asText();
-                }
+                    // Check for API errors
+                    if (!response.isSuccessful()) {
+                        log.error("HF API error {} for {}: {}",
+                                response.code(), fileName,
+                                responseStr.length() > 200 ?
+                                        responseStr.substring(0, 200) + "..." : responseStr);
+                        return null;
+                    }
 
-                // Format 3: [{"text": "transcription"}] (array format)
-                if (jsonNode.isArray() && !jsonNode.isEmpty()) {
-                    JsonNode first = jsonNode.get(0);
-                    if (first.has("text")) {
-                        return first.get("text").asText();
+                    transcript = parseTranscript(mapper.readTree(responseStr));
+                    if (transcript == null) log.error("Unknown response format for {}", fileName);
+                    return transcript;
+
+                } catch (IOException e) {
+                    if (!timed) UPLOADS.record(started, e);
+                    // The connection failed or timed out: back off like for a 503
+                    if (attempt < maxRetries) {
+                        Duration delay = RATE_LIMITS.backoff(RateLimiterRegistry.HUGGING_FACE, MODEL, 503, null, attempt);
+                        log.warn("API error for {}: {}, retry {} of {} in {} ms",
+                                fileName, e.getMessage(), attempt + 1, maxRetries, delay.toMillis());
+                        continue;
                     }
-                    if (first.has("generated_text")) {
-                        return first.get("generated_text").asText();
+                    log.error("API error for {}: {}", fileName, e.getMessage());
+                    return null;
+                } catch (Exception e) {
+                    if (!timed) UPLOADS.record(started, e);
+                    log.error("API error for {}: {}", fileName, e.getMessage());
+                    return null;
+                } finally {
+                    event.end();
+                    if (event.shouldCommit()) {
+                        event.transcriptChars = transcript == null ? 0 : transcript.length();
+                        event.commit();
                     }
                 }
-
-                log.error("Unknown response format for {}", fileName);
-                return null;
-
-            } catch (Exception e) {
-                log.error("API error for {}: {}", fileName, e.getMessage());
-                return null;
             }
 
         } catch (Exception e) {
-            log.error("File processing error for {}: {}", mp3.getFileName(), e.getMessage());
+            log.error("File processing error for {}: {}", fileName, e.getMessage());
             return null;
         }
     }
 
+    // The transcription from any of the response formats, or null for an unknown one
+    private static String parseTranscript(JsonNode jsonNode) {
+        // Format 1: {"text": "transcription"}
+        if (jsonNode.has("text")) {
+            return jsonNode.get("text").asText();
+        }
+
+        // Format 2: {"generated_text": "transcription"}
+        if (jsonNode.has("generated_text")) {
+            return jsonNode.get("generated_text").asText();
+        }
+
+        // Format 3: [{"text": "transcription"}] (array format)
+        if (jsonNode.isArray() && !jsonNode.isEmpty()) {
+            JsonNode first = jsonNode.get(0);
+            if (first.has("text")) {
+                return first.get("text").asText();
+            }
+            if (first.has("generated_text")) {
+                return first.get("generated_text").asText();
+            }
+        }
+        return null;
+    }
+
     private static void appendWrappedText(
             String combinedPath,
             String text,
@@ -300,7 +460,7 @@ public class HFRouterWhisperClient {
         );
     }
 
-    private static List<String> wrapText(String text, int maxLen) {
+    static List<String> wrapText(String text, int maxLen) {
         List<String> result = new ArrayList<>();
 
         for (String paragraph : text.split("\n")) {
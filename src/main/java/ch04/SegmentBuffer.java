@@ -0,0 +1,131 @@
+package ch04;
+
+import org.bytedeco.javacv.Seekable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One encoded audio segment in memory, written by FFmpeg and read by the uploader without a
+ * copy. Buffers come from a {@link Pool} and go back to it when the segment is transcribed,
+ * so a long episode reuses the same few arrays instead of allocating a megabyte per segment.
+ * Seekable because the MP3 muxer goes back to fill in the header when a segment is closed.
+ */
+public final class SegmentBuffer extends OutputStream implements Seekable {
+    // whence values of FFmpeg's seek callback
+    private static final int SEEK_SET = 0;
+    private static final int SEEK_CUR = 1;
+    private static final int SEEK_END = 2;
+
+    private final Pool pool;
+    private byte[] bytes;
+    private int size;
+    private int position;
+
+    private SegmentBuffer(Pool pool, int initialCapacity) {
+        this.pool = pool;
+        this.bytes = new byte[initialCapacity];
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(position + 1);
+        bytes[position++] = (byte) b;
+        size = Math.max(size, position);
+    }
+
+    @Override
+    public void write(byte[] source, int offset, int length) {
+        ensureCapacity(position + length);
+        System.arraycopy(source, offset, bytes, position, length);
+        position += length;
+        size = Math.max(size, position);
+    }
+
+    @Override
+    public void seek(long offset, int whence) {
+        long target = switch (whence) {
+            case SEEK_SET -> offset;
+            case SEEK_CUR -> position + offset;
+            case SEEK_END -> size + offset;
+            default -> throw new IllegalArgumentException("Unsupported whence " + whence);
+        };
+        if (target < 0 || target > size) throw new IllegalArgumentException("Seek to " + target + " of " + size);
+        position = (int) target;
+    }
+
+    // The recorder closes its stream when done; the bytes stay until release()
+    @Override
+    public void close() {
+    }
+
+    /**
+     * The backing array; only the first {@link #size()} bytes are the segment.
+     */
+    public byte[] array() {
+        return bytes;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void writeTo(Path file) throws IOException {
+        try (OutputStream out = Files.newOutputStream(file)) {
+            out.write(bytes, 0, size);
+        }
+    }
+
+    /**
+     * Empties the buffer and hands it back to its pool. The buffer must not be used afterwards.
+     */
+    public void release() {
+        size = 0;
+        position = 0;
+        pool.free.offer(this);
+    }
+
+    private void ensureCapacity(int needed) {
+        if (needed > bytes.length) bytes = Arrays.copyOf(bytes, Math.max(needed, bytes.length * 2));
+    }
+
+    /**
+     * At most {@code maxBuffers} buffers, created on first use. {@link #acquire()} blocks while
+     * all of them are out, which is what stops the splitter from running ahead of the uploads.
+     */
+    public static final class Pool {
+        private final BlockingQueue<SegmentBuffer> free;
+        private final int maxBuffers;
+        private final int initialCapacity;
+        private final AtomicInteger created = new AtomicInteger();
+        private final AtomicLong waits = new AtomicLong();
+
+        public Pool(int maxBuffers, int initialCapacity) {
+            this.free = new ArrayBlockingQueue<>(maxBuffers);
+            this.maxBuffers = maxBuffers;
+            this.initialCapacity = initialCapacity;
+        }
+
+        public SegmentBuffer acquire() throws InterruptedException {
+            SegmentBuffer buffer = free.poll();
+            if (buffer != null) return buffer;
+            if (created.getAndUpdate(n -> n < maxBuffers ? n + 1 : n) < maxBuffers) {
+                return new SegmentBuffer(this, initialCapacity);
+            }
+            waits.incrementAndGet();
+            return free.take();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("buffers=%d of %d, acquires that waited=%d", created.get(), maxBuffers, waits.get());
+        }
+    }
+}
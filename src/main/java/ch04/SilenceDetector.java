@@ -0,0 +1,110 @@
+package ch04;
+
+import org.bytedeco.javacv.Frame;
+
+import java.nio.Buffer;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Voice activity detection on the decoded sample frames of AudioSplitter, from two numbers per
+ * frame: the RMS energy and the zero-crossing rate.
+ * - Speech is a frame well above the background. The background level is tracked from the quiet
+ *   frames, falling at once and rising slowly, so a noisy recording does not read as all speech
+ * - Frames a little above the background but with many zero crossings are taken as speech too:
+ *   that is how s, f and sh sound, and they often start or end a word
+ * - After speech, frames count as speech for {@link #HANGOVER_SECONDS} more, so the gaps inside
+ *   and between words never look like a place to cut
+ * Works on 16-bit or float samples, packed or planar; one instance per stream.
+ */
+final class SilenceDetector {
+    // -46 dBFS: nothing quieter than this is speech, whatever the background
+    private static final double MIN_SPEECH_RMS = 0.005;
+    private static final double FLOOR_FOR_SILENCE = 0.0001;
+    // Speech is 12 dB over the background; fricatives 6 dB over it with a high crossing rate
+    private static final double SPEECH_OVER_FLOOR = 4.0;
+    private static final double FRICATIVE_OVER_FLOOR = 2.0;
+    private static final double FRICATIVE_CROSSINGS = 0.25;
+    // Share of the distance the floor rises per frame towards a louder frame, about 30 s at 26 ms
+    private static final double FLOOR_RISE = 0.001;
+    static final double HANGOVER_SECONDS = 0.2;
+
+    private double floor = FLOOR_FOR_SILENCE;
+    private double hangover;
+    private double lastRms;
+    private double lastCrossings;
+
+    /**
+     * Classifies one frame; frames must come in stream order.
+     */
+    boolean isSpeech(Frame frame) {
+        measure(frame);
+        double threshold = Math.max(MIN_SPEECH_RMS, floor * SPEECH_OVER_FLOOR);
+        boolean speech = lastRms >= threshold
+                || (lastRms >= Math.max(MIN_SPEECH_RMS / 2, floor * FRICATIVE_OVER_FLOOR)
+                    && lastCrossings >= FRICATIVE_CROSSINGS);
+
+        if (lastRms < floor) {
+            floor = Math.max(FLOOR_FOR_SILENCE, lastRms);
+        } else if (!speech) {
+            floor += (lastRms - floor) * FLOOR_RISE;
+        }
+
+        if (speech) {
+            hangover = HANGOVER_SECONDS;
+            return true;
+        }
+        if (hangover > 0) {
+            hangover -= seconds(frame);
+            return true;
+        }
+        return false;
+    }
+
+    // Background level in dBFS, for the log
+    double floorDb() {
+        return 20 * Math.log10(floor);
+    }
+
+    /**
+     * Audio length of a sample frame in seconds.
+     */
+    static double seconds(Frame frame) {
+        if (frame.samples == null || frame.sampleRate <= 0 || frame.audioChannels <= 0) return 0;
+        // Planar frames have one buffer per channel, packed ones all channels in one
+        long values = 0;
+        for (Buffer buffer : frame.samples) values += buffer.limit();
+        return (double) values / frame.audioChannels / frame.sampleRate;
+    }
+
+    // Sets lastRms (0 to 1) and lastCrossings (sign changes per sample) over all channels
+    private void measure(Frame frame) {
+        double sumSquares = 0;
+        long crossings = 0;
+        long count = 0;
+        for (Buffer buffer : frame.samples) {
+            // Packed frames interleave the channels; compare each sample with the previous one
+            // of the same channel
+            int stride = frame.samples.length == 1 ? frame.audioChannels : 1;
+            int limit = buffer.limit();
+            if (buffer instanceof ShortBuffer shorts) {
+                for (int i = 0; i < limit; i++) {
+                    double value = shorts.get(i) / 32768.0;
+                    sumSquares += value * value;
+                    if (i >= stride && (shorts.get(i) < 0) != (shorts.get(i - stride) < 0)) crossings++;
+                }
+            } else if (buffer instanceof FloatBuffer floats) {
+                for (int i = 0; i < limit; i++) {
+                    double value = floats.get(i);
+                    sumSquares += value * value;
+                    if (i >= stride && (floats.get(i) < 0) != (floats.get(i - stride) < 0)) crossings++;
+                }
+            } else {
+                throw new IllegalArgumentException("Unsupported sample buffer " + buffer.getClass().getSimpleName());
+            }
+            count += limit;
+        }
+        lastRms = count == 0 ? 0 : Math.sqrt(sumSquares / count);
+        lastCrossings = count == 0 ? 0 : (double) crossings / count;
+    }
+}
@@ -0,0 +1,137 @@
+package ch04;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import common.concurrent.ReorderBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AudioSplitter and HFRouterWhisperClient in one run, without the disk in between: each
+ * segment is encoded into a pooled in-memory buffer and goes to the uploads over a bounded
+ * queue, so the first segments are transcribed while the rest are still being split.
+ * - When the queue is full the splitter waits, so memory stays at
+ *   queue_capacity + max_concurrent + 1 segments however long the episode
+ * - combined_transcription.txt and the per-segment .txt files come out as with the client,
+ *   so TranscriptIndexer works on them unchanged
+ * - With "write_segments" the MP3 segments are also saved to "audio_dir"
+ * - Segments are cut in pauses near "segment_seconds" of speech, see AudioSplitter. With
+ *   "audio_seconds_per_minute" they are made long enough to reach that rate under the
+ *   requests_per_minute quota
+ * Config: the Whisper client config plus
+ * "pipeline": {"source_file": "...mp3", "segment_seconds": 60, "audio_seconds_per_minute": 0,
+ *              "queue_capacity": 4, "write_segments": false}
+ * Run: TranscriptionPipeline src/main/resources/ch04/hr_router_whisper_client_config.json
+ */
+public class TranscriptionPipeline {
+    private static final Logger log = LoggerFactory.getLogger(TranscriptionPipeline.class);
+
+    // Tells an upload thread that the splitter is done
+    private static final Segment END = new Segment(0, null);
+
+    private record Segment(int number, SegmentBuffer audio) {}
+
+    public static void main(String[] args) throws Exception {
+        HFRouterWhisperClient.initialize();
+
+        if (args.length == 0) {
+            log.error("No config file path passed as argument!");
+            return;
+        }
+        Path configPath = Paths.get(args[0]);
+        if (!Files.exists(configPath)) {
+            log.error("Config file not found: {}", configPath.toAbsolutePath());
+            return;
+        }
+        JsonNode config = new ObjectMapper().readTree(configPath.toFile());
+        JsonNode pipeline = config.path("pipeline");
+        String sourceFile = pipeline.path("source_file")
+                .asText("src/main/resources/ch04/source_TheOnePlaceICantGo/811.mp3");
+        int segmentSeconds = pipeline.path("segment_seconds").asInt(60);
+        double audioSecondsPerMinute = pipeline.path("audio_seconds_per_minute").asDouble(0);
+        int queueCapacity = Math.max(1, pipeline.path("queue_capacity").asInt(4));
+        boolean writeSegments = pipeline.path("write_segments").asBoolean(false);
+        String audioFolderPath = config.get("audio_dir").asText();
+        String outputFolderPath = config.get("output_dir").asText();
+
+        HFRouterWhisperClient.prepareOutputDir(Paths.get(outputFolderPath));
+        if (writeSegments) Files.createDirectories(Paths.get(audioFolderPath));
+
+        int concurrency = HFRouterWhisperClient.configureUploads(config.path("upload"));
+        // Without a per-minute quota the shared hourly one applies
+        AudioSplitter.Segmentation segmentation = AudioSplitter.Segmentation.forThroughput(segmentSeconds,
+                audioSecondsPerMinute, config.path("upload").path("requests_per_minute").asDouble(1000.0 / 60));
+        log.info("Segments of {} s, cut in pauses between {} and {} s",
+                String.format("%.0f", segmentation.targetSeconds()), String.format("%.0f", segmentation.minSeconds()),
+                String.format("%.0f", segmentation.maxSeconds()));
+        ReorderBuffer<String> combined = HFRouterWhisperClient.combinedTranscript(outputFolderPath, concurrency);
+        BlockingQueue<Segment> queue = new ArrayBlockingQueue<>(queueCapacity);
+        // Enough for a full queue, every upload in flight and the segment being encoded
+        SegmentBuffer.Pool pool = new SegmentBuffer.Pool(queueCapacity + concurrency + 1,
+                AudioSplitter.segmentCapacity(segmentation));
+
+        ExecutorService uploads = Executors.newFixedThreadPool(concurrency, HFRouterWhisperClient::uploadThread);
+        for (int i = 0; i < concurrency; i++) {
+            uploads.execute(() -> upload(queue, combined, outputFolderPath));
+        }
+
+        long started = System.nanoTime();
+        int segments = 0;
+        try {
+            AudioSplitter.Result result = AudioSplitter.split(sourceFile, segmentation, pool, (segmentNumber, audio) -> {
+                if (writeSegments) audio.writeTo(Path.of(audioFolderPath + AudioSplitter.segmentFileName(segmentNumber)));
+                // Keeps the uploads within the reorder window behind a slow segment
+                combined.awaitSlot(segmentNumber - 1);
+                queue.put(new Segment(segmentNumber, audio));
+            });
+            segments = result.segments();
+            log.info("Split {} in {} s: {}; {}", sourceFile,
+                    TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - started), result, pool);
+        } finally {
+            for (int i = 0; i < concurrency; i++) queue.put(END);
+            uploads.shutdown();
+        }
+        while (!uploads.awaitTermination(1, TimeUnit.MINUTES)) {
+            log.info("Waiting for uploads: {} of {} segments in the combined transcript, {} waiting for an earlier one",
+                    combined.delivered(), segments, combined.waiting());
+        }
+        log.info("Transcribed {} segments in {} s", segments,
+                TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - started));
+    }
+
+    // One upload thread: takes segments until END, in whatever order they finish
+    private static void upload(BlockingQueue<Segment> queue, ReorderBuffer<String> combined, String outputFolderPath) {
+        while (true) {
+            Segment segment;
+            try {
+                segment = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (segment == END) return;
+
+            String fileName = AudioSplitter.segmentFileName(segment.number());
+            String txtOut = outputFolderPath + fileName.replace(".mp3", ".txt");
+            String text = null;
+            try {
+                text = HFRouterWhisperClient.transcribeSegment(fileName, segment.audio().array(),
+                        segment.audio().size(), txtOut);
+            } catch (Exception e) {
+                log.error("Transcription failed for {}", fileName, e);
+            } finally {
+                segment.audio().release();
+                combined.complete(segment.number() - 1, text);
+            }
+        }
+    }
+}
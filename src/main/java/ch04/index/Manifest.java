@@ -0,0 +1,69 @@
+package ch04.index;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The only mutable file of the index: which segments are live, which of their documents
+ * have been replaced, and which transcript file each document came from.
+ * It is rewritten atomically after new segments are on disk, so a reader always sees
+ * either the old or the new set of segments.
+ */
+public class Manifest {
+    static final String FILE_NAME = "manifest.json";
+
+    private static final ObjectMapper mapper = new ObjectMapper()
+            .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+
+    public int nextSegment = 1;
+    public List<SegmentEntry> segments = new ArrayList<>();
+    // Keyed by transcript path as passed to the indexer
+    public Map<String, FileEntry> files = new TreeMap<>();
+
+    public static class SegmentEntry {
+        public String name;
+        public int docCount;
+        // Docs whose transcript was changed or removed after the segment was written
+        public List<Integer> deleted = new ArrayList<>();
+
+        int liveDocs() {
+            return docCount - deleted.size();
+        }
+    }
+
+    public static class FileEntry {
+        public long size;
+        public long modified;
+        public String sha256;
+        public String segment;
+        public int doc;
+    }
+
+    static Manifest load(Path indexDir) throws IOException {
+        Path file = indexDir.resolve(FILE_NAME);
+        if (!Files.exists(file)) return new Manifest();
+        return mapper.readValue(file.toFile(), Manifest.class);
+    }
+
+    void save(Path indexDir) throws IOException {
+        Path tmp = indexDir.resolve(FILE_NAME + ".tmp");
+        mapper.writeValue(tmp.toFile(), this);
+        Files.move(tmp, indexDir.resolve(FILE_NAME), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    SegmentEntry segment(String name) {
+        for (SegmentEntry segment : segments) {
+            if (segment.name.equals(name)) return segment;
+        }
+        return null;
+    }
+}
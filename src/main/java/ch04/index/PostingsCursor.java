@@ -0,0 +1,120 @@
+package ch04.index;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Forward-only iterator over one term's postings in a segment.
+ * Positions and char offsets are decoded separately and only when asked for; otherwise
+ * the cursor jumps over them using the stored block length.
+ */
+final class PostingsCursor {
+    static final int NO_MORE_DOCS = Integer.MAX_VALUE;
+
+    private final ByteBuffer buffer;
+    private final int docFreq;
+    private int remaining;
+    private int lastDoc = 0;
+    private int doc = -1;
+    private int freq = 0;
+    private int blockStart;
+    private int blockEnd;
+    private int positionsLength;
+    private boolean positionsDecoded;
+    private boolean offsetsDecoded;
+
+    private int[] positions = new int[8];
+    private int[] starts = new int[8];
+    private int[] ends = new int[8];
+
+    PostingsCursor(ByteBuffer buffer, int docFreq) {
+        this.buffer = buffer;
+        this.docFreq = docFreq;
+        this.remaining = docFreq;
+        this.blockEnd = buffer.position();
+    }
+
+    /**
+     * Moves to the next document; returns false when the postings are exhausted.
+     */
+    boolean next() {
+        if (remaining == 0) {
+            doc = NO_MORE_DOCS;
+            return false;
+        }
+        remaining--;
+        buffer.position(blockEnd);
+        lastDoc += VarIntBuffer.readVarInt(buffer);
+        doc = lastDoc;
+        freq = VarIntBuffer.readVarInt(buffer);
+        int blockLength = VarIntBuffer.readVarInt(buffer);
+        positionsLength = VarIntBuffer.readVarInt(buffer);
+        blockStart = buffer.position();
+        blockEnd = blockStart + blockLength;
+        positionsDecoded = false;
+        offsetsDecoded = false;
+        return true;
+    }
+
+    /**
+     * Moves to the first document at or after {@code target}.
+     */
+    boolean advance(int target) {
+        while (doc < target) {
+            if (!next()) return false;
+        }
+        return doc != NO_MORE_DOCS;
+    }
+
+    int docFreq() {
+        return docFreq;
+    }
+
+    int doc() {
+        return doc;
+    }
+
+    int freq() {
+        return freq;
+    }
+
+    int position(int i) {
+        if (!positionsDecoded) decodePositions();
+        return positions[i];
+    }
+
+    int start(int i) {
+        if (!offsetsDecoded) decodeOffsets();
+        return starts[i];
+    }
+
+    int end(int i) {
+        if (!offsetsDecoded) decodeOffsets();
+        return ends[i];
+    }
+
+    private void decodePositions() {
+        if (positions.length < freq) positions = new int[Math.max(freq, positions.length * 2)];
+        buffer.position(blockStart);
+        int position = 0;
+        for (int i = 0; i < freq; i++) {
+            position += VarIntBuffer.readVarInt(buffer);
+            positions[i] = position;
+        }
+        positionsDecoded = true;
+    }
+
+    private void decodeOffsets() {
+        if (starts.length < freq) {
+            starts = new int[Math.max(freq, starts.length * 2)];
+            ends = new int[starts.length];
+        }
+        buffer.position(blockStart + positionsLength);
+        int start = 0;
+        for (int i = 0; i < freq; i++) {
+            start += VarIntBuffer.readVarInt(buffer);
+            starts[i] = start;
+            ends[i] = start + VarIntBuffer.readVarInt(buffer);
+        }
+        offsetsDecoded = true;
+    }
+}
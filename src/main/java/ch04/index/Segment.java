@@ -0,0 +1,128 @@
+package ch04.index;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Read-only view of a segment written by {@link SegmentWriter}.
+ * The file is memory-mapped, so opening it costs only the doc table; terms and postings
+ * are read straight from the page cache on demand. Segments are never modified after
+ * they are written, which makes them safe to share between threads.
+ */
+final class Segment {
+    private final String name;
+    private final ByteBuffer buffer;
+    private final int termCount;
+    private final long totalTokens;
+    private final int termIndexOffset;
+    private final String[] docNames;
+    private final int[] docLengths;
+
+    private Segment(String name, ByteBuffer buffer) throws IOException {
+        this.name = name;
+        this.buffer = buffer;
+        if (buffer.getInt(0) != SegmentWriter.MAGIC || buffer.getInt(4) != SegmentWriter.VERSION) {
+            throw new IOException("Not a transcript index segment: " + name);
+        }
+        int docCount = buffer.getInt(8);
+        this.termCount = buffer.getInt(12);
+        this.totalTokens = buffer.getLong(16);
+        int docsOffset = buffer.getInt(24);
+        this.termIndexOffset = buffer.getInt(28);
+
+        docNames = new String[docCount];
+        docLengths = new int[docCount];
+        int pos = docsOffset;
+        for (int i = 0; i < docCount; i++) {
+            docLengths[i] = buffer.getInt(pos);
+            int nameLength = buffer.getInt(pos + 4);
+            byte[] nameBytes = new byte[nameLength];
+            buffer.get(pos + 8, nameBytes);
+            docNames[i] = new String(nameBytes, StandardCharsets.UTF_8);
+            pos += 8 + nameLength;
+        }
+    }
+
+    static Segment open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            // The mapping stays valid after the channel is closed
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new Segment(file.getFileName().toString(), mapped);
+        }
+    }
+
+    String name() {
+        return name;
+    }
+
+    int docCount() {
+        return docNames.length;
+    }
+
+    long totalTokens() {
+        return totalTokens;
+    }
+
+    String docName(int doc) {
+        return docNames[doc];
+    }
+
+    int docLength(int doc) {
+        return docLengths[doc];
+    }
+
+    /**
+     * Number of documents in this segment that contain the term, 0 if none.
+     */
+    int docFreq(byte[] term) {
+        int ord = find(term);
+        return ord < 0 ? 0 : buffer.getInt(entry(ord) + 12);
+    }
+
+    /**
+     * Returns a fresh cursor over the term's postings, or null if the term does not occur.
+     */
+    PostingsCursor postings(byte[] term) {
+        int ord = find(term);
+        if (ord < 0) return null;
+        int entry = entry(ord);
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(buffer.getInt(entry + 8));
+        return new PostingsCursor(slice, buffer.getInt(entry + 12));
+    }
+
+    // Binary search over the sorted term index, comparing UTF-8 bytes in place
+    private int find(byte[] term) {
+        int low = 0;
+        int high = termCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareTerm(mid, term);
+            if (cmp < 0) low = mid + 1;
+            else if (cmp > 0) high = mid - 1;
+            else return mid;
+        }
+        return -1;
+    }
+
+    private int compareTerm(int ord, byte[] term) {
+        int entry = entry(ord);
+        int offset = buffer.getInt(entry);
+        int length = buffer.getInt(entry + 4);
+        int n = Math.min(length, term.length);
+        for (int i = 0; i < n; i++) {
+            int cmp = Integer.compare(buffer.get(offset + i) & 0xFF, term[i] & 0xFF);
+            if (cmp != 0) return cmp;
+        }
+        return Integer.compare(length, term.length);
+    }
+
+    private int entry(int ord) {
+        return termIndexOffset + ord * SegmentWriter.TERM_ENTRY_BYTES;
+    }
+}
@@ -0,0 +1,189 @@
+package ch04.index;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds one immutable segment in memory and writes it to disk.
+ * File layout (all offsets are absolute, big-endian):
+ * - header: magic, version, doc count, term count, total tokens, section offsets
+ * - docs: per doc its length in tokens and its file name
+ * - term index: fixed 16-byte entries (term bytes offset, term length, postings offset,
+ *   doc frequency) sorted by the UTF-8 bytes of the term, so readers can binary search it
+ * - term bytes: the UTF-8 terms back to back
+ * - postings: per term, per doc: doc delta, freq, byte length of the occurrence block,
+ *   byte length of its positions part, then the position deltas, then per occurrence
+ *   the start offset delta and token length
+ * The lengths let a reader skip occurrences it does not need, and phrase matching reads
+ * positions without decoding offsets.
+ */
+final class SegmentWriter {
+    static final int MAGIC = 0x5449_4458; // "TIDX"
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 48;
+    static final int TERM_ENTRY_BYTES = 16;
+
+    private final List<String> docNames = new ArrayList<>();
+    private final List<Integer> docLengths = new ArrayList<>();
+    private final Map<String, TermPostings> postings = new HashMap<>();
+    private long totalTokens = 0;
+    private long postingsBytes = 0;
+
+    private final VarIntBuffer block = new VarIntBuffer(256);
+
+    /**
+     * Indexes one document and returns its id within the segment.
+     */
+    int addDocument(String name, String text) {
+        int doc = docNames.size();
+        Map<String, Occurrences> docTerms = new LinkedHashMap<>();
+        int length = Tokenizer.tokenize(text, (term, position, start, end) ->
+                docTerms.computeIfAbsent(term, t -> new Occurrences()).add(position, start, end));
+
+        for (Map.Entry<String, Occurrences> e : docTerms.entrySet()) {
+            TermPostings termPostings = postings.computeIfAbsent(e.getKey(), t -> new TermPostings());
+            int before = termPostings.bytes.size();
+            termPostings.add(doc, e.getValue(), block);
+            postingsBytes += termPostings.bytes.size() - before;
+        }
+
+        docNames.add(name);
+        docLengths.add(length);
+        totalTokens += length;
+        return doc;
+    }
+
+    int docCount() {
+        return docNames.size();
+    }
+
+    /**
+     * Rough size of the segment on disk, used to decide when to start a new one.
+     */
+    long estimatedBytes() {
+        return postingsBytes + postings.size() * (TERM_ENTRY_BYTES + 8L);
+    }
+
+    void write(Path file) throws IOException {
+        byte[][] terms = new byte[postings.size()][];
+        TermPostings[] termPostings = new TermPostings[terms.length];
+        int t = 0;
+        for (String term : postings.keySet()) {
+            terms[t++] = term.getBytes(StandardCharsets.UTF_8);
+        }
+        Arrays.sort(terms, Arrays::compareUnsigned);
+        for (int i = 0; i < terms.length; i++) {
+            termPostings[i] = postings.get(new String(terms[i], StandardCharsets.UTF_8));
+        }
+
+        byte[][] names = new byte[docNames.size()][];
+        long docsBytes = 0;
+        for (int i = 0; i < names.length; i++) {
+            names[i] = docNames.get(i).getBytes(StandardCharsets.UTF_8);
+            docsBytes += 8 + names[i].length;
+        }
+        long termBytesSize = 0;
+        for (byte[] term : terms) termBytesSize += term.length;
+
+        long docsOffset = HEADER_BYTES;
+        long termIndexOffset = docsOffset + docsBytes;
+        long termBytesOffset = termIndexOffset + (long) terms.length * TERM_ENTRY_BYTES;
+        long postingsOffset = termBytesOffset + termBytesSize;
+        long fileSize = postingsOffset + postingsBytes;
+        // A segment is mapped as a single buffer
+        if (fileSize > Integer.MAX_VALUE) {
+            throw new IOException("Segment too large: " + fileSize + " bytes");
+        }
+
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(names.length);
+            out.writeInt(terms.length);
+            out.writeLong(totalTokens);
+            out.writeInt((int) docsOffset);
+            out.writeInt((int) termIndexOffset);
+            out.writeInt((int) termBytesOffset);
+            out.writeInt((int) postingsOffset);
+            out.writeLong(0); // reserved
+
+            for (int i = 0; i < names.length; i++) {
+                out.writeInt(docLengths.get(i));
+                out.writeInt(names[i].length);
+                out.write(names[i]);
+            }
+
+            int termOffset = (int) termBytesOffset;
+            int postingOffset = (int) postingsOffset;
+            for (int i = 0; i < terms.length; i++) {
+                out.writeInt(termOffset);
+                out.writeInt(terms[i].length);
+                out.writeInt(postingOffset);
+                out.writeInt(termPostings[i].docFreq);
+                termOffset += terms[i].length;
+                postingOffset += termPostings[i].bytes.size();
+            }
+
+            for (byte[] term : terms) out.write(term);
+            for (TermPostings p : termPostings) p.bytes.writeTo(out);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static final class TermPostings {
+        final VarIntBuffer bytes = new VarIntBuffer(16);
+        int docFreq = 0;
+        int lastDoc = 0;
+
+        void add(int doc, Occurrences occurrences, VarIntBuffer block) {
+            int[] data = occurrences.data;
+            int n = occurrences.count * 3;
+            block.clear();
+            int lastPosition = 0;
+            for (int i = 0; i < n; i += 3) {
+                block.writeVarInt(data[i] - lastPosition);
+                lastPosition = data[i];
+            }
+            int positionsLength = block.size();
+            int lastStart = 0;
+            for (int i = 0; i < n; i += 3) {
+                block.writeVarInt(data[i + 1] - lastStart);
+                block.writeVarInt(data[i + 2] - data[i + 1]);
+                lastStart = data[i + 1];
+            }
+            bytes.writeVarInt(doc - lastDoc);
+            bytes.writeVarInt(occurrences.count);
+            bytes.writeVarInt(block.size());
+            bytes.writeVarInt(positionsLength);
+            bytes.write(block);
+            lastDoc = doc;
+            docFreq++;
+        }
+    }
+
+    // Occurrences of one term in one document as (position, start, end) triples
+    private static final class Occurrences {
+        int[] data = new int[6];
+        int count = 0;
+
+        void add(int position, int start, int end) {
+            if (count * 3 + 3 > data.length) data = Arrays.copyOf(data, data.length * 2);
+            data[count * 3] = position;
+            data[count * 3 + 1] = start;
+            data[count * 3 + 2] = end;
+            count++;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package ch04.index;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Splits transcript text into lowercase word tokens.
+ * A token is a run of letters and digits; an apostrophe between two letters stays part of
+ * the word ("don't", "it's"). Char offsets refer to the original text, so hits can be
+ * mapped back to the transcript file.
+ */
+final class Tokenizer {
+
+    @FunctionalInterface
+    interface Sink {
+        void token(String term, int position, int start, int end);
+    }
+
+    private Tokenizer() {
+
+    }
+
+    /**
+     * Feeds every token to the sink and returns the number of tokens.
+     */
+    static int tokenize(String text, Sink sink) {
+        int position = 0;
+        int i = 0;
+        int n = text.length();
+        StringBuilder term = new StringBuilder();
+        while (i < n) {
+            int cp = text.codePointAt(i);
+            if (!Character.isLetterOrDigit(cp)) {
+                i += Character.charCount(cp);
+                continue;
+            }
+            int start = i;
+            term.setLength(0);
+            while (i < n) {
+                cp = text.codePointAt(i);
+                if (Character.isLetterOrDigit(cp)) {
+                    term.appendCodePoint(cp);
+                    i += Character.charCount(cp);
+                } else if (isApostrophe(cp) && i + 1 < n && Character.isLetter(text.codePointAt(i + 1))) {
+                    term.append('\'');
+                    i++;
+                } else {
+                    break;
+                }
+            }
+            sink.token(term.toString().toLowerCase(Locale.ROOT), position++, start, i);
+        }
+        return position;
+    }
+
+    static List<String> terms(String text) {
+        List<String> terms = new ArrayList<>();
+        tokenize(text, (term, position, start, end) -> terms.add(term));
+        return terms;
+    }
+
+    private static boolean isApostrophe(int cp) {
+        return cp == '\'' || cp == '’';
+    }
+}
@@ -0,0 +1,242 @@
+package ch04.index;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * Incrementally indexes the transcripts written by {@link ch04.HFRouterWhisperClient}.
+ * Only new or changed .txt files are tokenized; they go into a fresh segment and the
+ * documents they replace are marked deleted in the manifest. Existing segments are
+ * never rewritten, except by compaction once there are too many of them.
+ * One index holds any number of transcript directories, one per transcribed episode: an update
+ * only looks at the files of the directory it is given, so the others stay searchable.
+ * Usage: TranscriptIndexer <config.json> [transcripts-dir...] [--compact]
+ * The config is the Whisper client config; "output_dir" and any extra directories are indexed
+ * into "index_dir". The client empties "output_dir" before each run, so give every episode its
+ * own "output_dir" to keep the earlier ones.
+ */
+public class TranscriptIndexer {
+    private static final Logger log = LoggerFactory.getLogger(TranscriptIndexer.class);
+
+    // Duplicates the per-segment files, so indexing it would double every hit
+    private static final String COMBINED_FILE = "combined_transcription.txt";
+    private static final long MAX_SEGMENT_BYTES = 64L * 1024 * 1024;
+    private static final int MAX_SEGMENTS = 16;
+
+    private final Path indexDir;
+
+    public TranscriptIndexer(Path indexDir) {
+        this.indexDir = indexDir;
+    }
+
+    public record Summary(int added, int unchanged, int removed, int segments) {}
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            log.error("No config file path passed as argument!");
+            return;
+        }
+        JsonNode config = new ObjectMapper().readTree(Paths.get(args[0]).toFile());
+        Path indexDir = Paths.get(config.path("index_dir").asText("transcript-index/"));
+        List<Path> transcriptsDirs = new ArrayList<>();
+        transcriptsDirs.add(Paths.get(config.get("output_dir").asText()));
+        boolean compact = false;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("--compact")) compact = true;
+            else transcriptsDirs.add(Paths.get(args[i]));
+        }
+
+        TranscriptIndexer indexer = new TranscriptIndexer(indexDir);
+        for (Path transcriptsDir : transcriptsDirs) {
+            long startNanos = System.nanoTime();
+            Summary summary = indexer.update(transcriptsDir);
+            log.info("Indexed {} → {}: {} added, {} unchanged, {} removed, {} segments in {} ms",
+                    transcriptsDir, indexDir, summary.added(), summary.unchanged(), summary.removed(),
+                    summary.segments(), (System.nanoTime() - startNanos) / 1_000_000);
+        }
+        if (compact) indexer.compact();
+    }
+
+    /**
+     * Brings the index in line with the transcripts directory. Transcripts of other directories
+     * are left as they are.
+     */
+    public Summary update(Path transcriptsDir) throws IOException {
+        Files.createDirectories(indexDir);
+        Manifest manifest = Manifest.load(indexDir);
+
+        List<Path> transcripts;
+        try (Stream<Path> stream = Files.list(transcriptsDir)) {
+            transcripts = stream
+                    .filter(p -> p.toString().endsWith(".txt"))
+                    .filter(p -> !p.getFileName().toString().equals(COMBINED_FILE))
+                    .sorted()
+                    .toList();
+        }
+
+        int added = 0;
+        int unchanged = 0;
+        Set<String> seen = new HashSet<>();
+        SegmentWriter writer = new SegmentWriter();
+        List<PendingDoc> pending = new ArrayList<>();
+
+        for (Path transcript : transcripts) {
+            String key = transcript.toString();
+            seen.add(key);
+            BasicFileAttributes attrs = Files.readAttributes(transcript, BasicFileAttributes.class);
+            long modified = attrs.lastModifiedTime().toMillis();
+            Manifest.FileEntry entry = manifest.files.get(key);
+            if (entry != null && entry.size == attrs.size() && entry.modified == modified) {
+                unchanged++;
+                continue;
+            }
+
+            // The Whisper client recreates its output folder, so timestamps change even
+            // when the text does not; the hash catches that
+            String text = Files.readString(transcript, StandardCharsets.UTF_8);
+            String sha256 = sha256(text);
+            if (entry != null && sha256.equals(entry.sha256)) {
+                entry.size = attrs.size();
+                entry.modified = modified;
+                unchanged++;
+                continue;
+            }
+
+            if (entry != null) markDeleted(manifest, entry);
+            int doc = writer.addDocument(key, text);
+            pending.add(new PendingDoc(key, attrs.size(), modified, sha256, doc));
+            added++;
+
+            if (writer.estimatedBytes() >= MAX_SEGMENT_BYTES) {
+                flush(manifest, writer, pending);
+                writer = new SegmentWriter();
+                pending.clear();
+            }
+        }
+        flush(manifest, writer, pending);
+
+        int removed = 0;
+        Path dir = transcriptsDir.toAbsolutePath().normalize();
+        for (var it = manifest.files.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Manifest.FileEntry> e = it.next();
+            if (!seen.contains(e.getKey()) && dir.equals(Paths.get(e.getKey()).toAbsolutePath().normalize().getParent())) {
+                markDeleted(manifest, e.getValue());
+                it.remove();
+                removed++;
+            }
+        }
+
+        manifest.segments.removeIf(segment -> segment.liveDocs() == 0);
+        manifest.save(indexDir);
+        deleteUnreferencedSegments(manifest);
+
+        if (manifest.segments.size() > MAX_SEGMENTS) compact();
+        return new Summary(added, unchanged, removed, Manifest.load(indexDir).segments.size());
+    }
+
+    /**
+     * Rewrites all live documents into as few segments as possible, dropping deleted ones.
+     * Documents are re-read from their transcript files, which is cheap next to transcription;
+     * transcripts whose file is gone by then are dropped.
+     */
+    public void compact() throws IOException {
+        Manifest old = Manifest.load(indexDir);
+        Manifest manifest = new Manifest();
+        manifest.nextSegment = old.nextSegment;
+
+        SegmentWriter writer = new SegmentWriter();
+        List<PendingDoc> pending = new ArrayList<>();
+        for (Map.Entry<String, Manifest.FileEntry> e : old.files.entrySet()) {
+            Path transcript = Paths.get(e.getKey());
+            if (!Files.exists(transcript)) continue;
+            // A file edited since the last update is picked up with its current contents
+            String text = Files.readString(transcript, StandardCharsets.UTF_8);
+            BasicFileAttributes attrs = Files.readAttributes(transcript, BasicFileAttributes.class);
+            int doc = writer.addDocument(e.getKey(), text);
+            pending.add(new PendingDoc(e.getKey(), attrs.size(), attrs.lastModifiedTime().toMillis(),
+                    sha256(text), doc));
+            if (writer.estimatedBytes() >= MAX_SEGMENT_BYTES) {
+                flush(manifest, writer, pending);
+                writer = new SegmentWriter();
+                pending.clear();
+            }
+        }
+        flush(manifest, writer, pending);
+
+        manifest.save(indexDir);
+        deleteUnreferencedSegments(manifest);
+        log.info("Compacted {} segments into {}", old.segments.size(), manifest.segments.size());
+    }
+
+    private void flush(Manifest manifest, SegmentWriter writer, List<PendingDoc> pending) throws IOException {
+        if (writer.docCount() == 0) return;
+        String name = String.format("seg-%06d.idx", manifest.nextSegment++);
+        writer.write(indexDir.resolve(name));
+
+        Manifest.SegmentEntry segment = new Manifest.SegmentEntry();
+        segment.name = name;
+        segment.docCount = writer.docCount();
+        manifest.segments.add(segment);
+
+        for (PendingDoc doc : pending) {
+            Manifest.FileEntry entry = new Manifest.FileEntry();
+            entry.size = doc.size();
+            entry.modified = doc.modified();
+            entry.sha256 = doc.sha256();
+            entry.segment = name;
+            entry.doc = doc.doc();
+            manifest.files.put(doc.key(), entry);
+        }
+        log.info("Wrote segment {} with {} transcripts", name, segment.docCount);
+    }
+
+    private static void markDeleted(Manifest manifest, Manifest.FileEntry entry) {
+        Manifest.SegmentEntry segment = manifest.segment(entry.segment);
+        if (segment != null && !segment.deleted.contains(entry.doc)) segment.deleted.add(entry.doc);
+    }
+
+    // Open searchers keep their mappings; on Windows the delete fails and is retried next run
+    private void deleteUnreferencedSegments(Manifest manifest) throws IOException {
+        Set<String> live = new HashSet<>();
+        for (Manifest.SegmentEntry segment : manifest.segments) live.add(segment.name);
+        try (Stream<Path> stream = Files.list(indexDir)) {
+            for (Path file : stream.filter(p -> p.getFileName().toString().startsWith("seg-")).toList()) {
+                if (live.contains(file.getFileName().toString())) continue;
+                try {
+                    Files.delete(file);
+                } catch (IOException e) {
+                    log.warn("Could not delete old segment {}: {}", file, e.getMessage());
+                }
+            }
+        }
+    }
+
+    private static String sha256(String text) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private record PendingDoc(String key, long size, long modified, String sha256, int doc) {}
+}
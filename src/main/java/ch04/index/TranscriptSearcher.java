@@ -0,0 +1,291 @@
+package ch04.index;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * BM25 search over a transcript index.
+ * A query is a list of words and "quoted phrases". Transcripts matching any of them are
+ * ranked with BM25; a phrase only counts where its words occur next to each other.
+ * Document frequencies and the average length are taken over all segments, so scores are
+ * comparable no matter which segment a transcript landed in.
+ * Each searcher is a snapshot of the index at the time it was opened.
+ * Usage: TranscriptSearcher <config.json> [query...] (without a query, reads queries from stdin)
+ */
+public class TranscriptSearcher {
+    private static final Logger log = LoggerFactory.getLogger(TranscriptSearcher.class);
+
+    private static final float K1 = 1.2f;
+    private static final float B = 0.75f;
+    private static final int MAX_SPANS_PER_HIT = 10;
+
+    private final List<Segment> segments;
+    private final List<BitSet> deleted;
+    private final int liveDocs;
+    private final float avgDocLength;
+
+    /**
+     * A transcript file and where in it the query matched.
+     */
+    public record Hit(Path file, float score, List<Span> spans) {}
+
+    /**
+     * Char offsets into the transcript text, end exclusive.
+     */
+    public record Span(int start, int end) {}
+
+    private TranscriptSearcher(List<Segment> segments, List<BitSet> deleted) {
+        this.segments = segments;
+        this.deleted = deleted;
+        int docs = 0;
+        long tokens = 0;
+        for (int s = 0; s < segments.size(); s++) {
+            Segment segment = segments.get(s);
+            BitSet dead = deleted.get(s);
+            for (int doc = 0; doc < segment.docCount(); doc++) {
+                if (dead.get(doc)) continue;
+                docs++;
+                tokens += segment.docLength(doc);
+            }
+        }
+        this.liveDocs = docs;
+        this.avgDocLength = docs == 0 ? 0 : (float) tokens / docs;
+    }
+
+    public static TranscriptSearcher open(Path indexDir) throws IOException {
+        Manifest manifest = Manifest.load(indexDir);
+        List<Segment> segments = new ArrayList<>();
+        List<BitSet> deleted = new ArrayList<>();
+        for (Manifest.SegmentEntry entry : manifest.segments) {
+            segments.add(Segment.open(indexDir.resolve(entry.name)));
+            BitSet dead = new BitSet(entry.docCount);
+            for (int doc : entry.deleted) dead.set(doc);
+            deleted.add(dead);
+        }
+        return new TranscriptSearcher(segments, deleted);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            log.error("No config file path passed as argument!");
+            return;
+        }
+        JsonNode config = new ObjectMapper().readTree(Paths.get(args[0]).toFile());
+        Path indexDir = Paths.get(config.path("index_dir").asText("transcript-index/"));
+        TranscriptSearcher searcher = open(indexDir);
+        log.info("Opened index {}: {} transcripts in {} segments", indexDir, searcher.liveDocs, searcher.segments.size());
+
+        if (args.length > 1) {
+            printResults(searcher, String.join(" ", List.of(args).subList(1, args.length)));
+            return;
+        }
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (!line.isBlank()) printResults(searcher, line);
+        }
+    }
+
+    public List<Hit> search(String query, int limit) {
+        List<Clause> clauses = parse(query);
+        if (clauses.isEmpty() || limit <= 0) return List.of();
+        for (Clause clause : clauses) clause.idf = idf(clause);
+
+        // Min-heap of the best hits seen so far
+        PriorityQueue<Candidate> top = new PriorityQueue<>(Comparator.comparingDouble(Candidate::score));
+        for (int s = 0; s < segments.size(); s++) {
+            Segment segment = segments.get(s);
+            float[] scores = new float[segment.docCount()];
+            boolean any = false;
+            for (Clause clause : clauses) {
+                any |= score(segment, deleted.get(s), clause, scores);
+            }
+            if (!any) continue;
+            for (int doc = 0; doc < scores.length; doc++) {
+                if (scores[doc] <= 0) continue;
+                if (top.size() < limit) top.add(new Candidate(s, doc, scores[doc]));
+                else if (scores[doc] > top.peek().score()) {
+                    top.poll();
+                    top.add(new Candidate(s, doc, scores[doc]));
+                }
+            }
+        }
+
+        List<Candidate> ranked = new ArrayList<>(top);
+        ranked.sort(Comparator.comparingDouble(Candidate::score).reversed());
+        List<Hit> hits = new ArrayList<>(ranked.size());
+        for (Candidate c : ranked) {
+            Segment segment = segments.get(c.segment());
+            hits.add(new Hit(Paths.get(segment.docName(c.doc())), c.score(), spans(segment, c.doc(), clauses)));
+        }
+        return hits;
+    }
+
+    public int size() {
+        return liveDocs;
+    }
+
+    // Adds the clause's BM25 contribution for every matching live doc; returns whether any matched
+    private boolean score(Segment segment, BitSet dead, Clause clause, float[] scores) {
+        PostingsCursor[] cursors = cursors(segment, clause);
+        if (cursors == null) return false;
+        boolean any = false;
+        // The rarest word of a phrase drives the iteration; the others only skip ahead to it
+        PostingsCursor lead = cursors[0];
+        for (PostingsCursor c : cursors) {
+            if (c.docFreq() < lead.docFreq()) lead = c;
+        }
+        while (lead.next()) {
+            int doc = lead.doc();
+            if (dead.get(doc)) continue;
+            int freq = cursors.length == 1 ? lead.freq() : phraseFreq(cursors, doc, null);
+            if (freq == 0) continue;
+            float norm = K1 * (1 - B + B * segment.docLength(doc) / avgDocLength);
+            scores[doc] += clause.idf * freq * (K1 + 1) / (freq + norm);
+            any = true;
+        }
+        return any;
+    }
+
+    /**
+     * Counts the phrase occurrences in {@code doc}, moving every cursor forward to it.
+     * When {@code spans} is given, the matched ranges are added to it.
+     */
+    private static int phraseFreq(PostingsCursor[] cursors, int doc, List<Span> spans) {
+        for (int i = 0; i < cursors.length; i++) {
+            if (!cursors[i].advance(doc) || cursors[i].doc() != doc) return 0;
+        }
+        PostingsCursor lead = cursors[0];
+        int[] next = new int[cursors.length];
+        int freq = 0;
+        for (int o = 0; o < lead.freq(); o++) {
+            int position = lead.position(o);
+            boolean match = true;
+            for (int i = 1; i < cursors.length && match; i++) {
+                PostingsCursor c = cursors[i];
+                // Positions are ascending, so each cursor only ever moves forward
+                while (next[i] < c.freq() && c.position(next[i]) < position + i) next[i]++;
+                match = next[i] < c.freq() && c.position(next[i]) == position + i;
+            }
+            if (!match) continue;
+            freq++;
+            if (spans != null) {
+                PostingsCursor last = cursors[cursors.length - 1];
+                spans.add(new Span(lead.start(o), last.end(next[cursors.length - 1])));
+            }
+        }
+        return freq;
+    }
+
+    private List<Span> spans(Segment segment, int doc, List<Clause> clauses) {
+        List<Span> spans = new ArrayList<>();
+        for (Clause clause : clauses) {
+            PostingsCursor[] cursors = cursors(segment, clause);
+            if (cursors == null) continue;
+            if (cursors.length == 1) {
+                if (!cursors[0].advance(doc) || cursors[0].doc() != doc) continue;
+                for (int o = 0; o < cursors[0].freq(); o++) {
+                    spans.add(new Span(cursors[0].start(o), cursors[0].end(o)));
+                }
+            } else {
+                phraseFreq(cursors, doc, spans);
+            }
+        }
+        spans.sort(Comparator.comparingInt(Span::start));
+        return spans.size() > MAX_SPANS_PER_HIT ? List.copyOf(spans.subList(0, MAX_SPANS_PER_HIT)) : spans;
+    }
+
+    // One cursor per clause term, or null if any term is missing from the segment
+    private static PostingsCursor[] cursors(Segment segment, Clause clause) {
+        PostingsCursor[] cursors = new PostingsCursor[clause.terms.length];
+        for (int i = 0; i < cursors.length; i++) {
+            cursors[i] = segment.postings(clause.terms[i]);
+            if (cursors[i] == null) return null;
+        }
+        return cursors;
+    }
+
+    // A phrase is weighted like the sum of its words, as computing its real document
+    // frequency would mean a full phrase scan up front
+    private float idf(Clause clause) {
+        float idf = 0;
+        for (byte[] term : clause.terms) {
+            long df = 0;
+            for (Segment segment : segments) df += segment.docFreq(term);
+            // Deleted docs still count towards df until compaction, as in most engines
+            df = Math.min(df, liveDocs);
+            idf += (float) Math.log(1 + (liveDocs - df + 0.5) / (df + 0.5));
+        }
+        return idf;
+    }
+
+    static List<Clause> parse(String query) {
+        List<Clause> clauses = new ArrayList<>();
+        boolean inPhrase = false;
+        for (String part : query.split("\"", -1)) {
+            if (inPhrase) {
+                List<String> terms = Tokenizer.terms(part);
+                if (!terms.isEmpty()) clauses.add(new Clause(terms));
+            } else {
+                for (String term : Tokenizer.terms(part)) clauses.add(new Clause(List.of(term)));
+            }
+            inPhrase = !inPhrase;
+        }
+        return clauses;
+    }
+
+    private static void printResults(TranscriptSearcher searcher, String query) {
+        long startNanos = System.nanoTime();
+        List<Hit> hits = searcher.search(query, 10);
+        long micros = (System.nanoTime() - startNanos) / 1000;
+        log.info("Query [{}]: {} hits in {} µs", query, hits.size(), micros);
+        for (Hit hit : hits) {
+            Span first = hit.spans().isEmpty() ? null : hit.spans().get(0);
+            log.info("  {} score={} offset={} {}", hit.file(), String.format("%.3f", hit.score()),
+                    first == null ? "-" : first.start(), first == null ? "" : snippet(hit.file(), first));
+        }
+    }
+
+    private static String snippet(Path file, Span span) {
+        try {
+            String text = Files.readString(file, StandardCharsets.UTF_8);
+            if (span.end() > text.length()) return "(transcript changed since indexing)";
+            int from = Math.max(0, span.start() - 60);
+            int to = Math.min(text.length(), span.end() + 60);
+            String snippet = text.substring(from, span.start()) + "[" + text.substring(span.start(), span.end()) + "]"
+                    + text.substring(span.end(), to);
+            return "…" + snippet.replace('\n', ' ') + "…";
+        } catch (IOException e) {
+            return "(" + e.getMessage() + ")";
+        }
+    }
+
+    static final class Clause {
+        final byte[][] terms;
+        float idf;
+
+        Clause(List<String> terms) {
+            this.terms = new byte[terms.size()][];
+            for (int i = 0; i < this.terms.length; i++) {
+                this.terms[i] = terms.get(i).getBytes(StandardCharsets.UTF_8);
+            }
+        }
+    }
+
+    private record Candidate(int segment, int doc, float score) {}
+}
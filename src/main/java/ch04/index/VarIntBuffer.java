@@ -0,0 +1,65 @@
+package ch04.index;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Growable byte array for building postings.
+ * Integers are written as LEB128 varints: 7 bits per byte, high bit set on all but the
+ * last byte. Small deltas, which is what postings mostly contain, take a single byte.
+ */
+final class VarIntBuffer {
+    private byte[] bytes;
+    private int size;
+
+    VarIntBuffer(int initialCapacity) {
+        this.bytes = new byte[Math.max(16, initialCapacity)];
+    }
+
+    void writeVarInt(int value) {
+        if (value < 0) throw new IllegalArgumentException("Negative varint: " + value);
+        ensureCapacity(5);
+        while ((value & ~0x7F) != 0) {
+            bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        bytes[size++] = (byte) value;
+    }
+
+    void write(VarIntBuffer other) {
+        ensureCapacity(other.size);
+        System.arraycopy(other.bytes, 0, bytes, size, other.size);
+        size += other.size;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+        out.write(bytes, 0, size);
+    }
+
+    static int readVarInt(ByteBuffer buffer) {
+        int b = buffer.get();
+        if (b >= 0) return b;
+        int value = b & 0x7F;
+        for (int shift = 7; ; shift += 7) {
+            b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+    }
+
+    private void ensureCapacity(int extra) {
+        if (size + extra > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+        }
+    }
+}
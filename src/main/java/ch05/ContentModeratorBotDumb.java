@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.util.EnumSet;
 
 import ch03.Utils;
+import common.moderation.TermMatcher;
 import net.dv8tion.jda.api.JDA;
 import net.dv8tion.jda.api.JDABuilder;
 import net.dv8tion.jda.api.entities.Activity;
@@ -17,13 +18,14 @@ import net.dv8tion.jda.api.requests.GatewayIntent;
 // This class extends a ListenerAdapter to handle message events on Discord.
 public class ContentModeratorBotDumb extends ListenerAdapter {
 
-    // The bot's Discord token for authentication.
-    private final static String DISCORD_BOT_TOKEN = Utils.getRequiredEnv("DISCORD_BOT_TOKEN");
-    static String bannedWord = "puppies";
+    // Banned terms, one per line, compiled into one matcher that checks all of them in a single pass
+    static TermMatcher bannedTerms = TermMatcher.load("/ch05/banned_terms.txt");
 
 
     public static void main(String[] args) throws IOException {
-    
+        // The bot's Discord token for authentication.
+        String discordBotToken = Utils.getRequiredEnv("DISCORD_BOT_TOKEN");
+
         // Set of intents declaring which types of events the bot intends to listen to.
         EnumSet<GatewayIntent> intents = EnumSet.of(
                 GatewayIntent.GUILD_MEMBERS,   // to get access to the members of the Discord server
@@ -34,7 +36,7 @@ public class ContentModeratorBotDumb extends ListenerAdapter {
 
         // Initialize the bot with minimal configuration and the specified intents.
         try {
-            JDA jda = JDABuilder.createLight(DISCORD_BOT_TOKEN, intents)
+            JDA jda = JDABuilder.createLight(discordBotToken, intents)
                     .addEventListeners(new ContentModeratorBotDumb()) // Adding the current class as an event listener.
                     .setActivity(Activity.playing("Helping to keep a friendly Discord server")) // Set the bot's custom status.
                     .build();
@@ -68,8 +70,8 @@ public class ContentModeratorBotDumb extends ListenerAdapter {
         if (messageEvent.isFromGuild()) {
 
             String content = message.getContentDisplay();
-            // Check if the message contains the banned word 
-            if (content.contains(bannedWord)) {
+            // Check if the message contains any banned term (case, accents and leetspeak are ignored)
+            if (bannedTerms.matches(content)) {
 
                 // Delete the message
                 message.delete().queue();
@@ -0,0 +1,44 @@
+package ch05;
+
+import common.loadtest.LoadTarget;
+import net.dv8tion.jda.api.events.message.MessageReceivedEvent;
+
+/**
+ * {@link ContentModeratorBotDumb} under the load-test driver. The bot decides within
+ * onMessageReceived, so a message is done when the call returns: FLAGGED if it was deleted,
+ * PASSED otherwise.
+ */
+public class DumbBotLoadTarget implements LoadTarget {
+    private final ContentModeratorBotDumb bot = new ContentModeratorBotDumb();
+
+    @Override
+    public String name() {
+        return "ContentModeratorBotDumb";
+    }
+
+    @Override
+    public void start(String llmBaseUrl) {
+        // No LLM: the banned terms are all it needs, and they load with the class
+    }
+
+    @Override
+    public void onMessageReceived(MessageReceivedEvent event) {
+        bot.onMessageReceived(event);
+    }
+
+    @Override
+    public Outcome classify(String content) {
+        // Decided in handled(); the warning reply adds nothing
+        return null;
+    }
+
+    @Override
+    public Outcome handled(boolean deleted) {
+        return deleted ? Outcome.FLAGGED : Outcome.PASSED;
+    }
+
+    @Override
+    public String bannedText() {
+        return "Look at these cute puppies!";
+    }
+}
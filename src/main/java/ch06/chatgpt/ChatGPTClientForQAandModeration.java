@@ -1,22 +1,25 @@
 package ch06.chatgpt;
 
-import ch06.Chat;
-import ch06.Message;
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import common.concurrent.Deadline;
+import common.llm.BpeTokenizer;
+import common.llm.ChatCodec;
+import common.llm.LlmClient;
+import common.llm.LlmClientConfig;
+import common.llm.LlmHttpException;
+import common.llm.RateLimiterRegistry;
+import common.llm.TokenPricing;
+import common.metrics.CallTimer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.ArrayList;
-import java.util.List;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
 
 
 public class ChatGPTClientForQAandModeration {
+    private static final Logger logger = LoggerFactory.getLogger(ChatGPTClientForQAandModeration.class);
     
     //
     //  OpenAI parameters that we already know how to use
@@ -29,10 +32,25 @@ public class ChatGPTClientForQAandModeration {
     float top_p = 1.0f;
     int frequency_penalty = 0;
     int presence_penalty = 0;
+    // Longest a Discord user waits for an answer before the request is abandoned
+    Duration replyBudget = Duration.ofSeconds(60);
+    // gpt-4: context window and list price in dollars per million tokens
+    int contextTokens = 8192;
+    TokenPricing pricing = new TokenPricing(30.0, 60.0);
+    // Role and separator tokens the chat format adds to each message
+    int messageOverheadTokens = 4;
 
     String systemMessage = null;
     String initialInstructionsToChatGPT = null;
 
+    // Model, parameters, system message and FAQ are encoded once; a request only adds the Discord message
+    private final ChatCodec codec;
+    private final LlmClient client;
+
+    // Optional cl100k_base tokenizer: counts the prompt and cuts messages that would not fit
+    private BpeTokenizer tokenizer;
+    private int fixedPromptTokens;
+
     //
     // The constructor needs to be passed the contents from the FAQ.txt file
     // and the system message
@@ -40,71 +58,69 @@ public class ChatGPTClientForQAandModeration {
     public ChatGPTClientForQAandModeration(String systemMessage, String initialInstructionsToChatGPT) {
         this.systemMessage = systemMessage;
         this.initialInstructionsToChatGPT = initialInstructionsToChatGPT;
-    }
-
-    public String sendMessageFromDiscordUser(String discordMessageText) {
-
-        String answerFromChatGPT = "";
-
-        List<Message> messages = new ArrayList<>();
-        messages.add(new Message("system", systemMessage));
-        messages.add(new Message("user", initialInstructionsToChatGPT));
-        messages.add(new Message("user", discordMessageText));
-
-        String jsonInput = null;
-        try {
-            ObjectMapper mapper = new ObjectMapper();
-
-            Chat chat = Chat.builder()
+        this.codec = ChatCodec.builder()
                 .model(model)
-                .messages(messages)
-                .temperature(temperature)
                 .maxTokens(max_tokens)
-                .topP(top_p)
-                .frequencyPenalty(frequency_penalty)
-                .presencePenalty(presence_penalty)
+                .option("temperature", temperature)
+                .option("top_p", top_p)
+                .option("frequency_penalty", frequency_penalty)
+                .option("presence_penalty", presence_penalty)
+                .message("system", systemMessage)
+                .message("user", initialInstructionsToChatGPT)
                 .build();
+        // No fixed quota (it depends on the account's tier): the x-ratelimit headers and 429s pace us
+        this.client = LlmClient.forEndpoint(endpoint, LlmClientConfig.builder()
+                .bearerToken(openAIKey)
+                .rateLimits(RateLimiterRegistry.shared(), "openai")
+                .build());
+    }
 
-            jsonInput = mapper.writeValueAsString(chat);
-            System.out.println(jsonInput);
-        } catch (JsonProcessingException e) {
-            e.printStackTrace();
-        }
+    public void useTokenizer(BpeTokenizer tokenizer) {
+        this.tokenizer = tokenizer;
+        this.fixedPromptTokens = tokenizer.count(systemMessage) + tokenizer.count(initialInstructionsToChatGPT)
+                + 3 * messageOverheadTokens;
+        logger.info("System message and FAQ: {} tokens", fixedPromptTokens);
+    }
 
-        try {
-            URL url = new URL(endpoint);
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("POST");
-            connection.setRequestProperty("Content-Type", "application/json");
-            connection.setRequestProperty("Authorization", "Bearer " + openAIKey);
-            connection.setDoOutput(true);
-
-            OutputStream outputStream = connection.getOutputStream();
-            outputStream.write(jsonInput.getBytes());
-            outputStream.flush();
-            outputStream.close();
-
-            int responseCode = connection.getResponseCode();
-            if (responseCode == HttpURLConnection.HTTP_OK) {
-                BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-                StringBuilder response = new StringBuilder();
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    response.append(line);
-                }
-                reader.close();
-
-                // Print the response
-                answerFromChatGPT = extractAnswerFromJSON(response.toString());
-                System.out.println(answerFromChatGPT);
-            } else {
-                System.out.println("Error: " + responseCode);
+    public String sendMessageFromDiscordUser(String discordMessageText) {
+        return sendMessageAsync(discordMessageText).join();
+    }
+
+    // Does not block; like sendMessageFromDiscordUser it completes with "" when the request fails
+    public CompletableFuture<String> sendMessageAsync(String discordMessageText) {
+
+        if (tokenizer != null) {
+            // Cut the message rather than have the API reject the whole request
+            int room = Math.max(0, contextTokens - max_tokens - fixedPromptTokens);
+            discordMessageText = tokenizer.truncate(discordMessageText, room);
+            int promptTokens = fixedPromptTokens + tokenizer.count(discordMessageText);
+            if (logger.isDebugEnabled()) {
+                logger.debug("Prompt: {} tokens, at most ${}", promptTokens,
+                        String.format("%.4f", pricing.cost(promptTokens, max_tokens)));
             }
-            connection.disconnect();
-        } catch (IOException e) {
-            e.printStackTrace();
         }
-        return answerFromChatGPT;
+
+        // The shared client keeps the connection to api.openai.com alive between Discord messages
+        return Deadline.after(replyBudget)
+                .bound(client.chatAsync(codec.encode(false, ChatCodec.Message.user(discordMessageText))))
+                .handle((answerFromChatGPT, e) -> {
+                    if (e == null) {
+                        logger.debug("Answer: {}", answerFromChatGPT);
+                        return answerFromChatGPT;
+                    }
+                    IOException cause = LlmClient.asIOException(e);
+                    if (cause instanceof LlmHttpException http) {
+                        logger.warn("OpenAI error {}", http.code());
+                    } else {
+                        logger.error("OpenAI request failed", cause);
+                    }
+                    return "";
+                });
+    }
+
+    // Latency of the requests to OpenAI, for SLOs
+    CallTimer requestTimer() {
+        return client.requests();
     }
 
     //
@@ -112,25 +128,21 @@ public class ChatGPTClientForQAandModeration {
     // So here's the easy way to extract that
     //
     public String extractAnswerFromJSON(String jsonResponse) {
-        String chatGPTAnswer = "";
-
-         try {
-            // Create an ObjectMapper instance
-            ObjectMapper objectMapper = new ObjectMapper();
-
-            // Parse the JSON string
-            JsonNode rootNode = objectMapper.readTree(jsonResponse);
-
-            // Extract the "content" parameter
-            JsonNode contentNode = rootNode.at("/choices/0/message/content");
-            chatGPTAnswer = contentNode.asText();
-
-            System.out.println("Content: " + chatGPTAnswer);
-
+        try {
+            // Parse the JSON string with the shared mapper
+            return extractAnswerFromJSON(LlmClient.MAPPER.readTree(jsonResponse));
         } catch (Exception e) {
-            e.printStackTrace();
+            logger.error("Cannot parse OpenAI response", e);
+            return "";
         }
+    }
+
+    String extractAnswerFromJSON(JsonNode rootNode) {
+        // Extract the "content" parameter
+        JsonNode contentNode = rootNode.at("/choices/0/message/content");
+        String chatGPTAnswer = contentNode.asText();
 
+        logger.debug("Content: {}", chatGPTAnswer);
         return chatGPTAnswer;
     }
 }
@@ -1,9 +1,23 @@
 package ch06.chatgpt;
 
+import common.concurrent.AdaptiveLimiter;
+import common.concurrent.Stage;
+import common.jfr.MessageSendEvent;
+import common.jfr.SloRecorder;
+import common.llm.BpeTokenizer;
+import common.metrics.CallTimer;
+import common.metrics.Metrics;
+import common.metrics.MetricsServer;
+
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import net.dv8tion.jda.api.JDA;
 import net.dv8tion.jda.api.JDABuilder;
@@ -14,9 +28,12 @@ import net.dv8tion.jda.api.entities.channel.unions.MessageChannelUnion;
 import net.dv8tion.jda.api.events.message.MessageReceivedEvent;
 import net.dv8tion.jda.api.hooks.ListenerAdapter;
 import net.dv8tion.jda.api.requests.GatewayIntent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 // This class extends a ListenerAdapter to handle message events on Discord.
 public class TechSupportBot extends ListenerAdapter {
+    private static final Logger logger = LoggerFactory.getLogger(TechSupportBot.class);
 
     // The bot's Discord token for authentication.
     static String discordToken = "";
@@ -25,10 +42,24 @@ public class TechSupportBot extends ListenerAdapter {
     // Variable to store FAQ contents
     static String contentsFromFAQ = "";
     static String pathToFAQFile = "/Users/Desktop/FAQ.txt";
+    // Optional: the cl100k_base.tiktoken vocabulary of gpt-4, to count prompt tokens before sending
+    static String pathToTokenizerFile = "/Users/Desktop/cl100k_base.tiktoken";
     // the system message
     static String systemMessage = "You are a virtual assistant that provides support for the Crooks Bank banking app. ";
     // our ChatGPT client
     static ChatGPTClientForQAandModeration chatGPTClient = null;
+    // ChatGPT requests in flight at once
+    static int maxConcurrentQuestions = 8;
+    // the stages messages go through, see buildPipeline
+    static List<Stage<?, ?>> stages = List.of();
+    static Stage<Question, Question> pipeline = buildPipeline();
+    // Prometheus metrics (stage latencies, OpenAI and Discord calls) at http://127.0.0.1:9464/metrics
+    static int metricsPort = 9464;
+    // With JFR_DUMP_DIR set, the last minutes of a flight recording are dumped there when more than
+    // 5% of the OpenAI requests in 15 s take over 30 s, or more than 1% of the Discord sends over 2 s
+    static Duration openAISlo = Duration.ofSeconds(30);
+    static Duration discordSendSlo = Duration.ofSeconds(2);
+    private static final CallTimer DISCORD_SEND = Metrics.global().outboundCall("discord_send");
 
     public static void main(String[] args) throws IOException {
 
@@ -45,6 +76,16 @@ public class TechSupportBot extends ListenerAdapter {
 
         // create a new ChatGPTClientForQAandModeration
         chatGPTClient = new ChatGPTClientForQAandModeration(contentsFromFAQ, systemMessage);
+        if (new File(pathToTokenizerFile).exists()) {
+            chatGPTClient.useTokenizer(BpeTokenizer.load(Path.of(pathToTokenizerFile)));
+        }
+
+        MetricsServer.fromEnv(metricsPort);
+        CallTimer openAI = chatGPTClient.requestTimer();
+        SloRecorder.builder()
+                .slo("openai", 0.95, openAISlo, openAI.ok(), openAI.error())
+                .slo("discord_send", 0.99, discordSendSlo, DISCORD_SEND.ok(), DISCORD_SEND.error())
+                .startFromEnv();
 
         // Initialize the bot with minimal configuration and the specified intents.
         try {
@@ -76,8 +117,6 @@ public class TechSupportBot extends ListenerAdapter {
         User senderDiscordID = messageEvent.getAuthor();
         // The Discord channel where the message was posted
         MessageChannelUnion channel = messageEvent.getChannel();
-        net.dv8tion.jda.api.entities.Message message = messageEvent.getMessage();
-        String reply = null;
 
         // Ignore messages sent by the bot to prevent self-responses.
         if (senderDiscordID.equals(messageEvent.getJDA().getSelfUser())) {
@@ -89,12 +128,73 @@ public class TechSupportBot extends ListenerAdapter {
             }
         }
 
+        // Hand the message to the pipeline; the JDA event thread never waits for ChatGPT
+        pipeline.submit(new Question(channel, messageEvent.getMessage().getContentDisplay(), null));
+    }
+
+    // filter -> generation -> delivery, each stage with its own bounded queue.
+    // Questions from different channels are answered in parallel, answers in one channel arrive in order
+    private static Stage<Question, Question> buildPipeline() {
+        Stage<Question, Question> filter = Stage.builder("filter", TechSupportBot::filter)
+                .executor(Stage.cpuExecutor("filter", 1))
+                .maxConcurrency(1)
+                .key(Question::channelId)
+                .onError(TechSupportBot::busy)
+                .build();
+        Stage<Question, Question> generation = Stage.builder("generation", TechSupportBot::askChatGPT)
+                .maxConcurrency(maxConcurrentQuestions)
+                .maxConcurrencyPerKey(maxConcurrentQuestions)
+                .key(Question::channelId)
+                .onError(TechSupportBot::busy)
+                .build();
+        Stage<Question, Void> delivery = Stage.builder("delivery", TechSupportBot::deliver)
+                .key(Question::channelId)
+                .onError(TechSupportBot::busy)
+                .build();
+        filter.then(generation).then(delivery);
+        stages = List.of(filter, generation, delivery);
+        return filter;
+    }
+
+    // Messages without text (only an attachment or a sticker) are not questions
+    private static CompletableFuture<Question> filter(Question question) {
+        return CompletableFuture.completedFuture(question.text().isBlank() ? null : question);
+    }
+
+    private static CompletableFuture<Question> askChatGPT(Question question) {
         // Show "typing" status while the bot is working
-        channel.sendTyping().queue(); 
+        question.channel().sendTyping().queue();
 
         // this line takes the question from the Discord users and asks ChatGPT
-        reply = chatGPTClient.sendMessageFromDiscordUser(message.getContentDisplay());
-        channel.sendMessage(reply).queue();
+        return chatGPTClient.sendMessageAsync(question.text()).thenApply(question::withReply);
+    }
+
+    private static CompletableFuture<Void> deliver(Question question) {
+        if (question.reply().isEmpty()) return CompletableFuture.completedFuture(null);
+        return DISCORD_SEND.time(MessageSendEvent.time("discord", "send", question.channel().getId(),
+                        question.reply().length(), question.channel().sendMessage(question.reply()).submit()))
+                .thenApply(sent -> null);
+    }
+
+    // A stage's queue is full: say so instead of leaving the question unanswered
+    private static void busy(Question question, Throwable error) {
+        if (!AdaptiveLimiter.isRejected(error)) {
+            logger.error("Error processing question", error);
+            return;
+        }
+        logger.warn("Dropped a question: {}", error.getMessage());
+        question.channel().sendMessage("Too many questions right now, please ask again in a minute.").queue();
+    }
+
+    // A Discord question on its way through the pipeline, with ChatGPT's reply once there is one
+    private record Question(MessageChannelUnion channel, String text, String reply) {
+        String channelId() {
+            return channel.getId();
+        }
+
+        Question withReply(String reply) {
+            return new Question(channel, text, reply);
+        }
     }
 
     // New method to read file contents
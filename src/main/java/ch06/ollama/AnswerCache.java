@@ -0,0 +1,106 @@
+package ch06.ollama;
+
+import common.cache.BoundedCache;
+import common.cache.CacheStats;
+import common.cache.SingleFlight;
+import common.concurrent.Futures;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * LRU/TTL cache of FAQ answers with single-flight de-duplication.
+ * The key is the normalized question plus a hash of the system message and FAQ text,
+ * so "How do I reset my password?" and "how do i reset my password" share one entry,
+ * and a new FAQ never serves answers generated from the old one.
+ * Failed or empty answers are never cached.
+ */
+public class AnswerCache {
+    private final BoundedCache<String, String> cache;
+    private final SingleFlight<String, String> singleFlight = new SingleFlight<>();
+    private volatile String contextHash;
+
+    public AnswerCache(int maxEntries, Duration ttl, String systemMessage, String faq) {
+        this.cache = BoundedCache.<String, String>builder()
+                .maxEntries(maxEntries)
+                .defaultTtl(ttl)
+                .build();
+        this.contextHash = hashContext(systemMessage, faq);
+    }
+
+    /**
+     * Returns the cached answer, joins an identical in-flight request, or runs {@code loader}.
+     */
+    public CompletableFuture<String> get(String question, Supplier<CompletableFuture<String>> loader) {
+        String key = key(question);
+        String cached = cache.get(key);
+        if (cached != null) return CompletableFuture.completedFuture(cached);
+
+        return singleFlight.execute(key, () -> Futures.thenApplyCancellable(loader.get(), answer -> {
+            if (answer != null && !answer.isBlank()) cache.put(key, answer);
+            return answer;
+        }));
+    }
+
+    /**
+     * Returns the cached answer or null, without touching the single-flight table.
+     */
+    public String peek(String question) {
+        return cache.get(key(question));
+    }
+
+    public void put(String question, String answer) {
+        if (answer != null && !answer.isBlank()) cache.put(key(question), answer);
+    }
+
+    /**
+     * Called when the system message or FAQ changes: switches to a new key space and
+     * drops every answer generated from the old text.
+     * Returns true if the context actually changed.
+     */
+    public boolean updateContext(String systemMessage, String faq) {
+        String newHash = hashContext(systemMessage, faq);
+        if (newHash.equals(contextHash)) return false;
+        contextHash = newHash;
+        cache.clear();
+        return true;
+    }
+
+    public CacheStats stats() {
+        return cache.stats();
+    }
+
+    public long collapsedCount() {
+        return singleFlight.collapsedCount();
+    }
+
+    private String key(String question) {
+        return contextHash + '|' + normalize(question);
+    }
+
+    // Lower case, single spaces, no trailing punctuation
+    static String normalize(String question) {
+        String normalized = question.toLowerCase(Locale.ROOT).trim().replaceAll("\\s+", " ");
+        int end = normalized.length();
+        while (end > 0 && "?!.,;: ".indexOf(normalized.charAt(end - 1)) >= 0) end--;
+        return normalized.substring(0, end);
+    }
+
+    private static String hashContext(String systemMessage, String faq) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(systemMessage.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(faq.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest.digest(), 0, 8);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
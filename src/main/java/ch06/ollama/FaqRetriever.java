@@ -0,0 +1,147 @@
+package ch06.ollama;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import common.llm.LlmClient;
+import common.retrieval.EmbeddingIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Retrieval stage for the FAQ bot.
+ * The FAQ is split into chunks, each chunk is embedded once through Ollama's embeddings
+ * endpoint and the vectors are persisted next to the bot. For every question only the
+ * top-k most similar chunks are put into the prompt instead of the whole FAQ, so
+ * prompt-eval time no longer grows with the size of the FAQ.
+ * Until the index is ready, or if embedding fails, callers fall back to the full FAQ.
+ */
+public class FaqRetriever {
+    private static final Logger logger = LoggerFactory.getLogger(FaqRetriever.class);
+
+    private final LlmClient embeddingsClient;
+    private final String model;
+    private final Path indexFile;
+    private final int topK;
+    private final int maxChunkChars;
+
+    private volatile EmbeddingIndex index;
+    private volatile String currentTag;
+
+    public FaqRetriever(LlmClient embeddingsClient, String model, Path indexFile, int topK, int maxChunkChars) {
+        this.embeddingsClient = embeddingsClient;
+        this.model = model;
+        this.indexFile = indexFile;
+        this.topK = topK;
+        this.maxChunkChars = maxChunkChars;
+    }
+
+    /**
+     * Loads the persisted index for this FAQ, or embeds the chunks and persists them.
+     * Safe to call again when the FAQ changes; answers fall back to the full FAQ meanwhile.
+     */
+    public CompletableFuture<Void> load(String faq) {
+        String tag = model + ":" + sha256(faq);
+        currentTag = tag;
+        index = null;
+
+        EmbeddingIndex saved = EmbeddingIndex.load(indexFile, tag);
+        if (saved != null) {
+            logger.info("Loaded {} FAQ embeddings from {}", saved.size(), indexFile);
+            index = saved;
+            return CompletableFuture.completedFuture(null);
+        }
+
+        List<String> chunks = chunk(faq, maxChunkChars);
+        logger.info("Embedding {} FAQ chunks with {}", chunks.size(), model);
+        return embed(chunks).thenAccept(vectors -> {
+            EmbeddingIndex built = new EmbeddingIndex(chunks, vectors);
+            // A newer FAQ may have arrived while we were embedding this one
+            if (!tag.equals(currentTag)) return;
+            index = built;
+            try {
+                built.save(indexFile, tag);
+            } catch (IOException e) {
+                logger.warn("Could not persist FAQ embeddings to {}: {}", indexFile, e.getMessage());
+            }
+        }).exceptionally(e -> {
+            logger.error("Failed to embed FAQ, prompts will carry the full FAQ", e);
+            return null;
+        });
+    }
+
+    /**
+     * Returns the FAQ chunks most relevant to the question, or {@code fallback} if retrieval is not possible.
+     */
+    public CompletableFuture<String> relevantContext(String question, String fallback) {
+        EmbeddingIndex current = index;
+        if (current == null || current.size() == 0) return CompletableFuture.completedFuture(fallback);
+
+        return embed(List.of(question))
+                .thenApply(vectors -> {
+                    StringBuilder context = new StringBuilder("Relevant FAQ entries:\n\n");
+                    for (EmbeddingIndex.Hit hit : current.topK(vectors.get(0), topK)) {
+                        context.append(hit.text()).append("\n\n");
+                    }
+                    return context.toString();
+                })
+                .exceptionally(e -> {
+                    logger.warn("FAQ retrieval failed, using full FAQ: {}", e.getMessage());
+                    return fallback;
+                });
+    }
+
+    // OpenAI-compatible embeddings: {"model": ..., "input": [...]} -> {"data": [{"index": i, "embedding": [...]}]}
+    private CompletableFuture<List<float[]>> embed(List<String> inputs) {
+        return embeddingsClient.postAsync(new EmbeddingRequest(model, inputs)).thenApply(root -> {
+            float[][] vectors = new float[inputs.size()][];
+            for (JsonNode item : root.path("data")) {
+                JsonNode embedding = item.path("embedding");
+                float[] vector = new float[embedding.size()];
+                for (int i = 0; i < vector.length; i++) vector[i] = (float) embedding.get(i).asDouble();
+                vectors[item.path("index").asInt()] = vector;
+            }
+            for (int i = 0; i < vectors.length; i++) {
+                if (vectors[i] == null) throw new IllegalStateException("Missing embedding for input " + i);
+            }
+            return List.of(vectors);
+        });
+    }
+
+    // A new chunk starts at every question line (ending with '?') and at blank lines;
+    // chunks longer than maxChars are split at line boundaries
+    static List<String> chunk(String faq, int maxChars) {
+        List<String> chunks = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        for (String line : faq.split("\n")) {
+            String trimmed = line.strip();
+            boolean boundary = trimmed.isEmpty() || trimmed.endsWith("?");
+            if (current.length() > 0 && (boundary || current.length() + trimmed.length() > maxChars)) {
+                chunks.add(current.toString().strip());
+                current.setLength(0);
+            }
+            if (!trimmed.isEmpty()) current.append(trimmed).append('\n');
+        }
+        if (current.length() > 0) chunks.add(current.toString().strip());
+        return chunks;
+    }
+
+    private static String sha256(String text) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest, 0, 16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    record EmbeddingRequest(String model, List<String> input) {}
+}
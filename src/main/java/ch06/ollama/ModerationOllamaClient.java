@@ -1,66 +1,301 @@
 package ch06.ollama;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import common.cache.BoundedCache;
+import common.cache.CacheStats;
+import common.concurrent.AdaptiveLimiter;
+import common.concurrent.Deadline;
+import common.concurrent.MicroBatcher;
+import common.jfr.ModerationEvent;
+import common.llm.ChatCodec;
+import common.llm.ChatEndpoint;
+import common.llm.LlmClient;
+import common.llm.LlmHttpException;
+import common.metrics.CallTimer;
+import common.metrics.Metrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.*;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HexFormat;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
 public class ModerationOllamaClient {
     private static final Logger logger = LoggerFactory.getLogger(ModerationOllamaClient.class);
 
+    // Rough heap cost of one cached verdict: hex key String, entry record and map node
+    private static final int ENTRY_OVERHEAD_BYTES = 120;
+
+    private static final SecureRandom NONCES = new SecureRandom();
+
+    private static final ChatCodec SINGLE_CODEC = ChatCodec.builder()
+            .model(Constants.MODEL)
+            .maxTokens(Constants.Moderator.MAX_TOKENS)
+            .message("system", Constants.Moderator.SYSTEM_MESSAGE)
+            .build();
+    private static final ChatCodec BATCH_CODEC = ChatCodec.builder()
+            .model(Constants.MODEL)
+            .message("system", Constants.Moderator.BATCH_SYSTEM_MESSAGE)
+            .build();
+
+    // Verdicts that needed the LLM (alone or in a batch); cached ones are not counted
+    private static final CallTimer MODERATION_CALLS = Metrics.global().outboundCall("moderation");
+
+    private final ChatEndpoint client;
+
+    // Verdicts keyed by a hash of the normalized message, so memory per entry does not depend on message length
+    private final BoundedCache<String, Boolean> verdictCache = BoundedCache.<String, Boolean>builder()
+            .maxEntries(Constants.Moderator.VERDICT_CACHE_MAX_ENTRIES)
+            .maxWeight(Constants.Moderator.VERDICT_CACHE_MAX_BYTES)
+            .weigher((key, flagged) -> ENTRY_OVERHEAD_BYTES + 2L * key.length())
+            .build();
+
+    // Null when batching is off; otherwise uncached messages are moderated in groups
+    private final MicroBatcher<String, Boolean> batcher;
+    private final LongAdder batchFallbacks = new LongAdder();
+    private final LongAdder batchRechecks = new LongAdder();
+    private final LongAdder batchOverturned = new LongAdder();
+
+    public ModerationOllamaClient() {
+        this(LlmClient.forEndpoint(Constants.ENDPOINT, Constants.HTTP_CONFIG));
+    }
+
+    public ModerationOllamaClient(ChatEndpoint client) {
+        this(client, 1, Duration.ZERO);
+    }
+
+    /**
+     * @param maxBatchSize Messages per LLM request; 1 sends every message on its own
+     * @param batchWindow  How long the first message of a batch waits for others
+     */
+    public ModerationOllamaClient(ChatEndpoint client, int maxBatchSize, Duration batchWindow) {
+        this.client = client;
+        this.batcher = maxBatchSize > 1 ? new MicroBatcher<>(maxBatchSize, batchWindow, this::moderateBatch) : null;
+    }
+
+    public CacheStats verdictCacheStats() {
+        return verdictCache.stats();
+    }
+
+    /**
+     * Batch counts, average batch size and messages per second, or "off" when not batching.
+     */
+    public String batchStats() {
+        if (batcher == null) return "off";
+        return String.format("%s size<=%d window=%dms fallbacks=%d rechecks=%d overturned=%d", batcher.stats(),
+                batcher.maxBatchSize(), batcher.window().toMillis(), batchFallbacks.sum(),
+                batchRechecks.sum(), batchOverturned.sum());
+    }
+
     public boolean isFlagged(String userMessage) {
+        return isFlaggedAsync(userMessage).join();
+    }
 
+    public CompletableFuture<Boolean> isFlaggedAsync(String userMessage) {
+        return isFlaggedAsync(userMessage, Deadline.after(Constants.REPLY_BUDGET));
+    }
+
+    /**
+     * Moderates within what is left of {@code deadline}. The future completes with true only for
+     * a FLAG verdict; without a verdict it fails instead:
+     * - RejectedExecutionException when the moderation limiter is full
+     * - {@link UnavailableException} when the verdict does not arrive in time, or Ollama cannot be
+     *   reached or answers 429/5xx; the message was not judged, so the caller must not delete it
+     * - the original error for anything else
+     */
+    public CompletableFuture<Boolean> isFlaggedAsync(String userMessage, Deadline deadline) {
+        String key = cacheKey(userMessage);
+        Boolean cached = verdictCache.get(key);
+        if (cached != null) {
+            ModerationEvent.instant("cache", cached ? "FLAG" : "SAFE", userMessage.length());
+            return CompletableFuture.completedFuture(cached);
+        }
+        ModerationEvent event = ModerationEvent.begin("llm", userMessage.length());
+
+        // A timed-out caller leaves its batch; the batch itself still answers the others
+        CompletableFuture<Boolean> verdict = MODERATION_CALLS.time(deadline.bound(
+                batcher != null ? batcher.submit(userMessage) : moderateOne(userMessage)));
+        return verdict
+                .thenApply(flagged -> {
+                    verdictCache.put(key, flagged, flagged
+                            ? Constants.Moderator.FLAG_VERDICT_TTL
+                            : Constants.Moderator.SAFE_VERDICT_TTL);
+                    event.end(flagged ? "FLAG" : "SAFE");
+                    return flagged;
+                })
+                .exceptionally(e -> {
+                    // No verdict, so the caller must not act as if flagged
+                    if (AdaptiveLimiter.isRejected(e)) {
+                        event.end("SHED");
+                        throw e instanceof CompletionException ce ? ce : new CompletionException(e);
+                    }
+                    Throwable cause = unwrap(e);
+                    if (isOverloaded(cause)) {
+                        event.end("UNAVAILABLE");
+                        logger.warn("No moderation verdict: {}", cause.toString());
+                        throw new CompletionException(new UnavailableException(cause));
+                    }
+                    event.end("FAILED");
+                    logger.error("Error processing message", e);
+                    throw e instanceof CompletionException ce ? ce : new CompletionException(e);
+                });
+    }
+
+    /**
+     * True if {@code error}, possibly wrapped, means Ollama was too slow or unreachable to judge the message.
+     */
+    public static boolean isUnavailable(Throwable error) {
+        return unwrap(error) instanceof UnavailableException;
+    }
+
+    // Deadline expiry, connection failures and 429/5xx answers: what a load spike looks like
+    private static boolean isOverloaded(Throwable cause) {
+        if (cause instanceof TimeoutException) return true;
+        if (cause instanceof LlmHttpException http) return http.code() == 429 || http.code() >= 500;
+        return cause instanceof IOException;
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        while ((error instanceof CompletionException || error instanceof ExecutionException) && error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error;
+    }
+
+    /**
+     * Moderation gave no verdict because Ollama was overloaded or unreachable.
+     */
+    public static class UnavailableException extends RuntimeException {
+        public UnavailableException(Throwable cause) {
+            super("Moderation unavailable: " + cause, cause);
+        }
+    }
+
+    private CompletableFuture<Boolean> moderateOne(String userMessage) {
+        return client.chatAsync(SINGLE_CODEC.encode(false, ChatCodec.Message.user(userMessage)))
+                .thenApply(result -> result.trim().toUpperCase().contains("FLAG"));
+    }
+
+    // One request for the whole batch; if the model does not answer with a usable verdict
+    // for every message, each is moderated on its own instead
+    private CompletableFuture<List<Boolean>> moderateBatch(List<String> batch) {
+        // Raids repeat the same text, so each distinct message is sent only once
+        List<String> userMessages = batch.stream().distinct().toList();
+        if (userMessages.size() < batch.size()) {
+            return moderateBatch(userMessages).thenApply(verdicts -> {
+                List<Boolean> all = new ArrayList<>(batch.size());
+                for (String userMessage : batch) all.add(verdicts.get(userMessages.indexOf(userMessage)));
+                return all;
+            });
+        }
+        if (userMessages.size() == 1) {
+            return moderateOne(userMessages.get(0)).thenApply(List::of);
+        }
+
+        // Ids the messages cannot know in advance, so a reply shaped by one of them does not parse
+        String nonce = String.format("%08x", NONCES.nextInt());
+        String messagesJson;
         try {
-            ObjectMapper mapper = new ObjectMapper();
-
-            ChatRequest request = new ChatRequest(
-                    Constants.MODEL,
-                    List.of(
-                            new Message("system", Constants.Moderator.SYSTEM_MESSAGE),
-                            new Message("user", userMessage)
-                    ),
-                    Constants.Moderator.MAX_TOKENS
-            );
-
-            String json = mapper.writeValueAsString(request);
-
-            HttpURLConnection conn = (HttpURLConnection) new URL(Constants.ENDPOINT).openConnection();
-            conn.setRequestMethod("POST");
-            conn.setRequestProperty("Content-Type", "application/json");
-            conn.setDoOutput(true);
-
-            try (OutputStream os = conn.getOutputStream()) {
-                os.write(json.getBytes());
+            ArrayNode items = LlmClient.MAPPER.createArrayNode();
+            for (int i = 0; i < userMessages.size(); i++) {
+                items.addObject().put("id", nonce + "-" + i).put("text", userMessages.get(i));
             }
+            messagesJson = LlmClient.MAPPER.writeValueAsString(items);
+        } catch (JsonProcessingException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        int maxTokens = Constants.Moderator.MAX_TOKENS + userMessages.size() * Constants.Moderator.BATCH_TOKENS_PER_VERDICT;
+
+        return client.chatAsync(BATCH_CODEC.encode(false, maxTokens, ChatCodec.Message.user(messagesJson)))
+                .thenCompose(result -> {
+                    List<Boolean> verdicts = parseVerdicts(result, nonce, userMessages.size());
+                    if (verdicts != null) return recheckFlags(userMessages, verdicts);
 
-            if (conn.getResponseCode() == 200) {
-                BufferedReader reader = new BufferedReader(
-                        new InputStreamReader(conn.getInputStream())
-                );
-                StringBuilder sb = new StringBuilder();
-                String line;
-                while ((line = reader.readLine()) != null) sb.append(line);
-
-                JsonNode root = mapper.readTree(sb.toString());
-                String result = root.at("/choices/0/message/content")
-                        .asText()
-                        .trim()
-                        .toUpperCase();
-
-                return result.contains("FLAG");
+                    logger.warn("Malformed batch verdicts for {} messages, moderating one by one: {}",
+                            userMessages.size(), result);
+                    batchFallbacks.increment();
+                    List<CompletableFuture<Boolean>> singles = new ArrayList<>();
+                    for (String userMessage : userMessages) singles.add(moderateOne(userMessage));
+                    return CompletableFuture.allOf(singles.toArray(new CompletableFuture[0]))
+                            .thenApply(ignored -> singles.stream().map(CompletableFuture::join).toList());
+                });
+    }
+
+    // A batch mixes messages of different people, and one of them may talk the model into
+    // flagging the others. A batch FLAG only stands once the message alone is flagged too
+    private CompletableFuture<List<Boolean>> recheckFlags(List<String> userMessages, List<Boolean> verdicts) {
+        List<CompletableFuture<Boolean>> checked = new ArrayList<>(verdicts.size());
+        for (int i = 0; i < verdicts.size(); i++) {
+            if (!verdicts.get(i)) {
+                checked.add(CompletableFuture.completedFuture(false));
+                continue;
             }
+            batchRechecks.increment();
+            String userMessage = userMessages.get(i);
+            checked.add(moderateOne(userMessage).thenApply(flagged -> {
+                if (!flagged) {
+                    batchOverturned.increment();
+                    logger.warn("Batch flagged a message its own check found safe, {} messages in the batch",
+                            userMessages.size());
+                }
+                return flagged;
+            }));
+        }
+        return CompletableFuture.allOf(checked.toArray(new CompletableFuture[0]))
+                .thenApply(ignored -> checked.stream().map(CompletableFuture::join).toList());
+    }
 
-        } catch (Exception e) {
-            logger.error("Error processing message", e);
+    /**
+     * Parses a JSON object giving a FLAG/SAFE verdict for each of the ids {@code nonce-0} to
+     * {@code nonce-(expected - 1)}, and nothing else, or returns null. Text around the object
+     * (a code fence, a preamble) is ignored.
+     */
+    static List<Boolean> parseVerdicts(String result, String nonce, int expected) {
+        int start = result.indexOf('{');
+        int end = result.lastIndexOf('}');
+        if (start < 0 || end < start) return null;
+        JsonNode object;
+        try {
+            object = LlmClient.MAPPER.readTree(result.substring(start, end + 1));
+        } catch (JsonProcessingException e) {
+            return null;
         }
+        if (!object.isObject() || object.size() != expected) return null;
 
-        return true; // fail-closed
+        List<Boolean> verdicts = new ArrayList<>(expected);
+        for (int i = 0; i < expected; i++) {
+            JsonNode element = object.get(nonce + "-" + i);
+            if (element == null || !element.isTextual()) return null;
+            String verdict = element.asText().trim().toUpperCase(Locale.ROOT);
+            if (verdict.equals("FLAG")) verdicts.add(true);
+            else if (verdict.equals("SAFE")) verdicts.add(false);
+            else return null;
+        }
+        return verdicts;
     }
 
-    record Message(String role, String content) {}
-    record ChatRequest(String model, List<Message> messages, int max_tokens) {}
+    // "Thanks", "thanks" and "  THANKS " share one verdict
+    static String cacheKey(String userMessage) {
+        String normalized = userMessage.strip().toLowerCase(Locale.ROOT).replaceAll("\\s+", " ");
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(normalized.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest, 0, 16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
 }
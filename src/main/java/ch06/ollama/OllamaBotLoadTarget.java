@@ -0,0 +1,63 @@
+package ch06.ollama;
+
+import common.concurrent.Stage;
+import common.loadtest.LoadTarget;
+import common.loadtest.StubLlmServer;
+import net.dv8tion.jda.api.events.message.MessageReceivedEvent;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link TechSupportOllamaBot} under the load-test driver. The bot reads OLLAMA_BACKENDS when it
+ * loads, so it has to point at the stub before the JVM starts; the loadTest Gradle task sets it.
+ */
+public class OllamaBotLoadTarget implements LoadTarget {
+    private final TechSupportOllamaBot bot = new TechSupportOllamaBot();
+
+    @Override
+    public String name() {
+        return "TechSupportOllamaBot";
+    }
+
+    @Override
+    public void start(String llmBaseUrl) {
+        String backends = System.getenv("OLLAMA_BACKENDS");
+        if (backends == null || !backends.contains(llmBaseUrl)) {
+            throw new IllegalStateException("OLLAMA_BACKENDS is " + backends + " but the stub listens at " + llmBaseUrl
+                    + "; run through the loadTest task or set OLLAMA_BACKENDS=" + llmBaseUrl);
+        }
+        TechSupportOllamaBot.initialize();
+    }
+
+    @Override
+    public void onMessageReceived(MessageReceivedEvent event) {
+        bot.onMessageReceived(event);
+    }
+
+    @Override
+    public Outcome classify(String content) {
+        if (content.contains(Constants.Moderator.VIOLATE_MESSAGE)) return Outcome.FLAGGED;
+        if (content.contains(Constants.TechSupport.BUSY_MESSAGE)) return Outcome.SHED;
+        if (content.contains("I encountered an error")) return Outcome.ERROR;
+        if (content.contains(StubLlmServer.END_MARKER)) return Outcome.ANSWERED;
+        // The placeholder or a partly streamed answer
+        return null;
+    }
+
+    @Override
+    public String bannedText() {
+        return "I will kill you";
+    }
+
+    @Override
+    public List<String> stats() {
+        List<String> lines = new ArrayList<>();
+        for (Stage<?, ?> stage : TechSupportOllamaBot.stages) lines.add("stage " + stage.stats());
+        lines.add("limiters " + TechSupportOllamaBot.moderationLimiter.stats() + " | "
+                + TechSupportOllamaBot.answerLimiter.stats());
+        lines.add("moderation batches " + TechSupportOllamaBot.moderationClient.batchStats());
+        lines.add("answer cache " + TechSupportOllamaBot.ollamaClient.answerCache().stats());
+        return lines;
+    }
+}
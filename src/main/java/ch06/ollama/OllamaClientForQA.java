@@ -1,94 +1,328 @@
 package ch06.ollama;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import common.concurrent.Deadline;
+import common.concurrent.Futures;
+import common.llm.ChatCodec;
+import common.llm.EncodedChat;
+import common.llm.BpeTokenizer;
+import common.llm.ChatEndpoint;
+import common.llm.ConversationMemory;
+import common.llm.LlmClient;
+import common.llm.LlmHttpException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.*;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 
 public class OllamaClientForQA {
     private static final Logger logger = LoggerFactory.getLogger(OllamaClientForQA.class);
     private final String systemMessage;
-    private final String initialInstructions;
+    private volatile String initialInstructions;
+    private final ChatEndpoint client;
+    private final AnswerCache answerCache;
+    // Optional: when set, prompts carry only the FAQ chunks relevant to the question
+    private volatile FaqRetriever retriever;
+    // Optional: when set, answers to the same conversation see its recent turns
+    private volatile ConversationMemory memory;
+    // Optional: when set, prompts are cut to fit Constants.CONTEXT_TOKENS
+    private volatile BpeTokenizer tokenizer;
+
+    private static final ChatCodec SUMMARY_CODEC = ChatCodec.builder()
+            .model(Constants.MODEL)
+            .maxTokens(Constants.TechSupport.CONVERSATION_SUMMARY_TOKENS)
+            .message("system", Constants.TechSupport.SUMMARY_SYSTEM_MESSAGE)
+            .build();
+
+    // Request templates: system prompt only (retrieved chunks are added per request),
+    // and system prompt plus the whole FAQ, rebuilt when the FAQ changes
+    private final ChatCodec systemOnlyCodec;
+    private volatile int systemOnlyTokens;
+    private volatile FaqCodec fullFaqCodec;
+
+    // tokens: prompt tokens of the template, 0 without a tokenizer
+    private record FaqCodec(String faq, ChatCodec codec, int tokens) {}
+
+    // The parts of a prompt that are cut to fit the context window
+    private record Prompt(String question, String context, ConversationMemory.History history) {}
 
     public OllamaClientForQA(String systemMessage, String initialInstructions) {
+        this(systemMessage, initialInstructions, LlmClient.forEndpoint(Constants.ENDPOINT, Constants.HTTP_CONFIG));
+    }
+
+    public OllamaClientForQA(String systemMessage, String initialInstructions, ChatEndpoint client) {
         this.systemMessage = systemMessage;
         this.initialInstructions = initialInstructions;
+        this.client = client;
+        this.answerCache = new AnswerCache(Constants.TechSupport.ANSWER_CACHE_MAX_ENTRIES,
+                Constants.TechSupport.ANSWER_CACHE_TTL, systemMessage, initialInstructions);
+        this.systemOnlyCodec = codec().build();
+        this.fullFaqCodec = faqCodec(initialInstructions);
+    }
+
+    /**
+     * Replaces the FAQ text. Cached answers built from the previous FAQ are dropped.
+     */
+    public void updateInstructions(String newInstructions) {
+        this.fullFaqCodec = faqCodec(newInstructions);
+        this.initialInstructions = newInstructions;
+        if (answerCache.updateContext(systemMessage, newInstructions)) {
+            logger.info("FAQ changed, answer cache invalidated");
+            FaqRetriever current = retriever;
+            if (current != null) current.load(newInstructions);
+        }
+    }
+
+    public void useRetriever(FaqRetriever retriever) {
+        this.retriever = retriever;
+    }
+
+    public void useConversationMemory(ConversationMemory memory) {
+        this.memory = memory;
+    }
+
+    public void useTokenizer(BpeTokenizer tokenizer) {
+        this.tokenizer = tokenizer;
+        this.systemOnlyTokens = templateTokens(null);
+        this.fullFaqCodec = faqCodec(initialInstructions);
+    }
+
+    public AnswerCache answerCache() {
+        return answerCache;
     }
 
     public String sendMessage(String userMessage) {
-        String answer = "";
         try {
-            ObjectMapper mapper = new ObjectMapper();
-
-            // Build the JSON request with roles
-            List<Message> messages = new ArrayList<>();
-            messages.add(new Message("system", systemMessage));
-            messages.add(new Message("user", initialInstructions));
-            messages.add(new Message("user", userMessage));
-
-            ChatRequest chatRequest = new ChatRequest(Constants.MODEL, messages, Constants.TechSupport.MAX_TOKENS);
-            String jsonInput = mapper.writeValueAsString(chatRequest);
-
-            URL url = new URL(Constants.ENDPOINT);
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("POST");
-            connection.setRequestProperty("Content-Type", "application/json");
-            connection.setDoOutput(true);
-
-            try (OutputStream os = connection.getOutputStream()) {
-                os.write(jsonInput.getBytes());
-                os.flush();
+            return sendMessageAsync(userMessage).join();
+        } catch (Exception e) {
+            IOException cause = LlmClient.asIOException(e);
+            if (cause instanceof LlmHttpException http) {
+                return "Error: " + http.code();
             }
+            logger.error("Unexpected error while processing Ollama request", cause);
+            return "An unexpected error occurred while generating the response.";
+        }
+    }
 
-            int code = connection.getResponseCode();
-            if (code == HttpURLConnection.HTTP_OK) {
-                BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-                StringBuilder response = new StringBuilder();
-                String line;
-                while ((line = reader.readLine()) != null) response.append(line);
-                reader.close();
-
-                JsonNode root = mapper.readTree(response.toString());
-                answer = root.at("/choices/0/message/content").asText();
-            } else {
-                answer = "Error: " + code;
-            }
+    public CompletableFuture<String> sendMessageAsync(String userMessage) {
+        return sendMessageAsync(userMessage, Deadline.after(Constants.REPLY_BUDGET));
+    }
 
-            connection.disconnect();
+    /**
+     * Answers within what is left of {@code deadline}; when it runs out the retrieval or
+     * generation in flight is cancelled and the future fails with a TimeoutException.
+     */
+    public CompletableFuture<String> sendMessageAsync(String userMessage, Deadline deadline) {
+        return sendMessageAsync(null, userMessage, deadline);
+    }
 
-        } catch (Exception e) {
-            logger.error("Unexpected error while processing Ollama request", e);
-            answer = "An unexpected error occurred while generating the response.";
+    /**
+     * Like {@link #sendMessageAsync(String, Deadline)}, as the next turn of a conversation:
+     * the prompt carries its recent turns and the answer is remembered for the next one.
+     *
+     * @param conversationId Any stable id, e.g. channel and user; null for a one-off question
+     */
+    public CompletableFuture<String> sendMessageAsync(String conversationId, String userMessage, Deadline deadline) {
+        ConversationMemory.History history = history(conversationId);
+        CompletableFuture<String> answer;
+        if (history.isEmpty()) {
+            // Bounded per caller: a question shared with other waiters is only cancelled once all of them gave up
+            answer = deadline.bound(answerCache.get(userMessage, () -> Futures.thenComposeCancellable(faqContext(userMessage),
+                    context -> client.chatAsync(buildRequest(userMessage, context, history, false)))));
+        } else {
+            // A follow-up depends on its conversation, so it is neither cached nor shared
+            answer = deadline.bound(Futures.thenComposeCancellable(faqContext(userMessage),
+                    context -> client.chatAsync(buildRequest(userMessage, context, history, false))));
         }
+        remember(conversationId, userMessage, answer);
         return answer;
     }
 
-    // Helper classes for JSON serialization
-    static class Message {
-        public String role;
-        public String content;
+    public CompletableFuture<String> streamMessageAsync(String userMessage, Consumer<String> onDelta) {
+        return streamMessageAsync(userMessage, onDelta, Deadline.after(Constants.REPLY_BUDGET));
+    }
+
+    /**
+     * Streams the answer token by token. {@code onDelta} sees each fragment as soon as
+     * Ollama produces it; the returned future completes with the whole answer, or fails
+     * with a TimeoutException once {@code deadline} has passed.
+     */
+    public CompletableFuture<String> streamMessageAsync(String userMessage, Consumer<String> onDelta, Deadline deadline) {
+        return streamMessageAsync(null, userMessage, onDelta, deadline);
+    }
 
-        public Message(String role, String content) {
-            this.role = role;
-            this.content = content;
+    /**
+     * Like {@link #streamMessageAsync(String, Consumer, Deadline)}, as the next turn of a conversation.
+     *
+     * @param conversationId Any stable id, e.g. channel and user; null for a one-off question
+     */
+    public CompletableFuture<String> streamMessageAsync(String conversationId, String userMessage,
+                                                        Consumer<String> onDelta, Deadline deadline) {
+        ConversationMemory.History history = history(conversationId);
+        CompletableFuture<String> streamed;
+        if (history.isEmpty()) {
+            // A cached answer, or one for the same question already being generated, arrives as one delta
+            AtomicBoolean streaming = new AtomicBoolean(false);
+            CompletableFuture<String> answer = answerCache.get(userMessage, () -> {
+                streaming.set(true);
+                return Futures.thenComposeCancellable(faqContext(userMessage),
+                        context -> client.streamAsync(buildRequest(userMessage, context, history, true), onDelta));
+            });
+            streamed = Futures.thenApplyCancellable(deadline.bound(answer), text -> {
+                if (!streaming.get()) onDelta.accept(text);
+                return text;
+            });
+        } else {
+            streamed = deadline.bound(Futures.thenComposeCancellable(faqContext(userMessage),
+                    context -> client.streamAsync(buildRequest(userMessage, context, history, true), onDelta)));
         }
+        remember(conversationId, userMessage, streamed);
+        return streamed;
     }
 
-    static class ChatRequest {
-        public String model;
-        public List<Message> messages;
-        public int max_tokens;
+    /**
+     * Folds conversation turns that no longer fit in the prompt into a short summary;
+     * used as the {@link ConversationMemory.Summarizer} of the bot's conversation memory.
+     */
+    public CompletableFuture<String> summarize(String summary, List<ConversationMemory.Turn> dropped) {
+        StringBuilder transcript = new StringBuilder();
+        if (!summary.isEmpty()) transcript.append("Summary so far: ").append(summary).append("\n\n");
+        transcript.append("Newer turns:\n");
+        for (ConversationMemory.Turn turn : dropped) {
+            transcript.append("User: ").append(turn.user()).append('\n')
+                    .append("Assistant: ").append(turn.assistant()).append('\n');
+        }
+        return client.chatAsync(SUMMARY_CODEC.encode(false, ChatCodec.Message.user(transcript.toString())));
+    }
+
+    private ConversationMemory.History history(String conversationId) {
+        ConversationMemory current = memory;
+        return current == null || conversationId == null ? ConversationMemory.History.EMPTY : current.history(conversationId);
+    }
+
+    // Side branch only, so the caller's future stays cancellable
+    private void remember(String conversationId, String userMessage, CompletableFuture<String> answer) {
+        ConversationMemory current = memory;
+        if (current == null || conversationId == null) return;
+        answer.thenAccept(text -> {
+            if (text != null && !text.isBlank()) current.record(conversationId, userMessage, text);
+        });
+    }
+
+    // Whole FAQ, or just the chunks relevant to this question when retrieval is enabled
+    private CompletableFuture<String> faqContext(String userMessage) {
+        FaqRetriever current = retriever;
+        String fullFaq = initialInstructions;
+        return current == null
+                ? CompletableFuture.completedFuture(fullFaq)
+                : current.relevantContext(userMessage, fullFaq);
+    }
+
+    private EncodedChat buildRequest(String userMessage, String faqContext, ConversationMemory.History history,
+                                     boolean stream) {
+        // The full FAQ is already in the template; retrieved chunks are written per request
+        FaqCodec full = fullFaqCodec;
+        boolean fullFaq = faqContext.equals(full.faq());
+        Prompt prompt = fitToContext(userMessage, faqContext, fullFaq ? full.tokens() : systemOnlyTokens, fullFaq, history);
+        userMessage = prompt.question();
+        faqContext = prompt.context();
+        history = prompt.history();
+        if (history.isEmpty()) {
+            return fullFaq
+                    ? full.codec().encode(stream, ChatCodec.Message.user(userMessage))
+                    : systemOnlyCodec.encode(stream, ChatCodec.Message.user(faqContext), ChatCodec.Message.user(userMessage));
+        }
+
+        // [retrieved chunks] [summary of older turns] recent turns, question
+        List<ChatCodec.Message> messages = new ArrayList<>(history.turns().size() * 2 + 3);
+        if (!fullFaq) messages.add(ChatCodec.Message.user(faqContext));
+        if (!history.summary().isEmpty()) {
+            messages.add(ChatCodec.Message.system("Earlier in this conversation: " + history.summary()));
+        }
+        for (ConversationMemory.Turn turn : history.turns()) {
+            messages.add(ChatCodec.Message.user(turn.user()));
+            messages.add(new ChatCodec.Message("assistant", turn.assistant()));
+        }
+        messages.add(ChatCodec.Message.user(userMessage));
+        ChatCodec codec = fullFaq ? full.codec() : systemOnlyCodec;
+        return codec.encode(stream, messages.toArray(new ChatCodec.Message[0]));
+    }
+
+    /**
+     * Cuts the question, the retrieved FAQ context and the conversation history so that
+     * the prompt and MAX_TOKENS of answer fit in the context window. Kept by priority:
+     * - the question, up to half of the room left by the template
+     * - the retrieved context
+     * - the most recent turns, then the summary of older ones
+     */
+    private Prompt fitToContext(String question, String context, int templateTokens, boolean fullFaq,
+                                ConversationMemory.History history) {
+        BpeTokenizer current = tokenizer;
+        int room = Constants.CONTEXT_TOKENS - Constants.TechSupport.MAX_TOKENS - templateTokens
+                - Constants.MESSAGE_OVERHEAD_TOKENS;
+        // Nothing to save if the template alone does not fit; faqCodec() has warned about it
+        if (current == null || room <= 0) return new Prompt(question, context, history);
 
-        public ChatRequest(String model, List<Message> messages, int max_tokens) {
-            this.model = model;
-            this.messages = messages;
-            this.max_tokens = max_tokens;
+        int questionTokens = current.count(question);
+        if (questionTokens > room / 2) {
+            logger.debug("Question of {} tokens cut to {}", questionTokens, room / 2);
+            question = current.truncate(question, room / 2);
+            questionTokens = current.count(question);
+        }
+        room -= questionTokens;
+        if (!fullFaq) {
+            room -= Constants.MESSAGE_OVERHEAD_TOKENS;
+            int contextTokens = current.count(context);
+            if (contextTokens > room) {
+                logger.debug("FAQ context of {} tokens cut to {}", contextTokens, room);
+                context = current.truncate(context, Math.max(0, room));
+                contextTokens = current.count(context);
+            }
+            room -= contextTokens;
         }
+        if (history.isEmpty()) return new Prompt(question, context, history);
+
+        List<ConversationMemory.Turn> turns = history.turns();
+        int first = turns.size();
+        while (first > 0) {
+            int turnTokens = turns.get(first - 1).tokens() + 2 * Constants.MESSAGE_OVERHEAD_TOKENS;
+            if (turnTokens > room) break;
+            room -= turnTokens;
+            first--;
+        }
+        String summary = history.summary();
+        if (!summary.isEmpty() && current.count(summary) + Constants.MESSAGE_OVERHEAD_TOKENS > room) summary = "";
+        if (first == 0 && summary.equals(history.summary())) return new Prompt(question, context, history);
+        logger.debug("History cut to {} of {} turns", turns.size() - first, turns.size());
+        return new Prompt(question, context, new ConversationMemory.History(summary, turns.subList(first, turns.size())));
+    }
+
+    private FaqCodec faqCodec(String faq) {
+        int tokens = templateTokens(faq);
+        if (tokens + Constants.TechSupport.MAX_TOKENS > Constants.CONTEXT_TOKENS) {
+            logger.warn("System message and FAQ take {} tokens, too many for a {}-token context with {} tokens of answer;"
+                    + " the server will cut the prompt. Enable retrieval or shorten the FAQ",
+                    tokens, Constants.CONTEXT_TOKENS, Constants.TechSupport.MAX_TOKENS);
+        }
+        return new FaqCodec(faq, codec().message("user", faq).build(), tokens);
+    }
+
+    // Prompt tokens of the system message and, if given, the full FAQ
+    private int templateTokens(String faq) {
+        BpeTokenizer current = tokenizer;
+        if (current == null) return 0;
+        int tokens = current.count(systemMessage) + Constants.MESSAGE_OVERHEAD_TOKENS;
+        return faq == null ? tokens : tokens + current.count(faq) + Constants.MESSAGE_OVERHEAD_TOKENS;
+    }
+
+    private ChatCodec.Builder codec() {
+        return ChatCodec.builder()
+                .model(Constants.MODEL)
+                .maxTokens(Constants.TechSupport.MAX_TOKENS)
+                .message("system", systemMessage);
     }
 }
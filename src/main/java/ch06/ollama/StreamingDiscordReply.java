@@ -0,0 +1,137 @@
+package ch06.ollama;
+
+import common.concurrent.AdaptiveLimiter;
+import common.jfr.MessageSendEvent;
+import common.metrics.CallTimer;
+import common.metrics.Metrics;
+import net.dv8tion.jda.api.entities.Message;
+import net.dv8tion.jda.api.entities.channel.middleman.MessageChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Posts a placeholder message and progressively edits it while an answer streams in.
+ * Edits are coalesced: a new edit is sent only after {@code editEveryTokens} tokens or
+ * {@code editIntervalMs} milliseconds, and never while a previous edit is still in flight,
+ * which keeps us inside Discord's per-channel edit rate limit.
+ */
+public class StreamingDiscordReply {
+    private static final Logger logger = LoggerFactory.getLogger(StreamingDiscordReply.class);
+
+    private static final CallTimer DISCORD_SEND = Metrics.global().outboundCall("discord_send");
+    private static final CallTimer DISCORD_EDIT = Metrics.global().outboundCall("discord_edit");
+
+    // Discord rejects messages longer than this
+    private static final int MAX_MESSAGE_LENGTH = 2000;
+    // Shown after the header when the model finished without any text
+    private static final String EMPTY_ANSWER = "I apologize, but I could not come up with an answer. "
+            + Constants.NEW_YEAR_REMINDER;
+
+    private final MessageChannel channel;
+    private String header = "";
+    private final int editEveryTokens;
+    private final long editIntervalNanos;
+
+    private final StringBuilder answer = new StringBuilder();
+    private Message message;
+    private int tokensSinceEdit = 0;
+    private long lastEditNanos = 0;
+    private boolean editInFlight = false;
+    private boolean finished = false;
+    private int renderedLength = -1;
+
+    public StreamingDiscordReply(MessageChannel channel, int editEveryTokens, long editIntervalMs) {
+        this.channel = channel;
+        this.editEveryTokens = editEveryTokens;
+        this.editIntervalNanos = editIntervalMs * 1_000_000L;
+    }
+
+    /**
+     * Sends the placeholder. Tokens that arrive before this call, or before Discord
+     * confirms the placeholder, are buffered and shown with the first edit.
+     */
+    public CompletableFuture<Message> open(String header, String placeholder) {
+        synchronized (this) {
+            this.header = header;
+        }
+        String text = header + placeholder;
+        return DISCORD_SEND.time(MessageSendEvent.time("discord", "send", channel.getId(), text.length(),
+                        channel.sendMessage(text).submit()))
+                .whenComplete((sent, error) -> {
+                    if (error != null) {
+                        logger.error("Failed to post placeholder message", error);
+                        return;
+                    }
+                    synchronized (this) {
+                        message = sent;
+                    }
+                    maybeEdit();
+                });
+    }
+
+    public void onToken(String delta) {
+        synchronized (this) {
+            answer.append(delta);
+            tokensSinceEdit++;
+        }
+        maybeEdit();
+    }
+
+    /**
+     * Marks the answer as complete and flushes the remaining text with one final edit.
+     */
+    public void finish(String fullAnswer, Throwable error) {
+        synchronized (this) {
+            if (error != null && AdaptiveLimiter.isRejected(error)) {
+                answer.append(Constants.TechSupport.BUSY_MESSAGE);
+            } else if (error != null) {
+                answer.append("\n\n").append("I apologize, but I encountered an error. ")
+                        .append(Constants.NEW_YEAR_REMINDER);
+            } else if (fullAnswer != null && answer.length() == 0) {
+                answer.append(fullAnswer);
+            }
+            finished = true;
+        }
+        maybeEdit();
+    }
+
+    private void maybeEdit() {
+        String content;
+        synchronized (this) {
+            if (message == null || editInFlight) return;
+            // Keep the placeholder until there is something to show, and skip no-op edits
+            if (!finished && answer.toString().isBlank()) return;
+            if (renderedLength == answer.length()) return;
+
+            long now = System.nanoTime();
+            // The very first text is shown immediately; after that edits are batched
+            boolean firstText = renderedLength < 0;
+            boolean due = tokensSinceEdit >= editEveryTokens || now - lastEditNanos >= editIntervalNanos;
+            if (!finished && !firstText && !due) return;
+
+            content = render();
+            renderedLength = answer.length();
+            tokensSinceEdit = 0;
+            lastEditNanos = now;
+            editInFlight = true;
+        }
+
+        DISCORD_EDIT.time(MessageSendEvent.time("discord", "edit", channel.getId(), content.length(),
+                message.editMessage(content).submit())).whenComplete((edited, error) -> {
+            if (error != null) logger.warn("Failed to edit streamed reply: {}", error.getMessage());
+            synchronized (this) {
+                editInFlight = false;
+            }
+            // Tokens that arrived while the edit was in flight go out in the next batch
+            maybeEdit();
+        });
+    }
+
+    private String render() {
+        // The header alone is no answer, and Discord rejects an empty edit
+        String text = finished && answer.toString().isBlank() ? header + EMPTY_ANSWER : header + answer;
+        return text.length() > MAX_MESSAGE_LENGTH ? text.substring(0, MAX_MESSAGE_LENGTH - 1) + "…" : text;
+    }
+}
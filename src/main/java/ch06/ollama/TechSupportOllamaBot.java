@@ -2,14 +2,43 @@ package ch06.ollama;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
 import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import ch03.Utils;
+import common.collections.LongHashSet;
+import common.concurrent.AdaptiveLimiter;
+import common.concurrent.Deadline;
+import common.concurrent.Stage;
+import common.jfr.MessageSendEvent;
+import common.jfr.ModerationEvent;
+import common.jfr.SloRecorder;
+import common.llm.BackendPool;
+import common.llm.BpeTokenizer;
+import common.llm.ConversationMemory;
+import common.llm.LimitedEndpoint;
+import common.llm.LlmClient;
+import common.metrics.CallTimer;
+import common.metrics.Counter;
+import common.metrics.Metrics;
+import common.metrics.MetricsServer;
+import common.moderation.ModerationPrefilter;
 import net.dv8tion.jda.api.JDA;
 import net.dv8tion.jda.api.JDABuilder;
 import net.dv8tion.jda.api.entities.Activity;
+import net.dv8tion.jda.api.entities.Message;
 import net.dv8tion.jda.api.entities.User;
 import net.dv8tion.jda.api.entities.channel.ChannelType;
 import net.dv8tion.jda.api.entities.channel.unions.MessageChannelUnion;
@@ -20,19 +49,70 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class TechSupportOllamaBot extends ListenerAdapter {
-    static ModerationOllamaClient moderationClient = new ModerationOllamaClient();
-    static OllamaClientForQA ollamaClient = null;
     private static final Logger logger = LoggerFactory.getLogger(TechSupportOllamaBot.class);
-    private final static String DISCORD_BOT_TOKEN = Utils.getRequiredEnv("DISCORD_BOT_TOKEN");
+    // Moderation and answers share the Ollama servers; each request goes to the least loaded one
+    static BackendPool ollamaBackends = BackendPool.builder()
+            .backends(Objects.requireNonNullElse(System.getenv("OLLAMA_BACKENDS"), Constants.BACKENDS))
+            .path(Constants.CHAT_PATH)
+            .config(Constants.HTTP_CONFIG)
+            .hedgeAt(doubleFromEnv("HEDGE_QUANTILE", Constants.HEDGE_QUANTILE))
+            .maxHedgeRatio(Constants.HEDGE_MAX_RATIO)
+            .build();
+    static Duration replyBudget = Duration.ofMillis(intFromEnv("REPLY_BUDGET_MS", (int) Constants.REPLY_BUDGET.toMillis()));
+    // Moderation and answers get separate limits, so a flood of questions cannot starve moderation
+    static AdaptiveLimiter moderationLimiter = AdaptiveLimiter.builder()
+            .name("moderation")
+            .initialLimit(Constants.Moderator.CONCURRENCY_INITIAL_LIMIT)
+            .maxLimit(Constants.Moderator.CONCURRENCY_MAX_LIMIT)
+            .maxQueue(Constants.Moderator.CONCURRENCY_MAX_QUEUE)
+            .build();
+    static AdaptiveLimiter answerLimiter = AdaptiveLimiter.builder()
+            .name("answers")
+            .initialLimit(Constants.TechSupport.CONCURRENCY_INITIAL_LIMIT)
+            .maxLimit(Constants.TechSupport.CONCURRENCY_MAX_LIMIT)
+            .maxQueue(Constants.TechSupport.CONCURRENCY_MAX_QUEUE)
+            .build();
+    static ModerationOllamaClient moderationClient = new ModerationOllamaClient(
+            new LimitedEndpoint(ollamaBackends, moderationLimiter),
+            intFromEnv("MODERATION_BATCH_SIZE", Constants.Moderator.BATCH_MAX_SIZE),
+            Duration.ofMillis(intFromEnv("MODERATION_BATCH_WINDOW_MS", (int) Constants.Moderator.BATCH_WINDOW.toMillis())));
+    // First tier: banned terms flag at once, obviously safe messages skip the LLM moderation call
+    static ModerationPrefilter prefilter = ModerationPrefilter.fromResources(
+            "/ch06/ollama/banned_terms.txt", "/ch06/ollama/safe_messages.txt");
+    static OllamaClientForQA ollamaClient = null;
+    static ConversationMemory conversations = null;
+    // Every stage, for the stats log; filled in by buildPipeline
+    static List<Stage<?, ?>> stages = List.of();
+    static Stage<Inbound, Inbound> pipeline = buildPipeline();
     static String channelToWatch = "q-and-a";
 
     static String contentsFromFAQ = "";
     static String pathToFAQFile = "/ch06/ollama/FAQ.txt";
+    // Optional file on disk that overrides the bundled FAQ and can be edited while the bot runs
+    static String faqFileOverride = System.getenv("FAQ_FILE");
+
+    // Channels (names or IDs, comma-separated) where generation starts together with moderation
+    // instead of after it. Saves one LLM round trip per reply at the cost of wasted generations
+    static Set<String> speculativeChannels = parseChannelList(System.getenv("SPECULATIVE_CHANNELS"));
+    private static final Counter speculativeGenerations = Metrics.global().counter("speculative_generations_total",
+            "Generations started before the moderation verdict");
+    private static final Counter wastedRunningGenerations = Metrics.global().counter("wasted_generations_total",
+            "Speculative generations dropped after a FLAG or a failed moderation", "finished", "false");
+    private static final Counter wastedCompletedGenerations = Metrics.global().counter("wasted_generations_total",
+            "Speculative generations dropped after a FLAG or a failed moderation", "finished", "true");
+    private static final Counter shedMessages = Metrics.global().counter("shed_messages_total",
+            "Messages answered with the busy notice instead of an answer");
+    private static final Counter unmoderatedMessages = Metrics.global().counter("moderation_unavailable_total",
+            "Messages answered with the busy notice because moderation timed out or Ollama failed");
+    // Answers from the cache count too: this is how long a user waits for one
+    private static final CallTimer GENERATION_CALLS = Metrics.global().outboundCall("generation");
+    private static final CallTimer DISCORD_SEND = Metrics.global().outboundCall("discord_send");
 
-    // Track users who have already received New Year greetings
-    private static final Set<String> greetedUsers = ConcurrentHashMap.newKeySet();
+    // Track users who have already received New Year greetings; loaded from disk by initialize
+    private static LongHashSet greetedUsers = new LongHashSet();
 
     public static void main(String[] args) throws IOException {
+        String discordBotToken = Utils.getRequiredEnv("DISCORD_BOT_TOKEN");
 
         EnumSet<GatewayIntent> intents = EnumSet.of(
                 GatewayIntent.GUILD_MESSAGES,
@@ -40,14 +120,10 @@ public class TechSupportOllamaBot extends ListenerAdapter {
                 GatewayIntent.MESSAGE_CONTENT
         );
 
-        // Read FAQ file
-        contentsFromFAQ = readFileContents(pathToFAQFile);
-
-        // Initialize Ollama client
-        ollamaClient = new OllamaClientForQA(Constants.TechSupport.SYSTEM_MESSAGE, contentsFromFAQ);
+        initialize();
 
         try {
-            JDA jda = JDABuilder.createLight(DISCORD_BOT_TOKEN, intents)
+            JDA jda = JDABuilder.createLight(discordBotToken, intents)
                     .addEventListeners(new TechSupportOllamaBot())
                     .setActivity(Activity.playing("Ready to answer questions"))
                     .build();
@@ -63,6 +139,47 @@ public class TechSupportOllamaBot extends ListenerAdapter {
         }
     }
 
+    /**
+     * Everything the bot needs before it takes messages: FAQ, Ollama client, retrieval,
+     * conversation memory, stats and metrics. The load-test driver calls this without Discord.
+     */
+    public static void initialize() {
+        // Read FAQ file
+        contentsFromFAQ = loadFAQ();
+
+        // Initialize Ollama client
+        ollamaClient = new OllamaClientForQA(Constants.TechSupport.SYSTEM_MESSAGE, contentsFromFAQ,
+                new LimitedEndpoint(ollamaBackends, answerLimiter));
+        if (Constants.TechSupport.RETRIEVAL_ENABLED) {
+            FaqRetriever retriever = new FaqRetriever(
+                    LlmClient.forEndpoint(Constants.EMBEDDINGS_ENDPOINT, Constants.HTTP_CONFIG),
+                    Constants.TechSupport.EMBEDDING_MODEL, Path.of(Constants.TechSupport.FAQ_EMBEDDINGS_FILE),
+                    Constants.TechSupport.RETRIEVAL_TOP_K, Constants.TechSupport.FAQ_CHUNK_MAX_CHARS);
+            // Embedding runs in the background; until it finishes prompts carry the full FAQ
+            retriever.load(contentsFromFAQ);
+            ollamaClient.useRetriever(retriever);
+        }
+        BpeTokenizer tokenizer = loadTokenizer();
+        if (tokenizer != null) ollamaClient.useTokenizer(tokenizer);
+        if (Constants.TechSupport.CONVERSATION_MEMORY_ENABLED) {
+            ConversationMemory.Builder memory = ConversationMemory.builder()
+                    .maxTurns(Constants.TechSupport.CONVERSATION_MAX_TURNS)
+                    .historyTokens(Constants.TechSupport.CONVERSATION_HISTORY_TOKENS)
+                    .summaryTokens(Constants.TechSupport.CONVERSATION_SUMMARY_TOKENS)
+                    .maxBytes(Constants.TechSupport.CONVERSATION_MAX_BYTES)
+                    .idleTimeout(Constants.TechSupport.CONVERSATION_IDLE_TIMEOUT)
+                    .summarizer(ollamaClient::summarize);
+            if (tokenizer != null) memory.tokenCounter(tokenizer::count);
+            conversations = memory.build();
+            ollamaClient.useConversationMemory(conversations);
+        }
+        loadGreetedUsers();
+        scheduleFAQReload();
+        registerGauges();
+        MetricsServer.fromEnv(Constants.METRICS_PORT);
+        startFlightRecorder();
+    }
+
     @Override
     public void onMessageReceived(MessageReceivedEvent event) {
         User sender = event.getAuthor();
@@ -71,42 +188,332 @@ public class TechSupportOllamaBot extends ListenerAdapter {
         if (sender.equals(event.getJDA().getSelfUser())) return;
         if (event.getChannelType() == ChannelType.TEXT && !channel.getName().equalsIgnoreCase(channelToWatch)) return;
 
-        var originalMessage = event.getMessage().getContentDisplay();
-        if (moderate_message(event, originalMessage, channel, sender)) return;
+        // Everything else happens in the pipeline's stages, never on the JDA event thread.
+        // Moderation and generation draw on one budget; whatever moderation uses, generation cannot
+        pipeline.submit(new Inbound(event.getMessage(), channel, sender, event.getMessage().getContentDisplay(),
+                Deadline.after(replyBudget), null, null));
+    }
+
+    // filter -> moderation -> generation -> delivery. Each stage keeps the messages of one
+    // channel in order; moderation and generation still overlap within a channel, delivery
+    // posts one reply per channel at a time
+    private static Stage<Inbound, Inbound> buildPipeline() {
+        Stage<Inbound, Inbound> filter = Stage.builder("filter", TechSupportOllamaBot::classify)
+                .executor(Stage.cpuExecutor("filter", Constants.Pipeline.FILTER_THREADS))
+                .maxConcurrency(Constants.Pipeline.FILTER_THREADS)
+                .maxQueue(Constants.Pipeline.MAX_QUEUE)
+                .key(Inbound::channelId)
+                .onError(TechSupportOllamaBot::fail)
+                .build();
+        Stage<Inbound, Inbound> moderation = Stage.builder("moderation", TechSupportOllamaBot::moderate)
+                .maxConcurrency(Constants.Pipeline.MAX_CONCURRENCY)
+                .maxConcurrencyPerKey(Constants.Pipeline.MAX_CONCURRENCY)
+                .maxQueue(Constants.Pipeline.MAX_QUEUE)
+                .key(Inbound::channelId)
+                .onError(TechSupportOllamaBot::fail)
+                .build();
+        Stage<Inbound, Reply> generation = Stage.builder("generation", TechSupportOllamaBot::generate)
+                .maxConcurrency(Constants.Pipeline.MAX_CONCURRENCY)
+                .maxConcurrencyPerKey(Constants.Pipeline.MAX_CONCURRENCY)
+                .maxQueue(Constants.Pipeline.MAX_QUEUE)
+                .key(Inbound::channelId)
+                .onError(TechSupportOllamaBot::fail)
+                .build();
+        Stage<Reply, Void> delivery = Stage.builder("delivery", TechSupportOllamaBot::deliver)
+                .maxConcurrency(Constants.Pipeline.MAX_CONCURRENCY)
+                .maxQueue(Constants.Pipeline.MAX_QUEUE)
+                .key(reply -> reply.inbound().channelId())
+                .onError((reply, error) -> fail(reply.inbound(), error))
+                .build();
+        filter.then(moderation).then(generation).then(delivery);
+        stages = List.of(filter, moderation, generation, delivery);
+        return filter;
+    }
+
+    // First tier of moderation: banned terms flag at once, obviously safe messages skip the LLM call
+    private static CompletableFuture<Inbound> classify(Inbound inbound) {
+        return CompletableFuture.completedFuture(inbound.withVerdict(prefilter.classify(inbound.text())));
+    }
+
+    // Passes SAFE messages on. In speculative channels generation starts together with moderation
+    // and is scoped to the verdict: a FLAG (or a failed moderation call) cancels the in-flight
+    // Ollama request and the answer is dropped
+    private static CompletableFuture<Inbound> moderate(Inbound inbound) {
+        if (inbound.verdict() != ModerationPrefilter.Verdict.UNKNOWN) {
+            ModerationEvent.instant("prefilter", inbound.verdict().name(), inbound.text().length());
+        }
+        CompletableFuture<Boolean> verdict = switch (inbound.verdict()) {
+            case FLAG -> CompletableFuture.completedFuture(true);
+            case SAFE -> CompletableFuture.completedFuture(false);
+            case UNKNOWN -> moderationClient.isFlaggedAsync(inbound.text(), inbound.deadline());
+        };
+        // A known verdict leaves nothing to overlap with
+        Generation speculative = null;
+        if (isSpeculative(inbound.channel()) && !verdict.isDone()) {
+            speculativeGenerations.increment();
+            speculative = startGeneration(inbound);
+            Generation generation = speculative;
+            verdict.whenComplete((flagged, error) -> {
+                if (error == null && !flagged) return;
+                if (generation.answer().isDone()) wastedCompletedGenerations.increment();
+                else wastedRunningGenerations.increment();
+                generation.answer().cancel(true);
+            });
+        }
+        Generation started = speculative;
+        return verdict.thenApply(flagged -> {
+            if (!flagged) return started == null ? inbound : inbound.withGeneration(started);
+            inbound.message().delete().queue();
+            inbound.channel().sendMessage(inbound.sender().getAsMention() + Constants.Moderator.VIOLATE_MESSAGE).queue();
+            return null;
+        });
+    }
+
+    // Completes when the answer is done. When streaming, the placeholder is posted right away
+    // and filled in as Ollama streams tokens, so the first words show long before the end
+    private static CompletableFuture<Reply> generate(Inbound inbound) {
+        Generation generation = inbound.generation() != null ? inbound.generation() : startGeneration(inbound);
+        StreamingDiscordReply stream = generation.stream();
+        if (stream == null) {
+            return generation.answer().thenApply(answer -> new Reply(inbound, generation, answer, null));
+        }
+        stream.open(buildReply(inbound.sender(), ""), Constants.TechSupport.STREAM_PLACEHOLDER);
+        // The placeholder already shows; delivery finishes it with the answer or the error
+        return generation.answer().handle((answer, error) -> new Reply(inbound, generation, answer, error));
+    }
+
+    private static Generation startGeneration(Inbound inbound) {
+        // Each user has their own conversation in each channel
+        String conversationId = inbound.channelId() + ":" + inbound.sender().getId();
+        if (!Constants.TechSupport.STREAMING) {
+            return new Generation(GENERATION_CALLS.time(
+                    ollamaClient.sendMessageAsync(conversationId, inbound.text(), inbound.deadline())), null);
+        }
+        // Tokens are buffered in the reply until it is opened
+        StreamingDiscordReply reply = new StreamingDiscordReply(inbound.channel(),
+                Constants.TechSupport.STREAM_EDIT_EVERY_TOKENS, Constants.TechSupport.STREAM_EDIT_INTERVAL_MS);
+        return new Generation(GENERATION_CALLS.time(ollamaClient.streamMessageAsync(conversationId, inbound.text(),
+                reply::onToken, inbound.deadline())), reply);
+    }
+
+    private static CompletableFuture<Void> deliver(Reply reply) {
+        StreamingDiscordReply stream = reply.generation().stream();
+        if (stream == null) {
+            String text = buildReply(reply.inbound().sender(), reply.answer());
+            return DISCORD_SEND.time(MessageSendEvent.time("discord", "send", reply.inbound().channelId(),
+                            text.length(), reply.inbound().channel().sendMessage(text).submit()))
+                    .thenApply(sent -> null);
+        }
+        Throwable error = reply.error();
+        if (error != null && AdaptiveLimiter.isRejected(error)) shedMessages.increment();
+        else if (error != null) logger.error("Error streaming answer", error);
+        stream.finish(reply.answer(), error);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    private static void fail(Inbound inbound, Throwable error) {
+        // Shed under load, or moderation gave no verdict in time: the message is neither
+        // deleted nor answered, only acknowledged
+        boolean unmoderated = ModerationOllamaClient.isUnavailable(error);
+        if (unmoderated || AdaptiveLimiter.isRejected(error)) {
+            (unmoderated ? unmoderatedMessages : shedMessages).increment();
+            inbound.channel().sendMessage(String.format("Dear <@%s>, %s", inbound.sender().getId(),
+                    Constants.TechSupport.BUSY_MESSAGE)).queue();
+            return;
+        }
+        logger.error("Error processing message", error);
+        String errorReply = String.format("Dear <@%s>, I apologize, but I encountered an error. %s",
+                inbound.sender().getId(), Constants.NEW_YEAR_REMINDER);
+        inbound.channel().sendMessage(errorReply).queue();
+    }
+
+    private static boolean isSpeculative(MessageChannelUnion channel) {
+        return speculativeChannels.contains(channel.getId())
+                || speculativeChannels.contains(channel.getName().toLowerCase(Locale.ROOT));
+    }
+
+    private static Set<String> parseChannelList(String value) {
+        if (value == null || value.isBlank()) return Set.of();
+        return Arrays.stream(value.split(","))
+                .map(name -> name.trim().toLowerCase(Locale.ROOT))
+                .filter(name -> !name.isEmpty())
+                .collect(Collectors.toUnmodifiableSet());
+    }
+
+    private static int intFromEnv(String name, int defaultValue) {
+        String value = System.getenv(name);
+        if (value == null || value.isBlank()) return defaultValue;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            logger.warn("Ignoring {}={}: not a number", name, value);
+            return defaultValue;
+        }
+    }
 
+    private static double doubleFromEnv(String name, double defaultValue) {
+        String value = System.getenv(name);
+        if (value == null || value.isBlank()) return defaultValue;
         try {
-            String ollamaReply = ollamaClient.sendMessage(originalMessage);
-            String baseReply = String.format("Dear <@%s>, ", sender.getId());
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            logger.warn("Ignoring {}={}: not a number", name, value);
+            return defaultValue;
+        }
+    }
+
+    private record Generation(CompletableFuture<String> answer, StreamingDiscordReply stream) {}
+
+    // A Discord message on its way through the pipeline
+    private record Inbound(Message message, MessageChannelUnion channel, User sender, String text, Deadline deadline,
+                           ModerationPrefilter.Verdict verdict, Generation generation) {
+        String channelId() {
+            return channel.getId();
+        }
+
+        Inbound withVerdict(ModerationPrefilter.Verdict verdict) {
+            return new Inbound(message, channel, sender, text, deadline, verdict, generation);
+        }
+
+        Inbound withGeneration(Generation generation) {
+            return new Inbound(message, channel, sender, text, deadline, verdict, generation);
+        }
+    }
+
+    // A finished (or, when streaming, failed) generation waiting to be delivered
+    private record Reply(Inbound inbound, Generation generation, String answer, Throwable error) {}
+
+    private static String buildReply(User sender, String ollamaReply) {
+        String baseReply = String.format("Dear <@%s>, ", sender.getId());
+
+        String newYearAddition;
+        boolean isFirstMessage = greetedUsers.add(sender.getIdLong());
+
+        if (isFirstMessage) {
+            newYearAddition = " " + Constants.NEW_YEAR_GREETING;
+        } else {
+            newYearAddition = " " + Constants.NEW_YEAR_REMINDER;
+        }
 
-            String newYearAddition;
-            boolean isFirstMessage = !greetedUsers.contains(sender.getId());
+        return baseReply + newYearAddition + "\n\n" + ollamaReply;
+    }
 
-            if (isFirstMessage) {
-                newYearAddition = " " + Constants.NEW_YEAR_GREETING;
-                greetedUsers.add(sender.getId());
-            } else {
-                newYearAddition = " " + Constants.NEW_YEAR_REMINDER;
+    // Re-reads the FAQ periodically (a changed FAQ invalidates the answer cache) and logs cache stats
+    private static void scheduleFAQReload() {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "faq-reloader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Constants.TechSupport.FAQ_RELOAD_INTERVAL.toSeconds();
+        scheduler.scheduleAtFixedRate(() -> {
+            String latest = loadFAQ();
+            if (!latest.equals(contentsFromFAQ)) {
+                contentsFromFAQ = latest;
+                ollamaClient.updateInstructions(latest);
             }
+            AnswerCache cache = ollamaClient.answerCache();
+            logger.info("Answer cache: {} collapsed={}", cache.stats(), cache.collapsedCount());
+            logger.info("Moderation prefilter: {}", prefilter);
+            if (conversations != null) logger.info("Conversations: {}", conversations);
+            logger.info("Greeted users: {}", greetedUsers);
+            logger.info("Moderation verdict cache: {}", moderationClient.verdictCacheStats());
+            logger.info("Moderation batches: {}", moderationClient.batchStats());
+            for (BackendPool.BackendStats backend : ollamaBackends.stats()) logger.info("Ollama backend: {}", backend);
+            logger.info("Hedged requests: {}", ollamaBackends.hedgeStats());
+            logger.info("Concurrency: {} | {} | shed messages={} moderation unavailable={}",
+                    moderationLimiter.stats(), answerLimiter.stats(), shedMessages.value(), unmoderatedMessages.value());
+            for (Stage<?, ?> stage : stages) logger.info("Stage: {}", stage.stats());
+            logger.info("Speculative generations: started={} wasted={} (finished before FLAG: {})",
+                    speculativeGenerations.value(), wastedRunningGenerations.value() + wastedCompletedGenerations.value(),
+                    wastedCompletedGenerations.value());
+        }, period, period, TimeUnit.SECONDS);
+    }
 
-            String finalReply = baseReply + newYearAddition + "\n\n" + ollamaReply;
-            channel.sendMessage(finalReply).queue();
+    // Restores the greeted users of earlier runs and keeps the file current. Snapshots only
+    // copy the table, so they are cheap enough to also take on shutdown
+    private static void loadGreetedUsers() {
+        Path file = Path.of(Objects.requireNonNullElse(System.getenv("GREETED_USERS_FILE"),
+                Constants.TechSupport.GREETED_USERS_FILE));
+        LongHashSet loaded = LongHashSet.load(file, Constants.TechSupport.GREETED_USERS_OFF_HEAP);
+        greetedUsers = loaded != null ? loaded : new LongHashSet(0, Constants.TechSupport.GREETED_USERS_OFF_HEAP);
+        logger.info("Greeted users: {} from {}", greetedUsers, file);
 
-        } catch (Exception e) {
-            logger.error("Error processing message", e);
-            String errorReply = String.format("Dear <@%s>, I apologize, but I encountered an error. %s",
-                    sender.getId(), Constants.NEW_YEAR_REMINDER);
-            channel.sendMessage(errorReply).queue();
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "greeted-users-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Constants.TechSupport.GREETED_USERS_SNAPSHOT_INTERVAL.toSeconds();
+        scheduler.scheduleAtFixedRate(() -> snapshotGreetedUsers(file), period, period, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> snapshotGreetedUsers(file), "greeted-users-shutdown"));
+    }
+
+    private static void snapshotGreetedUsers(Path file) {
+        try {
+            if (greetedUsers.snapshot(file)) logger.debug("Greeted users saved: {}", greetedUsers);
+        } catch (IOException e) {
+            logger.warn("Cannot save greeted users to {}: {}", file, e.getMessage());
         }
     }
 
-    private static boolean moderate_message(MessageReceivedEvent event, String originalMessage, MessageChannelUnion channel, User sender) {
-        boolean flagged = moderationClient.isFlagged(originalMessage);
-        if (flagged) {
-            event.getMessage().delete().queue();
-            channel.sendMessage(sender.getAsMention() + Constants.Moderator.VIOLATE_MESSAGE).queue();
-            return true;
+    // The timers behind the SLOs are the ones the metrics endpoint exports
+    private static void startFlightRecorder() {
+        CallTimer moderation = Metrics.global().outboundCall("moderation");
+        SloRecorder.builder()
+                .slo("generation", Constants.Slo.GENERATION_QUANTILE, Constants.Slo.GENERATION_THRESHOLD,
+                        GENERATION_CALLS.ok(), GENERATION_CALLS.error())
+                .slo("moderation", Constants.Slo.MODERATION_QUANTILE, Constants.Slo.MODERATION_THRESHOLD,
+                        moderation.ok(), moderation.error())
+                .slo("discord_send", Constants.Slo.DISCORD_SEND_QUANTILE, Constants.Slo.DISCORD_SEND_THRESHOLD,
+                        DISCORD_SEND.ok(), DISCORD_SEND.error())
+                .startFromEnv();
+    }
+
+    // Values the periodic stats log shows, for the metrics endpoint as well
+    private static void registerGauges() {
+        Metrics metrics = Metrics.global();
+        metrics.gauge("answer_cache_hit_ratio", "Share of questions answered from the answer cache",
+                () -> ollamaClient.answerCache().stats().hitRate());
+        metrics.gauge("greeted_users", "Users greeted so far, across restarts", () -> greetedUsers.size());
+        metrics.gauge("moderation_verdict_cache_hit_ratio", "Share of moderated messages with a cached verdict",
+                () -> moderationClient.verdictCacheStats().hitRate());
+        for (BackendPool.BackendStats backend : ollamaBackends.stats()) {
+            String endpoint = backend.endpoint();
+            metrics.gauge("backend_outstanding", "Requests outstanding per Ollama server",
+                    () -> ollamaBackends.stats().stream().filter(b -> b.endpoint().equals(endpoint))
+                            .mapToInt(BackendPool.BackendStats::outstanding).sum(),
+                    "backend", endpoint);
+        }
+    }
+
+    // The model's tokenizer, or null if the file is missing or unreadable
+    private static BpeTokenizer loadTokenizer() {
+        Path file = Path.of(Objects.requireNonNullElse(System.getenv("TOKENIZER_FILE"), Constants.TOKENIZER_FILE));
+        if (!Files.exists(file)) {
+            logger.info("No tokenizer at {}: prompts are not fitted to the context window", file);
+            return null;
+        }
+        try {
+            BpeTokenizer tokenizer = BpeTokenizer.load(file);
+            logger.info("Tokenizer: {}", tokenizer);
+            return tokenizer;
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Cannot load tokenizer {}: {}", file, e.getMessage());
+            return null;
+        }
+    }
+
+    private static String loadFAQ() {
+        if (faqFileOverride == null || faqFileOverride.isBlank()) {
+            return readFileContents(pathToFAQFile);
+        }
+        try {
+            return Files.readString(Path.of(faqFileOverride), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            logger.error("Error reading FAQ file: {}", faqFileOverride, e);
+            return contentsFromFAQ.isEmpty() ? readFileContents(pathToFAQFile) : contentsFromFAQ;
         }
-        return false;
     }
 
     private static String readFileContents(String resourcePath) {
@@ -0,0 +1,165 @@
+package common.cache;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Small thread-safe LRU cache with per-entry TTL.
+ * Bounded both by the number of entries and by a total weight (for example an estimate
+ * of bytes), so a flood of unique keys cannot grow the heap without limit.
+ * Least recently used entries are evicted first; expired entries are dropped on access
+ * and whenever the cache has to make room.
+ */
+public class BoundedCache<K, V> {
+
+    /**
+     * Estimates the cost of one entry, usually in bytes.
+     */
+    @FunctionalInterface
+    public interface Weigher<K, V> {
+        long weigh(K key, V value);
+    }
+
+    private final int maxEntries;
+    private final long maxWeight;
+    private final Duration defaultTtl;
+    private final Weigher<K, V> weigher;
+
+    // accessOrder = true turns LinkedHashMap into an LRU list
+    private final LinkedHashMap<K, Entry<V>> map = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalWeight = 0;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+
+    private BoundedCache(Builder<K, V> builder) {
+        this.maxEntries = builder.maxEntries;
+        this.maxWeight = builder.maxWeight;
+        this.defaultTtl = builder.defaultTtl;
+        this.weigher = builder.weigher;
+    }
+
+    public static <K, V> Builder<K, V> builder() {
+        return new Builder<>();
+    }
+
+    /**
+     * Returns the cached value, or null on a miss or when the entry has expired.
+     */
+    public V get(K key) {
+        long now = System.nanoTime();
+        synchronized (map) {
+            Entry<V> entry = map.get(key);
+            if (entry != null && entry.expiresAtNanos - now > 0) {
+                hits.increment();
+                return entry.value;
+            }
+            if (entry != null) {
+                removeEntry(key, entry);
+                expirations.increment();
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    public void put(K key, V value) {
+        put(key, value, defaultTtl);
+    }
+
+    public void put(K key, V value, Duration ttl) {
+        long weight = weigher.weigh(key, value);
+        // An entry heavier than the whole cache would only evict everything else
+        if (weight > maxWeight) return;
+
+        Entry<V> entry = new Entry<>(value, System.nanoTime() + ttl.toNanos(), weight);
+        synchronized (map) {
+            Entry<V> previous = map.put(key, entry);
+            if (previous != null) totalWeight -= previous.weight;
+            totalWeight += weight;
+            evictIfNeeded();
+        }
+    }
+
+    public void invalidate(K key) {
+        synchronized (map) {
+            Entry<V> entry = map.get(key);
+            if (entry != null) removeEntry(key, entry);
+        }
+    }
+
+    public void clear() {
+        synchronized (map) {
+            map.clear();
+            totalWeight = 0;
+        }
+    }
+
+    public CacheStats stats() {
+        synchronized (map) {
+            return new CacheStats(hits.sum(), misses.sum(), evictions.sum(), expirations.sum(),
+                    map.size(), totalWeight);
+        }
+    }
+
+    private void evictIfNeeded() {
+        if (map.size() <= maxEntries && totalWeight <= maxWeight) return;
+
+        // Least recently used entries go first; those already past their TTL count as expirations
+        long now = System.nanoTime();
+        Iterator<Entry<V>> it = map.values().iterator();
+        while ((map.size() > maxEntries || totalWeight > maxWeight) && it.hasNext()) {
+            Entry<V> entry = it.next();
+            it.remove();
+            totalWeight -= entry.weight;
+            if (entry.expiresAtNanos - now <= 0) expirations.increment();
+            else evictions.increment();
+        }
+    }
+
+    private void removeEntry(K key, Entry<V> entry) {
+        map.remove(key);
+        totalWeight -= entry.weight;
+    }
+
+    private record Entry<V>(V value, long expiresAtNanos, long weight) {}
+
+    public static class Builder<K, V> {
+        private int maxEntries = 1000;
+        private long maxWeight = Long.MAX_VALUE;
+        private Duration defaultTtl = Duration.ofMinutes(10);
+        private Weigher<K, V> weigher = (key, value) -> 1;
+
+        private Builder() {
+
+        }
+
+        public Builder<K, V> maxEntries(int maxEntries) {
+            this.maxEntries = maxEntries;
+            return this;
+        }
+
+        public Builder<K, V> maxWeight(long maxWeight) {
+            this.maxWeight = maxWeight;
+            return this;
+        }
+
+        public Builder<K, V> defaultTtl(Duration defaultTtl) {
+            this.defaultTtl = defaultTtl;
+            return this;
+        }
+
+        public Builder<K, V> weigher(Weigher<K, V> weigher) {
+            this.weigher = weigher;
+            return this;
+        }
+
+        public BoundedCache<K, V> build() {
+            return new BoundedCache<>(this);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package common.cache;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Collapses concurrent calls for the same key into one upstream call.
+ * The first caller runs the loader; everyone who asks for the key while that call
+ * is in flight shares its result. The key is released as soon as the call completes,
+ * successfully or not, so failures are never handed to later callers.
+ * Every caller gets its own future: cancelling one does not affect the others, and the
+ * upstream call is cancelled only when every caller waiting on it has cancelled.
+ */
+public class SingleFlight<K, V> {
+    private final Map<K, Flight<V>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong collapsed = new AtomicLong();
+
+    public CompletableFuture<V> execute(K key, Supplier<CompletableFuture<V>> loader) {
+        while (true) {
+            Flight<V> flight = inFlight.get(key);
+            if (flight != null) {
+                CompletableFuture<V> view = flight.join();
+                if (view != null) {
+                    collapsed.incrementAndGet();
+                    return view;
+                }
+                // That flight was abandoned by all of its callers; start a fresh one
+                inFlight.remove(key, flight);
+                continue;
+            }
+
+            Flight<V> mine = new Flight<>();
+            if (inFlight.putIfAbsent(key, mine) != null) continue;
+
+            CompletableFuture<V> view = mine.join();
+            try {
+                mine.start(loader.get(), () -> inFlight.remove(key, mine));
+            } catch (RuntimeException e) {
+                inFlight.remove(key, mine);
+                mine.result.completeExceptionally(e);
+            }
+            return view;
+        }
+    }
+
+    /**
+     * Number of calls that were answered by another caller's in-flight request.
+     */
+    public long collapsedCount() {
+        return collapsed.get();
+    }
+
+    public int inFlightCount() {
+        return inFlight.size();
+    }
+
+    private static final class Flight<V> {
+        final CompletableFuture<V> result = new CompletableFuture<>();
+        private CompletableFuture<V> upstream;
+        private int waiters = 0;
+        private boolean abandoned = false;
+
+        // Returns a per-caller view of the result, or null if the flight was already abandoned
+        synchronized CompletableFuture<V> join() {
+            if (abandoned) return null;
+            waiters++;
+            CompletableFuture<V> view = result.copy();
+            view.whenComplete((value, error) -> {
+                if (view.isCancelled()) leave();
+            });
+            return view;
+        }
+
+        void start(CompletableFuture<V> call, Runnable onDone) {
+            synchronized (this) {
+                upstream = call;
+                if (abandoned) call.cancel(true);
+            }
+            call.whenComplete((value, error) -> {
+                onDone.run();
+                if (error != null) result.completeExceptionally(error);
+                else result.complete(value);
+            });
+        }
+
+        private void leave() {
+            CompletableFuture<V> toCancel = null;
+            synchronized (this) {
+                if (--waiters == 0 && !result.isDone()) {
+                    abandoned = true;
+                    toCancel = upstream;
+                }
+            }
+            if (toCancel != null) toCancel.cancel(true);
+        }
+    }
+}
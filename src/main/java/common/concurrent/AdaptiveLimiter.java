@@ -0,0 +1,271 @@
+package common.concurrent;
+
+import common.metrics.Counter;
+import common.metrics.Metrics;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Concurrency limit for a backend whose sustainable load is not known in advance, found from
+ * observed latency in the style of the "gradient" limit from Netflix concurrency-limits:
+ * - A long-term latency average is the baseline, a short-term average is the current latency
+ * - While the current latency stays within {@code tolerance} of the baseline the limit grows
+ *   by about sqrt(limit) per sample; when it rises above that, the limit shrinks in proportion
+ * - Failures shrink the limit by 10%
+ * Tasks over the limit wait in a bounded FIFO queue; once the queue is full they are rejected
+ * at once with {@link RejectedExecutionException}, so the caller can shed them in a defined way.
+ * The limit, in-flight and queued counts are exported as gauges labelled with the limiter's name.
+ */
+public class AdaptiveLimiter {
+
+    public record Stats(String name, int limit, int inFlight, int queued, long started, long rejected,
+                        double shortRttMillis, double longRttMillis) {
+        @Override
+        public String toString() {
+            return String.format("%s limit=%d inFlight=%d queued=%d started=%d rejected=%d rtt=%.0fms baseline=%.0fms",
+                    name, limit, inFlight, queued, started, rejected, shortRttMillis, longRttMillis);
+        }
+    }
+
+    private static final double SHORT_ALPHA = 2.0 / (10 + 1);
+    private static final double LONG_ALPHA = 2.0 / (500 + 1);
+    private static final double FAILURE_BACKOFF = 0.9;
+
+    private final String name;
+    private final int minLimit;
+    private final int maxLimit;
+    private final int maxQueue;
+    private final double tolerance;
+    private final double smoothing;
+
+    private final Object lock = new Object();
+    private final ArrayDeque<Queued<?>> queue = new ArrayDeque<>();
+    private double estimatedLimit;
+    private int inFlight;
+    private double shortRttNanos;
+    private double longRttNanos;
+
+    private final LongAdder started = new LongAdder();
+    private final Counter rejected;
+
+    private AdaptiveLimiter(Builder builder) {
+        this.name = builder.name;
+        this.minLimit = builder.minLimit;
+        this.maxLimit = builder.maxLimit;
+        this.maxQueue = builder.maxQueue;
+        this.tolerance = builder.tolerance;
+        this.smoothing = builder.smoothing;
+        this.estimatedLimit = Math.max(minLimit, Math.min(maxLimit, builder.initialLimit));
+
+        Metrics metrics = Metrics.global();
+        this.rejected = metrics.counter("concurrency_rejected_total", "Tasks rejected because the queue was full",
+                "limiter", name);
+        metrics.gauge("concurrency_limit", "Current adaptive concurrency limit", () -> stats().limit(), "limiter", name);
+        metrics.gauge("concurrency_in_flight", "Tasks running under the limit", () -> stats().inFlight(), "limiter", name);
+        metrics.gauge("concurrency_queued", "Tasks waiting for a slot", () -> stats().queued(), "limiter", name);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Starts {@code task} now if the limit allows, queues it otherwise, and fails with
+     * {@link RejectedExecutionException} when the queue is full. Cancelling the returned
+     * future removes a queued task, or cancels the running one.
+     */
+    public <T> CompletableFuture<T> submit(Supplier<CompletableFuture<T>> task) {
+        Queued<T> entry = new Queued<>(task, new CompletableFuture<>());
+        synchronized (lock) {
+            if (inFlight < limit() && queue.isEmpty()) {
+                inFlight++;
+            } else if (queue.size() < maxQueue) {
+                queue.addLast(entry);
+                entry.result().whenComplete((value, error) -> {
+                    if (entry.result().isCancelled()) {
+                        synchronized (lock) {
+                            queue.remove(entry);
+                        }
+                    }
+                });
+                return entry.result();
+            } else {
+                rejected.increment();
+                return CompletableFuture.failedFuture(new RejectedExecutionException(
+                        name + " is overloaded: " + inFlight + " in flight, " + queue.size() + " queued"));
+            }
+        }
+        start(entry);
+        return entry.result();
+    }
+
+    public int limit() {
+        synchronized (lock) {
+            return (int) estimatedLimit;
+        }
+    }
+
+    public Stats stats() {
+        synchronized (lock) {
+            return new Stats(name, (int) estimatedLimit, inFlight, queue.size(), started.sum(), rejected.value(),
+                    shortRttNanos / 1e6, longRttNanos / 1e6);
+        }
+    }
+
+    /**
+     * True if {@code error}, possibly wrapped, is a rejection by a full limiter.
+     */
+    public static boolean isRejected(Throwable error) {
+        while ((error instanceof CompletionException || error instanceof ExecutionException) && error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error instanceof RejectedExecutionException;
+    }
+
+    // The caller has already taken a slot in inFlight for this entry
+    private <T> void start(Queued<T> entry) {
+        started.increment();
+        long startNanos = System.nanoTime();
+        CompletableFuture<T> future;
+        try {
+            future = entry.task().get();
+        } catch (RuntimeException e) {
+            future = CompletableFuture.failedFuture(e);
+        }
+        Futures.propagateCancel(entry.result(), future);
+        future.whenComplete((value, error) -> {
+            release(System.nanoTime() - startNanos, error);
+            if (error != null) entry.result().completeExceptionally(error);
+            else entry.result().complete(value);
+        });
+    }
+
+    private void release(long rttNanos, Throwable error) {
+        Queued<?> next;
+        synchronized (lock) {
+            int inFlightBefore = inFlight;
+            inFlight--;
+            if (error == null) {
+                onSample(rttNanos, inFlightBefore);
+            } else if (!(unwrap(error) instanceof CancellationException)) {
+                estimatedLimit = Math.max(minLimit, estimatedLimit * FAILURE_BACKOFF);
+            }
+            next = pollStartable();
+        }
+        // Starts as many queued tasks as the (possibly raised) limit allows
+        while (next != null) {
+            start(next);
+            synchronized (lock) {
+                next = pollStartable();
+            }
+        }
+    }
+
+    // Called under the lock; takes a slot for the returned entry
+    private Queued<?> pollStartable() {
+        while (inFlight < (int) estimatedLimit && !queue.isEmpty()) {
+            Queued<?> entry = queue.pollFirst();
+            if (entry.result().isDone()) continue;
+            inFlight++;
+            return entry;
+        }
+        return null;
+    }
+
+    // Called under the lock
+    private void onSample(long rttNanos, int inFlightAtRelease) {
+        if (longRttNanos == 0) {
+            shortRttNanos = rttNanos;
+            longRttNanos = rttNanos;
+            return;
+        }
+        shortRttNanos += SHORT_ALPHA * (rttNanos - shortRttNanos);
+        // The baseline follows uncongested latency; while congested it only creeps up slowly,
+        // so queueing delay is not mistaken for the new normal but a real change (longer
+        // answers, a slower model) is adopted eventually
+        boolean congested = shortRttNanos > tolerance * longRttNanos;
+        longRttNanos += (congested ? LONG_ALPHA / 10 : LONG_ALPHA) * (shortRttNanos - longRttNanos);
+        // After a long slow period the baseline would otherwise stay high and hide the recovery
+        if (longRttNanos / shortRttNanos > 2) longRttNanos *= 0.95;
+
+        // With few requests in flight the latency says nothing about the limit
+        if (inFlightAtRelease < estimatedLimit / 2) return;
+
+        double gradient = Math.max(0.5, Math.min(1.0, tolerance * longRttNanos / shortRttNanos));
+        double target = estimatedLimit * gradient + Math.sqrt(estimatedLimit);
+        double smoothed = estimatedLimit * (1 - smoothing) + target * smoothing;
+        estimatedLimit = Math.max(minLimit, Math.min(maxLimit, smoothed));
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        while (error instanceof CompletionException && error.getCause() != null) error = error.getCause();
+        return error;
+    }
+
+    private record Queued<T>(Supplier<CompletableFuture<T>> task, CompletableFuture<T> result) {}
+
+    public static class Builder {
+        private String name = "limiter";
+        private int initialLimit = 4;
+        private int minLimit = 1;
+        private int maxLimit = 64;
+        private int maxQueue = 32;
+        private double tolerance = 1.5;
+        private double smoothing = 0.2;
+
+        private Builder() {
+
+        }
+
+        // Used in logs and rejection messages
+        public Builder name(String name) {
+            this.name = name;
+            return this;
+        }
+
+        public Builder initialLimit(int initialLimit) {
+            this.initialLimit = initialLimit;
+            return this;
+        }
+
+        public Builder minLimit(int minLimit) {
+            this.minLimit = minLimit;
+            return this;
+        }
+
+        public Builder maxLimit(int maxLimit) {
+            this.maxLimit = maxLimit;
+            return this;
+        }
+
+        // Tasks waiting for a slot; beyond this they are rejected
+        public Builder maxQueue(int maxQueue) {
+            this.maxQueue = maxQueue;
+            return this;
+        }
+
+        // How much slower than the baseline requests may get before the limit shrinks, e.g. 1.5
+        public Builder tolerance(double tolerance) {
+            this.tolerance = tolerance;
+            return this;
+        }
+
+        // Weight of each new estimate, between 0 and 1
+        public Builder smoothing(double smoothing) {
+            this.smoothing = smoothing;
+            return this;
+        }
+
+        public AdaptiveLimiter build() {
+            if (minLimit < 1 || maxLimit < minLimit) throw new IllegalStateException("need 1 <= minLimit <= maxLimit");
+            return new AdaptiveLimiter(this);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package common.concurrent;
+
+import java.time.Duration;
+import java.time.temporal.ChronoUnit;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * End-to-end time budget for handling one incoming message. It is created when the message
+ * arrives and handed to every downstream call, so each call gets only what is left of the
+ * budget instead of its own full timeout.
+ */
+public final class Deadline {
+    private static final Deadline NONE = new Deadline(0, Duration.ZERO);
+
+    // Daemon timer; it only completes futures, never runs caller code itself
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "deadline");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final long deadlineNanos;
+    private final Duration budget;
+
+    private Deadline(long deadlineNanos, Duration budget) {
+        this.deadlineNanos = deadlineNanos;
+        this.budget = budget;
+    }
+
+    public static Deadline after(Duration budget) {
+        return new Deadline(System.nanoTime() + budget.toNanos(), budget);
+    }
+
+    /**
+     * A deadline that never expires.
+     */
+    public static Deadline none() {
+        return NONE;
+    }
+
+    public Duration remaining() {
+        if (this == NONE) return ChronoUnit.FOREVER.getDuration();
+        return Duration.ofNanos(Math.max(0, deadlineNanos - System.nanoTime()));
+    }
+
+    public boolean isExpired() {
+        return this != NONE && deadlineNanos - System.nanoTime() <= 0;
+    }
+
+    /**
+     * Returns a future that completes like {@code source}, or with a {@link TimeoutException}
+     * when the deadline passes first. In that case {@code source} is cancelled, which also
+     * cancels its HTTP call. Cancelling the returned future cancels {@code source}.
+     */
+    public <T> CompletableFuture<T> bound(CompletableFuture<T> source) {
+        if (this == NONE || source.isDone()) return source;
+        long remaining = deadlineNanos - System.nanoTime();
+        if (remaining <= 0) {
+            source.cancel(true);
+            return CompletableFuture.failedFuture(exceeded());
+        }
+
+        CompletableFuture<T> bounded = new CompletableFuture<>();
+        ScheduledFuture<?> timer = TIMER.schedule(() -> {
+            if (bounded.completeExceptionally(exceeded())) source.cancel(true);
+        }, remaining, TimeUnit.NANOSECONDS);
+        source.whenComplete((value, error) -> {
+            timer.cancel(false);
+            if (error != null) bounded.completeExceptionally(error);
+            else bounded.complete(value);
+        });
+        Futures.propagateCancel(bounded, source);
+        return bounded;
+    }
+
+    private TimeoutException exceeded() {
+        return new TimeoutException("Deadline of " + budget.toMillis() + " ms exceeded");
+    }
+
+    @Override
+    public String toString() {
+        return this == NONE ? "Deadline[none]" : "Deadline[" + remaining().toMillis() + " ms left]";
+    }
+}
@@ -0,0 +1,56 @@
+package common.concurrent;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/**
+ * Helpers for {@link CompletableFuture} chains that must stay cancellable.
+ * A plain {@code thenApply} stage does not pass {@code cancel()} back to its source,
+ * so cancelling it would leave the underlying HTTP call running.
+ */
+public final class Futures {
+
+    private Futures() {
+    }
+
+    /**
+     * Like {@code source.thenApply(fn)}, but cancelling the result also cancels {@code source}.
+     */
+    public static <T, R> CompletableFuture<R> thenApplyCancellable(CompletableFuture<T> source,
+                                                                   Function<? super T, ? extends R> fn) {
+        CompletableFuture<R> dependent = source.thenApply(fn);
+        propagateCancel(dependent, source);
+        return dependent;
+    }
+
+    /**
+     * Like {@code source.thenCompose(fn)}, but cancelling the result cancels whichever
+     * stage is still running: {@code source}, or the future returned by {@code fn}.
+     */
+    public static <T, R> CompletableFuture<R> thenComposeCancellable(CompletableFuture<T> source,
+                                                                     Function<? super T, CompletableFuture<R>> fn) {
+        AtomicReference<CompletableFuture<R>> inner = new AtomicReference<>();
+        CompletableFuture<R> dependent = source.thenCompose(value -> {
+            CompletableFuture<R> next = fn.apply(value);
+            inner.set(next);
+            return next;
+        });
+        dependent.whenComplete((result, error) -> {
+            if (!dependent.isCancelled()) return;
+            source.cancel(true);
+            CompletableFuture<R> next = inner.get();
+            if (next != null) next.cancel(true);
+        });
+        return dependent;
+    }
+
+    /**
+     * Cancels {@code source} when {@code dependent} is cancelled.
+     */
+    public static void propagateCancel(CompletableFuture<?> dependent, CompletableFuture<?> source) {
+        dependent.whenComplete((result, error) -> {
+            if (dependent.isCancelled()) source.cancel(true);
+        });
+    }
+}
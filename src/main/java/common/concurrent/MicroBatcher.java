@@ -0,0 +1,144 @@
+package common.concurrent;
+
+import common.metrics.Meter;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects single requests into batches for a backend that is cheaper per item in bulk.
+ * A batch is sent when it reaches {@code maxBatchSize} items or {@code window} after its
+ * first item arrived, whichever comes first. Every caller gets its own future, completed
+ * from the matching element of the batch result.
+ * Callers that cancel before their batch is sent are left out of it.
+ */
+public class MicroBatcher<I, O> {
+
+    /**
+     * Handles one batch; the result must have one element per input, in the same order.
+     */
+    @FunctionalInterface
+    public interface BatchHandler<I, O> {
+        CompletableFuture<List<O>> handle(List<I> items);
+    }
+
+    public record Stats(long batches, long items, double averageBatchSize, double itemsPerSecond) {
+        @Override
+        public String toString() {
+            return String.format("batches=%d items=%d avgBatch=%.1f rate=%.2f/s",
+                    batches, items, averageBatchSize, itemsPerSecond);
+        }
+    }
+
+    // One daemon timer for all batchers; it only flushes, handlers run asynchronously
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "micro-batcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final int maxBatchSize;
+    private final long windowNanos;
+    private final BatchHandler<I, O> handler;
+
+    private final Object lock = new Object();
+    private List<Pending<I, O>> pending = new ArrayList<>();
+    private ScheduledFuture<?> scheduledFlush;
+
+    private final LongAdder batches = new LongAdder();
+    private final Meter items = new Meter();
+
+    public MicroBatcher(int maxBatchSize, Duration window, BatchHandler<I, O> handler) {
+        if (maxBatchSize < 1) throw new IllegalArgumentException("maxBatchSize must be at least 1");
+        this.maxBatchSize = maxBatchSize;
+        this.windowNanos = window.toNanos();
+        this.handler = handler;
+    }
+
+    public CompletableFuture<O> submit(I item) {
+        Pending<I, O> request = new Pending<>(item, new CompletableFuture<>());
+        List<Pending<I, O>> full = null;
+        synchronized (lock) {
+            pending.add(request);
+            if (pending.size() >= maxBatchSize) {
+                full = drain();
+            } else if (pending.size() == 1) {
+                scheduledFlush = TIMER.schedule(this::flush, windowNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+        if (full != null) dispatch(full);
+        return request.future();
+    }
+
+    /**
+     * Sends whatever is waiting without waiting for the window to close.
+     */
+    public void flush() {
+        List<Pending<I, O>> batch;
+        synchronized (lock) {
+            batch = drain();
+        }
+        dispatch(batch);
+    }
+
+    public int maxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public Duration window() {
+        return Duration.ofNanos(windowNanos);
+    }
+
+    public Stats stats() {
+        long batchCount = batches.sum();
+        long itemCount = items.count();
+        return new Stats(batchCount, itemCount, batchCount == 0 ? 0 : (double) itemCount / batchCount,
+                items.oneMinuteRate());
+    }
+
+    private List<Pending<I, O>> drain() {
+        List<Pending<I, O>> batch = pending;
+        pending = new ArrayList<>();
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+        return batch;
+    }
+
+    private void dispatch(List<Pending<I, O>> batch) {
+        batch.removeIf(request -> request.future().isDone());
+        if (batch.isEmpty()) return;
+
+        List<I> inputs = new ArrayList<>(batch.size());
+        for (Pending<I, O> request : batch) inputs.add(request.item());
+        batches.increment();
+        items.mark(inputs.size());
+
+        CompletableFuture<List<O>> result;
+        try {
+            result = handler.handle(inputs);
+        } catch (RuntimeException e) {
+            result = CompletableFuture.failedFuture(e);
+        }
+        result.whenComplete((outputs, error) -> {
+            if (error == null && outputs.size() != batch.size()) {
+                error = new IllegalStateException("Batch handler returned " + outputs.size()
+                        + " results for " + batch.size() + " items");
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                if (error != null) batch.get(i).future().completeExceptionally(error);
+                else batch.get(i).future().complete(outputs.get(i));
+            }
+        });
+    }
+
+    private record Pending<I, O>(I item, CompletableFuture<O> future) {}
+}
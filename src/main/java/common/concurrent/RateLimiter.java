@@ -0,0 +1,229 @@
+package common.concurrent;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Token bucket for a request quota such as "1000 requests per hour".
+ * - {@link #acquire()} never blocks: it returns a future that completes when a permit is free.
+ *   Waiters are served in FIFO order by a timer thread
+ * - The bucket holds at most {@code burst} permits, so after an idle period at most
+ *   {@code burst} requests go out at once and the rest are paced at the quota's rate
+ * - {@link #pauseFor(Duration)} and {@link #observeRemaining(long, Duration)} let the server's
+ *   Retry-After and rate-limit headers override the local estimate
+ * A limiter without a quota never makes callers wait, except while paused.
+ */
+public final class RateLimiter {
+
+    public record Quota(int permits, Duration per, int burst) {
+        public static Quota perSecond(int permits) {
+            return new Quota(permits, Duration.ofSeconds(1), Math.max(1, permits));
+        }
+
+        public static Quota perMinute(int permits) {
+            return new Quota(permits, Duration.ofMinutes(1), Math.max(1, permits / 60));
+        }
+
+        public static Quota perHour(int permits) {
+            return new Quota(permits, Duration.ofHours(1), Math.max(1, permits / 100));
+        }
+
+        public Quota withBurst(int burst) {
+            return new Quota(permits, per, burst);
+        }
+
+        @Override
+        public String toString() {
+            return permits + "/" + per + " burst " + burst;
+        }
+    }
+
+    public record Stats(String name, double available, int waiting, long granted, long delayed, long pauses) {
+        @Override
+        public String toString() {
+            return String.format("%s available=%.1f waiting=%d granted=%d delayed=%d pauses=%d",
+                    name, available, waiting, granted, delayed, pauses);
+        }
+    }
+
+    private static final CompletableFuture<Void> GRANTED = CompletableFuture.completedFuture(null);
+
+    // Daemon timer that hands out permits to waiters; completing a waiter runs its continuation here
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "rate-limiter");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String name;
+    private final Quota quota;
+    // Permits per nanosecond, 0 without a quota
+    private final double rate;
+    private final double burst;
+
+    private final Object lock = new Object();
+    private final ArrayDeque<CompletableFuture<Void>> waiters = new ArrayDeque<>();
+    private double tokens;
+    private long refilledAt = System.nanoTime();
+    private long pausedUntil = refilledAt;
+    private ScheduledFuture<?> wakeup;
+    private long wakeupAt;
+
+    private final LongAdder granted = new LongAdder();
+    private final LongAdder delayed = new LongAdder();
+    private final LongAdder pauses = new LongAdder();
+
+    public RateLimiter(String name, Quota quota) {
+        this.name = name;
+        this.quota = quota;
+        this.rate = quota == null ? 0 : quota.permits() / (double) quota.per().toNanos();
+        this.burst = quota == null ? Double.MAX_VALUE : Math.max(1, quota.burst());
+        this.tokens = quota == null ? Double.MAX_VALUE : burst;
+    }
+
+    /**
+     * A limiter that only honors pauses.
+     */
+    public static RateLimiter unlimited(String name) {
+        return new RateLimiter(name, null);
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public Quota quota() {
+        return quota;
+    }
+
+    /**
+     * Completes when the caller may send one request. Cancelling the future gives up the
+     * place in the queue.
+     */
+    public CompletableFuture<Void> acquire() {
+        synchronized (lock) {
+            long now = System.nanoTime();
+            refill(now);
+            if (waiters.isEmpty() && now - pausedUntil >= 0 && tokens >= 1) {
+                tokens -= 1;
+                granted.increment();
+                return GRANTED;
+            }
+            CompletableFuture<Void> waiter = new CompletableFuture<>();
+            waiters.addLast(waiter);
+            delayed.increment();
+            scheduleWakeup(now);
+            return waiter;
+        }
+    }
+
+    /**
+     * Takes a permit if one is free right now.
+     */
+    public boolean tryAcquire() {
+        synchronized (lock) {
+            long now = System.nanoTime();
+            refill(now);
+            if (!waiters.isEmpty() || now - pausedUntil < 0 || tokens < 1) return false;
+            tokens -= 1;
+            granted.increment();
+            return true;
+        }
+    }
+
+    /**
+     * Hands out no permits for {@code duration}, e.g. after a 429 with Retry-After. The bucket
+     * is emptied, so requests resume at the quota's rate rather than all at once.
+     */
+    public void pauseFor(Duration duration) {
+        synchronized (lock) {
+            long now = System.nanoTime();
+            long until = now + duration.toNanos();
+            if (until - pausedUntil <= 0) return;
+            refill(now);
+            pausedUntil = until;
+            if (rate > 0) tokens = Math.min(tokens, 0);
+            pauses.increment();
+            if (!waiters.isEmpty()) scheduleWakeup(now);
+        }
+    }
+
+    /**
+     * Applies the server's count of requests left in the current window: the bucket never
+     * holds more than that, and when none are left it waits for {@code resetAfter}.
+     */
+    public void observeRemaining(long remaining, Duration resetAfter) {
+        if (remaining <= 0 && resetAfter != null) {
+            pauseFor(resetAfter);
+            return;
+        }
+        synchronized (lock) {
+            refill(System.nanoTime());
+            tokens = Math.min(tokens, remaining);
+        }
+    }
+
+    public Stats stats() {
+        synchronized (lock) {
+            refill(System.nanoTime());
+            return new Stats(name, quota == null ? Double.POSITIVE_INFINITY : tokens, waiters.size(),
+                    granted.sum(), delayed.sum(), pauses.sum());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return stats().toString();
+    }
+
+    // Called under the lock; nothing accumulates during a pause
+    private void refill(long now) {
+        if (quota == null) {
+            tokens = Double.MAX_VALUE;
+        } else {
+            long from = pausedUntil - refilledAt > 0 ? pausedUntil : refilledAt;
+            if (now - from > 0) tokens = Math.min(burst, tokens + (now - from) * rate);
+        }
+        refilledAt = now;
+    }
+
+    // Called under the lock: wakes up when the next waiter can be served
+    private void scheduleWakeup(long now) {
+        long at = pausedUntil - now > 0 ? pausedUntil : now;
+        if (tokens < 1 && rate > 0) at += (long) Math.ceil((1 - tokens) / rate);
+        if (wakeup != null && !wakeup.isDone()) {
+            if (wakeupAt - at <= 0) return;
+            wakeup.cancel(false);
+        }
+        wakeupAt = at;
+        wakeup = TIMER.schedule(this::release, Math.max(0, at - now), TimeUnit.NANOSECONDS);
+    }
+
+    private void release() {
+        List<CompletableFuture<Void>> ready = new ArrayList<>();
+        synchronized (lock) {
+            long now = System.nanoTime();
+            refill(now);
+            while (!waiters.isEmpty() && now - pausedUntil >= 0 && tokens >= 1) {
+                CompletableFuture<Void> waiter = waiters.pollFirst();
+                // A cancelled waiter does not use up a permit
+                if (waiter.isDone()) continue;
+                tokens -= 1;
+                granted.increment();
+                ready.add(waiter);
+            }
+            waiters.removeIf(CompletableFuture::isDone);
+            wakeup = null;
+            if (!waiters.isEmpty()) scheduleWakeup(now);
+        }
+        for (CompletableFuture<Void> waiter : ready) waiter.complete(null);
+    }
+}
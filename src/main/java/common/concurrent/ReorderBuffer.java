@@ -0,0 +1,71 @@
+package common.concurrent;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Puts results that finish out of order back in order: result {@code i} goes to the sink once
+ * results 0 to {@code i - 1} have, so a file written from the sink reads as if the work ran one
+ * item at a time. Null results (failed items) keep their place and reach the sink as null.
+ * - Producers call {@link #awaitSlot(int)} before starting item {@code i}, which blocks while it
+ *   is {@code window} or more items ahead of the oldest missing one. That bounds what waits in
+ *   the buffer when one slow item holds up everything behind it
+ * - The sink runs on the thread that completed the missing item, one call at a time. The
+ *   items after a failing call are still delivered; the first exception is rethrown after
+ */
+public final class ReorderBuffer<T> {
+    private static final Object NONE = new Object();
+
+    private final int window;
+    private final Consumer<T> sink;
+    // Finished items waiting for an earlier one; null results are stored as NONE
+    private final Map<Integer, Object> pending = new HashMap<>();
+    private int next;
+
+    public ReorderBuffer(int window, Consumer<T> sink) {
+        if (window < 1) throw new IllegalArgumentException("window must be at least 1");
+        this.window = window;
+        this.sink = sink;
+    }
+
+    /**
+     * Blocks until item {@code index} is less than {@code window} items ahead of the oldest one
+     * not yet delivered.
+     */
+    public synchronized void awaitSlot(int index) throws InterruptedException {
+        while (index >= next + window) wait();
+    }
+
+    /**
+     * Hands in the result of item {@code index} and delivers whatever is now in order.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized void complete(int index, T result) {
+        if (index < next || pending.containsKey(index)) {
+            throw new IllegalStateException("Item " + index + " completed twice");
+        }
+        pending.put(index, result == null ? NONE : result);
+        RuntimeException failure = null;
+        while (pending.containsKey(next)) {
+            Object value = pending.remove(next++);
+            try {
+                sink.accept(value == NONE ? null : (T) value);
+            } catch (RuntimeException e) {
+                if (failure == null) failure = e;
+            }
+        }
+        notifyAll();
+        if (failure != null) throw failure;
+    }
+
+    // Items delivered to the sink so far
+    public synchronized int delivered() {
+        return next;
+    }
+
+    // Items finished but waiting for an earlier one
+    public synchronized int waiting() {
+        return pending.size();
+    }
+}
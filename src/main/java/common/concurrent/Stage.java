@@ -0,0 +1,425 @@
+package common.concurrent;
+
+import common.metrics.Counter;
+import common.metrics.Metrics;
+import common.metrics.RollingHistogram;
+import common.metrics.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * One stage of a staged (SEDA) pipeline: a bounded queue in front of a handler that runs on
+ * the stage's own executor, so a slow stage fills its own queue instead of holding up the
+ * threads that feed it. Stages are chained with {@link #then(Stage)}.
+ * - Items with the same key (e.g. a Discord channel) are started in arrival order and passed
+ *   on in that order, even when a later one finishes first. Items with different keys never
+ *   wait for each other, and queued keys take turns for free slots
+ * - {@code maxConcurrencyPerKey} of 1 runs one item per key at a time; above 1 the results
+ *   of one key may overlap while the handler calls themselves still start one by one
+ * - A full queue rejects an item at once with {@link RejectedExecutionException}
+ * - The handler returns null (or a future of null) to drop an item, e.g. a filtered message
+ * Failed and rejected items go to the stage's error handler, in order with the others.
+ * Queue depth, item counts and latencies are also exported through {@link Metrics#global()},
+ * labelled with the stage's name.
+ */
+public final class Stage<I, O> {
+    private static final Logger logger = LoggerFactory.getLogger(Stage.class);
+
+    private static final Duration LATENCY_WINDOW = Duration.ofMinutes(1);
+
+    /**
+     * Processes one item. Blocking is allowed on an I/O executor; returning a future that
+     * completes later keeps the thread free instead.
+     */
+    @FunctionalInterface
+    public interface Handler<I, O> {
+        CompletableFuture<O> handle(I item);
+    }
+
+    // Latencies are quantiles of the last one to two minutes
+    public record Stats(String name, int queued, int inFlight, long completed, long failed, long rejected,
+                        double waitP99Millis, double serviceP50Millis, double serviceP99Millis) {
+        @Override
+        public String toString() {
+            return String.format("%s queued=%d inFlight=%d completed=%d failed=%d rejected=%d wait p99=%.1fms service p50=%.1fms p99=%.1fms",
+                    name, queued, inFlight, completed, failed, rejected, waitP99Millis, serviceP50Millis, serviceP99Millis);
+        }
+    }
+
+    private final String name;
+    private final Handler<I, O> handler;
+    private final Executor executor;
+    private final int maxConcurrency;
+    private final int maxConcurrencyPerKey;
+    private final int maxQueue;
+    private final Function<? super I, ?> key;
+    private final BiConsumer<? super I, Throwable> onError;
+    private volatile Consumer<? super O> downstream = ignored -> {};
+
+    private final Object lock = new Object();
+    private final Map<Object, Lane<I, O>> lanes = new HashMap<>();
+    // Keys with a queued item and a free per-key slot, served round-robin
+    private final ArrayDeque<Lane<I, O>> ready = new ArrayDeque<>();
+    private int queued;
+    private int inFlight;
+
+    private final Counter completed;
+    private final Counter failed;
+    private final Counter rejected;
+    // Recent latencies for stats(), all-time ones for the metrics endpoint
+    private final RollingHistogram waitNanos = new RollingHistogram(LATENCY_WINDOW);
+    private final RollingHistogram serviceNanos = new RollingHistogram(LATENCY_WINDOW);
+    private final Timer waitTimer;
+    private final Timer serviceTimer;
+
+    private Stage(Builder<I, O> builder) {
+        this.name = builder.name;
+        this.handler = builder.handler;
+        this.executor = builder.executor != null ? builder.executor : ioExecutor(builder.name);
+        this.maxConcurrency = builder.maxConcurrency;
+        this.maxConcurrencyPerKey = builder.maxConcurrencyPerKey;
+        this.maxQueue = builder.maxQueue;
+        this.key = builder.key;
+        this.onError = builder.onError != null ? builder.onError
+                : (item, error) -> logger.error("Stage {} failed", builder.name, error);
+
+        Metrics metrics = Metrics.global();
+        String items = "Items that left the stage, by outcome";
+        this.completed = metrics.counter("stage_items_total", items, "stage", name, "outcome", "completed");
+        this.failed = metrics.counter("stage_items_total", items, "stage", name, "outcome", "failed");
+        this.rejected = metrics.counter("stage_items_total", items, "stage", name, "outcome", "rejected");
+        this.waitTimer = metrics.timer("stage_wait_seconds", "Time items spent queued before the stage", "stage", name);
+        this.serviceTimer = metrics.timer("stage_service_seconds", "Time the stage took per item", "stage", name);
+        metrics.gauge("stage_queued", "Items waiting in the stage's queue", this::queued, "stage", name);
+        metrics.gauge("stage_in_flight", "Items the stage is working on", this::inFlight, "stage", name);
+    }
+
+    public static <I, O> Builder<I, O> builder(String name, Handler<I, O> handler) {
+        return new Builder<>(name, handler);
+    }
+
+    /**
+     * Executor for stages that wait on I/O: a virtual thread per task where the JDK has them
+     * (21+), otherwise a cached pool of daemon threads.
+     */
+    public static Executor ioExecutor(String name) {
+        ThreadFactory virtualThreads = virtualThreadFactory(name);
+        if (virtualThreads != null) return task -> virtualThreads.newThread(task).start();
+        return Executors.newCachedThreadPool(daemonThreads(name));
+    }
+
+    /**
+     * Executor for CPU-bound stages: a fixed pool of daemon threads.
+     */
+    public static ExecutorService cpuExecutor(String name, int threads) {
+        return Executors.newFixedThreadPool(threads, daemonThreads(name));
+    }
+
+    /**
+     * Sends every item this stage outputs to {@code next}, and returns {@code next} for chaining.
+     */
+    public <R> Stage<O, R> then(Stage<O, R> next) {
+        downstream = next::submit;
+        return next;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    /**
+     * Queues {@code item}. Never blocks: when the queue is full the item goes to the error
+     * handler with a {@link RejectedExecutionException} and false is returned.
+     */
+    public boolean submit(I item) {
+        Object itemKey = key.apply(item);
+        String overload = null;
+        synchronized (lock) {
+            if (queued < maxQueue) {
+                Lane<I, O> lane = lanes.computeIfAbsent(itemKey, Lane::new);
+                lane.pending.addLast(new Entry<>(item, lane.nextSeq++, System.nanoTime()));
+                queued++;
+                markReady(lane);
+            } else {
+                overload = name + " is overloaded: " + queued + " queued, " + inFlight + " in flight";
+            }
+        }
+        if (overload != null) {
+            rejected.increment();
+            reportError(item, new RejectedExecutionException(overload));
+            return false;
+        }
+        dispatch();
+        return true;
+    }
+
+    public Stats stats() {
+        return new Stats(name, queued(), inFlight(), completed.value(), failed.value(), rejected.value(),
+                waitNanos.quantile(0.99) / 1e6, serviceNanos.quantile(0.5) / 1e6, serviceNanos.quantile(0.99) / 1e6);
+    }
+
+    @Override
+    public String toString() {
+        return stats().toString();
+    }
+
+    private int queued() {
+        synchronized (lock) {
+            return queued;
+        }
+    }
+
+    private int inFlight() {
+        synchronized (lock) {
+            return inFlight;
+        }
+    }
+
+    // Moves queued items into free slots; each key gets one starter task at a time
+    private void dispatch() {
+        List<Lane<I, O>> starters = null;
+        synchronized (lock) {
+            while (inFlight < maxConcurrency && !ready.isEmpty()) {
+                Lane<I, O> lane = ready.pollFirst();
+                lane.inReady = false;
+                lane.starting.addLast(lane.pending.pollFirst());
+                queued--;
+                inFlight++;
+                lane.inFlight++;
+                // Back of the line: other keys get the next free slots
+                markReady(lane);
+                if (!lane.starterScheduled) {
+                    lane.starterScheduled = true;
+                    if (starters == null) starters = new ArrayList<>();
+                    starters.add(lane);
+                }
+            }
+        }
+        if (starters == null) return;
+        for (Lane<I, O> lane : starters) {
+            try {
+                executor.execute(() -> start(lane));
+            } catch (RejectedExecutionException e) {
+                // The executor was shut down; fail what was about to start, in order
+                Entry<I> entry;
+                while ((entry = pollStarting(lane)) != null) complete(lane, entry, null, e, System.nanoTime());
+            }
+        }
+    }
+
+    // Starts the key's items one after another, in the order they arrived
+    private void start(Lane<I, O> lane) {
+        Entry<I> entry;
+        while ((entry = pollStarting(lane)) != null) {
+            long startNanos = System.nanoTime();
+            waitNanos.record(startNanos - entry.enqueuedNanos());
+            waitTimer.record(startNanos - entry.enqueuedNanos());
+            CompletableFuture<O> result;
+            try {
+                result = handler.handle(entry.item());
+            } catch (RuntimeException e) {
+                result = CompletableFuture.failedFuture(e);
+            }
+            if (result == null) result = CompletableFuture.completedFuture(null);
+            Entry<I> started = entry;
+            result.whenComplete((output, error) -> complete(lane, started, output, error, startNanos));
+        }
+    }
+
+    private Entry<I> pollStarting(Lane<I, O> lane) {
+        synchronized (lock) {
+            Entry<I> entry = lane.starting.pollFirst();
+            if (entry == null) lane.starterScheduled = false;
+            return entry;
+        }
+    }
+
+    private void complete(Lane<I, O> lane, Entry<I> entry, O output, Throwable error, long startNanos) {
+        long serviceTime = System.nanoTime() - startNanos;
+        serviceNanos.record(serviceTime);
+        serviceTimer.record(serviceTime);
+        boolean emit;
+        synchronized (lock) {
+            inFlight--;
+            lane.inFlight--;
+            lane.done.put(entry.seq(), new Outcome<>(entry.item(), output, error));
+            markReady(lane);
+            emit = !lane.emitting;
+            lane.emitting = true;
+        }
+        if (emit) emit(lane);
+        dispatch();
+    }
+
+    // Passes on finished items in arrival order; one thread at a time per key
+    private void emit(Lane<I, O> lane) {
+        while (true) {
+            Outcome<I, O> outcome;
+            synchronized (lock) {
+                outcome = lane.done.remove(lane.nextEmit);
+                if (outcome == null) {
+                    lane.emitting = false;
+                    if (lane.isIdle()) lanes.remove(lane.key);
+                    return;
+                }
+                lane.nextEmit++;
+            }
+            if (outcome.error() != null) {
+                failed.increment();
+                reportError(outcome.item(), unwrap(outcome.error()));
+                continue;
+            }
+            completed.increment();
+            if (outcome.output() == null) continue;
+            try {
+                downstream.accept(outcome.output());
+            } catch (RuntimeException e) {
+                logger.error("Stage {} could not pass on an item", name, e);
+            }
+        }
+    }
+
+    private void reportError(I item, Throwable error) {
+        try {
+            onError.accept(item, error);
+        } catch (RuntimeException e) {
+            logger.error("Error handler of stage {} failed", name, e);
+        }
+    }
+
+    // Called under the lock
+    private void markReady(Lane<I, O> lane) {
+        if (!lane.inReady && !lane.pending.isEmpty() && lane.inFlight < maxConcurrencyPerKey) {
+            ready.addLast(lane);
+            lane.inReady = true;
+        }
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        while (error instanceof CompletionException && error.getCause() != null) error = error.getCause();
+        return error;
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    // Thread.ofVirtual().name(name + "-", 0).factory(), looked up so this also compiles and runs on JDK 17
+    private static ThreadFactory virtualThreadFactory(String name) {
+        try {
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, name + "-", 0L);
+            return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private record Entry<I>(I item, long seq, long enqueuedNanos) {}
+
+    private record Outcome<I, O>(I item, O output, Throwable error) {}
+
+    // Per-key state; guarded by the stage's lock
+    private static final class Lane<I, O> {
+        final Object key;
+        final ArrayDeque<Entry<I>> pending = new ArrayDeque<>();
+        final ArrayDeque<Entry<I>> starting = new ArrayDeque<>();
+        final Map<Long, Outcome<I, O>> done = new HashMap<>();
+        long nextSeq;
+        long nextEmit;
+        int inFlight;
+        boolean inReady;
+        boolean starterScheduled;
+        boolean emitting;
+
+        Lane(Object key) {
+            this.key = key;
+        }
+
+        boolean isIdle() {
+            return pending.isEmpty() && inFlight == 0 && done.isEmpty() && !emitting;
+        }
+    }
+
+    public static class Builder<I, O> {
+        private final String name;
+        private final Handler<I, O> handler;
+        private Executor executor;
+        private int maxConcurrency = 16;
+        private int maxConcurrencyPerKey = 1;
+        private int maxQueue = 256;
+        private Function<? super I, ?> key = item -> item;
+        private BiConsumer<? super I, Throwable> onError;
+
+        private Builder(String name, Handler<I, O> handler) {
+            this.name = name;
+            this.handler = handler;
+        }
+
+        // Defaults to ioExecutor(name)
+        public Builder<I, O> executor(Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        // Items being processed at once, over all keys
+        public Builder<I, O> maxConcurrency(int maxConcurrency) {
+            this.maxConcurrency = maxConcurrency;
+            return this;
+        }
+
+        public Builder<I, O> maxConcurrencyPerKey(int maxConcurrencyPerKey) {
+            this.maxConcurrencyPerKey = maxConcurrencyPerKey;
+            return this;
+        }
+
+        // Items waiting for a slot; beyond this they are rejected
+        public Builder<I, O> maxQueue(int maxQueue) {
+            this.maxQueue = maxQueue;
+            return this;
+        }
+
+        // Items with equal keys keep their order; by default every item is its own key
+        public Builder<I, O> key(Function<? super I, ?> key) {
+            this.key = key;
+            return this;
+        }
+
+        // Receives failed and rejected items; by default they are logged
+        public Builder<I, O> onError(BiConsumer<? super I, Throwable> onError) {
+            this.onError = onError;
+            return this;
+        }
+
+        public Stage<I, O> build() {
+            if (maxConcurrency < 1 || maxConcurrencyPerKey < 1) {
+                throw new IllegalStateException("maxConcurrency and maxConcurrencyPerKey must be at least 1");
+            }
+            return new Stage<>(this);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package common.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * One HTTP attempt against an LLM endpoint; a retried request is several events.
+ * The duration runs from sending the request to the last byte (the last token of a stream).
+ */
+@Name("gptforjava.LlmRequest")
+@Label("LLM Request")
+@Category({"GPTforJava", "LLM"})
+@Description("One HTTP request to a chat completion or embedding endpoint")
+@StackTrace(false)
+public class LlmRequestEvent extends Event {
+    @Label("Endpoint")
+    public String endpoint;
+
+    @Label("Model")
+    public String model;
+
+    @Label("Streamed")
+    public boolean stream;
+
+    @Label("Prompt Size")
+    @DataAmount
+    public long promptBytes;
+
+    @Label("Prompt Tokens")
+    @Description("From the response's usage, 0 if it has none")
+    public int promptTokens;
+
+    @Label("Completion Tokens")
+    @Description("From the response's usage, or the number of streamed deltas")
+    public int completionTokens;
+
+    @Label("HTTP Status")
+    public int status;
+
+    @Label("Outcome")
+    @Description("ok, error or cancelled")
+    public String outcome;
+}
@@ -0,0 +1,66 @@
+package common.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * One call to a chat platform: a Discord, Telegram or Slack message sent, edited or read.
+ */
+@Name("gptforjava.MessageSend")
+@Label("Chat Platform Call")
+@Category({"GPTforJava", "Bot"})
+@StackTrace(false)
+public class MessageSendEvent extends Event {
+    @Label("Platform")
+    @Description("discord, telegram or slack")
+    public String platform;
+
+    @Label("Operation")
+    @Description("send, edit or history")
+    public String operation;
+
+    @Label("Channel")
+    public String channel;
+
+    @Label("Message Length")
+    public int messageChars;
+
+    @Label("Succeeded")
+    public boolean succeeded;
+
+    /**
+     * Starts timing a call; finish it with {@link #end(boolean)}.
+     */
+    public static MessageSendEvent begin(String platform, String operation, String channel, int messageChars) {
+        MessageSendEvent event = new MessageSendEvent();
+        event.platform = platform;
+        event.operation = operation;
+        event.channel = channel;
+        event.messageChars = messageChars;
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Times an asynchronous call until {@code call} completes, and returns it unchanged.
+     */
+    public static <T> CompletableFuture<T> time(String platform, String operation, String channel, int messageChars,
+                                                CompletableFuture<T> call) {
+        MessageSendEvent event = begin(platform, operation, channel, messageChars);
+        call.whenComplete((value, error) -> event.end(error == null));
+        return call;
+    }
+
+    public void end(boolean succeeded) {
+        end();
+        if (!shouldCommit()) return;
+        this.succeeded = succeeded;
+        commit();
+    }
+}
@@ -0,0 +1,59 @@
+package common.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * One moderation decision and where it came from. Decisions made on the spot (prefilter,
+ * cache) have no duration; LLM decisions last until the verdict arrives.
+ */
+@Name("gptforjava.Moderation")
+@Label("Moderation Decision")
+@Category({"GPTforJava", "Bot"})
+@StackTrace(false)
+public class ModerationEvent extends Event {
+    @Label("Source")
+    @Description("prefilter, cache or llm")
+    public String source;
+
+    @Label("Verdict")
+    @Description("FLAG, SAFE, FAILED, UNAVAILABLE (Ollama too slow or unreachable) or SHED")
+    public String verdict;
+
+    @Label("Message Length")
+    public int messageChars;
+
+    /**
+     * Starts timing a decision that needs a call; finish it with {@link #end(String)}.
+     */
+    public static ModerationEvent begin(String source, int messageChars) {
+        ModerationEvent event = new ModerationEvent();
+        event.source = source;
+        event.messageChars = messageChars;
+        event.begin();
+        return event;
+    }
+
+    public void end(String verdict) {
+        end();
+        if (!shouldCommit()) return;
+        this.verdict = verdict;
+        commit();
+    }
+
+    /**
+     * Records a decision made on the spot, without a call.
+     */
+    public static void instant(String source, String verdict, int messageChars) {
+        ModerationEvent event = new ModerationEvent();
+        if (!event.isEnabled()) return;
+        event.source = source;
+        event.verdict = verdict;
+        event.messageChars = messageChars;
+        event.commit();
+    }
+}
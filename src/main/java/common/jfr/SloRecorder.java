@@ -0,0 +1,235 @@
+package common.jfr;
+
+import common.metrics.Timer;
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Continuous JDK Flight Recorder recording kept as a bounded ring buffer (max age and size),
+ * dumped to a file when a latency SLO is breached, so the minutes before a slow spell can be
+ * opened in JDK Mission Control with GC, threads and the gptforjava events side by side.
+ * - An SLO allows at most {@code 1 - quantile} of the calls in a check interval to be slower
+ *   than its threshold, e.g. "99% of generations within 20 s". Calls are read from the
+ *   {@link Timer}s the code records anyway, so checking adds nothing to the hot path
+ * - Intervals with fewer than {@code minSamples} calls are not judged
+ * - After a dump the next one waits for {@code cooldown}, so a long incident is one file
+ * Histogram buckets are 1/16 wide, so calls just under the threshold may count as over it.
+ */
+public final class SloRecorder implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(SloRecorder.class);
+
+    private static final DateTimeFormatter FILE_TIME = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+    private final Path directory;
+    private final Duration cooldown;
+    private final int minSamples;
+    private final List<Slo> slos;
+    private final Recording recording;
+    private final ScheduledExecutorService checker;
+    private long lastDumpNanos;
+    private boolean dumped;
+
+    private SloRecorder(Builder builder, Recording recording) {
+        this.directory = builder.directory;
+        this.cooldown = builder.cooldown;
+        this.minSamples = builder.minSamples;
+        this.slos = List.copyOf(builder.slos);
+        this.recording = recording;
+        this.checker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "slo-recorder");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = builder.checkInterval.toMillis();
+        checker.scheduleAtFixedRate(this::check, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Dumps the ring buffer now, e.g. from a debug command. Returns the file, or null on failure.
+     */
+    public synchronized Path dump(String reason) {
+        Path file = directory.resolve("slo-" + reason + "-" + LocalDateTime.now().format(FILE_TIME) + ".jfr");
+        try {
+            Files.createDirectories(directory);
+            recording.dump(file);
+            lastDumpNanos = System.nanoTime();
+            dumped = true;
+            return file;
+        } catch (IOException e) {
+            logger.error("Cannot dump flight recording to {}", file, e);
+            return null;
+        }
+    }
+
+    @Override
+    public void close() {
+        checker.shutdownNow();
+        recording.close();
+    }
+
+    private void check() {
+        for (Slo slo : slos) {
+            long[] now = slo.counts();
+            long calls = now[1] - slo.previous[1];
+            long slow = calls - (now[0] - slo.previous[0]);
+            slo.previous = now;
+            if (calls < minSamples || slow <= (1 - slo.quantile) * calls) continue;
+
+            synchronized (this) {
+                if (dumped && System.nanoTime() - lastDumpNanos < cooldown.toNanos()) {
+                    logger.warn("SLO {} breached: {} of {} calls over {} ms (dump on cooldown)",
+                            slo.name, slow, calls, slo.threshold.toMillis());
+                    continue;
+                }
+                Path file = dump(slo.name);
+                logger.warn("SLO {} breached: {} of {} calls over {} ms, flight recording dumped to {}",
+                        slo.name, slow, calls, slo.threshold.toMillis(), file);
+            }
+        }
+    }
+
+    private static final class Slo {
+        final String name;
+        final double quantile;
+        final Duration threshold;
+        final Timer[] timers;
+        // Calls at or under the threshold and all calls, at the last check
+        long[] previous;
+
+        Slo(String name, double quantile, Duration threshold, Timer[] timers) {
+            this.name = name;
+            this.quantile = quantile;
+            this.threshold = threshold;
+            this.timers = timers;
+            this.previous = counts();
+        }
+
+        long[] counts() {
+            long[] total = new long[2];
+            for (Timer timer : timers) {
+                long[] counts = timer.histogram().cumulativeCounts(threshold.toNanos());
+                total[0] += counts[0];
+                total[1] += counts[1];
+            }
+            return total;
+        }
+    }
+
+    public static class Builder {
+        private Path directory = Path.of("data/jfr");
+        private String configuration = "default";
+        private Duration maxAge = Duration.ofMinutes(10);
+        private long maxSizeBytes = 64L * 1024 * 1024;
+        private Duration checkInterval = Duration.ofSeconds(15);
+        private Duration cooldown = Duration.ofMinutes(10);
+        private int minSamples = 5;
+        private final List<Slo> slos = new ArrayList<>();
+
+        private Builder() {
+
+        }
+
+        // Where dumps are written
+        public Builder directory(Path directory) {
+            this.directory = directory;
+            return this;
+        }
+
+        // A JDK recording settings name: "default" (about 1% overhead) or "profile"
+        public Builder configuration(String configuration) {
+            this.configuration = configuration;
+            return this;
+        }
+
+        // The ring buffer keeps at most this much history...
+        public Builder maxAge(Duration maxAge) {
+            this.maxAge = maxAge;
+            return this;
+        }
+
+        // ...and at most this many bytes of it
+        public Builder maxSizeBytes(long maxSizeBytes) {
+            this.maxSizeBytes = maxSizeBytes;
+            return this;
+        }
+
+        public Builder checkInterval(Duration checkInterval) {
+            this.checkInterval = checkInterval;
+            return this;
+        }
+
+        public Builder cooldown(Duration cooldown) {
+            this.cooldown = cooldown;
+            return this;
+        }
+
+        public Builder minSamples(int minSamples) {
+            this.minSamples = minSamples;
+            return this;
+        }
+
+        /**
+         * Adds an SLO: {@code quantile} of the calls recorded by {@code timers} together finish
+         * within {@code threshold}, e.g. {@code slo("generation", 0.99, Duration.ofSeconds(20), ok, error)}.
+         */
+        public Builder slo(String name, double quantile, Duration threshold, Timer... timers) {
+            slos.add(new Slo(name, quantile, threshold, timers));
+            return this;
+        }
+
+        /**
+         * Starts the recording and the checks.
+         */
+        public SloRecorder start() throws IOException {
+            Recording recording;
+            try {
+                recording = new Recording(Configuration.getConfiguration(configuration));
+            } catch (ParseException e) {
+                throw new IOException("Unreadable JFR configuration " + configuration, e);
+            }
+            recording.setName("slo-ring-buffer");
+            recording.setToDisk(true);
+            recording.setMaxAge(maxAge);
+            recording.setMaxSize(maxSizeBytes);
+            recording.start();
+            logger.info("Flight recording running (last {} min, at most {} MB); SLO breaches dump to {}",
+                    maxAge.toMinutes(), maxSizeBytes / (1024 * 1024), directory.toAbsolutePath());
+            return new SloRecorder(this, recording);
+        }
+
+        /**
+         * Starts with dumps going to the directory in JFR_DUMP_DIR. Returns null when it is not
+         * set or the recording cannot start; the caller runs the same either way.
+         */
+        public SloRecorder startFromEnv() {
+            String value = System.getenv("JFR_DUMP_DIR");
+            if (value == null || value.isBlank()) return null;
+            directory(Path.of(value.trim()));
+            try {
+                return start();
+            } catch (IOException | IllegalStateException e) {
+                logger.warn("Cannot start the flight recording: {}", e.getMessage());
+                return null;
+            }
+        }
+    }
+}
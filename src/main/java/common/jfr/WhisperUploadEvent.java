@@ -0,0 +1,33 @@
+package common.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * One audio segment sent to the Whisper API, from upload to transcription.
+ */
+@Name("gptforjava.WhisperUpload")
+@Label("Whisper Segment Upload")
+@Category({"GPTforJava", "Transcription"})
+@StackTrace(false)
+public class WhisperUploadEvent extends Event {
+    @Label("Segment")
+    public String segment;
+
+    @Label("Audio Size")
+    @DataAmount
+    public long audioBytes;
+
+    @Label("Attempt")
+    public int attempt;
+
+    @Label("HTTP Status")
+    public int status;
+
+    @Label("Transcript Length")
+    public int transcriptChars;
+}
@@ -0,0 +1,603 @@
+package common.llm;
+
+import common.metrics.RollingHistogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Spreads chat requests over several OpenAI-compatible servers (e.g. one Ollama per machine).
+ * - Every request goes to the cheaper of two randomly picked backends that serve its model.
+ *   With {@link Balancing#PEAK_EWMA} the cost is the peak-sensitive latency average times
+ *   the outstanding requests plus one; with {@link Balancing#LEAST_OUTSTANDING} it is the
+ *   outstanding requests alone
+ * - A backend is ejected after {@code maxFailures} failures in a row or a failed health probe,
+ *   and comes back once a probe succeeds again
+ * - A returning backend gets a small share of traffic that grows over the slow-start period
+ * - If every backend for a model is ejected, requests are spread over all of them anyway
+ * - Optionally, a request still unanswered after the recent p95 (or another quantile) of its
+ *   kind is hedged: a second attempt goes to another backend, the first answer wins and the
+ *   other attempt is cancelled. At most {@code maxHedgeRatio} of requests are hedged
+ */
+public class BackendPool implements ChatEndpoint, AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(BackendPool.class);
+
+    public enum Balancing { PEAK_EWMA, LEAST_OUTSTANDING }
+
+    public enum State { HEALTHY, WARMING, EJECTED }
+
+    public record BackendStats(String endpoint, State state, int outstanding, double latencyMillis,
+                               long requests, long failures) {
+        @Override
+        public String toString() {
+            return String.format("%s %s outstanding=%d latency=%.0fms requests=%d failures=%d",
+                    endpoint, state, outstanding, latencyMillis, requests, failures);
+        }
+    }
+
+    // Share of its normal traffic a backend gets right after it comes back
+    private static final double SLOW_START_MIN_WEIGHT = 0.1;
+
+    // Hedged requests are only considered once this many latencies of their kind are known
+    private static final int HEDGE_MIN_SAMPLES = 20;
+    private static final Duration HEDGE_WINDOW = Duration.ofMinutes(1);
+
+    // One daemon thread schedules probes and hedges for every pool; the HTTP calls themselves
+    // run on the dispatcher
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "backend-pool");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final List<Backend> backends;
+    private final Balancing balancing;
+    private final int maxFailures;
+    private final long ejectionNanos;
+    private final long slowStartNanos;
+    private final long decayNanos;
+    private final double hedgeQuantile;
+    private final double maxHedgeRatio;
+    private final ScheduledFuture<?> probeTask;
+
+    private final Map<LatencyKey, RollingHistogram> latencies = new ConcurrentHashMap<>();
+    private final LongAdder exchanges = new LongAdder();
+    private final LongAdder hedges = new LongAdder();
+    private final LongAdder hedgeWins = new LongAdder();
+
+    private BackendPool(Builder builder) {
+        if (builder.backends.isEmpty()) throw new IllegalStateException("at least one backend is required");
+        this.balancing = builder.balancing;
+        this.maxFailures = builder.maxFailures;
+        this.ejectionNanos = builder.ejectionTime.toNanos();
+        this.slowStartNanos = builder.slowStart.toNanos();
+        this.decayNanos = builder.decayTime.toNanos();
+        this.hedgeQuantile = builder.hedgeQuantile;
+        this.maxHedgeRatio = builder.maxHedgeRatio;
+
+        LlmClientConfig probeConfig = LlmClientConfig.builder()
+                .connectTimeout(builder.probeTimeout)
+                .readTimeout(builder.probeTimeout)
+                .callTimeout(builder.probeTimeout)
+                .maxIdleConnections(1)
+                .maxRequestsPerHost(1)
+                .bearerToken(builder.config.bearerToken())
+                .build();
+        List<Backend> list = new ArrayList<>();
+        for (BackendSpec spec : builder.backends) {
+            list.add(new Backend(
+                    LlmClient.forEndpoint(spec.baseUrl() + builder.path, builder.config),
+                    LlmClient.forEndpoint(spec.baseUrl() + builder.healthPath, probeConfig),
+                    spec.models(), builder.initialLatency.toNanos()));
+        }
+        this.backends = List.copyOf(list);
+
+        long probeMillis = builder.probeInterval.toMillis();
+        this.probeTask = probeMillis > 0
+                ? TIMER.scheduleWithFixedDelay(this::probe, probeMillis, probeMillis, TimeUnit.MILLISECONDS)
+                : null;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    @Override
+    public CompletableFuture<String> chatAsync(Object chatRequest) {
+        return new Exchange(chatRequest, false, (backend, attempt) -> backend.client.chatAsync(chatRequest)).start();
+    }
+
+    // For streams the latency sample is the time to the first token, so long answers do not
+    // make a backend look slow; with hedging, the attempt that streams first is kept
+    @Override
+    public CompletableFuture<String> streamAsync(Object chatRequest, Consumer<String> onDelta) {
+        return new Exchange(chatRequest, true, (backend, attempt) -> backend.client.streamAsync(chatRequest, delta -> {
+            if (attempt.onDelta()) onDelta.accept(delta);
+        })).start();
+    }
+
+    public List<BackendStats> stats() {
+        long now = System.nanoTime();
+        List<BackendStats> stats = new ArrayList<>(backends.size());
+        for (Backend backend : backends) {
+            State state = backend.ejected ? State.EJECTED : backend.weight(now) < 1 ? State.WARMING : State.HEALTHY;
+            stats.add(new BackendStats(backend.client.endpoint(), state, backend.outstanding.get(),
+                    backend.latencyNanos(now) / 1e6, backend.requests.sum(), backend.failures.sum()));
+        }
+        return stats;
+    }
+
+    /**
+     * Requests, hedged second attempts and how many of those finished first.
+     */
+    public String hedgeStats() {
+        if (hedgeQuantile <= 0) return "off";
+        long requests = exchanges.sum();
+        long hedged = hedges.sum();
+        return String.format("requests=%d hedged=%d (%.1f%%) hedgeWins=%d at p%.0f",
+                requests, hedged, requests == 0 ? 0 : 100.0 * hedged / requests, hedgeWins.sum(), hedgeQuantile * 100);
+    }
+
+    @Override
+    public void close() {
+        if (probeTask != null) probeTask.cancel(false);
+    }
+
+    @FunctionalInterface
+    private interface Call {
+        CompletableFuture<String> start(Backend backend, Exchange.Attempt attempt);
+    }
+
+    // Requests of the same kind have comparable latency; moderation and answers must not share a p95
+    private record LatencyKey(String model, int maxTokens, boolean stream) {}
+
+    /**
+     * One caller request: the primary attempt and, if it is still unanswered after the
+     * observed latency quantile for its kind, one hedged attempt on another backend.
+     * The first attempt to answer (or, for streams, to produce a token) wins and the other
+     * is cancelled. The caller sees a failure only when no attempt can still succeed.
+     */
+    private final class Exchange {
+        final boolean stream;
+        final Call call;
+        final String model;
+        final LatencyKey key;
+        final CompletableFuture<String> result = new CompletableFuture<>();
+        final AtomicReference<Attempt> winner = new AtomicReference<>();
+        final AtomicInteger running = new AtomicInteger();
+        final List<Attempt> attempts = new CopyOnWriteArrayList<>();
+        Backend primary;
+        RollingHistogram latency;
+
+        Exchange(Object chatRequest, boolean stream, Call call) {
+            this.stream = stream;
+            this.call = call;
+            if (chatRequest instanceof EncodedChat chat) {
+                this.model = chat.model();
+                this.key = new LatencyKey(model, chat.maxTokens(), stream);
+            } else {
+                this.model = null;
+                this.key = new LatencyKey(null, -1, stream);
+            }
+        }
+
+        CompletableFuture<String> start() {
+            primary = choose(model, null);
+            if (primary == null) {
+                return CompletableFuture.failedFuture(new IOException("No backend serves model " + model));
+            }
+            exchanges.increment();
+            // Without a winner (failed or cancelled) nothing still running is of any use
+            result.whenComplete((answer, error) -> {
+                if (error != null) for (Attempt attempt : attempts) attempt.cancel();
+            });
+            if (hedgeQuantile > 0) latency = latencies.computeIfAbsent(key, k -> new RollingHistogram(HEDGE_WINDOW));
+
+            running.incrementAndGet();
+            launch(primary, false);
+
+            // Scheduled only now, so a hedge never runs before the primary exists
+            if (latency != null && latency.count() >= HEDGE_MIN_SAMPLES && !result.isDone()) {
+                ScheduledFuture<?> timer = TIMER.schedule(this::hedge,
+                        latency.quantile(hedgeQuantile), TimeUnit.NANOSECONDS);
+                result.whenComplete((answer, error) -> timer.cancel(false));
+            }
+            return result;
+        }
+
+        void hedge() {
+            if (result.isDone() || winner.get() != null) return;
+            // Hedging is capped so a slow period cannot double the load on already busy backends
+            if (hedges.sum() >= maxHedgeRatio * exchanges.sum()) return;
+            Backend other = choose(model, primary);
+            if (other == null) return;
+
+            running.incrementAndGet();
+            if (launch(other, true)) hedges.increment();
+        }
+
+        // The caller has already counted this attempt in running. Returns false without
+        // starting anything when the exchange was decided in the meantime
+        boolean launch(Backend backend, boolean hedged) {
+            if (result.isDone()) {
+                running.decrementAndGet();
+                return false;
+            }
+            Attempt attempt = new Attempt(backend, hedged);
+            attempts.add(attempt);
+            backend.outstanding.incrementAndGet();
+            backend.requests.increment();
+            CompletableFuture<String> future;
+            try {
+                future = call.start(backend, attempt);
+            } catch (RuntimeException e) {
+                future = CompletableFuture.failedFuture(e);
+            }
+            attempt.future = future;
+            future.whenComplete((answer, error) -> finish(attempt, answer, error));
+            // The exchange may have been decided while this attempt was starting
+            if ((result.isDone() && winner.get() == null) || (winner.get() != null && winner.get() != attempt)) {
+                future.cancel(true);
+            }
+            return true;
+        }
+
+        void finish(Attempt attempt, String answer, Throwable error) {
+            attempt.backend.release(attempt.start, error, !stream);
+            int stillRunning = running.decrementAndGet();
+            if (error == null) {
+                if (claim(attempt)) {
+                    if (!stream && latency != null) latency.record(System.nanoTime() - attempt.start);
+                    result.complete(answer);
+                }
+            } else if (winner.get() == attempt || (winner.get() == null && stillRunning == 0)) {
+                result.completeExceptionally(error);
+            }
+        }
+
+        boolean claim(Attempt attempt) {
+            if (winner.get() == attempt) return true;
+            if (!winner.compareAndSet(null, attempt)) return false;
+            for (Attempt other : attempts) {
+                if (other != attempt) other.cancel();
+            }
+            if (attempt.hedged) hedgeWins.increment();
+            return true;
+        }
+
+        final class Attempt {
+            final Backend backend;
+            final boolean hedged;
+            final long start = System.nanoTime();
+            volatile CompletableFuture<String> future;
+            private boolean sawDelta;
+
+            Attempt(Backend backend, boolean hedged) {
+                this.backend = backend;
+                this.hedged = hedged;
+            }
+
+            // Called for every streamed delta, on this attempt's own dispatcher thread;
+            // true when its deltas are the ones passed on to the caller
+            boolean onDelta() {
+                if (!sawDelta) {
+                    sawDelta = true;
+                    long firstToken = System.nanoTime() - start;
+                    backend.observe(firstToken);
+                    if (claim(this) && latency != null) latency.record(firstToken);
+                }
+                return winner.get() == this;
+            }
+
+            void cancel() {
+                CompletableFuture<String> current = future;
+                if (current != null) current.cancel(true);
+            }
+        }
+    }
+
+    // Power of two choices: cheap, and unlike "always the cheapest" it does not send a
+    // burst of requests to the same backend before its cost catches up
+    private Backend choose(String model, Backend exclude) {
+        List<Backend> candidates = new ArrayList<>(backends.size());
+        for (Backend backend : backends) {
+            if (backend != exclude && !backend.ejected && backend.serves(model)) candidates.add(backend);
+        }
+        if (candidates.isEmpty()) {
+            for (Backend backend : backends) {
+                if (backend != exclude && backend.serves(model)) candidates.add(backend);
+            }
+        }
+        if (candidates.size() <= 1) return candidates.isEmpty() ? null : candidates.get(0);
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(candidates.size());
+        int second = random.nextInt(candidates.size() - 1);
+        if (second >= first) second++;
+        long now = System.nanoTime();
+        Backend a = candidates.get(first);
+        Backend b = candidates.get(second);
+        return a.cost(now) <= b.cost(now) ? a : b;
+    }
+
+    private void probe() {
+        long now = System.nanoTime();
+        for (Backend backend : backends) {
+            if (backend.ejected && now - backend.ejectedAt < ejectionNanos) continue;
+            if (!backend.probing.compareAndSet(false, true)) continue;
+            backend.probeClient.getAsync().whenComplete((models, error) -> {
+                backend.probing.set(false);
+                if (error == null) backend.restore();
+                else backend.eject("health probe failed: " + unwrap(error).getMessage());
+            });
+        }
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        while (error instanceof CompletionException && error.getCause() != null) error = error.getCause();
+        return error;
+    }
+
+    // Timeouts, refused connections, 5xx and 429 count against the backend; other HTTP
+    // errors are caused by the request and say nothing about the server
+    private static boolean isBackendFailure(Throwable error) {
+        if (error instanceof LlmHttpException http) return http.code() >= 500 || http.code() == 429;
+        return error instanceof IOException;
+    }
+
+    private class Backend {
+        final LlmClient client;
+        final LlmClient probeClient;
+        final Set<String> models;
+
+        final AtomicInteger outstanding = new AtomicInteger();
+        final AtomicInteger consecutiveFailures = new AtomicInteger();
+        final AtomicBoolean probing = new AtomicBoolean();
+        final LongAdder requests = new LongAdder();
+        final LongAdder failures = new LongAdder();
+
+        volatile boolean ejected;
+        volatile long ejectedAt;
+        volatile boolean warming;
+        volatile long warmingSince;
+
+        // Peak EWMA: jumps up to any slower sample at once, decays towards faster ones
+        private double ewmaNanos;
+        private long lastSampleNanos;
+
+        Backend(LlmClient client, LlmClient probeClient, Set<String> models, long initialLatencyNanos) {
+            this.client = client;
+            this.probeClient = probeClient;
+            this.models = models;
+            this.ewmaNanos = initialLatencyNanos;
+            this.lastSampleNanos = System.nanoTime();
+        }
+
+        // An empty model list means the backend serves every model
+        boolean serves(String model) {
+            return model == null || models.isEmpty() || models.contains(model);
+        }
+
+        double cost(long now) {
+            int load = outstanding.get() + 1;
+            double cost = balancing == Balancing.PEAK_EWMA ? Math.max(latencyNanos(now), 1e6) * load : load;
+            return cost / weight(now);
+        }
+
+        // The average also decays while no samples arrive, so a backend that was slow once
+        // is tried again after a while instead of being avoided forever
+        synchronized double latencyNanos(long now) {
+            return ewmaNanos * Math.exp(-(double) (now - lastSampleNanos) / decayNanos);
+        }
+
+        synchronized void observe(long rttNanos) {
+            long now = System.nanoTime();
+            double current = latencyNanos(now);
+            if (rttNanos > current) {
+                ewmaNanos = rttNanos;
+            } else {
+                double w = Math.exp(-(double) (now - lastSampleNanos) / decayNanos);
+                ewmaNanos = current * w + rttNanos * (1 - w);
+            }
+            lastSampleNanos = now;
+        }
+
+        // Traffic share while warming up after ejection: SLOW_START_MIN_WEIGHT, rising linearly to 1
+        double weight(long now) {
+            if (!warming) return 1;
+            long elapsed = now - warmingSince;
+            if (elapsed >= slowStartNanos) {
+                warming = false;
+                return 1;
+            }
+            return SLOW_START_MIN_WEIGHT + (1 - SLOW_START_MIN_WEIGHT) * elapsed / slowStartNanos;
+        }
+
+        void release(long startNanos, Throwable error, boolean sampleLatency) {
+            outstanding.decrementAndGet();
+            Throwable cause = error == null ? null : unwrap(error);
+            if (cause instanceof CancellationException) return;
+            if (cause != null && isBackendFailure(cause)) {
+                failures.increment();
+                int failed = consecutiveFailures.incrementAndGet();
+                if (failed >= maxFailures) eject(failed + " failures in a row, last: " + cause.getMessage());
+                return;
+            }
+            consecutiveFailures.set(0);
+            if (sampleLatency) observe(System.nanoTime() - startNanos);
+        }
+
+        synchronized void eject(String reason) {
+            if (ejected) return;
+            ejectedAt = System.nanoTime();
+            ejected = true;
+            logger.warn("Ejecting backend {}: {}", client.endpoint(), reason);
+        }
+
+        synchronized void restore() {
+            consecutiveFailures.set(0);
+            if (!ejected) return;
+            warmingSince = System.nanoTime();
+            warming = slowStartNanos > 0;
+            ejected = false;
+            logger.info("Backend {} is healthy again, warming up for {} ms",
+                    client.endpoint(), TimeUnit.NANOSECONDS.toMillis(slowStartNanos));
+        }
+    }
+
+    private record BackendSpec(String baseUrl, Set<String> models) {}
+
+    public static class Builder {
+        private final List<BackendSpec> backends = new ArrayList<>();
+        private String path = "/v1/chat/completions";
+        private String healthPath = "/v1/models";
+        private LlmClientConfig config = LlmClientConfig.defaults();
+        private Balancing balancing = Balancing.PEAK_EWMA;
+        private int maxFailures = 3;
+        private Duration ejectionTime = Duration.ofSeconds(10);
+        private Duration probeInterval = Duration.ofSeconds(5);
+        private Duration probeTimeout = Duration.ofSeconds(3);
+        private Duration slowStart = Duration.ofSeconds(30);
+        private Duration decayTime = Duration.ofSeconds(10);
+        private Duration initialLatency = Duration.ofSeconds(1);
+        private double hedgeQuantile = 0;
+        private double maxHedgeRatio = 0.1;
+
+        private Builder() {
+
+        }
+
+        /**
+         * Adds a server, e.g. "http://ollama-2:11434". Without models it is used for every model.
+         */
+        public Builder backend(String baseUrl, String... models) {
+            String url = baseUrl.strip();
+            while (url.endsWith("/")) url = url.substring(0, url.length() - 1);
+            this.backends.add(new BackendSpec(url, Set.copyOf(Arrays.asList(models))));
+            return this;
+        }
+
+        /**
+         * Adds the servers of a comma-separated list, each optionally followed by "=" and the
+         * models it serves separated by "|":
+         * "http://ollama-1:11434=llama3.2:1b|nomic-embed-text, http://ollama-2:11434=llama3.2:1b"
+         */
+        public Builder backends(String spec) {
+            for (String entry : spec.split(",")) {
+                if (entry.isBlank()) continue;
+                int eq = entry.indexOf('=');
+                if (eq < 0) {
+                    backend(entry);
+                } else {
+                    String[] models = Arrays.stream(entry.substring(eq + 1).split("\\|"))
+                            .map(String::strip).filter(m -> !m.isEmpty()).toArray(String[]::new);
+                    backend(entry.substring(0, eq), models);
+                }
+            }
+            return this;
+        }
+
+        // Appended to every base URL for chat requests
+        public Builder path(String path) {
+            this.path = path;
+            return this;
+        }
+
+        // Appended to every base URL for health probes; any 2xx answer counts as healthy
+        public Builder healthPath(String healthPath) {
+            this.healthPath = healthPath;
+            return this;
+        }
+
+        // Timeouts and connection limits, applied to each backend separately
+        public Builder config(LlmClientConfig config) {
+            this.config = config;
+            return this;
+        }
+
+        public Builder balancing(Balancing balancing) {
+            this.balancing = balancing;
+            return this;
+        }
+
+        public Builder maxFailures(int maxFailures) {
+            this.maxFailures = maxFailures;
+            return this;
+        }
+
+        // How long an ejected backend is left alone before probing it again
+        public Builder ejectionTime(Duration ejectionTime) {
+            this.ejectionTime = ejectionTime;
+            return this;
+        }
+
+        // Zero disables probing; ejected backends then stay out until the pool is rebuilt
+        public Builder probeInterval(Duration probeInterval) {
+            this.probeInterval = probeInterval;
+            return this;
+        }
+
+        public Builder probeTimeout(Duration probeTimeout) {
+            this.probeTimeout = probeTimeout;
+            return this;
+        }
+
+        public Builder slowStart(Duration slowStart) {
+            this.slowStart = slowStart;
+            return this;
+        }
+
+        // How quickly the latency average forgets old samples
+        public Builder decayTime(Duration decayTime) {
+            this.decayTime = decayTime;
+            return this;
+        }
+
+        // Latency assumed for a backend before its first answer
+        public Builder initialLatency(Duration initialLatency) {
+            this.initialLatency = initialLatency;
+            return this;
+        }
+
+        /**
+         * Sends a second attempt to another backend when a request is still unanswered after
+         * this latency quantile of recent requests of its kind, e.g. 0.95. 0 disables hedging.
+         */
+        public Builder hedgeAt(double quantile) {
+            this.hedgeQuantile = quantile;
+            return this;
+        }
+
+        // Upper bound for hedged attempts as a share of all requests
+        public Builder maxHedgeRatio(double maxHedgeRatio) {
+            this.maxHedgeRatio = maxHedgeRatio;
+            return this;
+        }
+
+        public BackendPool build() {
+            return new BackendPool(this);
+        }
+    }
+}
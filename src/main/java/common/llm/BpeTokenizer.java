@@ -0,0 +1,510 @@
+package common.llm;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PushbackInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Byte-level BPE tokenizer, to count and cut prompts locally instead of learning about an
+ * overlong prompt from an HTTP error. Reads the vocabularies of the models we talk to:
+ * - tiktoken rank files (GPT-3.5/4 cl100k_base, the llama 3 tokenizer.model; others such as
+ *   o200k_base given their split pattern)
+ * - Hugging Face tokenizer.json with a byte-level BPE model (llama 3, Qwen 2, GPT-2)
+ * Special tokens are not recognised: text is always encoded as plain text.
+ * Encoding allocates nothing but the result: the split is a hand-written scanner for the
+ * cl100k-style patterns (other patterns fall back to java.util.regex), vocabulary lookups hash
+ * byte ranges of a per-thread buffer, and merges work in place on per-thread int arrays.
+ */
+public final class BpeTokenizer {
+
+    // The pre-tokenization patterns we know; all but GPT-2 run on the scanner below
+    public static final String CL100K_PATTERN =
+            "'(?i:[sdmt]|ll|ve|re)|[^\\r\\n\\p{L}\\p{N}]?+\\p{L}+|\\p{N}{1,3}| ?[^\\s\\p{L}\\p{N}]++[\\r\\n]*|\\s*[\\r\\n]|\\s+(?!\\S)|\\s+";
+    public static final String LLAMA3_PATTERN =
+            "(?i:'s|'t|'re|'ve|'m|'ll|'d)|[^\\r\\n\\p{L}\\p{N}]?\\p{L}+|\\p{N}{1,3}| ?[^\\s\\p{L}\\p{N}]+[\\r\\n]*|\\s*[\\r\\n]+|\\s+(?!\\S)|\\s+";
+    public static final String QWEN2_PATTERN =
+            "(?i:'s|'t|'re|'ve|'m|'ll|'d)|[^\\r\\n\\p{L}\\p{N}]?\\p{L}+|\\p{N}| ?[^\\s\\p{L}\\p{N}]+[\\r\\n]*|\\s*[\\r\\n]+|\\s+(?!\\S)|\\s+";
+    public static final String GPT2_PATTERN =
+            "'s|'t|'re|'ve|'m|'ll|'d| ?\\p{L}+| ?\\p{N}+| ?[^\\s\\p{L}\\p{N}]+|\\s+(?!\\S)|\\s+";
+
+    private static final int NO_RANK = Integer.MAX_VALUE;
+    // Character classes of ASCII, for the scanner's fast path
+    private static final byte LETTER = 1, NUMBER = 2, SPACE = 3, NEWLINE = 4, OTHER = 5;
+    private static final byte[] ASCII_CLASS = new byte[128];
+
+    static {
+        for (int c = 0; c < 128; c++) {
+            ASCII_CLASS[c] = Character.isLetter(c) ? LETTER
+                    : Character.isDigit(c) ? NUMBER
+                    : c == '\r' || c == '\n' ? NEWLINE
+                    : c == ' ' || (c >= 9 && c <= 13) ? SPACE
+                    : OTHER;
+        }
+    }
+
+    private final String name;
+    // All token bytes back to back; token i is arena[offsets[i] .. offsets[i + 1])
+    private final byte[] arena;
+    private final int[] offsets;
+    // Merge priority per token id, lowest first; null when the rank is the id (tiktoken)
+    private final int[] mergeRanks;
+    // Open addressing over token byte strings, holding id + 1 (0 = empty)
+    private final int[] table;
+    private final int[] tableHashes;
+    private final int mask;
+    private final Splitter splitter;
+    private final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+    private BpeTokenizer(String name, byte[][] tokens, int[] mergeRanks, String pattern) {
+        this.name = name;
+        this.mergeRanks = mergeRanks;
+        int total = 0;
+        for (byte[] token : tokens) total += token == null ? 0 : token.length;
+        this.arena = new byte[total];
+        this.offsets = new int[tokens.length + 1];
+        int capacity = Integer.highestOneBit(Math.max(4, tokens.length * 2 - 1)) << 1;
+        this.table = new int[capacity];
+        this.tableHashes = new int[capacity];
+        this.mask = capacity - 1;
+        int offset = 0;
+        for (int id = 0; id < tokens.length; id++) {
+            offsets[id] = offset;
+            byte[] token = tokens[id];
+            if (token != null) {
+                System.arraycopy(token, 0, arena, offset, token.length);
+                offset += token.length;
+            }
+            offsets[id + 1] = offset;
+            if (token != null && token.length > 0 && lookup(arena, offsets[id], token.length) < 0) insert(id);
+        }
+        this.splitter = splitterFor(pattern);
+    }
+
+    /**
+     * Loads a tiktoken rank file or a Hugging Face tokenizer.json, whichever {@code file} is.
+     * A tiktoken file does not name its split pattern, so it is split like cl100k.
+     */
+    public static BpeTokenizer load(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            PushbackInputStream peek = new PushbackInputStream(in, 1);
+            int first = peek.read();
+            if (first >= 0) peek.unread(first);
+            String name = file.getFileName().toString();
+            return first == '{' ? fromHuggingFace(name, peek) : fromTiktoken(name, peek, CL100K_PATTERN);
+        }
+    }
+
+    /**
+     * Reads "base64-token rank" lines, as in cl100k_base.tiktoken.
+     */
+    public static BpeTokenizer fromTiktoken(String name, InputStream in, String pattern) throws IOException {
+        byte[][] tokens = new byte[1 << 17][];
+        int size = 0;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.US_ASCII));
+        Base64.Decoder base64 = Base64.getDecoder();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.isBlank()) continue;
+            int space = line.indexOf(' ');
+            if (space < 0) throw new IOException(name + ": expected \"token rank\" but got: " + line);
+            int rank = Integer.parseInt(line, space + 1, line.length(), 10);
+            if (rank >= tokens.length) tokens = Arrays.copyOf(tokens, Math.max(rank + 1, tokens.length * 2));
+            tokens[rank] = base64.decode(line.substring(0, space));
+            size = Math.max(size, rank + 1);
+        }
+        return new BpeTokenizer(name, Arrays.copyOf(tokens, size), null, pattern);
+    }
+
+    /**
+     * Reads the byte-level BPE model of a Hugging Face tokenizer.json.
+     */
+    public static BpeTokenizer fromHuggingFace(String name, InputStream in) throws IOException {
+        JsonNode root = LlmClient.MAPPER.readTree(in);
+        JsonNode model = root.path("model");
+        if (!"BPE".equals(model.path("type").asText()) || model.path("byte_fallback").asBoolean(false)) {
+            throw new IOException(name + ": only byte-level BPE models are supported");
+        }
+
+        // Byte-level vocabularies spell each byte as one printable character (GPT-2 bytes_to_unicode)
+        int[] byteOf = new int[512];
+        Arrays.fill(byteOf, -1);
+        int next = 256;
+        for (int b = 0; b < 256; b++) {
+            boolean printable = (b >= '!' && b <= '~') || (b >= 0xA1 && b <= 0xAC) || (b >= 0xAE && b <= 0xFF);
+            byteOf[printable ? b : next++] = b;
+        }
+
+        JsonNode vocab = model.path("vocab");
+        int size = 0;
+        for (JsonNode id : vocab) size = Math.max(size, id.asInt() + 1);
+        byte[][] tokens = new byte[size][];
+        Iterator<Map.Entry<String, JsonNode>> entries = vocab.fields();
+        while (entries.hasNext()) {
+            Map.Entry<String, JsonNode> entry = entries.next();
+            String spelled = entry.getKey();
+            byte[] bytes = new byte[spelled.length()];
+            for (int i = 0; i < bytes.length; i++) {
+                char c = spelled.charAt(i);
+                int b = c < byteOf.length ? byteOf[c] : -1;
+                if (b < 0) throw new IOException(name + ": token \"" + spelled + "\" is not byte-level encoded");
+                bytes[i] = (byte) b;
+            }
+            tokens[entry.getValue().asInt()] = bytes;
+        }
+
+        // A merge's position is its priority; the merged token carries it. Like tiktoken, the
+        // merge loop then looks up merged bytes rather than pairs, which for byte-level
+        // vocabularies gives the same tokens
+        int[] ranks = new int[size];
+        Arrays.fill(ranks, NO_RANK);
+        JsonNode merges = model.path("merges");
+        for (int i = 0; i < merges.size(); i++) {
+            JsonNode merge = merges.get(i);
+            String merged = merge.isArray()
+                    ? merge.get(0).asText() + merge.get(1).asText()
+                    : merge.asText().replace(" ", "");
+            JsonNode id = vocab.get(merged);
+            if (id != null && ranks[id.asInt()] == NO_RANK) ranks[id.asInt()] = i;
+        }
+        return new BpeTokenizer(name, tokens, ranks, splitPattern(root.path("pre_tokenizer")));
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public int vocabularySize() {
+        return offsets.length - 1;
+    }
+
+    /**
+     * Number of tokens in {@code text}.
+     */
+    public int count(CharSequence text) {
+        Scratch s = scratch.get();
+        s.output = null;
+        return encode(s, text, Integer.MAX_VALUE);
+    }
+
+    public int[] encode(CharSequence text) {
+        Scratch s = scratch.get();
+        s.output = s.tokens;
+        s.outputSize = 0;
+        encode(s, text, Integer.MAX_VALUE);
+        int[] result = Arrays.copyOf(s.output, s.outputSize);
+        s.tokens = s.output;
+        s.output = null;
+        return result;
+    }
+
+    public String decode(int[] tokens) {
+        int length = 0;
+        for (int token : tokens) length += offsets[token + 1] - offsets[token];
+        byte[] bytes = new byte[length];
+        int at = 0;
+        for (int token : tokens) {
+            int from = offsets[token];
+            int tokenLength = offsets[token + 1] - from;
+            System.arraycopy(arena, from, bytes, at, tokenLength);
+            at += tokenLength;
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Longest prefix of {@code text} that fits in {@code maxTokens}. Cuts between split pieces
+     * (words, numbers, punctuation runs), so the prefix may use a few tokens less than allowed.
+     */
+    public String truncate(String text, int maxTokens) {
+        Scratch s = scratch.get();
+        s.output = null;
+        s.fitsTo = text.length();
+        encode(s, text, Math.max(0, maxTokens));
+        return s.fitsTo == text.length() ? text : text.substring(0, s.fitsTo);
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + vocabularySize() + " tokens)";
+    }
+
+    // Encodes piece by piece; stops before the first piece that would exceed maxTokens
+    private int encode(Scratch s, CharSequence text, int maxTokens) {
+        int count = 0;
+        int length = text.length();
+        int start = 0;
+        Matcher matcher = splitter.pattern == null ? null : splitter.pattern.matcher(text);
+        while (start < length) {
+            int end;
+            if (matcher == null) {
+                end = splitter.next(text, start, length);
+            } else {
+                if (!matcher.find(start)) break;
+                end = matcher.end();
+            }
+            int pieceTokens = encodePiece(s, text, start, end);
+            if (count + pieceTokens > maxTokens) {
+                s.fitsTo = start;
+                return count;
+            }
+            count += pieceTokens;
+            start = end;
+        }
+        return count;
+    }
+
+    // Token count of text[start, end); appends the tokens to s.output if set
+    private int encodePiece(Scratch s, CharSequence text, int start, int end) {
+        int n = s.utf8(text, start, end);
+        byte[] bytes = s.bytes;
+        int whole = lookup(bytes, 0, n);
+        if (whole >= 0 && (n == 1 || rankOf(whole) != NO_RANK)) {
+            s.emit(whole);
+            return 1;
+        }
+
+        // Merge the adjacent pair with the lowest rank until no pair is a token (tiktoken's byte_pair_merge)
+        int[] starts = s.starts(n + 1);
+        int[] ranks = s.ranks;
+        for (int i = 0; i <= n; i++) starts[i] = i;
+        for (int i = 0; i < n - 1; i++) ranks[i] = rank(bytes, i, i + 2);
+        int parts = n;
+        while (parts > 1) {
+            int best = 0;
+            int bestRank = ranks[0];
+            for (int i = 1; i < parts - 1; i++) {
+                if (ranks[i] < bestRank) {
+                    bestRank = ranks[i];
+                    best = i;
+                }
+            }
+            if (bestRank == NO_RANK) break;
+            // Part best absorbs part best + 1
+            System.arraycopy(starts, best + 2, starts, best + 1, parts - best - 1);
+            if (best + 2 < parts - 1) System.arraycopy(ranks, best + 2, ranks, best + 1, parts - best - 3);
+            parts--;
+            if (best < parts - 1) ranks[best] = rank(bytes, starts[best], starts[best + 2]);
+            if (best > 0) ranks[best - 1] = rank(bytes, starts[best - 1], starts[best + 1]);
+        }
+
+        if (s.output != null) {
+            for (int i = 0; i < parts; i++) s.emit(lookup(bytes, starts[i], starts[i + 1] - starts[i]));
+        }
+        return parts;
+    }
+
+    private int rank(byte[] bytes, int from, int to) {
+        int id = lookup(bytes, from, to - from);
+        return id < 0 ? NO_RANK : rankOf(id);
+    }
+
+    private int rankOf(int id) {
+        return mergeRanks == null ? id : mergeRanks[id];
+    }
+
+    private int lookup(byte[] bytes, int from, int length) {
+        int hash = hash(bytes, from, length);
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int entry = table[slot];
+            if (entry == 0) return -1;
+            if (tableHashes[slot] == hash) {
+                int id = entry - 1;
+                int start = offsets[id];
+                if (offsets[id + 1] - start == length
+                        && Arrays.equals(arena, start, start + length, bytes, from, from + length)) {
+                    return id;
+                }
+            }
+        }
+    }
+
+    private void insert(int id) {
+        int hash = hash(arena, offsets[id], offsets[id + 1] - offsets[id]);
+        int slot = hash & mask;
+        while (table[slot] != 0) slot = (slot + 1) & mask;
+        table[slot] = id + 1;
+        tableHashes[slot] = hash;
+    }
+
+    private static int hash(byte[] bytes, int from, int length) {
+        int h = 0x811C9DC5;
+        for (int i = from, end = from + length; i < end; i++) h = (h ^ bytes[i]) * 0x01000193;
+        // FNV's low bits are weak for short keys
+        return h ^ (h >>> 15);
+    }
+
+    // Uses the scanner for the patterns it implements, java.util.regex otherwise
+    private static Splitter splitterFor(String pattern) {
+        if (pattern.equals(CL100K_PATTERN) || pattern.equals(LLAMA3_PATTERN)) return new Splitter(3, null);
+        if (pattern.equals(QWEN2_PATTERN)) return new Splitter(1, null);
+        return new Splitter(0, Pattern.compile(pattern, Pattern.UNICODE_CHARACTER_CLASS));
+    }
+
+    // The Split regex of a tokenizer.json pre_tokenizer, or GPT-2's for a bare ByteLevel one
+    private static String splitPattern(JsonNode preTokenizer) {
+        JsonNode regex = preTokenizer.findValue("Regex");
+        return regex != null ? regex.asText() : GPT2_PATTERN;
+    }
+
+    /**
+     * The cl100k family of split patterns, differing only in how many digits a number piece
+     * takes. Alternatives are tried in the pattern's order:
+     * 1. 's 'd 'm 't 'll 've 're
+     * 2. an optional non-letter, non-digit, non-newline character, then letters
+     * 3. 1 to maxDigits digits
+     * 4. an optional space, then punctuation, then newlines
+     * 5. whitespace up to and including its last newline
+     * 6. whitespace except the last character before a non-space (which joins the next word)
+     * 7. any other whitespace
+     */
+    private record Splitter(int maxDigits, Pattern pattern) {
+
+        int next(CharSequence text, int i, int length) {
+            int c = Character.codePointAt(text, i);
+            int cClass = classOf(c);
+            int afterC = i + Character.charCount(c);
+
+            if (c == '\'' && afterC < length) {
+                int contraction = contraction(text, afterC, length);
+                if (contraction > 0) return afterC + contraction;
+            }
+            if (cClass == LETTER) return skip(text, afterC, length, LETTER);
+            if (cClass != NUMBER && cClass != NEWLINE && afterC < length
+                    && classOf(Character.codePointAt(text, afterC)) == LETTER) {
+                return skip(text, afterC, length, LETTER);
+            }
+            if (cClass == NUMBER) {
+                int end = afterC;
+                for (int digits = 1; digits < maxDigits && end < length; digits++) {
+                    int d = Character.codePointAt(text, end);
+                    if (classOf(d) != NUMBER) break;
+                    end += Character.charCount(d);
+                }
+                return end;
+            }
+            int punctuation = cClass == OTHER ? i : c == ' ' ? afterC : -1;
+            if (punctuation >= 0 && punctuation < length
+                    && classOf(Character.codePointAt(text, punctuation)) == OTHER) {
+                int end = skip(text, punctuation, length, OTHER);
+                while (end < length && (text.charAt(end) == '\r' || text.charAt(end) == '\n')) end++;
+                return end;
+            }
+
+            // Whitespace: all of it is BMP, so one char per character from here on
+            int end = i;
+            int lastNewline = -1;
+            while (end < length) {
+                int type = classOf(text.charAt(end));
+                if (type == NEWLINE) lastNewline = end;
+                else if (type != SPACE) break;
+                end++;
+            }
+            if (lastNewline >= 0) return lastNewline + 1;
+            if (end == length || end - i == 1) return end;
+            return end - 1;
+        }
+
+        // Length of 's 'd 'm 't 'll 've 're (any case) after an apostrophe, or 0
+        private static int contraction(CharSequence text, int at, int length) {
+            char a = Character.toLowerCase(text.charAt(at));
+            if (a == 's' || a == 'd' || a == 'm' || a == 't') return 1;
+            if (at + 1 >= length) return 0;
+            char b = Character.toLowerCase(text.charAt(at + 1));
+            return (a == 'l' && b == 'l') || (a == 'v' && b == 'e') || (a == 'r' && b == 'e') ? 2 : 0;
+        }
+
+        private static int skip(CharSequence text, int i, int length, byte type) {
+            while (i < length) {
+                int c = Character.codePointAt(text, i);
+                if (classOf(c) != type) break;
+                i += Character.charCount(c);
+            }
+            return i;
+        }
+
+        // \p{L}, \p{N}, \r\n, other Unicode White_Space, or anything else
+        private static byte classOf(int c) {
+            if (c < 128) return ASCII_CLASS[c];
+            if (c == 0x85 || c == 0xA0 || c == 0x1680 || (c >= 0x2000 && c <= 0x200A)
+                    || c == 0x2028 || c == 0x2029 || c == 0x202F || c == 0x205F || c == 0x3000) {
+                return SPACE;
+            }
+            if (Character.isLetter(c)) return LETTER;
+            int type = Character.getType(c);
+            return type == Character.DECIMAL_DIGIT_NUMBER || type == Character.LETTER_NUMBER
+                    || type == Character.OTHER_NUMBER ? NUMBER : OTHER;
+        }
+    }
+
+    // Per-thread buffers, grown to the longest piece seen
+    private static final class Scratch {
+        byte[] bytes = new byte[256];
+        int[] starts = new int[257];
+        int[] ranks = new int[257];
+        int[] tokens = new int[256];
+        // Where encode() collects tokens, null when only counting
+        int[] output;
+        int outputSize;
+        // Char index up to which the text fit the budget
+        int fitsTo;
+
+        // UTF-8 of text[start, end) into bytes; returns the byte length
+        int utf8(CharSequence text, int start, int end) {
+            if (bytes.length < (end - start) * 3) bytes = new byte[(end - start) * 3];
+            byte[] out = bytes;
+            int n = 0;
+            for (int i = start; i < end; i++) {
+                char c = text.charAt(i);
+                if (c < 0x80) {
+                    out[n++] = (byte) c;
+                } else if (c < 0x800) {
+                    out[n++] = (byte) (0xC0 | c >> 6);
+                    out[n++] = (byte) (0x80 | c & 0x3F);
+                } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(text.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, text.charAt(++i));
+                    out[n++] = (byte) (0xF0 | cp >> 18);
+                    out[n++] = (byte) (0x80 | cp >> 12 & 0x3F);
+                    out[n++] = (byte) (0x80 | cp >> 6 & 0x3F);
+                    out[n++] = (byte) (0x80 | cp & 0x3F);
+                } else {
+                    if (Character.isSurrogate(c)) {
+                        // A lone surrogate becomes '?', as in String.getBytes
+                        out[n++] = '?';
+                        continue;
+                    }
+                    out[n++] = (byte) (0xE0 | c >> 12);
+                    out[n++] = (byte) (0x80 | c >> 6 & 0x3F);
+                    out[n++] = (byte) (0x80 | c & 0x3F);
+                }
+            }
+            return n;
+        }
+
+        int[] starts(int size) {
+            if (starts.length < size) {
+                starts = new int[size];
+                ranks = new int[size];
+            }
+            return starts;
+        }
+
+        void emit(int token) {
+            if (output == null) return;
+            if (outputSize == output.length) output = Arrays.copyOf(output, output.length * 2);
+            output[outputSize++] = token;
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package common.llm;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Request template and response reader for OpenAI-compatible chat completions.
+ * Everything that is the same for every request (model, system message, FAQ, sampling
+ * options) is encoded to UTF-8 once, when the codec is built. A request then only writes
+ * its own messages with a streaming {@link JsonGenerator}, straight into the HTTP sink,
+ * so no POJO graph, JSON String or intermediate byte[] is created per request.
+ * Responses are read with a streaming {@link JsonParser} that stops at the content field
+ * instead of building a tree.
+ */
+public final class ChatCodec {
+    private static final JsonFactory FACTORY = LlmClient.MAPPER.getFactory();
+
+    private static final byte[] MAX_TOKENS_FIELD = "],\"max_tokens\":".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] STREAM_TRUE_END = ",\"stream\":true}".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] STREAM_FALSE_END = ",\"stream\":false}".getBytes(StandardCharsets.UTF_8);
+
+    public record Message(String role, String content) {
+        public static Message system(String content) {
+            return new Message("system", content);
+        }
+
+        public static Message user(String content) {
+            return new Message("user", content);
+        }
+    }
+
+    private final String model;
+    // {"model":"...","messages":[ followed by the fixed leading messages
+    private final byte[] prefix;
+    private final boolean hasFixedMessages;
+    private final int maxTokens;
+    // ,"temperature":1.0,"top_p":... or empty
+    private final byte[] options;
+
+    private ChatCodec(Builder builder) {
+        this.model = builder.model;
+        this.maxTokens = builder.maxTokens;
+        this.hasFixedMessages = !builder.messages.isEmpty();
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            JsonGenerator gen = FACTORY.createGenerator(out);
+            gen.writeStartObject();
+            gen.writeStringField("model", builder.model);
+            gen.writeArrayFieldStart("messages");
+            for (Message message : builder.messages) writeMessage(gen, message);
+            // Only flushed: the object and array stay open for the per-request messages
+            gen.flush();
+            this.prefix = out.toByteArray();
+
+            out.reset();
+            for (Option option : builder.options) {
+                out.write(',');
+                out.write(LlmClient.MAPPER.writeValueAsBytes(option.name()));
+                out.write(':');
+                out.write(LlmClient.MAPPER.writeValueAsBytes(option.value()));
+            }
+            this.options = out.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public String model() {
+        return model;
+    }
+
+    /**
+     * A request made of the fixed messages followed by {@code messages}.
+     */
+    public EncodedChat encode(boolean stream, Message... messages) {
+        return new EncodedChat(this, stream, maxTokens, messages);
+    }
+
+    public EncodedChat encode(boolean stream, int maxTokens, Message... messages) {
+        return new EncodedChat(this, stream, maxTokens, messages);
+    }
+
+    void writeTo(OutputStream out, boolean stream, int maxTokens, Message[] messages) throws IOException {
+        out.write(prefix);
+        JsonGenerator gen = FACTORY.createGenerator(out);
+        // Closing the generator must neither close nor flush the HTTP sink
+        gen.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        gen.disable(JsonGenerator.Feature.FLUSH_PASSED_TO_STREAM);
+        // Messages are written as separate root values; the commas between them are ours
+        gen.setRootValueSeparator(null);
+        for (int i = 0; i < messages.length; i++) {
+            if (i > 0 || hasFixedMessages) gen.writeRaw(',');
+            writeMessage(gen, messages[i]);
+        }
+        gen.close();
+
+        out.write(MAX_TOKENS_FIELD);
+        writeInt(out, maxTokens);
+        out.write(options);
+        out.write(stream ? STREAM_TRUE_END : STREAM_FALSE_END);
+    }
+
+    /**
+     * Reads "/choices/0/message/content" from a chat completion response, or "" if absent.
+     */
+    public static String readContent(InputStream in) throws IOException {
+        try (JsonParser parser = FACTORY.createParser(in)) {
+            return readChoiceContent(parser, "message");
+        }
+    }
+
+    /**
+     * The answer of a chat completion with the token counts of its "usage" (0 when absent).
+     */
+    public record Completion(String content, int promptTokens, int completionTokens) {}
+
+    /**
+     * Like {@link #readContent(InputStream)}, but reads on to the "usage" object, which
+     * servers put after the choices.
+     */
+    public static Completion readCompletion(InputStream in) throws IOException {
+        try (JsonParser parser = FACTORY.createParser(in)) {
+            String content = "";
+            int promptTokens = 0;
+            int completionTokens = 0;
+            if (parser.nextToken() != JsonToken.START_OBJECT) return new Completion(content, 0, 0);
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken value = parser.nextToken();
+                if (field.equals("choices") && value == JsonToken.START_ARRAY) {
+                    if (parser.nextToken() == JsonToken.START_OBJECT) content = readObjectContent(parser, "message");
+                    // Back up to the top-level object, wherever in the choices the content was
+                    while (!parser.getParsingContext().getParent().inRoot()) {
+                        if (parser.nextToken() == null) return new Completion(content, promptTokens, completionTokens);
+                    }
+                } else if (field.equals("usage") && value == JsonToken.START_OBJECT) {
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        String inner = parser.currentName();
+                        JsonToken innerValue = parser.nextToken();
+                        if (inner.equals("prompt_tokens") && innerValue == JsonToken.VALUE_NUMBER_INT) {
+                            promptTokens = parser.getIntValue();
+                        } else if (inner.equals("completion_tokens") && innerValue == JsonToken.VALUE_NUMBER_INT) {
+                            completionTokens = parser.getIntValue();
+                        } else {
+                            parser.skipChildren();
+                        }
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            return new Completion(content, promptTokens, completionTokens);
+        }
+    }
+
+    /**
+     * Reads "/choices/0/delta/content" from one streamed chunk, or "" if absent.
+     */
+    public static String readDeltaContent(String chunk) throws IOException {
+        try (JsonParser parser = FACTORY.createParser(chunk)) {
+            return readChoiceContent(parser, "delta");
+        }
+    }
+
+    private static String readChoiceContent(JsonParser parser, String container) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) return "";
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken value = parser.nextToken();
+            if (field.equals("choices") && value == JsonToken.START_ARRAY) {
+                if (parser.nextToken() != JsonToken.START_OBJECT) return "";
+                return readObjectContent(parser, container);
+            }
+            parser.skipChildren();
+        }
+        return "";
+    }
+
+    // Inside choices[0]: finds {container: {"content": ...}} and skips everything else
+    private static String readObjectContent(JsonParser parser, String container) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken value = parser.nextToken();
+            if (field.equals(container) && value == JsonToken.START_OBJECT) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String inner = parser.currentName();
+                    JsonToken innerValue = parser.nextToken();
+                    if (inner.equals("content")) {
+                        return innerValue == JsonToken.VALUE_STRING ? parser.getText() : "";
+                    }
+                    parser.skipChildren();
+                }
+                return "";
+            }
+            parser.skipChildren();
+        }
+        return "";
+    }
+
+    private static void writeMessage(JsonGenerator gen, Message message) throws IOException {
+        gen.writeStartObject();
+        gen.writeStringField("role", message.role());
+        gen.writeStringField("content", message.content());
+        gen.writeEndObject();
+    }
+
+    private static void writeInt(OutputStream out, int value) throws IOException {
+        if (value < 0) throw new IllegalArgumentException("max_tokens must not be negative: " + value);
+        if (value >= 10) writeInt(out, value / 10);
+        out.write('0' + value % 10);
+    }
+
+    private record Option(String name, Object value) {}
+
+    public static class Builder {
+        private String model;
+        private final List<Message> messages = new ArrayList<>();
+        private int maxTokens = 256;
+        private final List<Option> options = new ArrayList<>();
+
+        private Builder() {
+
+        }
+
+        public Builder model(String model) {
+            this.model = model;
+            return this;
+        }
+
+        /**
+         * Adds a message sent at the start of every request, such as the system prompt or the FAQ.
+         */
+        public Builder message(String role, String content) {
+            this.messages.add(new Message(role, content));
+            return this;
+        }
+
+        public Builder maxTokens(int maxTokens) {
+            this.maxTokens = maxTokens;
+            return this;
+        }
+
+        /**
+         * Adds a top-level request field such as "temperature" or "top_p".
+         */
+        public Builder option(String name, Object value) {
+            this.options.add(new Option(name, value));
+            return this;
+        }
+
+        public ChatCodec build() {
+            if (model == null) throw new IllegalStateException("model is required");
+            return new ChatCodec(this);
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package common.llm;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * Answers OpenAI-compatible chat completion requests: a single {@link LlmClient}
+ * or a {@link BackendPool} spreading requests over several of them.
+ */
+public interface ChatEndpoint {
+
+    /**
+     * Sends a chat completion request and returns the text of the first choice.
+     */
+    CompletableFuture<String> chatAsync(Object chatRequest);
+
+    /**
+     * Sends a "stream": true request; every content delta is handed to {@code onDelta} in order.
+     */
+    CompletableFuture<String> streamAsync(Object chatRequest, Consumer<String> onDelta);
+}
@@ -0,0 +1,302 @@
+package common.llm;
+
+import common.cache.BoundedCache;
+import common.cache.CacheStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToIntFunction;
+
+/**
+ * Recent turns of many conversations (one per user or channel), for follow-up questions.
+ * - Each conversation keeps at most {@code maxTurns} turns in a ring buffer, and only as
+ *   many as fit in {@code historyTokens}; older turns are dropped from the ring
+ * - With a {@link Summarizer}, dropped turns are folded into a short running summary in the
+ *   background, capped at {@code summaryTokens}
+ * - All conversations together stay under {@code maxBytes}; idle ones expire and the least
+ *   recently used are evicted first
+ * So the history added to a prompt never exceeds summaryTokens + historyTokens, however
+ * long a conversation runs.
+ */
+public class ConversationMemory {
+    private static final Logger logger = LoggerFactory.getLogger(ConversationMemory.class);
+
+    // Rough heap cost of a conversation and of one turn besides their text
+    private static final int CONVERSATION_OVERHEAD_BYTES = 160;
+    private static final int TURN_OVERHEAD_BYTES = 64;
+
+    public record Turn(String user, String assistant, int tokens) {}
+
+    /**
+     * What goes into the next prompt: the summary of older turns (may be empty) and the
+     * recent turns, oldest first.
+     */
+    public record History(String summary, List<Turn> turns) {
+        public static final History EMPTY = new History("", List.of());
+
+        public boolean isEmpty() {
+            return summary.isEmpty() && turns.isEmpty();
+        }
+    }
+
+    /**
+     * Folds {@code dropped} turns into {@code summary} (empty for the first call) and
+     * returns the new summary.
+     */
+    @FunctionalInterface
+    public interface Summarizer {
+        CompletableFuture<String> summarize(String summary, List<Turn> dropped);
+    }
+
+    private final int maxTurns;
+    private final int historyTokens;
+    private final int summaryTokens;
+    private final ToIntFunction<String> tokenCounter;
+    private final Summarizer summarizer;
+    private final BoundedCache<String, Conversation> conversations;
+
+    private final Object lock = new Object();
+    private final LongAdder droppedTurns = new LongAdder();
+    private final LongAdder summaries = new LongAdder();
+    private final LongAdder summaryFailures = new LongAdder();
+
+    private ConversationMemory(Builder builder) {
+        this.maxTurns = builder.maxTurns;
+        this.historyTokens = builder.historyTokens;
+        this.summaryTokens = builder.summaryTokens;
+        this.tokenCounter = builder.tokenCounter;
+        this.summarizer = builder.summarizer;
+        this.conversations = BoundedCache.<String, Conversation>builder()
+                .maxEntries(builder.maxConversations)
+                .maxWeight(builder.maxBytes)
+                .defaultTtl(builder.idleTimeout)
+                .weigher((key, conversation) -> 2L * key.length() + conversation.bytes)
+                .build();
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public History history(String conversationId) {
+        synchronized (lock) {
+            Conversation conversation = conversations.get(conversationId);
+            return conversation == null ? History.EMPTY : conversation.history();
+        }
+    }
+
+    /**
+     * Appends a finished turn; turns that no longer fit are handed to the summarizer.
+     */
+    public void record(String conversationId, String user, String assistant) {
+        Conversation conversation;
+        List<Turn> toSummarize = null;
+        String previousSummary = null;
+        synchronized (lock) {
+            conversation = conversations.get(conversationId);
+            if (conversation == null) conversation = new Conversation(maxTurns);
+
+            Turn turn = new Turn(user, assistant, tokenCounter.applyAsInt(user) + tokenCounter.applyAsInt(assistant));
+            List<Turn> dropped = conversation.add(turn, historyTokens);
+            if (summarizer == null) {
+                droppedTurns.add(dropped.size());
+            } else {
+                conversation.pending.addAll(dropped);
+                if (!conversation.pending.isEmpty() && !conversation.summarizing) {
+                    toSummarize = List.copyOf(conversation.pending);
+                    conversation.pending.clear();
+                    conversation.summarizing = true;
+                    previousSummary = conversation.summary;
+                }
+            }
+            // Put again so the cache re-weighs the conversation and restarts its idle timeout
+            conversations.put(conversationId, conversation);
+        }
+        if (toSummarize != null) summarize(conversationId, conversation, previousSummary, toSummarize);
+    }
+
+    public void forget(String conversationId) {
+        synchronized (lock) {
+            conversations.invalidate(conversationId);
+        }
+    }
+
+    public CacheStats stats() {
+        return conversations.stats();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s droppedTurns=%d summaries=%d summaryFailures=%d",
+                conversations.stats(), droppedTurns.sum(), summaries.sum(), summaryFailures.sum());
+    }
+
+    // Runs outside the lock; turns dropped meanwhile are summarized in the next round
+    private void summarize(String conversationId, Conversation conversation, String summary, List<Turn> dropped) {
+        CompletableFuture<String> result;
+        try {
+            result = summarizer.summarize(summary, dropped);
+        } catch (RuntimeException e) {
+            result = CompletableFuture.failedFuture(e);
+        }
+        result.whenComplete((newSummary, error) -> {
+            List<Turn> next = null;
+            String nextSummary;
+            synchronized (lock) {
+                if (error == null && newSummary != null) {
+                    summaries.increment();
+                    conversation.setSummary(truncate(newSummary.strip()));
+                } else {
+                    // The turns are lost; the conversation goes on with the previous summary
+                    summaryFailures.increment();
+                    droppedTurns.add(dropped.size());
+                    logger.debug("Summarizing {} turns of {} failed: {}", dropped.size(), conversationId,
+                            error == null ? "no summary" : error.getMessage());
+                }
+                conversation.summarizing = false;
+                nextSummary = conversation.summary;
+                if (!conversation.pending.isEmpty()) {
+                    next = List.copyOf(conversation.pending);
+                    conversation.pending.clear();
+                    conversation.summarizing = true;
+                }
+                // Re-weigh only if the conversation was not evicted in the meantime
+                if (conversations.get(conversationId) == conversation) conversations.put(conversationId, conversation);
+            }
+            if (next != null) summarize(conversationId, conversation, nextSummary, next);
+        });
+    }
+
+    // Cuts an overlong summary to roughly summaryTokens, at a word boundary
+    private String truncate(String summary) {
+        int tokens = tokenCounter.applyAsInt(summary);
+        if (tokens <= summaryTokens) return summary;
+        int end = (int) ((long) summary.length() * summaryTokens / tokens);
+        int space = summary.lastIndexOf(' ', end);
+        return summary.substring(0, space > 0 ? space : end);
+    }
+
+    // Guarded by the memory's lock
+    private static class Conversation {
+        final Turn[] ring;
+        int head;
+        int size;
+        int tokens;
+        String summary = "";
+        long bytes = CONVERSATION_OVERHEAD_BYTES;
+        final List<Turn> pending = new ArrayList<>();
+        boolean summarizing;
+
+        Conversation(int maxTurns) {
+            this.ring = new Turn[maxTurns];
+        }
+
+        // Returns the turns pushed out by the ring size or the token budget, oldest first
+        List<Turn> add(Turn turn, int historyTokens) {
+            List<Turn> dropped = new ArrayList<>(0);
+            if (size == ring.length) dropped.add(removeOldest());
+            ring[(head + size) % ring.length] = turn;
+            size++;
+            tokens += turn.tokens();
+            bytes += weight(turn);
+            while (tokens > historyTokens && size > 0) dropped.add(removeOldest());
+            return dropped;
+        }
+
+        Turn removeOldest() {
+            Turn oldest = ring[head];
+            ring[head] = null;
+            head = (head + 1) % ring.length;
+            size--;
+            tokens -= oldest.tokens();
+            bytes -= weight(oldest);
+            return oldest;
+        }
+
+        void setSummary(String summary) {
+            bytes += 2L * (summary.length() - this.summary.length());
+            this.summary = summary;
+        }
+
+        History history() {
+            List<Turn> turns = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) turns.add(ring[(head + i) % ring.length]);
+            return new History(summary, turns);
+        }
+
+        static long weight(Turn turn) {
+            return TURN_OVERHEAD_BYTES + 2L * (turn.user().length() + turn.assistant().length());
+        }
+    }
+
+    public static class Builder {
+        private int maxTurns = 6;
+        private int historyTokens = 512;
+        private int summaryTokens = 128;
+        private int maxConversations = 10_000;
+        private long maxBytes = 16L * 1024 * 1024;
+        private Duration idleTimeout = Duration.ofHours(1);
+        // About four characters per token for English text
+        private ToIntFunction<String> tokenCounter = text -> (text.length() + 3) / 4;
+        private Summarizer summarizer;
+
+        private Builder() {
+
+        }
+
+        public Builder maxTurns(int maxTurns) {
+            this.maxTurns = maxTurns;
+            return this;
+        }
+
+        // Budget for the recent turns in a prompt
+        public Builder historyTokens(int historyTokens) {
+            this.historyTokens = historyTokens;
+            return this;
+        }
+
+        // Budget for the summary of older turns in a prompt
+        public Builder summaryTokens(int summaryTokens) {
+            this.summaryTokens = summaryTokens;
+            return this;
+        }
+
+        public Builder maxConversations(int maxConversations) {
+            this.maxConversations = maxConversations;
+            return this;
+        }
+
+        // Estimated heap for all conversations together
+        public Builder maxBytes(long maxBytes) {
+            this.maxBytes = maxBytes;
+            return this;
+        }
+
+        // A conversation not touched for this long is forgotten
+        public Builder idleTimeout(Duration idleTimeout) {
+            this.idleTimeout = idleTimeout;
+            return this;
+        }
+
+        public Builder tokenCounter(ToIntFunction<String> tokenCounter) {
+            this.tokenCounter = tokenCounter;
+            return this;
+        }
+
+        // Without a summarizer, turns that no longer fit are simply dropped
+        public Builder summarizer(Summarizer summarizer) {
+            this.summarizer = summarizer;
+            return this;
+        }
+
+        public ConversationMemory build() {
+            if (maxTurns < 1) throw new IllegalStateException("maxTurns must be at least 1");
+            return new ConversationMemory(this);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package common.llm;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+
+/**
+ * One chat request produced by {@link ChatCodec}. Nothing is serialized until the HTTP
+ * client writes the body; it can be written again if OkHttp retries the call.
+ */
+public final class EncodedChat {
+    private static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
+
+    private final ChatCodec codec;
+    private final boolean stream;
+    private final int maxTokens;
+    private final ChatCodec.Message[] messages;
+
+    EncodedChat(ChatCodec codec, boolean stream, int maxTokens, ChatCodec.Message[] messages) {
+        this.codec = codec;
+        this.stream = stream;
+        this.maxTokens = maxTokens;
+        this.messages = messages;
+    }
+
+    public String model() {
+        return codec.model();
+    }
+
+    int maxTokens() {
+        return maxTokens;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        codec.writeTo(out, stream, maxTokens, messages);
+    }
+
+    /**
+     * The request as JSON bytes, for logging and debugging.
+     */
+    public byte[] toByteArray() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            writeTo(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    RequestBody requestBody() {
+        return new RequestBody() {
+            @Override
+            public MediaType contentType() {
+                return JSON;
+            }
+
+            // Unknown length: the body is streamed with chunked transfer encoding
+            @Override
+            public void writeTo(BufferedSink sink) throws IOException {
+                EncodedChat.this.writeTo(sink.outputStream());
+            }
+        };
+    }
+}
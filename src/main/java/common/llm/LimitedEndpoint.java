@@ -0,0 +1,35 @@
+package common.llm;
+
+import common.concurrent.AdaptiveLimiter;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * Sends chat requests through an {@link AdaptiveLimiter}, so only as many run at once as the
+ * backend handles without its latency climbing. Requests over the limit queue, and fail with
+ * {@link java.util.concurrent.RejectedExecutionException} once the queue is full.
+ */
+public class LimitedEndpoint implements ChatEndpoint {
+    private final ChatEndpoint delegate;
+    private final AdaptiveLimiter limiter;
+
+    public LimitedEndpoint(ChatEndpoint delegate, AdaptiveLimiter limiter) {
+        this.delegate = delegate;
+        this.limiter = limiter;
+    }
+
+    public AdaptiveLimiter limiter() {
+        return limiter;
+    }
+
+    @Override
+    public CompletableFuture<String> chatAsync(Object chatRequest) {
+        return limiter.submit(() -> delegate.chatAsync(chatRequest));
+    }
+
+    @Override
+    public CompletableFuture<String> streamAsync(Object chatRequest, Consumer<String> onDelta) {
+        return limiter.submit(() -> delegate.streamAsync(chatRequest, onDelta));
+    }
+}
@@ -0,0 +1,479 @@
+package common.llm;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import common.concurrent.Futures;
+import common.jfr.LlmRequestEvent;
+import common.metrics.CallTimer;
+import common.metrics.Metrics;
+import okhttp3.*;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.ForwardingSink;
+import okio.Okio;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Shared, thread-safe client for OpenAI-compatible /v1/chat/completions endpoints
+ * (Ollama, Hugging Face router, OpenAI).
+ * Features:
+ * - One instance per endpoint and config, obtained through {@link #forEndpoint(String, LlmClientConfig)}
+ * - Keep-alive connection pool and dispatcher sized per endpoint
+ * - Connect, read and total call timeouts
+ * - Non-blocking {@link CompletableFuture} API; cancelling the future cancels the HTTP call
+ * - Pre-encoded request templates through {@link ChatCodec}, streamed into the socket
+ * - Token streaming over server-sent events for "stream": true requests
+ * - One shared {@link ObjectMapper} instead of a new mapper per request
+ * - Several servers for the same models can be combined in a {@link BackendPool}
+ * - Optional provider quotas through a {@link RateLimiterRegistry}, with retries of 429 and
+ *   503 answers after Retry-After or a jittered backoff
+ * - Latency of every request in {@link Metrics#global()} as llm_request_seconds{endpoint=...}
+ * - A {@link LlmRequestEvent} per HTTP attempt when a flight recording is running, with
+ *   prompt bytes, token counts and status
+ */
+public class LlmClient implements ChatEndpoint {
+    private static final Logger logger = LoggerFactory.getLogger(LlmClient.class);
+
+    // ObjectMapper is thread-safe once configured, so every client shares this one
+    public static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
+
+    // Daemon threads, so command-line examples exit as soon as main() returns
+    private static final ExecutorService DISPATCH_EXECUTOR = new ThreadPoolExecutor(
+            0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, "llm-client-dispatcher");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    // All per-endpoint clients are derived from this one and share its thread pools
+    private static final OkHttpClient BASE_CLIENT = new OkHttpClient.Builder()
+            .dispatcher(new Dispatcher(DISPATCH_EXECUTOR))
+            .build();
+
+    // Keyed by config too, so callers with their own token, rate limits or timeouts get their own client
+    private static final Map<ClientKey, LlmClient> CLIENTS = new ConcurrentHashMap<>();
+
+    private record ClientKey(String endpoint, LlmClientConfig config) {
+    }
+
+    private final String endpoint;
+    private final LlmClientConfig config;
+    private final OkHttpClient httpClient;
+    // Every HTTP attempt, retries included; waiting for a rate limit permit is not counted
+    private final CallTimer requests;
+
+    private LlmClient(String endpoint, LlmClientConfig config) {
+        this.endpoint = endpoint;
+        this.config = config;
+        this.requests = Metrics.global().calls("llm_request_seconds", "HTTP requests to LLM endpoints",
+                "endpoint", endpoint);
+
+        Dispatcher dispatcher = new Dispatcher(DISPATCH_EXECUTOR);
+        dispatcher.setMaxRequestsPerHost(config.maxRequestsPerHost());
+        dispatcher.setMaxRequests(Math.max(64, config.maxRequestsPerHost()));
+
+        this.httpClient = BASE_CLIENT.newBuilder()
+                .dispatcher(dispatcher)
+                .connectionPool(new ConnectionPool(config.maxIdleConnections(),
+                        config.keepAlive().toMillis(), TimeUnit.MILLISECONDS))
+                .connectTimeout(config.connectTimeout())
+                .readTimeout(config.readTimeout())
+                .callTimeout(config.callTimeout())
+                .build();
+    }
+
+    /**
+     * Returns the shared client for the endpoint with default settings.
+     */
+    public static LlmClient forEndpoint(String endpoint) {
+        return forEndpoint(endpoint, LlmClientConfig.defaults());
+    }
+
+    /**
+     * Returns the shared client for the endpoint and config. Calls with an equal config
+     * reuse one client; a different config gets a client with its own connection pool.
+     */
+    public static LlmClient forEndpoint(String endpoint, LlmClientConfig config) {
+        return CLIENTS.computeIfAbsent(new ClientKey(endpoint, config), key -> new LlmClient(key.endpoint(), key.config()));
+    }
+
+    public String endpoint() {
+        return endpoint;
+    }
+
+    public LlmClientConfig config() {
+        return config;
+    }
+
+    /**
+     * Latency of every HTTP attempt to this endpoint, by outcome.
+     */
+    public CallTimer requests() {
+        return requests;
+    }
+
+    /**
+     * Sends a chat completion request and returns the text of the first choice.
+     *
+     * @param chatRequest An {@link EncodedChat}, or any object Jackson can serialize to an OpenAI chat request
+     * @return Future with the "/choices/0/message/content" value
+     */
+    @Override
+    public CompletableFuture<String> chatAsync(Object chatRequest) {
+        // Only content and usage are pulled out of the response; no JSON tree is built
+        return Futures.thenApplyCancellable(
+                sendAsync(chatRequest, body -> ChatCodec.readCompletion(body.byteStream())),
+                ChatCodec.Completion::content);
+    }
+
+    /**
+     * Posts a JSON body to the endpoint and returns the parsed JSON response.
+     * Non-2xx responses complete the future with {@link LlmHttpException}.
+     */
+    public CompletableFuture<JsonNode> postAsync(Object body) {
+        return sendAsync(body, responseBody -> MAPPER.readTree(responseBody.byteStream()));
+    }
+
+    @FunctionalInterface
+    private interface BodyReader<T> {
+        T read(ResponseBody body) throws IOException;
+    }
+
+    /**
+     * Sends a GET to the endpoint and returns the parsed JSON response, e.g. for health probes.
+     * Non-2xx responses complete the future with {@link LlmHttpException}.
+     */
+    public CompletableFuture<JsonNode> getAsync() {
+        return sendAsync(requestBuilder().get().build(), null, responseBody -> MAPPER.readTree(responseBody.byteStream()));
+    }
+
+    private <T> CompletableFuture<T> sendAsync(Object body, BodyReader<T> reader) {
+        RequestBody requestBody;
+        try {
+            requestBody = requestBody(body);
+        } catch (JsonProcessingException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return sendAsync(newRequest(requestBody), modelOf(body), reader);
+    }
+
+    private <T> CompletableFuture<T> sendAsync(Request request, String model, BodyReader<T> reader) {
+        return rateLimited(model, () -> sendOnce(request, model, reader));
+    }
+
+    private <T> CompletableFuture<T> sendOnce(Request request, String model, BodyReader<T> reader) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        long startNanos = System.nanoTime();
+        LlmRequestEvent event = newEvent(model, false);
+        CountingBody counted = event.isEnabled() && request.body() != null ? new CountingBody(request.body()) : null;
+        Call call = httpClient.newCall(counted == null ? request : request.newBuilder().post(counted).build());
+        call.enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                future.completeExceptionally(e);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                try (response) {
+                    event.status = response.code();
+                    observeRateLimits(response);
+                    ResponseBody responseBody = response.body();
+                    if (!response.isSuccessful()) {
+                        String errorBody = responseBody != null ? responseBody.string() : "";
+                        future.completeExceptionally(httpError(response, errorBody));
+                        return;
+                    }
+                    if (responseBody == null) throw new IOException("Empty response from " + endpoint);
+                    future.complete(reader.read(responseBody));
+                } catch (Exception e) {
+                    future.completeExceptionally(e);
+                }
+            }
+        });
+
+        // Cancelling the future (e.g. the caller gave up) frees the connection
+        future.whenComplete((result, error) -> {
+            requests.record(startNanos, error);
+            if (result instanceof ChatCodec.Completion completion) {
+                event.promptTokens = completion.promptTokens();
+                event.completionTokens = completion.completionTokens();
+            }
+            commit(event, counted, future.isCancelled() ? "cancelled" : error == null ? "ok" : "error");
+            if (future.isCancelled()) call.cancel();
+        });
+        return future;
+    }
+
+    /**
+     * Sends a chat completion request with "stream": true and parses the server-sent events
+     * as they arrive. Each content delta is handed to {@code onDelta} on the dispatcher thread.
+     *
+     * @param chatRequest Request object that serializes with "stream": true
+     * @param onDelta     Receives every non-empty "/choices/0/delta/content" fragment in order
+     * @return Future with the full concatenated answer, completed after "data: [DONE]"
+     */
+    @Override
+    public CompletableFuture<String> streamAsync(Object chatRequest, Consumer<String> onDelta) {
+        RequestBody requestBody;
+        try {
+            requestBody = requestBody(chatRequest);
+        } catch (JsonProcessingException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        // A 429 or 503 arrives before the first delta, so a retry never repeats output
+        String model = modelOf(chatRequest);
+        return rateLimited(model, () -> streamOnce(requestBody, model, onDelta));
+    }
+
+    private CompletableFuture<String> streamOnce(RequestBody requestBody, String model, Consumer<String> onDelta) {
+        CompletableFuture<String> future = new CompletableFuture<>();
+        long startNanos = System.nanoTime();
+        LlmRequestEvent event = newEvent(model, true);
+        CountingBody counted = event.isEnabled() ? new CountingBody(requestBody) : null;
+        Call call = httpClient.newCall(newRequest(counted == null ? requestBody : counted).newBuilder()
+                .header("Accept", "text/event-stream")
+                .build());
+        call.enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                future.completeExceptionally(e);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                try (response) {
+                    event.status = response.code();
+                    observeRateLimits(response);
+                    if (!response.isSuccessful()) {
+                        String responseBody = response.body() != null ? response.body().string() : "";
+                        future.completeExceptionally(httpError(response, responseBody));
+                        return;
+                    }
+                    future.complete(readEvents(response.body().source(), onDelta, future, event));
+                } catch (Exception e) {
+                    future.completeExceptionally(e);
+                }
+            }
+        });
+
+        // A stream is timed until its last token
+        future.whenComplete((result, error) -> {
+            requests.record(startNanos, error);
+            commit(event, counted, future.isCancelled() ? "cancelled" : error == null ? "ok" : "error");
+            if (future.isCancelled()) call.cancel();
+        });
+        return future;
+    }
+
+    /**
+     * Without rate limits in the config, just {@code attempt}. Otherwise waits for a permit of
+     * the provider and model before each attempt, and retries 429 and 503 answers up to
+     * maxRetries times. Cancelling the result cancels the wait or the running attempt.
+     */
+    private <T> CompletableFuture<T> rateLimited(String model, Supplier<CompletableFuture<T>> attempt) {
+        RateLimiterRegistry registry = config.rateLimits();
+        if (registry == null) return attempt.get();
+        CompletableFuture<T> result = new CompletableFuture<>();
+        AtomicReference<CompletableFuture<?>> running = new AtomicReference<>();
+        result.whenComplete((value, error) -> {
+            CompletableFuture<?> current = running.get();
+            if (result.isCancelled() && current != null) current.cancel(true);
+        });
+        attempt(registry, model, attempt, 0, result, running);
+        return result;
+    }
+
+    private <T> void attempt(RateLimiterRegistry registry, String model, Supplier<CompletableFuture<T>> attempt,
+                             int retries, CompletableFuture<T> result, AtomicReference<CompletableFuture<?>> running) {
+        CompletableFuture<Void> permit = registry.acquire(config.provider(), model);
+        running.set(permit);
+        permit.whenComplete((ignored, permitError) -> {
+            if (result.isDone()) return;
+            if (permitError != null) {
+                result.completeExceptionally(permitError);
+                return;
+            }
+            CompletableFuture<T> call = attempt.get();
+            running.set(call);
+            if (result.isCancelled()) call.cancel(true);
+            call.whenComplete((value, error) -> {
+                if (error == null) {
+                    result.complete(value);
+                    return;
+                }
+                IOException cause = asIOException(error);
+                if (cause instanceof LlmHttpException http && RateLimiterRegistry.isRetryable(http.code())
+                        && retries < config.maxRetries() && !result.isDone()) {
+                    Duration delay = registry.backoff(config.provider(), model, http.code(), http.retryAfter(), retries);
+                    logger.info("HTTP {} from {}, retry {} of {} in {} ms", http.code(), endpoint, retries + 1,
+                            config.maxRetries(), delay.toMillis());
+                    attempt(registry, model, attempt, retries + 1, result, running);
+                } else {
+                    result.completeExceptionally(error);
+                }
+            });
+        });
+    }
+
+    private void observeRateLimits(Response response) {
+        RateLimiterRegistry registry = config.rateLimits();
+        if (registry != null) registry.observe(config.provider(), response::header);
+    }
+
+    // Retry-After header, or the "estimated_time" of a Hugging Face model that is still loading
+    private static LlmHttpException httpError(Response response, String body) {
+        Duration retryAfter = RateLimiterRegistry.parseRetryAfter(response.header("Retry-After"));
+        if (retryAfter == null && response.code() == 503 && body.contains("estimated_time")) {
+            try {
+                JsonNode estimated = MAPPER.readTree(body).get("estimated_time");
+                if (estimated != null && estimated.isNumber()) {
+                    retryAfter = Duration.ofMillis((long) (estimated.asDouble() * 1000));
+                }
+            } catch (IOException e) {
+                // Not JSON after all; fall back to the backoff
+            }
+        }
+        return new LlmHttpException(response.code(), body, retryAfter);
+    }
+
+    private LlmRequestEvent newEvent(String model, boolean stream) {
+        LlmRequestEvent event = new LlmRequestEvent();
+        event.endpoint = endpoint;
+        event.model = model;
+        event.stream = stream;
+        event.begin();
+        return event;
+    }
+
+    private static void commit(LlmRequestEvent event, CountingBody body, String outcome) {
+        event.end();
+        if (!event.shouldCommit()) return;
+        if (body != null) event.promptBytes = body.bytes;
+        event.outcome = outcome;
+        event.commit();
+    }
+
+    private static String modelOf(Object body) {
+        return body instanceof EncodedChat chat ? chat.model() : null;
+    }
+
+    // SSE framing: "data: {json}" lines separated by blank lines, terminated by "data: [DONE]"
+    private static String readEvents(BufferedSource source, Consumer<String> onDelta,
+                                     CompletableFuture<String> future, LlmRequestEvent event) throws IOException {
+        StringBuilder answer = new StringBuilder();
+        String line;
+        while (!future.isDone() && (line = source.readUtf8Line()) != null) {
+            if (!line.startsWith("data:")) continue;
+
+            String data = line.substring(5).trim();
+            if (data.equals("[DONE]")) break;
+            if (data.isEmpty()) continue;
+
+            String delta = ChatCodec.readDeltaContent(data);
+            if (!delta.isEmpty()) {
+                // Servers send about one token per chunk
+                event.completionTokens++;
+                answer.append(delta);
+                onDelta.accept(delta);
+            }
+        }
+        return answer.toString();
+    }
+
+    /**
+     * Blocking convenience wrapper around {@link #chatAsync(Object)} for command-line examples.
+     */
+    public String chat(Object chatRequest) throws IOException {
+        try {
+            return chatAsync(chatRequest).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for " + endpoint, e);
+        } catch (ExecutionException e) {
+            throw asIOException(e.getCause());
+        }
+    }
+
+    /**
+     * Unwraps the cause of a failed future into an IOException.
+     */
+    public static IOException asIOException(Throwable error) {
+        while (error instanceof CompletionException && error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error instanceof IOException io ? io : new IOException(error);
+    }
+
+    private static RequestBody requestBody(Object body) throws JsonProcessingException {
+        if (body instanceof EncodedChat chat) return chat.requestBody();
+        return RequestBody.create(MAPPER.writeValueAsBytes(body), JSON);
+    }
+
+    private Request newRequest(RequestBody body) {
+        return requestBuilder().post(body).build();
+    }
+
+    private Request.Builder requestBuilder() {
+        Request.Builder builder = new Request.Builder().url(endpoint);
+        if (config.bearerToken() != null) {
+            builder.header("Authorization", "Bearer " + config.bearerToken());
+        }
+        return builder;
+    }
+
+    // Counts the bytes of a request body as OkHttp writes it; streamed bodies have no length up front
+    private static final class CountingBody extends RequestBody {
+        private final RequestBody delegate;
+        volatile long bytes;
+
+        CountingBody(RequestBody delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return delegate.contentType();
+        }
+
+        @Override
+        public long contentLength() throws IOException {
+            return delegate.contentLength();
+        }
+
+        @Override
+        public void writeTo(BufferedSink sink) throws IOException {
+            bytes = 0;
+            BufferedSink counting = Okio.buffer(new ForwardingSink(sink) {
+                @Override
+                public void write(Buffer source, long byteCount) throws IOException {
+                    super.write(source, byteCount);
+                    bytes += byteCount;
+                }
+            });
+            delegate.writeTo(counting);
+            // Hands the bytes on without flushing the socket, like the delegate would
+            counting.emit();
+        }
+    }
+}
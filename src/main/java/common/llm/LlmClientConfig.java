@@ -0,0 +1,184 @@
+package common.llm;
+
+import java.time.Duration;
+import java.util.Objects;
+
+/**
+ * Connection and timeout settings for an {@link LlmClient}.
+ * Each endpoint gets its own connection pool and dispatcher sized from this config.
+ * Configs with the same settings are equal, so {@link LlmClient#forEndpoint(String, LlmClientConfig)}
+ * hands them the same client; the rate limit registry is compared by identity.
+ */
+public class LlmClientConfig {
+    private final Duration connectTimeout;
+    private final Duration readTimeout;
+    private final Duration callTimeout;
+    private final int maxIdleConnections;
+    private final Duration keepAlive;
+    private final int maxRequestsPerHost;
+    private final String bearerToken;
+    private final RateLimiterRegistry rateLimits;
+    private final String provider;
+    private final int maxRetries;
+
+    private LlmClientConfig(Builder builder) {
+        this.connectTimeout = builder.connectTimeout;
+        this.readTimeout = builder.readTimeout;
+        this.callTimeout = builder.callTimeout;
+        this.maxIdleConnections = builder.maxIdleConnections;
+        this.keepAlive = builder.keepAlive;
+        this.maxRequestsPerHost = builder.maxRequestsPerHost;
+        this.bearerToken = builder.bearerToken;
+        this.rateLimits = builder.rateLimits;
+        this.provider = builder.provider;
+        this.maxRetries = builder.maxRetries;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static LlmClientConfig defaults() {
+        return builder().build();
+    }
+
+    public Duration connectTimeout() {
+        return connectTimeout;
+    }
+
+    public Duration readTimeout() {
+        return readTimeout;
+    }
+
+    public Duration callTimeout() {
+        return callTimeout;
+    }
+
+    public int maxIdleConnections() {
+        return maxIdleConnections;
+    }
+
+    public Duration keepAlive() {
+        return keepAlive;
+    }
+
+    public int maxRequestsPerHost() {
+        return maxRequestsPerHost;
+    }
+
+    public String bearerToken() {
+        return bearerToken;
+    }
+
+    public RateLimiterRegistry rateLimits() {
+        return rateLimits;
+    }
+
+    public String provider() {
+        return provider;
+    }
+
+    public int maxRetries() {
+        return maxRetries;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof LlmClientConfig other)) return false;
+        return maxIdleConnections == other.maxIdleConnections
+                && maxRequestsPerHost == other.maxRequestsPerHost
+                && maxRetries == other.maxRetries
+                && connectTimeout.equals(other.connectTimeout)
+                && readTimeout.equals(other.readTimeout)
+                && callTimeout.equals(other.callTimeout)
+                && keepAlive.equals(other.keepAlive)
+                && Objects.equals(bearerToken, other.bearerToken)
+                && rateLimits == other.rateLimits
+                && Objects.equals(provider, other.provider);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(connectTimeout, readTimeout, callTimeout, maxIdleConnections, keepAlive,
+                maxRequestsPerHost, bearerToken, System.identityHashCode(rateLimits), provider, maxRetries);
+    }
+
+    // No bearer token: configs end up in logs and map keys
+    @Override
+    public String toString() {
+        return "LlmClientConfig{provider=" + provider + ", callTimeout=" + callTimeout
+                + ", maxRequestsPerHost=" + maxRequestsPerHost + "}";
+    }
+
+    public static class Builder {
+        private Duration connectTimeout = Duration.ofSeconds(10);
+        private Duration readTimeout = Duration.ofSeconds(60);
+        private Duration callTimeout = Duration.ofSeconds(120);
+        private int maxIdleConnections = 5;
+        private Duration keepAlive = Duration.ofMinutes(5);
+        private int maxRequestsPerHost = 5;
+        private String bearerToken = null;
+        private RateLimiterRegistry rateLimits = null;
+        private String provider = null;
+        private int maxRetries = 3;
+
+        private Builder() {
+
+        }
+
+        public Builder connectTimeout(Duration connectTimeout) {
+            this.connectTimeout = connectTimeout;
+            return this;
+        }
+
+        public Builder readTimeout(Duration readTimeout) {
+            this.readTimeout = readTimeout;
+            return this;
+        }
+
+        // Upper bound for the whole call: connect, write, server think time and read
+        public Builder callTimeout(Duration callTimeout) {
+            this.callTimeout = callTimeout;
+            return this;
+        }
+
+        public Builder maxIdleConnections(int maxIdleConnections) {
+            this.maxIdleConnections = maxIdleConnections;
+            return this;
+        }
+
+        public Builder keepAlive(Duration keepAlive) {
+            this.keepAlive = keepAlive;
+            return this;
+        }
+
+        // How many requests may be in flight to this endpoint at once; the rest wait in the dispatcher
+        public Builder maxRequestsPerHost(int maxRequestsPerHost) {
+            this.maxRequestsPerHost = maxRequestsPerHost;
+            return this;
+        }
+
+        public Builder bearerToken(String bearerToken) {
+            this.bearerToken = bearerToken;
+            return this;
+        }
+
+        // Requests wait for the provider's quota in the registry, and 429/503 answers are retried
+        public Builder rateLimits(RateLimiterRegistry rateLimits, String provider) {
+            this.rateLimits = rateLimits;
+            this.provider = provider;
+            return this;
+        }
+
+        // Retries of 429 and 503 answers when rate limits are set
+        public Builder maxRetries(int maxRetries) {
+            this.maxRetries = maxRetries;
+            return this;
+        }
+
+        public LlmClientConfig build() {
+            return new LlmClientConfig(this);
+        }
+    }
+}
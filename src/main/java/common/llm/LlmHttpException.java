@@ -0,0 +1,39 @@
+package common.llm;
+
+import java.io.IOException;
+import java.time.Duration;
+
+/**
+ * Thrown when an OpenAI-compatible endpoint answers with a non-2xx status.
+ */
+public class LlmHttpException extends IOException {
+    private final int code;
+    private final String body;
+    private final Duration retryAfter;
+
+    public LlmHttpException(int code, String body) {
+        this(code, body, null);
+    }
+
+    public LlmHttpException(int code, String body, Duration retryAfter) {
+        super("HTTP " + code + ": " + (body.length() > 200 ? body.substring(0, 200) + "..." : body));
+        this.code = code;
+        this.body = body;
+        this.retryAfter = retryAfter;
+    }
+
+    public int code() {
+        return code;
+    }
+
+    public String body() {
+        return body;
+    }
+
+    /**
+     * How long the server asked us to wait before retrying, or null.
+     */
+    public Duration retryAfter() {
+        return retryAfter;
+    }
+}
@@ -0,0 +1,194 @@
+package common.llm;
+
+import common.concurrent.Futures;
+import common.concurrent.RateLimiter;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+
+/**
+ * Request quotas of the providers we call, shared by every client in the process so that
+ * together they stay within the quota instead of each guessing a safe pace.
+ * - Each provider has one account-wide limiter and one limiter per model; a request takes a
+ *   permit from both. Either may have a {@link RateLimiter.Quota} or none
+ * - Rate-limit headers of every response correct the provider's limiter
+ * - A 429 pauses the whole provider, a 503 (model loading, overloaded) only the model, for
+ *   the server's Retry-After or else an exponential backoff with jitter
+ */
+public final class RateLimiterRegistry {
+    public static final String HUGGING_FACE = "huggingface";
+
+    // Hugging Face's documented free tier: about 1000 requests per hour per account
+    private static final RateLimiterRegistry SHARED = new RateLimiterRegistry()
+            .limit(HUGGING_FACE, RateLimiter.Quota.perHour(1000));
+
+    private static final Duration BASE_BACKOFF = Duration.ofSeconds(1);
+    private static final Duration MAX_BACKOFF = Duration.ofMinutes(1);
+
+    private final Map<String, RateLimiter.Quota> quotas = new ConcurrentHashMap<>();
+    private final Map<String, RateLimiter> limiters = new ConcurrentHashMap<>();
+
+    public static RateLimiterRegistry shared() {
+        return SHARED;
+    }
+
+    /**
+     * Sets the account-wide quota of a provider. Call before the first request to it.
+     */
+    public RateLimiterRegistry limit(String provider, RateLimiter.Quota quota) {
+        quotas.put(provider, quota);
+        limiters.remove(provider);
+        return this;
+    }
+
+    /**
+     * Sets the quota of one model of a provider, on top of the provider's own.
+     */
+    public RateLimiterRegistry limit(String provider, String model, RateLimiter.Quota quota) {
+        return limit(key(provider, model), quota);
+    }
+
+    public RateLimiter limiter(String provider) {
+        return limiters.computeIfAbsent(provider, this::newLimiter);
+    }
+
+    public RateLimiter limiter(String provider, String model) {
+        return model == null ? limiter(provider) : limiters.computeIfAbsent(key(provider, model), this::newLimiter);
+    }
+
+    /**
+     * Completes when a request to {@code model} (null if unknown) may be sent. Never blocks.
+     */
+    public CompletableFuture<Void> acquire(String provider, String model) {
+        RateLimiter account = limiter(provider);
+        if (model == null) return account.acquire();
+        // Model first: a request waiting for a busy model does not sit on an account permit
+        return Futures.thenComposeCancellable(limiter(provider, model).acquire(), ignored -> account.acquire());
+    }
+
+    /**
+     * Applies the rate-limit headers of a response: OpenAI's x-ratelimit-remaining-requests /
+     * x-ratelimit-reset-requests, the plain x-ratelimit-* pair, or the IETF RateLimit-* pair.
+     *
+     * @param header Looks up a response header, e.g. {@code response::header}
+     */
+    public void observe(String provider, Function<String, String> header) {
+        String[][] pairs = {
+                {"x-ratelimit-remaining-requests", "x-ratelimit-reset-requests"},
+                {"x-ratelimit-remaining", "x-ratelimit-reset"},
+                {"ratelimit-remaining", "ratelimit-reset"}};
+        for (String[] pair : pairs) {
+            String remaining = header.apply(pair[0]);
+            if (remaining == null) continue;
+            try {
+                limiter(provider).observeRemaining(Long.parseLong(remaining.trim()), parseReset(header.apply(pair[1])));
+            } catch (NumberFormatException e) {
+                // Not a count; ignore the header rather than the response
+            }
+            return;
+        }
+    }
+
+    /**
+     * Pauses the limiter a 429 or 503 applies to and returns how long to wait before retrying:
+     * {@code retryAfter} if the server sent one, otherwise 1 s, 2 s, 4 s ... up to a minute
+     * for attempts 0, 1, 2 ..., each shortened by a random part of up to half.
+     */
+    public Duration backoff(String provider, String model, int code, Duration retryAfter, int attempt) {
+        Duration delay = retryAfter != null ? retryAfter : jittered(attempt);
+        RateLimiter target = code == 429 ? limiter(provider) : limiter(provider, model);
+        target.pauseFor(delay);
+        return delay;
+    }
+
+    public static boolean isRetryable(int code) {
+        return code == 429 || code == 503;
+    }
+
+    /**
+     * Parses a Retry-After value, either seconds or an HTTP date; null if absent or invalid.
+     */
+    public static Duration parseRetryAfter(String value) {
+        if (value == null || value.isBlank()) return null;
+        try {
+            return Duration.ofMillis((long) (Double.parseDouble(value.trim()) * 1000));
+        } catch (NumberFormatException e) {
+            try {
+                Instant at = ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+                Duration delay = Duration.between(Instant.now(), at);
+                return delay.isNegative() ? Duration.ZERO : delay;
+            } catch (DateTimeParseException ignored) {
+                return null;
+            }
+        }
+    }
+
+    public List<RateLimiter.Stats> stats() {
+        List<RateLimiter.Stats> stats = new ArrayList<>();
+        for (RateLimiter limiter : limiters.values()) stats.add(limiter.stats());
+        return stats;
+    }
+
+    private RateLimiter newLimiter(String key) {
+        RateLimiter.Quota quota = quotas.get(key);
+        return quota == null ? RateLimiter.unlimited(key) : new RateLimiter(key, quota);
+    }
+
+    private static String key(String provider, String model) {
+        return provider + "/" + model;
+    }
+
+    private static Duration jittered(int attempt) {
+        long max = BASE_BACKOFF.toMillis() << Math.min(attempt, 16);
+        max = Math.min(max, MAX_BACKOFF.toMillis());
+        return Duration.ofMillis(max / 2 + ThreadLocalRandom.current().nextLong(max / 2 + 1));
+    }
+
+    // Seconds, an epoch timestamp in seconds, or a duration like "6m0s" / "20ms"
+    private static Duration parseReset(String value) {
+        if (value == null || value.isBlank()) return null;
+        String text = value.trim();
+        try {
+            double number = Double.parseDouble(text);
+            if (number > 1_000_000_000) {
+                return Duration.ofMillis(Math.max(0, (long) (number * 1000) - System.currentTimeMillis()));
+            }
+            return Duration.ofMillis((long) (number * 1000));
+        } catch (NumberFormatException e) {
+            return parseGoDuration(text);
+        }
+    }
+
+    private static Duration parseGoDuration(String text) {
+        double millis = 0;
+        int i = 0;
+        while (i < text.length()) {
+            int start = i;
+            while (i < text.length() && (Character.isDigit(text.charAt(i)) || text.charAt(i) == '.')) i++;
+            if (start == i) return null;
+            double number = Double.parseDouble(text.substring(start, i));
+            int unitStart = i;
+            while (i < text.length() && Character.isLetter(text.charAt(i))) i++;
+            switch (text.substring(unitStart, i)) {
+                case "h" -> millis += number * 3_600_000;
+                case "m" -> millis += number * 60_000;
+                case "s" -> millis += number * 1000;
+                case "ms" -> millis += number;
+                default -> {
+                    return null;
+                }
+            }
+        }
+        return Duration.ofMillis((long) millis);
+    }
+}
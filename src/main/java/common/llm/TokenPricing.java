@@ -0,0 +1,12 @@
+package common.llm;
+
+/**
+ * List price of a hosted model in dollars per million tokens, for estimating what a request
+ * costs before it is sent. Prompt and answer tokens are priced separately.
+ */
+public record TokenPricing(double inputPerMillion, double outputPerMillion) {
+
+    public double cost(int promptTokens, int completionTokens) {
+        return (promptTokens * inputPerMillion + completionTokens * outputPerMillion) / 1_000_000;
+    }
+}
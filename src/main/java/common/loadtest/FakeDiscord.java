@@ -0,0 +1,286 @@
+package common.loadtest;
+
+import common.metrics.Counter;
+import net.dv8tion.jda.api.JDA;
+import net.dv8tion.jda.api.entities.Message;
+import net.dv8tion.jda.api.entities.SelfUser;
+import net.dv8tion.jda.api.entities.User;
+import net.dv8tion.jda.api.entities.channel.ChannelType;
+import net.dv8tion.jda.api.entities.channel.unions.MessageChannelUnion;
+import net.dv8tion.jda.api.events.message.MessageReceivedEvent;
+import net.dv8tion.jda.api.requests.RestAction;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Just enough of JDA to hand a bot {@link MessageReceivedEvent}s without a Discord connection.
+ * Users, channels and messages are dynamic proxies of JDA's interfaces: the getters a bot
+ * reads return the synthetic values, sending, editing and deleting go to a {@link Listener}
+ * after a sampled API latency, and every other method returns null, 0 or false.
+ * Rate limits and the gateway are not simulated.
+ */
+public final class FakeDiscord {
+    /**
+     * What the bot did in Discord. Sends and edits are reported on a scheduler thread once the
+     * simulated call is done; deleting a received message as soon as the bot asks for it, since
+     * no bot waits for a delete.
+     */
+    public interface Listener {
+        void sent(String channelId, String content);
+
+        void edited(String channelId, String content);
+
+        void deleted(long messageId);
+    }
+
+    private final Latency apiLatency;
+    private final Listener listener;
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2, runnable -> {
+        Thread thread = new Thread(runnable, "fake-discord");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Ids of messages the bot sends; synthetic user messages bring their own
+    private final AtomicLong nextId = new AtomicLong(1L << 40);
+    private final JDA jda;
+    private final SelfUser selfUser;
+
+    private final Counter sends = new Counter();
+    private final Counter edits = new Counter();
+    private final Counter deletes = new Counter();
+
+    public FakeDiscord(Latency apiLatency, Listener listener) {
+        this.apiLatency = apiLatency;
+        this.listener = listener;
+        this.selfUser = proxy(SelfUser.class, Map.of(
+                "getId", args -> "0",
+                "getIdLong", args -> 0L,
+                "getName", args -> "bot",
+                "getAsMention", args -> "<@0>"));
+        Map<String, Function<Object[], Object>> jdaMethods = new HashMap<>();
+        jdaMethods.put("getSelfUser", args -> selfUser);
+        this.jda = proxy(JDA.class, jdaMethods);
+    }
+
+    public JDA jda() {
+        return jda;
+    }
+
+    public User user(long id) {
+        String mention = "<@" + id + ">";
+        return proxy(User.class, Map.of(
+                "getId", args -> Long.toString(id),
+                "getIdLong", args -> id,
+                "getName", args -> "user" + id,
+                "getAsMention", args -> mention));
+    }
+
+    public MessageChannelUnion textChannel(long id, String name) {
+        String channelId = Long.toString(id);
+        MessageChannelUnion[] self = new MessageChannelUnion[1];
+        Map<String, Function<Object[], Object>> methods = new HashMap<>();
+        methods.put("getId", args -> channelId);
+        methods.put("getIdLong", args -> id);
+        methods.put("getName", args -> name);
+        methods.put("getType", args -> ChannelType.TEXT);
+        methods.put("getJDA", args -> jda);
+        methods.put("sendMessage", args -> {
+            String content = args[0].toString();
+            return action(Message.class.getName(), () -> {
+                sends.increment();
+                listener.sent(channelId, content);
+                return sentMessage(self[0], content);
+            });
+        });
+        methods.put("sendTyping", args -> action("typing", () -> null));
+        self[0] = proxy(MessageChannelUnion.class, methods);
+        return self[0];
+    }
+
+    /**
+     * A message from {@code author}, as the gateway would deliver it.
+     */
+    public MessageReceivedEvent received(MessageChannelUnion channel, User author, long messageId, String text) {
+        Map<String, Function<Object[], Object>> methods = new HashMap<>();
+        methods.put("getId", args -> Long.toString(messageId));
+        methods.put("getIdLong", args -> messageId);
+        methods.put("getContentDisplay", args -> text);
+        methods.put("getContentRaw", args -> text);
+        methods.put("getAuthor", args -> author);
+        methods.put("getChannel", args -> channel);
+        methods.put("getChannelType", args -> ChannelType.TEXT);
+        methods.put("isFromGuild", args -> true);
+        methods.put("getJDA", args -> jda);
+        methods.put("delete", args -> {
+            listener.deleted(messageId);
+            return action("delete", () -> {
+                deletes.increment();
+                return null;
+            });
+        });
+        return new MessageReceivedEvent(jda, 0, proxy(Message.class, methods));
+    }
+
+    public String stats() {
+        return String.format("sends=%d edits=%d deletes=%d (API latency %s)", sends.value(), edits.value(),
+                deletes.value(), apiLatency);
+    }
+
+    // A message the bot posted; it can edit it afterwards
+    private Message sentMessage(MessageChannelUnion channel, String content) {
+        long id = nextId.getAndIncrement();
+        Map<String, Function<Object[], Object>> methods = new HashMap<>();
+        methods.put("getId", args -> Long.toString(id));
+        methods.put("getIdLong", args -> id);
+        methods.put("getContentRaw", args -> content);
+        methods.put("getChannel", args -> channel);
+        methods.put("getJDA", args -> jda);
+        methods.put("editMessage", args -> {
+            String edited = args[0].toString();
+            return action(Message.class.getName(), () -> {
+                edits.increment();
+                listener.edited(channel.getId(), edited);
+                return sentMessage(channel, edited);
+            });
+        });
+        methods.put("delete", args -> action("delete", () -> {
+            deletes.increment();
+            return null;
+        }));
+        return proxy(Message.class, methods);
+    }
+
+    /**
+     * A pending REST call: {@code queue}, {@code submit} and {@code complete} run {@code call}
+     * after the API latency; builder-style methods return the action itself.
+     */
+    private Object action(String name, Supplier<Object> call) {
+        return new PendingAction(name, call);
+    }
+
+    private final class PendingAction {
+        final String name;
+        final Supplier<Object> call;
+
+        PendingAction(String name, Supplier<Object> call) {
+            this.name = name;
+            this.call = call;
+        }
+
+        CompletableFuture<Object> run() {
+            CompletableFuture<Object> result = new CompletableFuture<>();
+            scheduler.schedule(() -> {
+                try {
+                    result.complete(call.get());
+                } catch (RuntimeException e) {
+                    result.completeExceptionally(e);
+                }
+            }, apiLatency.sampleNanos(), TimeUnit.NANOSECONDS);
+            return result;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T proxy(Class<T> type, Map<String, Function<Object[], Object>> methods) {
+        InvocationHandler handler = (self, method, args) -> dispatch(self, method, args, methods);
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, handler);
+    }
+
+    private Object dispatch(Object self, Method method, Object[] args, Map<String, Function<Object[], Object>> methods)
+            throws Throwable {
+        Object[] arguments = args == null ? new Object[0] : args;
+        switch (method.getName()) {
+            case "equals":
+                if (arguments.length == 1) return self == arguments[0];
+                break;
+            case "hashCode":
+                if (arguments.length == 0) return System.identityHashCode(self);
+                break;
+            case "toString":
+                if (arguments.length == 0) return method.getDeclaringClass().getSimpleName() + "@fake";
+                break;
+            default:
+                break;
+        }
+        Function<Object[], Object> implementation = methods.get(method.getName());
+        if (implementation != null) {
+            Object result = implementation.apply(arguments);
+            if (result instanceof PendingAction pending) return actionProxy(method.getReturnType(), pending);
+            return result;
+        }
+        if (method.isDefault()) return InvocationHandler.invokeDefault(self, method, args);
+        return defaultValue(method.getReturnType());
+    }
+
+    // The REST action interface the method declares (MessageCreateAction, AuditableRestAction...)
+    private Object actionProxy(Class<?> type, PendingAction pending) {
+        if (!RestAction.class.isAssignableFrom(type)) throw new IllegalStateException(type + " is not a RestAction");
+        InvocationHandler handler = (proxy, method, args) -> {
+            Object[] arguments = args == null ? new Object[0] : args;
+            switch (method.getName()) {
+                case "queue" -> {
+                    Consumer<Object> success = arguments.length > 0 ? consumer(arguments[0]) : null;
+                    Consumer<Throwable> failure = arguments.length > 1 ? consumer(arguments[1]) : null;
+                    pending.run().whenComplete((value, error) -> {
+                        if (error == null && success != null) success.accept(value);
+                        if (error != null && failure != null) failure.accept(error);
+                    });
+                    return null;
+                }
+                case "submit" -> {
+                    return pending.run();
+                }
+                case "complete" -> {
+                    return pending.run().join();
+                }
+                case "equals" -> {
+                    return proxy == arguments[0];
+                }
+                case "hashCode" -> {
+                    return System.identityHashCode(proxy);
+                }
+                case "toString" -> {
+                    return "FakeAction[" + pending.name + "]";
+                }
+                case "getJDA" -> {
+                    return jda;
+                }
+                default -> {
+                    // Builder methods (setContent, addFiles, reason...) return the action itself
+                    if (method.getReturnType().isInstance(proxy)) return proxy;
+                    return defaultValue(method.getReturnType());
+                }
+            }
+        };
+        return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, handler);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Consumer<T> consumer(Object value) {
+        return (Consumer<T>) value;
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (!type.isPrimitive() || type == void.class) return null;
+        if (type == boolean.class) return false;
+        if (type == char.class) return '\0';
+        if (type == long.class) return 0L;
+        if (type == int.class) return 0;
+        if (type == short.class) return (short) 0;
+        if (type == byte.class) return (byte) 0;
+        if (type == float.class) return 0f;
+        return 0d;
+    }
+}
@@ -0,0 +1,91 @@
+package common.loadtest;
+
+import java.time.Duration;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A latency distribution for the stub server and the fake Discord API, parsed from a spec:
+ * - {@code 200ms} or {@code fixed:200ms}: always the same
+ * - {@code uniform:100ms:300ms}: anything in between, equally likely
+ * - {@code exp:200ms}: exponential with this mean (memoryless, like a queue)
+ * - {@code lognormal:200ms:2s}: median and 99th percentile; the long tail real LLM servers have
+ * Durations take ms or s (fractions allowed); a bare number is milliseconds.
+ */
+public final class Latency {
+    // The 99th percentile of the standard normal distribution
+    private static final double Z_99 = 2.326;
+
+    private enum Kind { FIXED, UNIFORM, EXPONENTIAL, LOGNORMAL }
+
+    private final String spec;
+    private final Kind kind;
+    private final long a;
+    private final long b;
+    private final double sigma;
+
+    private Latency(String spec, Kind kind, long a, long b) {
+        this.spec = spec;
+        this.kind = kind;
+        this.a = a;
+        this.b = b;
+        this.sigma = kind == Kind.LOGNORMAL && a > 0 ? Math.log((double) b / a) / Z_99 : 0;
+    }
+
+    public static Latency fixed(Duration duration) {
+        return new Latency(duration.toMillis() + "ms", Kind.FIXED, duration.toNanos(), 0);
+    }
+
+    public static Latency parse(String spec) {
+        String[] parts = spec.trim().toLowerCase(Locale.ROOT).split(":");
+        try {
+            switch (parts[0]) {
+                case "fixed" -> {
+                    return new Latency(spec, Kind.FIXED, nanos(parts[1]), 0);
+                }
+                case "uniform" -> {
+                    long low = nanos(parts[1]);
+                    long high = nanos(parts[2]);
+                    if (high < low) throw new IllegalArgumentException("upper bound below lower bound");
+                    return new Latency(spec, Kind.UNIFORM, low, high);
+                }
+                case "exp" -> {
+                    return new Latency(spec, Kind.EXPONENTIAL, nanos(parts[1]), 0);
+                }
+                case "lognormal" -> {
+                    long median = nanos(parts[1]);
+                    long p99 = nanos(parts[2]);
+                    if (p99 < median) throw new IllegalArgumentException("p99 below the median");
+                    return new Latency(spec, Kind.LOGNORMAL, median, p99);
+                }
+                default -> {
+                    if (parts.length != 1) throw new IllegalArgumentException("unknown distribution " + parts[0]);
+                    return new Latency(spec, Kind.FIXED, nanos(parts[0]), 0);
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            throw new IllegalArgumentException("Bad latency \"" + spec + "\": " + e.getMessage(), e);
+        }
+    }
+
+    public long sampleNanos() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return switch (kind) {
+            case FIXED -> a;
+            case UNIFORM -> a == b ? a : random.nextLong(a, b + 1);
+            case EXPONENTIAL -> (long) (-a * Math.log(1 - random.nextDouble()));
+            case LOGNORMAL -> (long) (a * Math.exp(sigma * random.nextGaussian()));
+        };
+    }
+
+    @Override
+    public String toString() {
+        return spec;
+    }
+
+    static long nanos(String value) {
+        if (value.endsWith("ms")) return (long) (Double.parseDouble(value.substring(0, value.length() - 2)) * 1e6);
+        if (value.endsWith("s")) return (long) (Double.parseDouble(value.substring(0, value.length() - 1)) * 1e9);
+        return (long) (Double.parseDouble(value) * 1e6);
+    }
+}
@@ -0,0 +1,310 @@
+package common.loadtest;
+
+import common.loadtest.LoadTarget.Outcome;
+import common.metrics.Histogram;
+import net.dv8tion.jda.api.entities.channel.unions.MessageChannelUnion;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Open-loop load test of a Discord bot: synthetic messages go into the bot's real
+ * onMessageReceived at a target rate, through a {@link FakeDiscord} instead of the gateway and
+ * with a {@link StubLlmServer} instead of Ollama, and the report shows what rate the bot
+ * sustains, how long users wait and how messages fail.
+ * - Arrivals follow the schedule whether or not the bot keeps up, and latency counts from the
+ *   scheduled time, so a bot that falls behind cannot hide it (no coordinated omission)
+ * - Every message comes from its own user; the mention in a reply says which message it answers
+ * - Messages sent during the warmup are handled but left out of the report
+ * - What is still unanswered {@code --drain} after the last message counts as TIMED_OUT
+ * Run with {@code gradle loadTest -PloadTestArgs='--bot ollama --rate 50 --duration 60s'}; the
+ * stub takes the options of {@link StubLlmServer} (--latency, --error-rate...) as well.
+ */
+public final class LoadDriver implements FakeDiscord.Listener {
+    private static final Logger logger = LoggerFactory.getLogger(LoadDriver.class);
+
+    // Bots by --bot name; loaded by name because common code does not depend on the chapters
+    private static final Map<String, String> TARGETS = Map.of(
+            "ollama", "ch06.ollama.OllamaBotLoadTarget",
+            "dumb", "ch05.DumbBotLoadTarget");
+
+    private static final Pattern MENTION = Pattern.compile("<@(\\d+)>");
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+    /**
+     * Kinds of synthetic messages, mixed by --mix weights.
+     */
+    enum Kind {
+        // A question nobody asked before
+        QUESTION,
+        // One of a few questions asked again and again, for the answer cache
+        REPEAT,
+        // Small talk the moderation prefilter passes without the LLM
+        SAFE,
+        // Caught by the bot's banned terms
+        BANNED,
+        // Flagged by the stub's moderation
+        FLAG
+    }
+
+    private static final String[] REPEATED_QUESTIONS = {
+            "How do I make a wish come true?",
+            "What does the Swan do with wishes?",
+            "Can I ask for a wish for my friend?"};
+
+    private final LoadTarget target;
+    private final Map<Long, Tracked> outstanding = new ConcurrentHashMap<>();
+    private final Map<Outcome, Histogram> latencies = new EnumMap<>(Outcome.class);
+    private final Map<Outcome, AtomicLong> maxLatencies = new EnumMap<>(Outcome.class);
+    // Outcome counts per kind, row-major
+    private final AtomicLongArray counts = new AtomicLongArray(Kind.values().length * Outcome.values().length);
+    private final AtomicLong lastCompletionNanos = new AtomicLong();
+
+    private LoadDriver(LoadTarget target) {
+        this.target = target;
+        for (Outcome outcome : Outcome.values()) {
+            latencies.put(outcome, new Histogram());
+            maxLatencies.put(outcome, new AtomicLong());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = Options.parse(args);
+        String bot = options.string("bot", "ollama");
+        double rate = options.number("rate", 10);
+        Duration duration = options.duration("duration", Duration.ofSeconds(60));
+        Duration warmup = options.duration("warmup", Duration.ofSeconds(10));
+        Duration drain = options.duration("drain", Duration.ofSeconds(60));
+        boolean poisson = options.string("arrivals", "poisson").equals("poisson");
+        int channels = options.integer("channels", 4);
+        Map<Kind, Integer> mix = parseMix(options.string("mix", "question=60,repeat=15,safe=5,banned=10,flag=10"));
+        Latency discordLatency = options.latency("discord-latency", "lognormal:80ms:400ms");
+        StubLlmServer.Builder stubBuilder = StubLlmServer.builder().configure(options)
+                .port(options.integer("stub-port", 11435));
+        options.checkUnknown();
+        if (!TARGETS.containsKey(bot)) throw new IllegalArgumentException("Unknown bot " + bot + ", one of " + TARGETS.keySet());
+        if (rate <= 0) throw new IllegalArgumentException("--rate must be positive");
+
+        try (StubLlmServer stub = stubBuilder.start()) {
+            LoadTarget target = (LoadTarget) Class.forName(TARGETS.get(bot)).getDeclaredConstructor().newInstance();
+            target.start(stub.baseUrl());
+            logger.info("Load test of {}: {} msg/s ({} arrivals) for {} s after {} s warmup, {} channels, mix {}",
+                    target.name(), rate, poisson ? "poisson" : "fixed", duration.toSeconds(), warmup.toSeconds(),
+                    channels, mix);
+            logger.info("Stub LLM server at {}: {}; Discord API latency {}", stub.baseUrl(), stub.describe(),
+                    discordLatency);
+
+            LoadDriver driver = new LoadDriver(target);
+            FakeDiscord discord = new FakeDiscord(discordLatency, driver);
+            Run run = driver.run(discord, channels, mix, rate, poisson, warmup, duration, drain);
+            driver.report(run, stub, discord);
+        }
+        // The bots leave non-daemon threads behind
+        System.exit(0);
+    }
+
+    private Run run(FakeDiscord discord, int channelCount, Map<Kind, Integer> mix, double rate, boolean poisson,
+                    Duration warmup, Duration duration, Duration drain) {
+        List<MessageChannelUnion> channels = new ArrayList<>();
+        for (int i = 0; i < channelCount; i++) channels.add(discord.textChannel(1000 + i, "q-and-a"));
+        Kind[] kinds = Kind.values();
+        int totalWeight = mix.values().stream().mapToInt(Integer::intValue).sum();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        long start = System.nanoTime();
+        long measureFrom = start + warmup.toNanos();
+        long end = measureFrom + duration.toNanos();
+        long meanInterval = (long) (1e9 / rate);
+        long nextProgress = start + Duration.ofSeconds(5).toNanos();
+        long scheduled = start;
+        long sequence = 0;
+        long measuredSent = 0;
+        while (scheduled < end) {
+            long wait = scheduled - System.nanoTime();
+            if (wait > 0) LockSupport.parkNanos(wait);
+
+            int pick = random.nextInt(totalWeight);
+            Kind kind = kinds[0];
+            for (Kind candidate : kinds) {
+                pick -= mix.getOrDefault(candidate, 0);
+                if (pick < 0) {
+                    kind = candidate;
+                    break;
+                }
+            }
+            // The message id doubles as the author id, so replies and deletes lead back to it
+            long id = 1_000_000 + sequence++;
+            boolean measured = scheduled >= measureFrom;
+            if (measured) measuredSent++;
+            Tracked tracked = new Tracked(kind, scheduled, measured);
+            outstanding.put(id, tracked);
+            MessageChannelUnion channel = channels.get((int) (id % channelCount));
+            try {
+                target.onMessageReceived(discord.received(channel, discord.user(id), id, text(kind, id)));
+            } catch (RuntimeException e) {
+                logger.warn("Bot failed on message {}: {}", id, e.toString());
+                finish(id, Outcome.ERROR);
+            }
+            Outcome outcome = target.handled(tracked.deleted);
+            if (outcome != null) finish(id, outcome);
+
+            long now = System.nanoTime();
+            if (now >= nextProgress) {
+                logger.info("Sent {} messages, {} outstanding, {} behind schedule", sequence, outstanding.size(),
+                        Duration.ofNanos(Math.max(0, now - scheduled)).toMillis() + " ms");
+                nextProgress += Duration.ofSeconds(5).toNanos();
+            }
+            scheduled += poisson ? (long) (-meanInterval * Math.log(1 - random.nextDouble())) : meanInterval;
+        }
+
+        long drainUntil = System.nanoTime() + drain.toNanos();
+        while (!outstanding.isEmpty() && System.nanoTime() < drainUntil) {
+            LockSupport.parkNanos(Duration.ofMillis(100).toNanos());
+        }
+        int timedOut = 0;
+        for (Long id : List.copyOf(outstanding.keySet())) {
+            if (finish(id, Outcome.TIMED_OUT)) timedOut++;
+        }
+        if (timedOut > 0) logger.warn("{} messages got no final reply within {} s", timedOut, drain.toSeconds());
+        return new Run(measuredSent, end - measureFrom, measureFrom, sequence);
+    }
+
+    // Sent, measured messages and the measured window
+    private record Run(long measuredSent, long windowNanos, long measureFromNanos, long totalSent) {}
+
+    private static final class Tracked {
+        final Kind kind;
+        final long scheduledNanos;
+        final boolean measured;
+        final AtomicBoolean done = new AtomicBoolean();
+        volatile boolean deleted;
+
+        Tracked(Kind kind, long scheduledNanos, boolean measured) {
+            this.kind = kind;
+            this.scheduledNanos = scheduledNanos;
+            this.measured = measured;
+        }
+    }
+
+    @Override
+    public void sent(String channelId, String content) {
+        reply(content);
+    }
+
+    @Override
+    public void edited(String channelId, String content) {
+        reply(content);
+    }
+
+    @Override
+    public void deleted(long messageId) {
+        Tracked tracked = outstanding.get(messageId);
+        if (tracked != null) tracked.deleted = true;
+    }
+
+    private void reply(String content) {
+        Matcher mention = MENTION.matcher(content);
+        if (!mention.find()) return;
+        Outcome outcome = target.classify(content);
+        if (outcome != null) finish(Long.parseLong(mention.group(1)), outcome);
+    }
+
+    // Records the outcome unless the message already has one
+    private boolean finish(long id, Outcome outcome) {
+        Tracked tracked = outstanding.remove(id);
+        if (tracked == null || !tracked.done.compareAndSet(false, true)) return false;
+        if (!tracked.measured) return true;
+        long now = System.nanoTime();
+        long latency = now - tracked.scheduledNanos;
+        latencies.get(outcome).record(latency);
+        maxLatencies.get(outcome).accumulateAndGet(latency, Math::max);
+        counts.incrementAndGet(tracked.kind.ordinal() * Outcome.values().length + outcome.ordinal());
+        if (outcome != Outcome.TIMED_OUT) lastCompletionNanos.accumulateAndGet(now, Math::max);
+        return true;
+    }
+
+    private void report(Run run, StubLlmServer stub, FakeDiscord discord) {
+        long completed = 0;
+        for (Outcome outcome : Outcome.values()) {
+            if (outcome != Outcome.TIMED_OUT) completed += latencies.get(outcome).count();
+        }
+        double window = run.windowNanos() / 1e9;
+        double completionWindow = Math.max(run.windowNanos(), lastCompletionNanos.get() - run.measureFromNanos()) / 1e9;
+
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%n=== Load test: %s ===%n", target.name()));
+        report.append(String.format("Offered:   %.1f msg/s (%d messages in %.0f s, %d more in warmup)%n",
+                run.measuredSent() / window, run.measuredSent(), window, run.totalSent() - run.measuredSent()));
+        report.append(String.format("Sustained: %.1f msg/s (%d completed, the last %.1f s after the window opened)%n",
+                completed / completionWindow, completed, completionWindow));
+
+        report.append(String.format("%nLatency from scheduled arrival to final reply (ms):%n"));
+        report.append(String.format("  %-10s %8s %8s %8s %8s %8s%n", "outcome", "count", "p50", "p90", "p99", "max"));
+        for (Outcome outcome : Outcome.values()) {
+            Histogram histogram = latencies.get(outcome);
+            if (histogram.count() == 0) continue;
+            long max = maxLatencies.get(outcome).get();
+            report.append(String.format("  %-10s %8d", outcome, histogram.count()));
+            // Bucket bounds can overshoot the largest value
+            for (double q : QUANTILES) report.append(String.format(" %8.0f", Math.min(histogram.quantile(q), max) / 1e6));
+            report.append(String.format(" %8.0f%n", max / 1e6));
+        }
+
+        report.append(String.format("%nOutcomes by message kind:%n  %-10s", "kind"));
+        for (Outcome outcome : Outcome.values()) report.append(String.format(" %9s", outcome));
+        report.append(String.format("%n"));
+        for (Kind kind : Kind.values()) {
+            report.append(String.format("  %-10s", kind));
+            for (Outcome outcome : Outcome.values()) {
+                report.append(String.format(" %9d", counts.get(kind.ordinal() * Outcome.values().length + outcome.ordinal())));
+            }
+            report.append(String.format("%n"));
+        }
+
+        report.append(String.format("%nStub LLM server: %s%n", stub.stats()));
+        report.append(String.format("Discord: %s%n", discord.stats()));
+        for (String line : target.stats()) report.append(String.format("Bot: %s%n", line));
+        System.out.print(report);
+    }
+
+    private String text(Kind kind, long id) {
+        return switch (kind) {
+            case QUESTION -> "How can the Swan grant wish number " + id + "?";
+            case REPEAT -> REPEATED_QUESTIONS[(int) (id % REPEATED_QUESTIONS.length)];
+            case SAFE -> "thanks";
+            case BANNED -> target.bannedText();
+            case FLAG -> "Please grant wish " + id + " [flag]";
+        };
+    }
+
+    // "question=60,banned=10": relative weights of each kind; kinds left out are not sent
+    static Map<Kind, Integer> parseMix(String value) {
+        Map<Kind, Integer> mix = new LinkedHashMap<>();
+        for (String part : value.split(",")) {
+            String[] pair = part.trim().split("=");
+            if (pair.length != 2) throw new IllegalArgumentException("Bad --mix entry \"" + part + "\", expected kind=weight");
+            int weight = Integer.parseInt(pair[1].trim());
+            if (weight < 0) throw new IllegalArgumentException("Negative --mix weight for " + pair[0]);
+            mix.put(Kind.valueOf(pair[0].trim().toUpperCase(Locale.ROOT)), weight);
+        }
+        if (mix.values().stream().mapToInt(Integer::intValue).sum() == 0) {
+            throw new IllegalArgumentException("--mix has no weights");
+        }
+        return mix;
+    }
+}
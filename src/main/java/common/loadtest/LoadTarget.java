@@ -0,0 +1,65 @@
+package common.loadtest;
+
+import net.dv8tion.jda.api.events.message.MessageReceivedEvent;
+
+import java.util.List;
+
+/**
+ * A bot as the {@link LoadDriver} sees it: it takes {@link MessageReceivedEvent}s and answers in
+ * the channel. The driver tells replies apart by the author mention in them, so a target only
+ * has to say what a reply means.
+ */
+public interface LoadTarget {
+    /**
+     * How a message ended up.
+     */
+    enum Outcome {
+        // Answered by the LLM
+        ANSWERED,
+        // Deleted as inappropriate
+        FLAGGED,
+        // Turned away with a busy notice
+        SHED,
+        // Answered with an error notice
+        ERROR,
+        // Left alone, as it should be
+        PASSED,
+        // No final reply within the drain time
+        TIMED_OUT
+    }
+
+    String name();
+
+    /**
+     * Loads the bot against the stub LLM server at {@code llmBaseUrl}, which is already listening.
+     */
+    void start(String llmBaseUrl) throws Exception;
+
+    void onMessageReceived(MessageReceivedEvent event);
+
+    /**
+     * What a reply (or an edit of one) to a message settles, or null while it is not final,
+     * e.g. a placeholder or a partially streamed answer.
+     */
+    Outcome classify(String content);
+
+    /**
+     * For bots that are done when {@link #onMessageReceived} returns: the outcome, given whether
+     * the message was deleted meanwhile. Null (the default) waits for a final reply instead.
+     */
+    default Outcome handled(boolean deleted) {
+        return null;
+    }
+
+    /**
+     * A message the bot's own banned terms catch.
+     */
+    String bannedText();
+
+    /**
+     * Lines about the bot's internals (queues, limiters, caches) for the report.
+     */
+    default List<String> stats() {
+        return List.of();
+    }
+}
@@ -0,0 +1,69 @@
+package common.loadtest;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * "--name value" command-line options of the load-test tools. Asking for an option marks it
+ * known, so {@link #checkUnknown()} after reading them all catches typos.
+ */
+final class Options {
+    private final Map<String, String> values = new HashMap<>();
+    private final Set<String> read = new HashSet<>();
+
+    private Options() {
+
+    }
+
+    static Options parse(String[] args) {
+        Options options = new Options();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("--")) throw new IllegalArgumentException("Expected --option, got " + arg);
+            int equals = arg.indexOf('=');
+            if (equals > 0) {
+                options.values.put(arg.substring(2, equals), arg.substring(equals + 1));
+            } else if (i + 1 < args.length && !args[i + 1].startsWith("--")) {
+                options.values.put(arg.substring(2), args[++i]);
+            } else {
+                options.values.put(arg.substring(2), "true");
+            }
+        }
+        return options;
+    }
+
+    String string(String name, String defaultValue) {
+        read.add(name);
+        return values.getOrDefault(name, defaultValue);
+    }
+
+    int integer(String name, int defaultValue) {
+        String value = string(name, null);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    double number(String name, double defaultValue) {
+        String value = string(name, null);
+        return value == null ? defaultValue : Double.parseDouble(value);
+    }
+
+    // Same units as Latency: 30s, 1500ms, or plain milliseconds
+    Duration duration(String name, Duration defaultValue) {
+        String value = string(name, null);
+        return value == null ? defaultValue : Duration.ofNanos(Latency.nanos(value.trim().toLowerCase(Locale.ROOT)));
+    }
+
+    Latency latency(String name, String defaultSpec) {
+        return Latency.parse(string(name, defaultSpec));
+    }
+
+    void checkUnknown() {
+        for (String name : values.keySet()) {
+            if (!read.contains(name)) throw new IllegalArgumentException("Unknown option --" + name);
+        }
+    }
+}
@@ -0,0 +1,342 @@
+package common.loadtest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import common.concurrent.Stage;
+import common.llm.LlmClient;
+import common.metrics.Counter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Stand-in for an OpenAI-compatible server (Ollama, OpenAI) that answers without a model, so
+ * the bots can be loaded far beyond what a real GPU allows and the limits measured are ours.
+ * - POST .../chat/completions answers after a sampled time to first token, then sends
+ *   {@code completionTokens} words at {@code tokensPerSecond}, as server-sent events when the
+ *   request has "stream": true. Every answer ends with {@link #END_MARKER}
+ * - Requests whose system message mentions moderation get "FLAG" when the user message contains
+ *   {@code flagMarker} and "SAFE" otherwise; a JSON array of {"id", "text"} messages gets an
+ *   object of verdicts by id
+ * - A share of requests fails at once with 500, another with 429 and a Retry-After
+ * - Any GET (health probes) gets an empty model list
+ * Run alone with {@code gradle loadTestStub -PloadTestArgs='--port 11435 --latency lognormal:300ms:3s'}
+ * and point a real bot at it with OLLAMA_BACKENDS=http://127.0.0.1:11435.
+ */
+public final class StubLlmServer implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(StubLlmServer.class);
+
+    public static final String END_MARKER = "[end]";
+
+    private static final String[] WORDS = {"Alice", "smiles", "curiously:", "\"Oh,", "what", "an", "interesting",
+            "wish!\"", "The", "Swan", "gently", "nods:", "\"We'll", "make", "it", "come", "true.\""};
+
+    private final HttpServer server;
+    private final Latency latency;
+    private final double tokensPerSecond;
+    private final int completionTokens;
+    private final double errorRate;
+    private final double rateLimitRate;
+    private final Duration retryAfter;
+    private final String flagMarker;
+
+    private final Counter requests = new Counter();
+    private final Counter moderations = new Counter();
+    private final Counter streams = new Counter();
+    private final Counter injectedErrors = new Counter();
+    private final Counter injectedRateLimits = new Counter();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+
+    public record Stats(long requests, long moderations, long streams, long injectedErrors, long injectedRateLimits,
+                        int maxInFlight) {
+        @Override
+        public String toString() {
+            return String.format("requests=%d (moderation=%d streamed=%d) injected 500=%d 429=%d max in flight=%d",
+                    requests, moderations, streams, injectedErrors, injectedRateLimits, maxInFlight);
+        }
+    }
+
+    private StubLlmServer(Builder builder, HttpServer server) {
+        this.server = server;
+        this.latency = builder.latency;
+        this.tokensPerSecond = builder.tokensPerSecond;
+        this.completionTokens = builder.completionTokens;
+        this.errorRate = builder.errorRate;
+        this.rateLimitRate = builder.rateLimitRate;
+        this.retryAfter = builder.retryAfter;
+        this.flagMarker = builder.flagMarker;
+        server.createContext("/", this::handle);
+        // One thread per request, as a real server holds one per generation
+        server.setExecutor(Stage.ioExecutor("stub-llm"));
+        server.start();
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Options options = Options.parse(args);
+        StubLlmServer stub = builder().configure(options).port(options.integer("port", 11435)).start();
+        options.checkUnknown();
+        logger.info("Stub LLM server at {} ({})", stub.baseUrl(), stub.describe());
+        while (true) {
+            Thread.sleep(Duration.ofMinutes(1).toMillis());
+            logger.info("Stub: {}", stub.stats());
+        }
+    }
+
+    public int port() {
+        return server.getAddress().getPort();
+    }
+
+    public String baseUrl() {
+        return "http://127.0.0.1:" + port();
+    }
+
+    public Stats stats() {
+        return new Stats(requests.value(), moderations.value(), streams.value(), injectedErrors.value(),
+                injectedRateLimits.value(), maxInFlight.get());
+    }
+
+    public String describe() {
+        return String.format("time to first token %s, %s tokens at %s/s, 500s %.1f%%, 429s %.1f%%", latency,
+                completionTokens, tokensPerSecond > 0 ? String.valueOf(tokensPerSecond) : "∞",
+                errorRate * 100, rateLimitRate * 100);
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (exchange.getRequestMethod().equals("GET")) {
+                send(exchange, 200, "{\"object\":\"list\",\"data\":[]}");
+                return;
+            }
+            if (!exchange.getRequestURI().getPath().endsWith("/chat/completions")) {
+                send(exchange, 404, "{\"error\":{\"message\":\"not found\"}}");
+                return;
+            }
+            requests.increment();
+            int running = inFlight.incrementAndGet();
+            maxInFlight.accumulateAndGet(running, Math::max);
+            try {
+                answer(exchange, LlmClient.MAPPER.readTree(exchange.getRequestBody()));
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        } catch (IOException e) {
+            // The client gave up (cancelled or timed out) halfway through the answer
+            logger.debug("Stub response aborted: {}", e.getMessage());
+        }
+    }
+
+    private void answer(HttpExchange exchange, JsonNode request) throws IOException {
+        // Overload and failures are answered at once, like a real server's front door
+        double dice = ThreadLocalRandom.current().nextDouble();
+        if (dice < rateLimitRate) {
+            injectedRateLimits.increment();
+            exchange.getResponseHeaders().set("Retry-After", String.valueOf(retryAfter.toMillis() / 1000.0));
+            send(exchange, 429, "{\"error\":{\"message\":\"rate limited by the stub\"}}");
+            return;
+        }
+        if (dice < rateLimitRate + errorRate) {
+            injectedErrors.increment();
+            send(exchange, 500, "{\"error\":{\"message\":\"error injected by the stub\"}}");
+            return;
+        }
+
+        boolean moderation = isModeration(request);
+        if (moderation) moderations.increment();
+        String[] tokens = moderation ? moderate(request) : words(request.path("max_tokens").asInt(completionTokens));
+        sleep(latency.sampleNanos());
+        if (request.path("stream").asBoolean()) {
+            streams.increment();
+            stream(exchange, tokens);
+            return;
+        }
+        StringBuilder content = new StringBuilder();
+        for (String token : tokens) {
+            content.append(token);
+            pace();
+        }
+        ObjectNode response = LlmClient.MAPPER.createObjectNode()
+                .put("id", "stub")
+                .put("object", "chat.completion")
+                .put("model", request.path("model").asText());
+        ObjectNode choice = response.putArray("choices").addObject().put("index", 0).put("finish_reason", "stop");
+        choice.putObject("message").put("role", "assistant").put("content", content.toString());
+        response.putObject("usage")
+                .put("prompt_tokens", request.toString().length() / 4)
+                .put("completion_tokens", tokens.length);
+        send(exchange, 200, response.toString());
+    }
+
+    private void stream(HttpExchange exchange, String[] tokens) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+        exchange.sendResponseHeaders(200, 0);
+        try (OutputStream out = exchange.getResponseBody()) {
+            for (String token : tokens) {
+                ObjectNode chunk = LlmClient.MAPPER.createObjectNode().put("object", "chat.completion.chunk");
+                chunk.putArray("choices").addObject().put("index", 0).putObject("delta").put("content", token);
+                out.write(("data: " + chunk + "\n\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                pace();
+            }
+            out.write("data: [DONE]\n\n".getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private boolean isModeration(JsonNode request) {
+        for (JsonNode message : request.path("messages")) {
+            if (message.path("role").asText().equals("system")
+                    && message.path("content").asText().toLowerCase(Locale.ROOT).contains("moderation")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // One verdict, or a JSON object of them by id when the user message is a JSON array of messages
+    private String[] moderate(JsonNode request) {
+        JsonNode messages = request.path("messages");
+        String text = messages.isEmpty() ? "" : messages.get(messages.size() - 1).path("content").asText();
+        if (text.startsWith("[")) {
+            try {
+                JsonNode batch = LlmClient.MAPPER.readTree(text);
+                if (batch.isArray()) {
+                    ObjectNode verdicts = LlmClient.MAPPER.createObjectNode();
+                    for (JsonNode message : batch) {
+                        verdicts.put(message.path("id").asText(), verdict(message.path("text").asText()));
+                    }
+                    return new String[]{verdicts.toString()};
+                }
+            } catch (IOException e) {
+                // A single message that happens to start with '['
+            }
+        }
+        return new String[]{verdict(text)};
+    }
+
+    private String verdict(String text) {
+        return text.contains(flagMarker) ? "FLAG" : "SAFE";
+    }
+
+    private String[] words(int maxTokens) {
+        int count = Math.max(1, Math.min(maxTokens, completionTokens));
+        String[] tokens = new String[count];
+        for (int i = 0; i < count - 1; i++) tokens[i] = WORDS[i % WORDS.length] + " ";
+        tokens[count - 1] = END_MARKER;
+        return tokens;
+    }
+
+    private void pace() {
+        if (tokensPerSecond > 0) sleep((long) (1e9 / tokensPerSecond));
+    }
+
+    private static void sleep(long nanos) {
+        if (nanos > 0) LockSupport.parkNanos(nanos);
+    }
+
+    private static void send(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    public static class Builder {
+        private int port = 0;
+        private Latency latency = Latency.parse("lognormal:300ms:3s");
+        private double tokensPerSecond = 40;
+        private int completionTokens = 40;
+        private double errorRate = 0;
+        private double rateLimitRate = 0;
+        private Duration retryAfter = Duration.ofSeconds(1);
+        private String flagMarker = "[flag]";
+
+        private Builder() {
+
+        }
+
+        // 0 picks a free port
+        public Builder port(int port) {
+            this.port = port;
+            return this;
+        }
+
+        // Time to first token
+        public Builder latency(Latency latency) {
+            this.latency = latency;
+            return this;
+        }
+
+        // 0 sends all tokens at once
+        public Builder tokensPerSecond(double tokensPerSecond) {
+            this.tokensPerSecond = tokensPerSecond;
+            return this;
+        }
+
+        // Words per answer, capped by the request's max_tokens
+        public Builder completionTokens(int completionTokens) {
+            this.completionTokens = completionTokens;
+            return this;
+        }
+
+        // Share of requests answered with 500
+        public Builder errorRate(double errorRate) {
+            this.errorRate = errorRate;
+            return this;
+        }
+
+        // Share of requests answered with 429 and Retry-After
+        public Builder rateLimitRate(double rateLimitRate) {
+            this.rateLimitRate = rateLimitRate;
+            return this;
+        }
+
+        public Builder retryAfter(Duration retryAfter) {
+            this.retryAfter = retryAfter;
+            return this;
+        }
+
+        // Messages containing this are flagged by the stub's moderation
+        public Builder flagMarker(String flagMarker) {
+            this.flagMarker = flagMarker;
+            return this;
+        }
+
+        // --latency, --tokens-per-second, --completion-tokens, --error-rate, --rate-limit-rate, --retry-after
+        Builder configure(Options options) {
+            latency = options.latency("latency", latency.toString());
+            tokensPerSecond = options.number("tokens-per-second", tokensPerSecond);
+            completionTokens = options.integer("completion-tokens", completionTokens);
+            errorRate = options.number("error-rate", errorRate);
+            rateLimitRate = options.number("rate-limit-rate", rateLimitRate);
+            retryAfter = options.duration("retry-after", retryAfter);
+            return this;
+        }
+
+        public StubLlmServer start() throws IOException {
+            HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 256);
+            return new StubLlmServer(this, server);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package common.metrics;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Latency of one kind of call, split by outcome: ok, error or cancelled (a hedge that lost,
+ * a speculative answer that was dropped). The three series are registered up front, so
+ * recording a call only picks one of them.
+ */
+public final class CallTimer {
+    private final Timer ok;
+    private final Timer error;
+    private final Timer cancelled;
+
+    CallTimer(Timer ok, Timer error, Timer cancelled) {
+        this.ok = ok;
+        this.error = error;
+        this.cancelled = cancelled;
+    }
+
+    /**
+     * Records a call that started at {@code startNanos} (System.nanoTime) and ended now.
+     */
+    public void record(long startNanos, Throwable failure) {
+        outcome(failure).recordSince(startNanos);
+    }
+
+    /**
+     * Records {@code call} when it completes and returns it unchanged, so cancelling the
+     * returned future still cancels the call.
+     */
+    public <T> CompletableFuture<T> time(CompletableFuture<T> call) {
+        long startNanos = System.nanoTime();
+        call.whenComplete((value, failure) -> record(startNanos, failure));
+        return call;
+    }
+
+    public Timer ok() {
+        return ok;
+    }
+
+    public Timer error() {
+        return error;
+    }
+
+    private Timer outcome(Throwable failure) {
+        if (failure == null) return ok;
+        while (failure instanceof CompletionException && failure.getCause() != null) failure = failure.getCause();
+        return failure instanceof CancellationException ? cancelled : error;
+    }
+}
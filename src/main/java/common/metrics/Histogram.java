@@ -0,0 +1,98 @@
+package common.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of non-negative longs (typically nanoseconds) with log-linear buckets:
+ * 16 buckets per power of two, so a quantile is off by at most 1/16 of its value.
+ * Values below 16 are counted exactly.
+ */
+public class Histogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    public void record(long value) {
+        if (value < 0) value = 0;
+        counts.incrementAndGet(bucket(value));
+        count.increment();
+        sum.add(value);
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    public long sum() {
+        return sum.sum();
+    }
+
+    public double mean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * Upper bound of the bucket holding the q-th quantile (0 < q <= 1), or 0 when empty.
+     */
+    public long quantile(double q) {
+        return quantile(q, this);
+    }
+
+    /**
+     * The q-th quantile over the values of all given histograms together.
+     */
+    public static long quantile(double q, Histogram... histograms) {
+        long total = 0;
+        for (Histogram histogram : histograms) total += histogram.count.sum();
+        if (total == 0) return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(q * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            for (Histogram histogram : histograms) seen += histogram.counts.get(i);
+            if (seen >= rank) return upperBound(i);
+        }
+        return upperBound(BUCKETS - 1);
+    }
+
+    /**
+     * For each of the ascending {@code bounds}, how many values lie in buckets entirely at or
+     * below it; the extra last element is the total. One consistent pass, e.g. for Prometheus
+     * "le" buckets.
+     */
+    public long[] cumulativeCounts(long... bounds) {
+        long[] result = new long[bounds.length + 1];
+        long seen = 0;
+        int next = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            while (next < bounds.length && upperBound(i) > bounds[next]) result[next++] = seen;
+            seen += counts.get(i);
+        }
+        while (next < bounds.length) result[next++] = seen;
+        result[bounds.length] = seen;
+        return result;
+    }
+
+    // Index: exact below 16, else (power of two, next 4 bits below the leading one)
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return ((exponent - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) + sub;
+    }
+
+    static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int exponent = (bucket >>> SUB_BUCKET_BITS) + SUB_BUCKET_BITS - 1;
+        long sub = bucket & (SUB_BUCKETS - 1);
+        long lower = (SUB_BUCKETS + sub) << (exponent - SUB_BUCKET_BITS);
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return lower + width - 1 < lower ? Long.MAX_VALUE : lower + width - 1;
+    }
+}
@@ -0,0 +1,61 @@
+package common.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts events and keeps an exponentially weighted one-minute rate, like a load average.
+ * Events are added to a counter on the hot path; the rate is folded in every 5 seconds by
+ * whichever thread touches the meter first after the tick is due.
+ */
+public class Meter {
+    private static final long TICK_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private static final double TICK_SECONDS = 5.0;
+    private static final double ALPHA = 1 - Math.exp(-TICK_SECONDS / 60.0);
+
+    private final LongAdder count = new LongAdder();
+    private final LongAdder uncounted = new LongAdder();
+    private final AtomicLong lastTick = new AtomicLong(System.nanoTime());
+    private volatile double ratePerSecond = 0;
+    private volatile boolean initialized = false;
+
+    public void mark() {
+        mark(1);
+    }
+
+    public void mark(long n) {
+        tickIfNeeded();
+        count.add(n);
+        uncounted.add(n);
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    /**
+     * Events per second, averaged over roughly the last minute.
+     */
+    public double oneMinuteRate() {
+        tickIfNeeded();
+        return ratePerSecond;
+    }
+
+    private void tickIfNeeded() {
+        long previous = lastTick.get();
+        long age = System.nanoTime() - previous;
+        if (age < TICK_NANOS) return;
+        // Only the thread that moves lastTick forward applies the pending ticks
+        if (!lastTick.compareAndSet(previous, previous + age - age % TICK_NANOS)) return;
+        for (long i = age / TICK_NANOS; i > 0; i--) {
+            double instantRate = uncounted.sumThenReset() / TICK_SECONDS;
+            if (initialized) {
+                ratePerSecond += ALPHA * (instantRate - ratePerSecond);
+            } else {
+                ratePerSecond = instantRate;
+                initialized = true;
+            }
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package common.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Named counters, gauges and timers with labels, written out in the Prometheus text format
+ * by {@link #scrape()} (served by {@link MetricsServer}).
+ * - Registering returns the same instance for the same name and labels, so callers look a
+ *   series up once and keep it; recording never touches the registry
+ * - Labels are given as name/value pairs: {@code counter("x_total", "...", "stage", "filter")}
+ * - Timers are exported in seconds as histograms with fixed "le" buckets; quantiles over any
+ *   window come from histogram_quantile() on the Prometheus side
+ */
+public final class Metrics {
+    private static final Metrics GLOBAL = new Metrics();
+
+    // Latency of calls to other services (LLMs, Discord, Slack, Whisper), see outboundCall
+    public static final String CALL_SECONDS = "call_seconds";
+
+    // Upper bounds of the exported histogram buckets, in seconds
+    private static final double[] BUCKETS_SECONDS = {
+            0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 120};
+    private static final long[] BUCKETS_NANOS = new long[BUCKETS_SECONDS.length];
+
+    static {
+        for (int i = 0; i < BUCKETS_SECONDS.length; i++) BUCKETS_NANOS[i] = (long) (BUCKETS_SECONDS[i] * 1e9);
+    }
+
+    private enum Type {
+        COUNTER("counter"), GAUGE("gauge"), HISTOGRAM("histogram");
+
+        final String text;
+
+        Type(String text) {
+            this.text = text;
+        }
+    }
+
+    // Sorted by name for a stable scrape
+    private final Map<String, Family> families = new ConcurrentSkipListMap<>();
+
+    /**
+     * The registry the bots and clients of this process record into.
+     */
+    public static Metrics global() {
+        return GLOBAL;
+    }
+
+    public Counter counter(String name, String help, String... labels) {
+        return (Counter) family(name, help, Type.COUNTER).series.computeIfAbsent(labels(labels), key -> new Counter());
+    }
+
+    public Timer timer(String name, String help, String... labels) {
+        return (Timer) family(name, help, Type.HISTOGRAM).series.computeIfAbsent(labels(labels), key -> new Timer());
+    }
+
+    /**
+     * Registers a value read at scrape time, replacing an earlier gauge with the same labels.
+     */
+    public void gauge(String name, String help, DoubleSupplier value, String... labels) {
+        family(name, help, Type.GAUGE).series.put(labels(labels), value);
+    }
+
+    /**
+     * A timer per outcome (ok, error, cancelled) for a kind of call, e.g. "moderation".
+     */
+    public CallTimer calls(String name, String help, String... labels) {
+        return new CallTimer(
+                timer(name, help, withLabel(labels, "outcome", "ok")),
+                timer(name, help, withLabel(labels, "outcome", "error")),
+                timer(name, help, withLabel(labels, "outcome", "cancelled")));
+    }
+
+    /**
+     * Latency of a call to another service, as {@code call_seconds{call="..."}}.
+     */
+    public CallTimer outboundCall(String call) {
+        return calls(CALL_SECONDS, "Latency of calls to other services", "call", call);
+    }
+
+    /**
+     * All metrics in the Prometheus text exposition format (version 0.0.4).
+     */
+    public String scrape() {
+        StringBuilder out = new StringBuilder(4096);
+        for (Family family : families.values()) {
+            out.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(family.name).append(' ').append(family.type.text).append('\n');
+            for (Map.Entry<String, Object> series : family.series.entrySet()) {
+                String labels = series.getKey();
+                switch (family.type) {
+                    case COUNTER -> sample(out, family.name, labels, ((Counter) series.getValue()).value());
+                    case GAUGE -> sample(out, family.name, labels, ((DoubleSupplier) series.getValue()).getAsDouble());
+                    case HISTOGRAM -> histogram(out, family.name, labels, ((Timer) series.getValue()).histogram());
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    private Family family(String name, String help, Type type) {
+        Family family = families.computeIfAbsent(name, key -> new Family(name, help, type));
+        if (family.type != type) {
+            throw new IllegalArgumentException(name + " is already registered as a " + family.type.text);
+        }
+        return family;
+    }
+
+    private static void histogram(StringBuilder out, String name, String labels, Histogram histogram) {
+        long[] cumulative = histogram.cumulativeCounts(BUCKETS_NANOS);
+        String prefix = labels.isEmpty() ? "" : labels + ",";
+        for (int i = 0; i < BUCKETS_SECONDS.length; i++) {
+            sample(out, name + "_bucket", prefix + "le=\"" + BUCKETS_SECONDS[i] + "\"", cumulative[i]);
+        }
+        long count = cumulative[BUCKETS_SECONDS.length];
+        sample(out, name + "_bucket", prefix + "le=\"+Inf\"", count);
+        sample(out, name + "_sum", labels, histogram.sum() / 1e9);
+        sample(out, name + "_count", labels, count);
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, long value) {
+        out.append(name);
+        if (!labels.isEmpty()) out.append('{').append(labels).append('}');
+        out.append(' ').append(value).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, double value) {
+        out.append(name);
+        if (!labels.isEmpty()) out.append('{').append(labels).append('}');
+        out.append(' ');
+        if (Double.isNaN(value)) out.append("NaN");
+        else if (Double.isInfinite(value)) out.append(value > 0 ? "+Inf" : "-Inf");
+        else out.append(value);
+        out.append('\n');
+    }
+
+    // name="value" pairs, rendered once at registration
+    private static String labels(String... pairs) {
+        if (pairs.length % 2 != 0) throw new IllegalArgumentException("labels must be name/value pairs");
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < pairs.length; i += 2) {
+            if (i > 0) text.append(',');
+            text.append(pairs[i]).append("=\"");
+            String value = pairs[i + 1];
+            for (int j = 0; j < value.length(); j++) {
+                char c = value.charAt(j);
+                switch (c) {
+                    case '\\' -> text.append("\\\\");
+                    case '"' -> text.append("\\\"");
+                    case '\n' -> text.append("\\n");
+                    default -> text.append(c);
+                }
+            }
+            text.append('"');
+        }
+        return text.toString();
+    }
+
+    private static String[] withLabel(String[] pairs, String name, String value) {
+        String[] result = new String[pairs.length + 2];
+        System.arraycopy(pairs, 0, result, 0, pairs.length);
+        result[pairs.length] = name;
+        result[pairs.length + 1] = value;
+        return result;
+    }
+
+    private static final class Family {
+        final String name;
+        final String help;
+        final Type type;
+        // Rendered labels -> Counter, Timer or DoubleSupplier
+        final Map<String, Object> series = new ConcurrentHashMap<>();
+
+        Family(String name, String help, Type type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package common.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves {@link Metrics#scrape()} at GET /metrics for Prometheus, from the JDK's built-in
+ * HTTP server on one daemon thread. Binds to the loopback interface unless told otherwise.
+ */
+public final class MetricsServer implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(MetricsServer.class);
+
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final HttpServer server;
+
+    private MetricsServer(HttpServer server) {
+        this.server = server;
+    }
+
+    public static MetricsServer start(Metrics metrics, String host, int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        server.createContext("/metrics", exchange -> handle(exchange, metrics));
+        server.setExecutor(Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-server");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+        return new MetricsServer(server);
+    }
+
+    /**
+     * Starts a server for the global registry on METRICS_HOST (default 127.0.0.1) and
+     * METRICS_PORT, or {@code defaultPort} without it. A negative port turns it off.
+     * Returns null when off or when the port cannot be bound; metrics are still recorded.
+     */
+    public static MetricsServer fromEnv(int defaultPort) {
+        String host = System.getenv("METRICS_HOST");
+        String portValue = System.getenv("METRICS_PORT");
+        int port = defaultPort;
+        if (portValue != null && !portValue.isBlank()) {
+            try {
+                port = Integer.parseInt(portValue.trim());
+            } catch (NumberFormatException e) {
+                logger.warn("Ignoring METRICS_PORT={}: not a number", portValue);
+            }
+        }
+        if (port < 0) return null;
+        try {
+            MetricsServer server = start(Metrics.global(), host == null || host.isBlank() ? "127.0.0.1" : host.trim(), port);
+            logger.info("Metrics at http://{}:{}/metrics", server.server.getAddress().getHostString(), server.port());
+            return server;
+        } catch (IOException e) {
+            logger.warn("Cannot serve metrics on port {}: {}", port, e.getMessage());
+            return null;
+        }
+    }
+
+    public int port() {
+        return server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    private static void handle(HttpExchange exchange, Metrics metrics) throws IOException {
+        try (exchange) {
+            String method = exchange.getRequestMethod();
+            if (!method.equals("GET") && !method.equals("HEAD")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = metrics.scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            if (method.equals("HEAD")) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package common.metrics;
+
+import java.time.Duration;
+
+/**
+ * Histogram of recent values only: quantiles cover the current and the previous window,
+ * so they follow changes in load within one to two windows.
+ */
+public class RollingHistogram {
+    private final long windowNanos;
+    private volatile Histogram current = new Histogram();
+    private volatile Histogram previous = new Histogram();
+    private volatile long windowStart = System.nanoTime();
+
+    public RollingHistogram(Duration window) {
+        this.windowNanos = window.toNanos();
+    }
+
+    public void record(long value) {
+        rotateIfNeeded();
+        current.record(value);
+    }
+
+    public long count() {
+        rotateIfNeeded();
+        return current.count() + previous.count();
+    }
+
+    public long quantile(double q) {
+        rotateIfNeeded();
+        return Histogram.quantile(q, current, previous);
+    }
+
+    private void rotateIfNeeded() {
+        if (System.nanoTime() - windowStart < windowNanos) return;
+        synchronized (this) {
+            long now = System.nanoTime();
+            long age = now - windowStart;
+            if (age < windowNanos) return;
+            // After a quiet period longer than a window the previous values are stale too
+            previous = age < 2 * windowNanos ? current : new Histogram();
+            current = new Histogram();
+            windowStart = now;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package common.metrics;
+
+/**
+ * Durations in nanoseconds, exported as a Prometheus histogram in seconds.
+ * Recording touches only the lock-free {@link Histogram}: no allocation, no lock.
+ */
+public final class Timer {
+    private final Histogram histogram = new Histogram();
+
+    public void record(long nanos) {
+        histogram.record(nanos);
+    }
+
+    public void recordSince(long startNanos) {
+        histogram.record(System.nanoTime() - startNanos);
+    }
+
+    public Histogram histogram() {
+        return histogram;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d mean=%.1fms p50=%.1fms p99=%.1fms", histogram.count(), histogram.mean() / 1e6,
+                histogram.quantile(0.5) / 1e6, histogram.quantile(0.99) / 1e6);
+    }
+}
@@ -0,0 +1,88 @@
+package common.moderation;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * First moderation tier, run before any LLM call.
+ * - A banned term anywhere in the message decides FLAG immediately
+ * - Messages that are an allow-listed phrase ("thanks", "lol", "ok") or contain no letters
+ *   or digits at all (emoji, punctuation) are SAFE
+ * - Everything else is UNKNOWN and goes on to the LLM
+ */
+public class ModerationPrefilter {
+    private static final Logger logger = LoggerFactory.getLogger(ModerationPrefilter.class);
+
+    public enum Verdict { FLAG, SAFE, UNKNOWN }
+
+    private final TermMatcher bannedTerms;
+    private final Set<String> safeMessages;
+    private final int maxSafeMessageLength;
+
+    private final LongAdder flagged = new LongAdder();
+    private final LongAdder safe = new LongAdder();
+    private final LongAdder unknown = new LongAdder();
+
+    public ModerationPrefilter(TermMatcher bannedTerms, Set<String> safeMessages) {
+        this.bannedTerms = bannedTerms;
+        this.safeMessages = new HashSet<>();
+        int maxLength = 0;
+        for (String message : safeMessages) {
+            String normalized = TextFolding.normalize(message);
+            this.safeMessages.add(normalized);
+            maxLength = Math.max(maxLength, message.length());
+        }
+        // Raw text can be a bit longer than its folded form ("thanks!!!"), so leave some slack
+        this.maxSafeMessageLength = maxLength * 2 + 8;
+    }
+
+    /**
+     * Loads both lists from classpath resources; a missing allow-list is treated as empty.
+     */
+    public static ModerationPrefilter fromResources(String bannedTermsResource, String safeMessagesResource) {
+        List<String> banned = TermMatcher.readLines(bannedTermsResource);
+        List<String> allowed = safeMessagesResource == null ? List.of() : TermMatcher.readLines(safeMessagesResource);
+        logger.info("Moderation prefilter: {} banned terms, {} safe messages", banned.size(), allowed.size());
+        return new ModerationPrefilter(TermMatcher.compile(banned), new HashSet<>(allowed));
+    }
+
+    public Verdict classify(String message) {
+        int term = bannedTerms.firstMatch(message);
+        if (term >= 0) {
+            logger.debug("Banned term matched: {}", bannedTerms.term(term));
+            flagged.increment();
+            return Verdict.FLAG;
+        }
+        if (isObviouslySafe(message)) {
+            safe.increment();
+            return Verdict.SAFE;
+        }
+        unknown.increment();
+        return Verdict.UNKNOWN;
+    }
+
+    public TermMatcher bannedTerms() {
+        return bannedTerms;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("flag=%d safe=%d unknown=%d", flagged.sum(), safe.sum(), unknown.sum());
+    }
+
+    private boolean isObviouslySafe(String message) {
+        boolean hasWordChar = false;
+        for (int i = 0; i < message.length() && !hasWordChar; i++) {
+            hasWordChar = Character.isLetterOrDigit(message.charAt(i));
+        }
+        if (!hasWordChar) return true;
+
+        // Only short messages can be allow-listed phrases, so long ones are never normalized
+        return message.length() <= maxSafeMessageLength && safeMessages.contains(TextFolding.normalize(message));
+    }
+}
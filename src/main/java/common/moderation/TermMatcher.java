@@ -0,0 +1,190 @@
+package common.moderation;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Aho-Corasick automaton over {@link TextFolding folded} text.
+ * All terms are compiled into one DFA with a dense transition table, so a message is
+ * checked in a single pass with one table lookup per char and no allocation.
+ * Term syntax (one per entry):
+ * - {@code word} or {@code two words} match whole words only
+ * - {@code word*} also matches words starting with "word"
+ * - {@code *word} also matches words ending with "word"
+ * - {@code *word*} matches anywhere
+ * Terms are folded the same way as messages, so "Kill", "k1ll" and "kíll" are the same term.
+ */
+public final class TermMatcher {
+    private static final Logger logger = LoggerFactory.getLogger(TermMatcher.class);
+
+    private final String[] terms;
+    private final char[] alphabetIndex;
+    private final int alphabetSize;
+    // delta[state * alphabetSize + symbol] -> next state, failure links already resolved
+    private final int[] delta;
+    // Index of a term that ends in this state (directly or through a suffix), or -1
+    private final int[] matchTerm;
+
+    private TermMatcher(String[] terms, char[] alphabetIndex, int alphabetSize, int[] delta, int[] matchTerm) {
+        this.terms = terms;
+        this.alphabetIndex = alphabetIndex;
+        this.alphabetSize = alphabetSize;
+        this.delta = delta;
+        this.matchTerm = matchTerm;
+    }
+
+    public static TermMatcher compile(Collection<String> rawTerms) {
+        List<String> terms = new ArrayList<>();
+        List<String> patterns = new ArrayList<>();
+        for (String raw : rawTerms) {
+            String trimmed = raw.strip();
+            boolean prefix = trimmed.endsWith("*");
+            boolean suffix = trimmed.startsWith("*");
+            String core = TextFolding.normalize(trimmed.replace("*", ""));
+            if (core.isEmpty()) continue;
+            terms.add(trimmed);
+            // Whole-word boundaries are expressed as separators around the folded term
+            patterns.add((suffix ? "" : " ") + core + (prefix ? "" : " "));
+        }
+
+        // Symbol 0 stands for every char that does not occur in any term
+        char[] alphabetIndex = new char[Character.MAX_VALUE + 1];
+        int alphabetSize = 1;
+        for (String pattern : patterns) {
+            for (int i = 0; i < pattern.length(); i++) {
+                char c = pattern.charAt(i);
+                if (alphabetIndex[c] == 0) alphabetIndex[c] = (char) alphabetSize++;
+            }
+        }
+
+        // 1. Trie
+        List<Map<Character, Integer>> children = new ArrayList<>();
+        List<Integer> terminal = new ArrayList<>();
+        children.add(new HashMap<>());
+        terminal.add(-1);
+        for (int t = 0; t < patterns.size(); t++) {
+            String pattern = patterns.get(t);
+            int state = 0;
+            for (int i = 0; i < pattern.length(); i++) {
+                Integer next = children.get(state).get(pattern.charAt(i));
+                if (next == null) {
+                    next = children.size();
+                    children.add(new HashMap<>());
+                    terminal.add(-1);
+                    children.get(state).put(pattern.charAt(i), next);
+                }
+                state = next;
+            }
+            if (terminal.get(state) < 0) terminal.set(state, t);
+        }
+
+        // 2. Breadth-first failure links, folded straight into a dense DFA
+        int states = children.size();
+        int[] delta = new int[states * alphabetSize];
+        int[] fail = new int[states];
+        int[] matchTerm = new int[states];
+        Arrays.fill(matchTerm, -1);
+
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (Map.Entry<Character, Integer> edge : children.get(0).entrySet()) {
+            delta[alphabetIndex[edge.getKey()]] = edge.getValue();
+            queue.add(edge.getValue());
+        }
+        matchTerm[0] = terminal.get(0);
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            int failState = fail[state];
+            matchTerm[state] = terminal.get(state) >= 0 ? terminal.get(state) : matchTerm[failState];
+
+            System.arraycopy(delta, failState * alphabetSize, delta, state * alphabetSize, alphabetSize);
+            for (Map.Entry<Character, Integer> edge : children.get(state).entrySet()) {
+                int symbol = alphabetIndex[edge.getKey()];
+                int child = edge.getValue();
+                fail[child] = delta[failState * alphabetSize + symbol];
+                delta[state * alphabetSize + symbol] = child;
+                queue.add(child);
+            }
+        }
+
+        return new TermMatcher(terms.toArray(new String[0]), alphabetIndex, alphabetSize, delta, matchTerm);
+    }
+
+    /**
+     * Compiles the term list stored in a classpath resource.
+     */
+    public static TermMatcher load(String resourcePath) {
+        return compile(readLines(resourcePath));
+    }
+
+    // One entry per line; blank lines and lines starting with # are ignored
+    static List<String> readLines(String resourcePath) {
+        List<String> lines = new ArrayList<>();
+        try (InputStream is = TermMatcher.class.getResourceAsStream(resourcePath)) {
+            if (is == null) {
+                logger.warn("Term list not found: {}", resourcePath);
+                return lines;
+            }
+            BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.strip();
+                if (!line.isEmpty() && !line.startsWith("#")) lines.add(line);
+            }
+        } catch (IOException e) {
+            logger.error("Error reading term list: {}", resourcePath, e);
+        }
+        return lines;
+    }
+
+    /**
+     * Returns the index of the first term found in the text, or -1.
+     */
+    public int firstMatch(CharSequence text) {
+        // The text is framed by separators so terms can match at the very start and end
+        int state = step(0, TextFolding.SEPARATOR);
+        boolean lastSeparator = true;
+        for (int i = 0, n = text.length(); i < n; i++) {
+            char f = TextFolding.fold(text.charAt(i));
+            if (f == TextFolding.SKIP) continue;
+            if (f == TextFolding.SEPARATOR) {
+                if (lastSeparator) continue;
+                lastSeparator = true;
+            } else {
+                lastSeparator = false;
+            }
+            state = step(state, f);
+            if (matchTerm[state] >= 0) return matchTerm[state];
+        }
+        if (!lastSeparator) state = step(state, TextFolding.SEPARATOR);
+        return matchTerm[state];
+    }
+
+    public boolean matches(CharSequence text) {
+        return firstMatch(text) >= 0;
+    }
+
+    public String term(int index) {
+        return terms[index];
+    }
+
+    public int size() {
+        return terms.length;
+    }
+
+    private int step(int state, char folded) {
+        return delta[state * alphabetSize + alphabetIndex[folded]];
+    }
+}
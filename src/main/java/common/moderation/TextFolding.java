@@ -0,0 +1,99 @@
+package common.moderation;
+
+import java.text.Normalizer;
+
+/**
+ * Character folding shared by the term matcher and the allow-list.
+ * Every UTF-16 char is mapped through one precomputed table:
+ * - letters lose case and diacritics ("É" -> "e", "ﬁ" -> "f")
+ * - leetspeak digits and symbols become letters ("0" -> "o", "$" -> "s", "@" -> "a")
+ * - combining marks are dropped
+ * - whitespace and punctuation become a single separator
+ * - everything else (symbols, emoji halves) is kept as is
+ * The table is built once, so folding a message never allocates.
+ */
+public final class TextFolding {
+    /** Folded value of whitespace and punctuation. Runs of separators collapse into one. */
+    public static final char SEPARATOR = ' ';
+    /** Folded value of chars that should be ignored entirely. */
+    public static final char SKIP = '\0';
+
+    private static final char[] FOLD = buildTable();
+
+    private TextFolding() {
+    }
+
+    public static char fold(char c) {
+        return FOLD[c];
+    }
+
+    /**
+     * Folds a whole string and collapses separators; used for term lists and short messages.
+     */
+    public static String normalize(CharSequence text) {
+        StringBuilder sb = new StringBuilder(text.length());
+        boolean lastSeparator = true;
+        for (int i = 0; i < text.length(); i++) {
+            char f = FOLD[text.charAt(i)];
+            if (f == SKIP) continue;
+            if (f == SEPARATOR) {
+                if (lastSeparator) continue;
+                lastSeparator = true;
+            } else {
+                lastSeparator = false;
+            }
+            sb.append(f);
+        }
+        int end = sb.length();
+        if (end > 0 && sb.charAt(end - 1) == SEPARATOR) sb.setLength(end - 1);
+        return sb.toString();
+    }
+
+    private static char[] buildTable() {
+        char[] table = new char[Character.MAX_VALUE + 1];
+        for (int i = 0; i <= Character.MAX_VALUE; i++) {
+            table[i] = foldSlow((char) i);
+        }
+        // Leetspeak
+        table['0'] = 'o';
+        table['1'] = 'i';
+        table['3'] = 'e';
+        table['4'] = 'a';
+        table['5'] = 's';
+        table['7'] = 't';
+        table['8'] = 'b';
+        table['@'] = 'a';
+        table['$'] = 's';
+        table['|'] = 'l';
+        return table;
+    }
+
+    private static char foldSlow(char c) {
+        if (Character.isSurrogate(c)) return c;
+        int type = Character.getType(c);
+        if (type == Character.NON_SPACING_MARK || type == Character.ENCLOSING_MARK
+                || type == Character.FORMAT) {
+            return SKIP;
+        }
+        if (Character.isWhitespace(c) || Character.isSpaceChar(c) || isPunctuation(type)) {
+            return SEPARATOR;
+        }
+        if (Character.isLetterOrDigit(c)) {
+            // Compatibility decomposition strips accents and unifies lookalikes such as fullwidth letters
+            String decomposed = Normalizer.normalize(String.valueOf(c), Normalizer.Form.NFKD);
+            for (int i = 0; i < decomposed.length(); i++) {
+                char d = decomposed.charAt(i);
+                if (Character.isLetterOrDigit(d)) return Character.toLowerCase(d);
+            }
+            return Character.toLowerCase(c);
+        }
+        return c;
+    }
+
+    private static boolean isPunctuation(int type) {
+        return type == Character.CONNECTOR_PUNCTUATION || type == Character.DASH_PUNCTUATION
+                || type == Character.START_PUNCTUATION || type == Character.END_PUNCTUATION
+                || type == Character.INITIAL_QUOTE_PUNCTUATION || type == Character.FINAL_QUOTE_PUNCTUATION
+                || type == Character.OTHER_PUNCTUATION || type == Character.CONTROL;
+    }
+}
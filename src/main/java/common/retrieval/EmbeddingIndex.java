@@ -0,0 +1,164 @@
+package common.retrieval;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Brute-force nearest-neighbour index over unit-length embeddings.
+ * All vectors live in one flat float[] so the scan walks memory sequentially.
+ * For a few thousand chunks a full scan takes well under a millisecond, which is far
+ * cheaper than the prompt tokens it saves.
+ */
+public class EmbeddingIndex {
+    private static final int MAGIC = 0x46415145; // "FAQE"
+    private static final int VERSION = 1;
+
+    private final List<String> texts;
+    private final int dimensions;
+    private final float[] vectors;
+    private final VectorSimilarity similarity;
+
+    public EmbeddingIndex(List<String> texts, List<float[]> embeddings) {
+        this(texts, flatten(embeddings), embeddings.isEmpty() ? 0 : embeddings.get(0).length);
+    }
+
+    private EmbeddingIndex(List<String> texts, float[] vectors, int dimensions) {
+        this.texts = List.copyOf(texts);
+        this.vectors = vectors;
+        this.dimensions = dimensions;
+        this.similarity = VectorSimilarity.best();
+    }
+
+    public record Hit(int index, String text, float score) {}
+
+    /**
+     * Returns up to {@code k} chunks ordered by descending similarity to the query.
+     */
+    public List<Hit> topK(float[] query, int k) {
+        float[] q = normalize(query.clone());
+        int n = texts.size();
+        k = Math.min(k, n);
+        if (k <= 0) return List.of();
+
+        // Tiny insertion-sorted buffer: k is a handful, so this beats a heap
+        int[] best = new int[k];
+        float[] bestScore = new float[k];
+        int found = 0;
+        for (int i = 0; i < n; i++) {
+            float score = similarity.dot(vectors, i * dimensions, q, 0, dimensions);
+            if (found < k || score > bestScore[found - 1]) {
+                int pos = found < k ? found++ : k - 1;
+                while (pos > 0 && bestScore[pos - 1] < score) {
+                    bestScore[pos] = bestScore[pos - 1];
+                    best[pos] = best[pos - 1];
+                    pos--;
+                }
+                bestScore[pos] = score;
+                best[pos] = i;
+            }
+        }
+
+        List<Hit> hits = new ArrayList<>(found);
+        for (int i = 0; i < found; i++) {
+            hits.add(new Hit(best[i], texts.get(best[i]), bestScore[i]));
+        }
+        return hits;
+    }
+
+    public int size() {
+        return texts.size();
+    }
+
+    public int dimensions() {
+        return dimensions;
+    }
+
+    /**
+     * Writes the index atomically; {@code tag} identifies what it was built from (model and source hash).
+     */
+    public void save(Path file, String tag) throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) Files.createDirectories(parent);
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(tag);
+            out.writeInt(texts.size());
+            out.writeInt(dimensions);
+            for (String text : texts) {
+                writeLongUTF(out, text);
+            }
+            for (float v : vectors) {
+                out.writeFloat(v);
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Loads a saved index, or returns null if the file is missing, corrupt or built from something else.
+     */
+    public static EmbeddingIndex load(Path file, String expectedTag) {
+        if (!Files.exists(file)) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) return null;
+            if (!in.readUTF().equals(expectedTag)) return null;
+            int count = in.readInt();
+            int dimensions = in.readInt();
+            List<String> texts = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                texts.add(readLongUTF(in));
+            }
+            float[] vectors = new float[count * dimensions];
+            for (int i = 0; i < vectors.length; i++) {
+                vectors[i] = in.readFloat();
+            }
+            return new EmbeddingIndex(texts, vectors, dimensions);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static float[] flatten(List<float[]> embeddings) {
+        if (embeddings.isEmpty()) return new float[0];
+        int dimensions = embeddings.get(0).length;
+        float[] flat = new float[embeddings.size() * dimensions];
+        for (int i = 0; i < embeddings.size(); i++) {
+            float[] vector = embeddings.get(i);
+            if (vector.length != dimensions) {
+                throw new IllegalArgumentException("Embedding " + i + " has " + vector.length
+                        + " dimensions, expected " + dimensions);
+            }
+            System.arraycopy(normalize(vector.clone()), 0, flat, i * dimensions, dimensions);
+        }
+        return flat;
+    }
+
+    private static float[] normalize(float[] vector) {
+        double norm = 0;
+        for (float v : vector) norm += v * v;
+        if (norm == 0) return vector;
+        float scale = (float) (1.0 / Math.sqrt(norm));
+        for (int i = 0; i < vector.length; i++) vector[i] *= scale;
+        return vector;
+    }
+
+    // writeUTF is limited to 64 KB, which a long chunk could exceed
+    private static void writeLongUTF(DataOutputStream out, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readLongUTF(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
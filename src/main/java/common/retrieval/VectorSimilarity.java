@@ -0,0 +1,46 @@
+package common.retrieval;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Dot product over float vectors stored in flat arrays.
+ * For unit-length embeddings the dot product is the cosine similarity.
+ */
+public interface VectorSimilarity {
+
+    float dot(float[] a, int aOffset, float[] b, int bOffset, int length);
+
+    /**
+     * Returns the SIMD implementation when the JVM was started with
+     * {@code --add-modules jdk.incubator.vector}, and the scalar loop otherwise.
+     */
+    static VectorSimilarity best() {
+        return Holder.BEST;
+    }
+
+    final class Holder {
+        private static final Logger logger = LoggerFactory.getLogger(VectorSimilarity.class);
+        private static final VectorSimilarity BEST = select();
+
+        private Holder() {
+        }
+
+        private static VectorSimilarity select() {
+            // Touching SimdSimilarity without the incubator module would fail class loading, so check first
+            if (ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+                try {
+                    VectorSimilarity simd = (VectorSimilarity) Class.forName("common.retrieval.SimdSimilarity")
+                            .getDeclaredConstructor().newInstance();
+                    logger.info("Using JDK Vector API for similarity search");
+                    return simd;
+                } catch (ReflectiveOperationException | LinkageError e) {
+                    logger.warn("JDK Vector API unavailable, using scalar similarity: {}", e.toString());
+                }
+            } else {
+                logger.info("jdk.incubator.vector not enabled, using scalar similarity");
+            }
+            return new ScalarSimilarity();
+        }
+    }
+}
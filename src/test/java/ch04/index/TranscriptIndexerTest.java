@@ -0,0 +1,64 @@
+package ch04.index;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class TranscriptIndexerTest {
+    @TempDir
+    Path tmp;
+
+    @Test
+    void indexAccumulatesTranscriptionRuns() throws IOException {
+        Path index = tmp.resolve("index");
+        TranscriptIndexer indexer = new TranscriptIndexer(index);
+
+        // Two episodes, each transcribed into its own output_dir with the same segment names
+        Path first = write(tmp.resolve("episode-811"), "segment_00001.txt", "the lighthouse keeper counted ships");
+        write(first, "segment_00002.txt", "storms came every winter");
+        Path second = write(tmp.resolve("episode-812"), "segment_00001.txt", "a baker opened shop at dawn");
+
+        assertEquals(new TranscriptIndexer.Summary(2, 0, 0, 1), indexer.update(first));
+        assertEquals(new TranscriptIndexer.Summary(1, 0, 0, 2), indexer.update(second));
+
+        TranscriptSearcher searcher = TranscriptSearcher.open(index);
+        assertEquals(3, searcher.size());
+        assertEquals(List.of(first.resolve("segment_00001.txt")), files(searcher, "lighthouse"));
+        assertEquals(List.of(second.resolve("segment_00001.txt")), files(searcher, "baker"));
+        assertEquals(2, searcher.search("lighthouse baker", 10).size());
+    }
+
+    @Test
+    void updateOnlyRemovesFromItsOwnDirectory() throws IOException {
+        Path index = tmp.resolve("index");
+        TranscriptIndexer indexer = new TranscriptIndexer(index);
+        Path first = write(tmp.resolve("a"), "segment_00001.txt", "harbor fog");
+        write(first, "segment_00002.txt", "quiet morning");
+        Path second = write(tmp.resolve("b"), "segment_00001.txt", "harbor lights");
+        indexer.update(first);
+        indexer.update(second);
+
+        Files.delete(first.resolve("segment_00002.txt"));
+        assertEquals(new TranscriptIndexer.Summary(0, 1, 1, 2), indexer.update(first));
+
+        TranscriptSearcher searcher = TranscriptSearcher.open(index);
+        assertEquals(List.of(), files(searcher, "morning"));
+        assertEquals(2, files(searcher, "harbor").size());
+    }
+
+    private static Path write(Path dir, String name, String text) throws IOException {
+        Files.createDirectories(dir);
+        Files.writeString(dir.resolve(name), text);
+        return dir;
+    }
+
+    private static List<Path> files(TranscriptSearcher searcher, String query) {
+        return searcher.search(query, 10).stream().map(TranscriptSearcher.Hit::file).toList();
+    }
+}
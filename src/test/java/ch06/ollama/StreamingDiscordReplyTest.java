@@ -0,0 +1,62 @@
+package ch06.ollama;
+
+import common.loadtest.FakeDiscord;
+import common.loadtest.Latency;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class StreamingDiscordReplyTest {
+    private static final String HEADER = "Dear <@42>, 🎄\n\n";
+
+    private final BlockingQueue<String> edits = new LinkedBlockingQueue<>();
+    private final FakeDiscord discord = new FakeDiscord(Latency.fixed(Duration.ZERO), new FakeDiscord.Listener() {
+        @Override
+        public void sent(String channelId, String content) {
+        }
+
+        @Override
+        public void edited(String channelId, String content) {
+            edits.add(content);
+        }
+
+        @Override
+        public void deleted(long messageId) {
+        }
+    });
+
+    @Test
+    void emptyAnswerAfterHeaderShowsTheApology() throws Exception {
+        StreamingDiscordReply reply = new StreamingDiscordReply(discord.textChannel(1, "support"), 10, 1000);
+        reply.open(HEADER, "thinking...").get(5, TimeUnit.SECONDS);
+
+        reply.finish("", null);
+
+        String edited = edits.poll(5, TimeUnit.SECONDS);
+        assertEquals(HEADER + "I apologize, but I could not come up with an answer. " + Constants.NEW_YEAR_REMINDER,
+                edited);
+    }
+
+    @Test
+    void whitespaceTokensKeepThePlaceholder() throws Exception {
+        StreamingDiscordReply reply = new StreamingDiscordReply(discord.textChannel(1, "support"), 1, 0);
+        reply.open(HEADER, "thinking...").get(5, TimeUnit.SECONDS);
+
+        reply.onToken("\n");
+        assertNull(edits.poll(200, TimeUnit.MILLISECONDS));
+
+        reply.onToken("Hello");
+        reply.finish(null, null);
+        String last = null;
+        for (String edited = edits.poll(5, TimeUnit.SECONDS); edited != null; edited = edits.poll(200, TimeUnit.MILLISECONDS)) {
+            last = edited;
+        }
+        assertEquals(HEADER + "\nHello", last);
+    }
+}
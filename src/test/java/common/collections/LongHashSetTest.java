@@ -0,0 +1,187 @@
+package common.collections;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LongHashSetTest {
+    // A new set has 16 slots
+    private static final int MASK = 15;
+
+    @TempDir
+    Path tmp;
+
+    @Test
+    void collidingKeysWrapAroundTheTable() {
+        // Five keys that all want the last slot, so their run wraps to slots 0-3
+        long[] keys = keysWithHome(MASK, 5);
+        LongHashSet set = new LongHashSet();
+        for (long key : keys) assertTrue(set.add(key));
+        for (long key : keys) assertFalse(set.add(key));
+        assertEquals(5, set.size());
+        assertEquals(16 * Long.BYTES, set.tableBytes());
+
+        // Removing from the middle of the run must not hide the keys after it
+        assertTrue(set.remove(keys[1]));
+        assertFalse(set.remove(keys[1]));
+        assertFalse(set.contains(keys[1]));
+        for (long key : new long[]{keys[0], keys[2], keys[3], keys[4]}) assertTrue(set.contains(key));
+        assertTrue(set.remove(keys[0]));
+        assertTrue(set.remove(keys[4]));
+        assertTrue(set.contains(keys[2]));
+        assertTrue(set.contains(keys[3]));
+        assertEquals(2, set.size());
+    }
+
+    @Test
+    void removeKeepsKeysWhoseHomeIsBeforeTheGap() {
+        // Slot 14: a, b (home 14) fill 14 and 15; c (home 15) goes to 0; d (home 0) to 1.
+        // Removing a must move b back to 14 and c to 15, but d may stay where it is
+        long a = keysWithHome(14, 2)[0];
+        long b = keysWithHome(14, 2)[1];
+        long c = keysWithHome(MASK, 1)[0];
+        long d = keysWithHome(0, 1)[0];
+        LongHashSet set = new LongHashSet();
+        for (long key : new long[]{a, b, c, d}) set.add(key);
+        assertTrue(set.remove(a));
+        assertTrue(set.contains(b));
+        assertTrue(set.contains(c));
+        assertTrue(set.contains(d));
+        assertTrue(set.remove(c));
+        assertTrue(set.contains(b));
+        assertTrue(set.contains(d));
+        assertEquals(2, set.size());
+    }
+
+    @Test
+    void zeroIsAValue() {
+        LongHashSet set = new LongHashSet();
+        assertFalse(set.contains(0));
+        assertTrue(set.add(0));
+        assertFalse(set.add(0));
+        assertTrue(set.contains(0));
+        assertEquals(1, set.size());
+        assertTrue(set.remove(0));
+        assertFalse(set.remove(0));
+        assertEquals(0, set.size());
+    }
+
+    @Test
+    void growsAndMatchesAHashSet() {
+        for (boolean offHeap : new boolean[]{false, true}) {
+            LongHashSet set = new LongHashSet(0, offHeap);
+            Set<Long> reference = new HashSet<>();
+            Random random = new Random(7);
+            for (int i = 0; i < 200_000; i++) {
+                // A small range, so adds, repeats and removes all happen often
+                long value = random.nextInt(20_000) - 10;
+                if (random.nextInt(3) == 0) assertEquals(reference.remove(value), set.remove(value));
+                else assertEquals(reference.add(value), set.add(value));
+            }
+            assertEquals(reference.size(), set.size());
+            for (long value = -10; value < 20_000; value++) assertEquals(reference.contains(value), set.contains(value));
+            // At most 3/4 full
+            assertTrue(set.tableBytes() / Long.BYTES * 3 / 4 >= set.size());
+        }
+    }
+
+    @Test
+    void snapshotRoundTrip() throws IOException {
+        for (boolean offHeap : new boolean[]{false, true}) {
+            Path file = tmp.resolve("greeted-" + offHeap + ".bin");
+            LongHashSet set = new LongHashSet(0, offHeap);
+            for (long id = 1; id <= 1000; id++) set.add(id * 1_000_000_007L);
+            set.add(0);
+            set.remove(7 * 1_000_000_007L);
+
+            assertTrue(set.snapshot(file));
+            assertFalse(set.snapshot(file), "unchanged sets are not written again");
+            assertFalse(Files.exists(file.resolveSibling(file.getFileName() + ".tmp")));
+
+            for (boolean loadOffHeap : new boolean[]{false, true}) {
+                LongHashSet loaded = LongHashSet.load(file, loadOffHeap);
+                assertNotNull(loaded);
+                assertEquals(1000, loaded.size());
+                assertEquals(set.tableBytes(), loaded.tableBytes());
+                assertTrue(loaded.contains(0));
+                assertFalse(loaded.contains(7 * 1_000_000_007L));
+                for (long id = 1; id <= 1000; id++) assertEquals(id != 7, loaded.contains(id * 1_000_000_007L));
+                // Still usable: the loaded table grows and removes like a new one
+                for (long id = 1; id <= 1000; id++) loaded.add(-id);
+                assertEquals(2000, loaded.size());
+            }
+
+            set.add(42);
+            assertTrue(set.snapshot(file));
+            assertTrue(LongHashSet.load(file, offHeap).contains(42));
+        }
+    }
+
+    @Test
+    void loadRejectsDamagedFiles() throws IOException {
+        Path file = tmp.resolve("greeted.bin");
+        assertNull(LongHashSet.load(file, false), "missing");
+
+        LongHashSet set = new LongHashSet();
+        for (long id = 1; id <= 100; id++) set.add(id);
+        set.snapshot(file);
+        byte[] good = Files.readAllBytes(file);
+
+        Files.write(file, new byte[]{1, 2, 3});
+        assertNull(LongHashSet.load(file, false), "shorter than the header");
+
+        Files.write(file, java.util.Arrays.copyOf(good, good.length - 8));
+        assertNull(LongHashSet.load(file, false), "truncated table");
+
+        Files.write(file, good);
+        corrupt(file, 0, (byte) 'X');
+        assertNull(LongHashSet.load(file, false), "bad magic");
+
+        Files.write(file, good);
+        corrupt(file, 4, (byte) 9);
+        assertNull(LongHashSet.load(file, false), "unknown version");
+
+        Files.write(file, good);
+        // Capacity (little-endian long at 16) no longer a power of two
+        corrupt(file, 16, (byte) (good[16] + 1));
+        assertNull(LongHashSet.load(file, false), "inconsistent capacity");
+
+        Files.write(file, good);
+        // Size (at 8) above the capacity
+        corrupt(file, 15, (byte) 0x7f);
+        assertNull(LongHashSet.load(file, false), "inconsistent size");
+
+        Files.write(file, good);
+        assertEquals(100, LongHashSet.load(file, false).size());
+    }
+
+    // The first n keys from 1 up whose home slot in a 16-slot table is home
+    private static long[] keysWithHome(int home, int n) {
+        long[] keys = new long[n];
+        int found = 0;
+        for (long key = 1; found < n; key++) {
+            if ((LongHashSet.mix(key) & MASK) == home) keys[found++] = key;
+        }
+        return keys;
+    }
+
+    private static void corrupt(Path file, long offset, byte value) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.seek(offset);
+            raf.write(value);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package common.llm;
+
+import com.knuddels.jtokkit.Encodings;
+import com.knuddels.jtokkit.api.Encoding;
+import com.knuddels.jtokkit.api.EncodingRegistry;
+import com.knuddels.jtokkit.api.EncodingType;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * BpeTokenizer against jtokkit on the vocabularies shipped in the jtokkit jar.
+ * The texts mix scripts, digits, contractions, emoji and every kind of whitespace, which is
+ * where the hand-written scanner and the regex it replaces could disagree.
+ */
+class BpeTokenizerTest {
+    private static final int TEXTS = 2000;
+
+    private static final String[] FRAGMENTS = {
+            "hello", "World", " the", "I'm", "we'LL", "they've", "it'S", "don't", "'re", "'x", "'",
+            "42", "2024", "3.14159", "1,000,000", "٣٤٥", "²", "Ⅻ",
+            "привет", "Straße", "naïve", "café", "日本語", "中文字", "한국어", "עברית", "العربية", "ελληνικά",
+            "😀", "👍🏽", "🇩🇪", "𝔘𝔫𝔦",
+            "!!", "?", "...", "—", "«»", "(x)", "{}", "#", "@user", "e-mail", "a_b", "\\n",
+            " ", "  ", "   ", "\t", "\n", "\r\n", "\n\n", " \n", "\t\n ", " ", "　", " ", "\u0085",
+    };
+
+    private static Encoding cl100kReference;
+    private static Encoding r50kReference;
+    private static BpeTokenizer cl100k;
+
+    @BeforeAll
+    static void load() throws IOException {
+        EncodingRegistry registry = Encodings.newDefaultEncodingRegistry();
+        cl100kReference = registry.getEncoding(EncodingType.CL100K_BASE);
+        r50kReference = registry.getEncoding(EncodingType.R50K_BASE);
+        cl100k = tiktoken("cl100k_base", BpeTokenizer.CL100K_PATTERN);
+    }
+
+    @Test
+    void scannerMatchesJtokkit() {
+        assertMatches(cl100kReference, cl100k, 1);
+    }
+
+    @Test
+    void regexMatchesJtokkit() throws IOException {
+        // Wrapped, so the pattern is not recognised and goes through java.util.regex
+        assertMatches(cl100kReference, tiktoken("cl100k_base", "(?:" + BpeTokenizer.CL100K_PATTERN + ")"), 2);
+        assertMatches(r50kReference, tiktoken("r50k_base", BpeTokenizer.GPT2_PATTERN), 3);
+    }
+
+    @Test
+    void scannerMatchesRegexForEveryScannedPattern() throws IOException {
+        for (String pattern : List.of(BpeTokenizer.LLAMA3_PATTERN, BpeTokenizer.QWEN2_PATTERN)) {
+            BpeTokenizer scanned = tiktoken("cl100k_base", pattern);
+            BpeTokenizer regex = tiktoken("cl100k_base", "(?:" + pattern + ")");
+            Random random = new Random(4);
+            for (int i = 0; i < TEXTS; i++) {
+                String text = randomText(random);
+                assertArrayEquals(regex.encode(text), scanned.encode(text), () -> pattern + " on " + escape(text));
+            }
+        }
+    }
+
+    @Test
+    void knownTexts() {
+        assertEquals(0, cl100k.count(""));
+        assertArrayEquals(new int[]{9906, 11, 1917, 0}, cl100k.encode("Hello, world!"));
+        assertEquals("Hello, world!", cl100k.decode(cl100k.encode("Hello, world!")));
+        // Longer than the per-thread buffers start out, so they have to grow
+        String longWord = "x".repeat(5000) + "ß".repeat(3000);
+        assertEquals(cl100kReference.countTokens(longWord), cl100k.count(longWord));
+    }
+
+    @Test
+    void truncateCutsAtTheLastPieceThatFits() {
+        Pattern pieces = Pattern.compile(BpeTokenizer.CL100K_PATTERN, Pattern.UNICODE_CHARACTER_CLASS);
+        Random random = new Random(5);
+        for (int i = 0; i < TEXTS; i++) {
+            String text = randomText(random);
+            int total = cl100kReference.countTokens(text);
+            int budget = random.nextInt(total + 2);
+
+            // The reference: whole pieces, counted by jtokkit, while they fit
+            int fits = 0;
+            int used = 0;
+            Matcher matcher = pieces.matcher(text);
+            while (matcher.find()) {
+                int tokens = cl100kReference.countTokens(matcher.group());
+                if (used + tokens > budget) break;
+                used += tokens;
+                fits = matcher.end();
+            }
+
+            String truncated = cl100k.truncate(text, budget);
+            assertEquals(text.substring(0, fits), truncated, () -> "budget " + budget + " of " + escape(text));
+            // Split on its own, the prefix can come out in fewer tokens but never in more
+            assertTrue(cl100k.count(truncated) <= budget, () -> "over budget " + budget + ": " + escape(truncated));
+        }
+        assertEquals("", cl100k.truncate("Hello", 0));
+        assertEquals("Hello", cl100k.truncate("Hello", 1));
+        assertEquals("Hello,", cl100k.truncate("Hello, world", 2));
+        assertEquals("", cl100k.truncate("anything", -1));
+    }
+
+    private static void assertMatches(Encoding reference, BpeTokenizer tokenizer, long seed) {
+        Random random = new Random(seed);
+        for (int i = 0; i < TEXTS; i++) {
+            String text = randomText(random);
+            int[] expected = reference.encode(text).toArray();
+            assertArrayEquals(expected, tokenizer.encode(text), () -> tokenizer + " on " + escape(text));
+            assertEquals(expected.length, tokenizer.count(text));
+            assertEquals(text, tokenizer.decode(expected));
+        }
+    }
+
+    private static String randomText(Random random) {
+        StringBuilder text = new StringBuilder();
+        int fragments = 1 + random.nextInt(40);
+        for (int i = 0; i < fragments; i++) {
+            if (random.nextInt(4) == 0) {
+                // Runs of one character class, to reach the digit and whitespace limits
+                String fragment = FRAGMENTS[random.nextInt(FRAGMENTS.length)];
+                text.append(fragment.repeat(1 + random.nextInt(5)));
+            } else {
+                text.append(FRAGMENTS[random.nextInt(FRAGMENTS.length)]);
+            }
+        }
+        return text.toString();
+    }
+
+    private static BpeTokenizer tiktoken(String name, String pattern) throws IOException {
+        try (InputStream in = Encoding.class.getResourceAsStream("/com/knuddels/jtokkit/" + name + ".tiktoken")) {
+            assertTrue(in != null, name + " is not in the jtokkit jar");
+            return BpeTokenizer.fromTiktoken(name, in, pattern);
+        }
+    }
+
+    private static String escape(String text) {
+        StringBuilder escaped = new StringBuilder("\"");
+        text.codePoints().forEach(c -> {
+            if (c >= 0x20 && c < 0x7F) escaped.appendCodePoint(c);
+            else escaped.append(String.format("\\u{%x}", c));
+        });
+        return escaped.append('"').toString();
+    }
+}
@@ -0,0 +1,38 @@
+package common.llm;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class LlmClientTest {
+    private static final String ENDPOINT = "http://localhost:1/v1/chat/completions";
+
+    @Test
+    void equalConfigsShareOneClient() {
+        LlmClient first = LlmClient.forEndpoint(ENDPOINT, LlmClientConfig.builder().bearerToken("a").build());
+        LlmClient second = LlmClient.forEndpoint(ENDPOINT, LlmClientConfig.builder().bearerToken("a").build());
+
+        assertSame(first, second);
+    }
+
+    @Test
+    void differentConfigGetsItsOwnClient() {
+        RateLimiterRegistry registry = RateLimiterRegistry.shared();
+        LlmClient defaults = LlmClient.forEndpoint(ENDPOINT);
+        LlmClient withToken = LlmClient.forEndpoint(ENDPOINT, LlmClientConfig.builder()
+                .bearerToken("secret")
+                .rateLimits(registry, "openai")
+                .callTimeout(Duration.ofSeconds(5))
+                .build());
+
+        assertNotSame(defaults, withToken);
+        assertEquals(LlmClientConfig.defaults(), defaults.config());
+        assertEquals("secret", withToken.config().bearerToken());
+        assertSame(registry, withToken.config().rateLimits());
+        assertEquals(Duration.ofSeconds(5), withToken.config().callTimeout());
+    }
+}
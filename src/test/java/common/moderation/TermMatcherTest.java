@@ -0,0 +1,107 @@
+package common.moderation;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TermMatcherTest {
+
+    @ParameterizedTest(name = "{0} in \"{1}\" -> {2}")
+    @CsvSource(delimiter = '|', textBlock = """
+            # Whole words
+            kill       | kill                       | true
+            kill       | I will kill it             | true
+            kill       | kill.                      | true
+            kill       | (kill)                     | true
+            kill       | skills                     | false
+            kill       | killer                     | false
+            kill       | skill kill                 | true
+            bad word   | a bad word here            | true
+            bad word   | a bad,   word              | true
+            bad word   | badword                    | false
+            bad word   | bad words                  | false
+            # Wildcards
+            hack*      | hacking the site           | true
+            hack*      | hack                       | true
+            hack*      | shack                      | false
+            *phobe     | homophobe                  | true
+            *phobe     | phobe                      | true
+            *phobe     | phobes                     | false
+            *pup*      | a puppy                    | true
+            *pup*      | pup                        | true
+            *pup*      | p up                       | false
+            # Folded characters
+            kill       | KILL                       | true
+            kill       | k1ll                       | true
+            kill       | kíll                       | true
+            kill       | ｋｉｌｌ                    | true
+            kill       | k-ill                      | false
+            k1ll       | kill                       | true
+            sass       | $a$$                       | true
+            """)
+    void matches(String term, String text, boolean expected) {
+        assertEquals(expected, TermMatcher.compile(List.of(term)).matches(text));
+    }
+
+    @Test
+    void invisibleAndLeetCharacters() {
+        TermMatcher kill = TermMatcher.compile(List.of("kill"));
+        // Zero-width space and soft hyphen are dropped, not treated as word breaks
+        assertTrue(kill.matches("k\u200Bill"));
+        assertTrue(kill.matches("ki\u00ADll"));
+        // Combining acute accent
+        assertTrue(kill.matches("ki\u0301ll"));
+        assertTrue(TermMatcher.compile(List.of("lol")).matches("|o|"));
+    }
+
+    @Test
+    void overlappingTermsReportTheOneThatEndsFirst() {
+        TermMatcher matcher = TermMatcher.compile(List.of("abcdx", "*bc*", "*abcd*", "cd"));
+        // "bc" is only reachable through the failure link of the "abc" state of the first term
+        assertEquals(1, matcher.firstMatch("abcd"));
+        assertEquals("*bc*", matcher.term(matcher.firstMatch("abcd")));
+        assertEquals(1, matcher.firstMatch("xxbcxx"));
+        assertEquals(3, matcher.firstMatch("the cd shop"));
+        assertEquals(-1, matcher.firstMatch("acd b c"));
+
+        TermMatcher nested = TermMatcher.compile(List.of("*she*", "*he*", "*hers*"));
+        assertEquals(0, nested.firstMatch("ushers"));
+        assertEquals(1, nested.firstMatch("ahe"));
+        assertEquals(1, nested.firstMatch("xhers"));
+    }
+
+    @Test
+    void emptyTermsAreDropped() {
+        TermMatcher matcher = TermMatcher.compile(List.of("*", "  ", "**", "ok"));
+        assertEquals(1, matcher.size());
+        assertEquals("ok", matcher.term(0));
+        assertFalse(matcher.matches(""));
+        assertFalse(TermMatcher.compile(List.of()).matches("anything"));
+    }
+
+    @Test
+    void catchesEverythingTheOldContainsCheckDid() {
+        // ContentModeratorBotDumb used to delete messages for content.contains("puppies")
+        TermMatcher banned = TermMatcher.load("/ch05/banned_terms.txt");
+        String[] pieces = {"puppies", "puppy", "pup", "pies", "PUPPIES", "Pupp1es", " ", "!", "a", "s", "ppies", "pu"};
+        Random random = new Random(3);
+        for (int i = 0; i < 5000; i++) {
+            StringBuilder text = new StringBuilder();
+            for (int n = random.nextInt(8); n >= 0; n--) text.append(pieces[random.nextInt(pieces.length)]);
+            String message = text.toString();
+            if (message.contains("puppies")) assertTrue(banned.matches(message), message);
+        }
+        // And what it missed
+        assertTrue(banned.matches("PUPPIES!"));
+        assertTrue(banned.matches("pupp1e$"));
+        assertTrue(banned.matches("I love puppieslol"));
+        assertFalse(banned.matches("a puppy"));
+    }
+}